@@ -6,6 +6,8 @@ package freenet.client;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -23,14 +25,15 @@ import org.apache.tools.tar.TarInputStream;
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ClientContext;
+import freenet.crypt.SHA256;
 import freenet.keys.FreenetURI;
+import freenet.support.ConcurrentLRUHashtable;
 import freenet.support.LRUHashtable;
 import freenet.support.Logger;
 import freenet.support.MutableBoolean;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
-import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
 
 /**
@@ -105,7 +108,7 @@ public class ArchiveManager {
 	
 	// ArchiveHandler's
 	final int maxArchiveHandlers;
-	private final LRUHashtable<FreenetURI, ArchiveStoreContext> archiveHandlers;
+	private final ConcurrentLRUHashtable<FreenetURI, ArchiveStoreContext> archiveHandlers;
 	
 	// Data cache
 	/** Maximum number of cached ArchiveStoreItems */
@@ -116,6 +119,9 @@ public class ArchiveManager {
 	private long cachedData;
 	/** Map from ArchiveKey to ArchiveStoreElement */
 	private final LRUHashtable<ArchiveKey, ArchiveStoreItem> storedData;
+	/** Map from the key of an archive to its uncompressed contents. Counted
+	 * in cachedData, but not in maxCachedElements. */
+	private final LRUHashtable<FreenetURI, ExtractedArchive> extractedArchives;
 	/** Bucket Factory */
 	private final BucketFactory tempBucketFactory;
 
@@ -136,21 +142,21 @@ public class ArchiveManager {
 	 */
 	public ArchiveManager(int maxHandlers, long maxCachedData, long maxArchivedFileSize, int maxCachedElements, BucketFactory tempBucketFactory) {
 		maxArchiveHandlers = maxHandlers;
-		archiveHandlers = new LRUHashtable<FreenetURI, ArchiveStoreContext>();
+		archiveHandlers = new ConcurrentLRUHashtable<FreenetURI, ArchiveStoreContext>(maxHandlers, null);
 		this.maxCachedElements = maxCachedElements;
 		this.maxCachedData = maxCachedData;
 		storedData = new LRUHashtable<ArchiveKey, ArchiveStoreItem>();
+		extractedArchives = new LRUHashtable<FreenetURI, ExtractedArchive>();
 		this.maxArchivedFileSize = maxArchivedFileSize;
 		this.tempBucketFactory = tempBucketFactory;
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 	}
 
 	/** Add an ArchiveHandler by key */
-	private synchronized void putCached(FreenetURI key, ArchiveStoreContext zip) {
+	private void putCached(FreenetURI key, ArchiveStoreContext zip) {
 		if(logMINOR) Logger.minor(this, "Put cached AH for "+key+" : "+zip);
+		// Bounded by maxArchiveHandlers, the oldest are dumped automatically.
 		archiveHandlers.push(key, zip);
-		while(archiveHandlers.size() > maxArchiveHandlers)
-			archiveHandlers.popKey(); // dump it
 	}
 
 	/** Get an ArchiveHandler by key */
@@ -205,14 +211,50 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
+		ExtractedArchive extracted = null;
 		synchronized (this) {
 			asi = storedData.get(k);	
-			if(asi == null) return null;
-			// Promote to top of LRU
-			storedData.push(k, asi);
+			if(asi != null) {
+				// Promote to top of LRU
+				storedData.push(k, asi);
+			} else {
+				extracted = extractedArchives.get(key);
+				if(extracted == null || !extracted.contains(filename)) return null;
+				extractedArchives.push(key, extracted);
+			}
 		}
 		if(logMINOR) Logger.minor(this, "Found data");
-		return asi.getReaderBucket();
+		if(asi != null)
+			return asi.getReaderBucket();
+		return extracted.getElement(filename);
+	}
+	
+	/**
+	 * Add the uncompressed contents of an archive to the cache, replacing
+	 * any earlier copy, and drop old data if we are over the limit.
+	 */
+	private void addExtractedArchive(ExtractedArchive extracted) {
+		ExtractedArchive old;
+		synchronized(this) {
+			old = extractedArchives.get(extracted.key);
+			extractedArchives.push(extracted.key, extracted);
+			cachedData += extracted.spaceUsed();
+			if(old != null) {
+				cachedData -= old.spaceUsed();
+				if(logMINOR) Logger.minor(this, "Dropping old extracted archive: "+old);
+				old.close();
+			}
+		}
+		trimStoredData();
+	}
+	
+	/** Drop the uncompressed contents of an archive from the cache. */
+	private synchronized void removeExtractedArchive(FreenetURI key) {
+		ExtractedArchive extracted = extractedArchives.get(key);
+		if(extracted == null) return;
+		extractedArchives.removeKey(key);
+		cachedData -= extracted.spaceUsed();
+		extracted.close();
 	}
 	
 	/**
@@ -233,7 +275,9 @@ public class ArchiveManager {
 	}
 	
 	/**
-	 * Extract data to cache. Call synchronized on ctx.
+	 * Extract data to cache. Call synchronized on ctx. The container is read
+	 * once: it is hashed as it is unpacked, and every element is written to
+	 * a single uncompressed copy from which later requests are served.
 	 * @param key The key the data was fetched from.
 	 * @param archiveType The archive type. Must be Metadata.ARCHIVE_ZIP | Metadata.ARCHIVE_TAR.
 	 * @param data The actual data fetched.
@@ -253,10 +297,11 @@ public class ArchiveManager {
 	public void extractToCache(FreenetURI key, ARCHIVE_TYPE archiveType, COMPRESSOR_TYPE ctype, Bucket data, ArchiveContext archiveContext, ArchiveStoreContext ctx, String element, ArchiveExtractCallback callback, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 		
-		MutableBoolean gotElement = element != null ? new MutableBoolean() : null;
+		MutableBoolean gotElement = new MutableBoolean();
 		
 		if(logMINOR) Logger.minor(this, "Extracting "+key);
 		ctx.removeAllCachedItems(this); // flush cache anyway
+		removeExtractedArchive(key);
 		final long expectedSize = ctx.getLastSize();
 		final long archiveSize = data.size();
 		/** Set if we need to throw a RestartedException rather than returning success,
@@ -267,18 +312,6 @@ public class ArchiveManager {
 			throwAtExit = true;
 			ctx.setLastSize(archiveSize);
 		}
-		byte[] expectedHash = ctx.getLastHash();
-		if(expectedHash != null) {
-			byte[] realHash;
-			try {
-				realHash = BucketTools.hash(data);
-			} catch (IOException e) {
-				throw new ArchiveFailureException("Error reading archive data: "+e, e);
-			}
-			if(!Arrays.equals(realHash, expectedHash))
-				throwAtExit = true;
-			ctx.setLastHash(realHash);
-		}
 		
 		if(archiveSize > archiveContext.maxArchiveSize)
 			throw new ArchiveFailureException("Archive too big ("+archiveSize+" > "+archiveContext.maxArchiveSize+")!");
@@ -287,192 +320,214 @@ public class ArchiveManager {
 		else if(logMINOR)
 			Logger.minor(this, "Container size (possibly compressed): "+archiveSize+" for "+data);
 		
-		
+		// Hash the container as we unpack it, rather than reading it twice.
+		MessageDigest md = SHA256.getMessageDigest();
+		DigestInputStream raw = null;
 		InputStream is = null;
+		Extraction extraction = null;
 		try {
+			raw = new DigestInputStream(data.getInputStream(), md);
 			if((ctype == null) || (ARCHIVE_TYPE.ZIP == archiveType)) {
 				if(logMINOR) Logger.minor(this, "No compression");
-				is = data.getInputStream();
+				is = raw;
 			} else if(ctype == COMPRESSOR_TYPE.BZIP2) {
 				if(logMINOR) Logger.minor(this, "dealing with BZIP2");
-				is = new CBZip2InputStream(data.getInputStream());
+				is = new CBZip2InputStream(raw);
 			} else if(ctype == COMPRESSOR_TYPE.GZIP) {
 				if(logMINOR) Logger.minor(this, "dealing with GZIP");
-				is = new GZIPInputStream(data.getInputStream());
+				is = new GZIPInputStream(raw);
 			} else if(ctype == COMPRESSOR_TYPE.LZMA) {
 				if(logMINOR) Logger.minor(this, "dealing with LZMA");
-				is = new LzmaInputStream(data.getInputStream());
+				is = new LzmaInputStream(raw);
 			}
 			
+			extraction = new Extraction(ctx, key, element, callback, gotElement, container, context);
 			if(ARCHIVE_TYPE.ZIP == archiveType)
-				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
+				handleZIPArchive(extraction, is);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
-				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, container, context);
-		else
+				handleTARArchive(extraction, is);
+			else
 				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
+			
+			// The archive format may end before the container does.
+			byte[] buf = new byte[32768];
+			while(raw.read(buf) > 0);
+			byte[] realHash = md.digest();
+			byte[] expectedHash = ctx.getLastHash();
+			if(expectedHash != null && !Arrays.equals(realHash, expectedHash))
+				throwAtExit = true;
+			ctx.setLastHash(realHash);
+			
+			addExtractedArchive(extraction.finish());
 		} catch (IOException ioe) {
 			throw new ArchiveFailureException("An IOE occured: "+ioe.getMessage(), ioe);
-		}finally {
+		} finally {
+			if(extraction != null) extraction.abort();
 			Closer.close(is);
-	}
+			Closer.close(raw);
+			SHA256.returnMessageDigest(md);
+		}
+		
+		// If no metadata, generate some
+		if(!extraction.gotMetadata) {
+			generateMetadata(ctx, key, extraction.names, gotElement, element, callback, container, context);
+			trimStoredData();
+		}
+		if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
+		
+		if((!gotElement.value) && element != null)
+			callback.notInArchive(container, context);
 	}
 	
-	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleTARArchive(Extraction extraction, InputStream data) throws ArchiveFailureException, IOException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
-		TarInputStream tarIS = null;
-		try {
-			tarIS = new TarInputStream(data);
-			
-			// MINOR: Assumes the first entry in the tarball is a directory. 
-			TarEntry entry;
-			
-			byte[] buf = new byte[32768];
-			HashSet<String> names = new HashSet<String>();
-			boolean gotMetadata = false;
-			
-outerTAR:		while(true) {
-				entry = tarIS.getNextEntry();
-				if(entry == null) break;
-				if(entry.isDirectory()) continue;
-				String name = entry.getName();
-				if(names.contains(name)) {
-					Logger.error(this, "Duplicate key "+name+" in archive "+key);
-					continue;
-				}
-				long size = entry.getSize();
-				if(name.equals(".metadata"))
-					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-
-					int readBytes;
-					while((readBytes = tarIS.read(buf)) > 0) {
-						out.write(buf, 0, readBytes);
-						readBytes += realLen;
-						if(readBytes > maxArchivedFileSize) {
-							addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-							out.close();
-							output.free();
-							continue outerTAR;
-						}
-					}
-
-					out.close();
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, container, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file. 
-						callback.gotBucket(output, container, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
-					}
-				}
-			}
-
-			// If no metadata, generate some
-			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
-				trimStoredData();
-			}
-			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
-			
-			if((!gotElement.value) && element != null)
-				callback.notInArchive(container, context);
-			
-		} catch (IOException e) {
-			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
-		} finally {
-			Closer.close(tarIS);
+		TarInputStream tarIS = new TarInputStream(data);
+		
+		// MINOR: Assumes the first entry in the tarball is a directory. 
+		TarEntry entry;
+		
+		while(true) {
+			entry = tarIS.getNextEntry();
+			if(entry == null) break;
+			if(entry.isDirectory()) continue;
+			extraction.extract(entry.getName(), entry.getSize(), tarIS);
 		}
 	}
 	
-	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ObjectContainer container, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleZIPArchive(Extraction extraction, InputStream data) throws ArchiveFailureException, IOException {
 		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive");
-		ZipInputStream zis = null;
-		try {
-			zis = new ZipInputStream(data);
-			
-			// MINOR: Assumes the first entry in the zip is a directory. 
-			ZipEntry entry;
-			
-			byte[] buf = new byte[32768];
-			HashSet<String> names = new HashSet<String>();
-			boolean gotMetadata = false;
-			
-outerZIP:		while(true) {
-				entry = zis.getNextEntry();
-				if(entry == null) break;
-				if(entry.isDirectory()) continue;
-				String name = entry.getName();
-				if(names.contains(name)) {
-					Logger.error(this, "Duplicate key "+name+" in archive "+key);
-					continue;
+		ZipInputStream zis = new ZipInputStream(data);
+		
+		// MINOR: Assumes the first entry in the zip is a directory. 
+		ZipEntry entry;
+		
+		while(true) {
+			entry = zis.getNextEntry();
+			if(entry == null) break;
+			if(entry.isDirectory()) continue;
+			extraction.extract(entry.getName(), entry.getSize(), zis);
+		}
+	}
+	
+	/**
+	 * A single pass over an archive. Every element that isn't too big is
+	 * appended to one stored copy, and its offset recorded; the element the
+	 * caller is waiting for is also copied to a bucket of its own, so that
+	 * it can be passed on as soon as it has been read.
+	 */
+	private class Extraction {
+		
+		private final ArchiveStoreContext ctx;
+		private final FreenetURI key;
+		private final String element;
+		private final ArchiveExtractCallback callback;
+		private final MutableBoolean gotElement;
+		private final ObjectContainer container;
+		private final ClientContext context;
+		final HashSet<String> names;
+		boolean gotMetadata;
+		private final HashMap<String, long[]> index;
+		private final Bucket copy;
+		private final OutputStream copyOut;
+		private final byte[] buf;
+		/** Bytes written to the stored copy so far */
+		private long written;
+		private boolean finished;
+		
+		Extraction(ArchiveStoreContext ctx, FreenetURI key, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, ObjectContainer container, ClientContext context) throws IOException {
+			this.ctx = ctx;
+			this.key = key;
+			this.element = element;
+			this.callback = callback;
+			this.gotElement = gotElement;
+			this.container = container;
+			this.context = context;
+			names = new HashSet<String>();
+			index = new HashMap<String, long[]>();
+			copy = tempBucketFactory.makeBucket(-1);
+			copyOut = copy.getOutputStream();
+			buf = new byte[32768];
+		}
+		
+		/**
+		 * Read the current element from the archive stream.
+		 * @param size The size the archive claims the element has, or -1.
+		 */
+		void extract(String name, long size, InputStream is) throws ArchiveFailureException, IOException {
+			if(names.contains(name)) {
+				Logger.error(this, "Duplicate key "+name+" in archive "+key);
+				return;
+			}
+			if(name.equals(METADATA_NAME))
+				gotMetadata = true;
+			boolean wanted = (!gotElement.value) && name.equals(element);
+			boolean inCopy = size <= maxArchivedFileSize;
+			if(!(inCopy || wanted)) {
+				addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				return;
+			}
+			Bucket output = null;
+			OutputStream out = null;
+			try {
+				if(wanted) {
+					output = tempBucketFactory.makeBucket(size);
+					out = output.getOutputStream();
 				}
-				long size = entry.getSize();
-				if(name.equals(".metadata"))
-					gotMetadata = true;
-				if(size > maxArchivedFileSize && !name.equals(element)) {
-					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-				} else {
-					// Read the element
-					long realLen = 0;
-					Bucket output = tempBucketFactory.makeBucket(size);
-					OutputStream out = output.getOutputStream();
-
-					int readBytes;
-					while((readBytes = zis.read(buf)) > 0) {
-						out.write(buf, 0, readBytes);
-						readBytes += realLen;
-						if(readBytes > maxArchivedFileSize) {
-							addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-							out.close();
-							output.free();
-							continue outerZIP;
-						}
+				long offset = written;
+				long realLen = 0;
+				int readBytes;
+				while((readBytes = is.read(buf)) > 0) {
+					realLen += readBytes;
+					if(inCopy && realLen > maxArchivedFileSize) {
+						// The size was missing or wrong. What we already wrote
+						// to the copy stays there, unindexed.
+						inCopy = false;
+						if(!wanted) break;
 					}
-
-					out.close();
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, container, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file. 
-						callback.gotBucket(output, container, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+					if(inCopy) {
+						copyOut.write(buf, 0, readBytes);
+						written += readBytes;
 					}
+					if(out != null)
+						out.write(buf, 0, readBytes);
 				}
-			}
-
-			// If no metadata, generate some
-			if(!gotMetadata) {
-				generateMetadata(ctx, key, names, gotElement, element, callback, container, context);
-				trimStoredData();
-			}
-			if(throwAtExit) throw new ArchiveRestartException("Archive changed on re-fetch");
-			
-			if((!gotElement.value) && element != null)
-				callback.notInArchive(container, context);
-			
-		} catch (IOException e) {
-			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
-		} finally {
-			if(zis != null) {
-				try {
-					zis.close();
-				} catch (IOException e) {
-					Logger.error(this, "Failed to close stream: "+e, e);
+				if(inCopy) {
+					index.put(name, new long[] { offset, realLen });
+					names.add(name);
+				} else {
+					addErrorElement(ctx, key, name, "File too big: "+realLen+" greater than current archived file size limit "+maxArchivedFileSize, true);
 				}
+				if(out != null) {
+					out.close();
+					out = null;
+					Bucket b = output;
+					output = null;
+					b.setReadOnly();
+					// We are here because they asked for this file.
+					callback.gotBucket(b, container, context);
+					gotElement.value = true;
+				}
+			} finally {
+				Closer.close(out);
+				if(output != null) output.free();
 			}
 		}
+		
+		ExtractedArchive finish() throws IOException {
+			copyOut.close();
+			finished = true;
+			if(logMINOR) Logger.minor(this, "Stored "+index.size()+" elements from "+key+" in "+written+" bytes");
+			return new ExtractedArchive(key, copy, index);
+		}
+		
+		/** Free the stored copy, if we never got as far as finish(). */
+		void abort() {
+			if(finished) return;
+			finished = true;
+			Closer.close(copyOut);
+			copy.free();
+		}
+		
 	}
 
 	/**
@@ -637,6 +692,15 @@ outerZIP:		while(true) {
 		while(true) {
 			ArchiveStoreItem item;
 				if(cachedData <= maxCachedData && storedData.size() <= maxCachedElements) return;
+				if(cachedData > maxCachedData && !extractedArchives.isEmpty()) {
+					// Whole archives are the bulk of the data, drop those first.
+					ExtractedArchive extracted = extractedArchives.popValue();
+					cachedData -= extracted.spaceUsed();
+					if(logMINOR)
+						Logger.minor(this, "Dropping "+extracted+" : cachedData="+cachedData+" of "+maxCachedData);
+					extracted.close();
+					continue;
+				}
 				if(storedData.isEmpty()) {
 					// Race condition? cachedData out of sync?
 					Logger.error(this, "storedData is empty but still over limit: cachedData="+cachedData+" / "+maxCachedData);
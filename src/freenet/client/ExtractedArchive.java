@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.util.HashMap;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.MultiReaderBucket;
+import freenet.support.io.ReadOnlyBucketSliceBucket;
+
+/**
+ * The uncompressed contents of an archive, written once, one element after
+ * another, with an index of where each element starts. Elements are served as
+ * read-only slices of this copy, so a file which has not been asked for yet,
+ * or which was asked for a while ago, can be served without fetching and
+ * unpacking the whole archive again.
+ */
+class ExtractedArchive {
+
+	final FreenetURI key;
+	private final MultiReaderBucket mb;
+	/** Our own reader, freed when we are dropped from the cache. Slices
+	 * already handed out keep the data alive until they are freed too. */
+	private final Bucket reader;
+	/** Element name -> { offset, length } */
+	private final HashMap<String, long[]> index;
+	private final long spaceUsed;
+
+	ExtractedArchive(FreenetURI key, Bucket data, HashMap<String, long[]> index) {
+		this.key = key;
+		data.setReadOnly();
+		spaceUsed = data.size();
+		mb = new MultiReaderBucket(data);
+		reader = mb.getReaderBucket();
+		this.index = index;
+	}
+
+	/** Is the element in the stored copy? */
+	boolean contains(String name) {
+		return index.containsKey(name);
+	}
+
+	/**
+	 * Get an element of the archive. The caller must free the bucket.
+	 * @return A read-only bucket, or null if there is no such element, or
+	 * the copy has been freed.
+	 */
+	Bucket getElement(String name) {
+		long[] pos = index.get(name);
+		if(pos == null) return null;
+		Bucket b = mb.getReaderBucket();
+		if(b == null) return null;
+		return new ReadOnlyBucketSliceBucket(b, pos[0], pos[1]);
+	}
+
+	/** The number of elements in the stored copy. */
+	int countElements() {
+		return index.size();
+	}
+
+	long spaceUsed() {
+		return spaceUsed;
+	}
+
+	/** Release our reference to the data. Called when dropped from the cache. */
+	void close() {
+		reader.free();
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+key+":"+index.size()+" elements, "+spaceUsed+" bytes";
+	}
+}
@@ -4,6 +4,7 @@
 package freenet.client;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
@@ -29,7 +30,6 @@ import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
-import freenet.support.io.BucketTools;
 
 /** Metadata parser/writer class. */
 public class Metadata implements Cloneable {
@@ -130,6 +130,14 @@ public class Metadata implements Cloneable {
 	// Manifests
 	/** Manifest entries by name */
 	HashMap<String, Metadata> manifestEntries;
+	/** Manifest entries which have been read but not parsed yet, by name. The
+	 * value is the offset of the entry in unparsedManifestData, which holds
+	 * each entry as a 2-byte length followed by the serialized Metadata.
+	 * Parsing is deferred so that looking up one file in a big site's manifest
+	 * does not have to build a Metadata for every other file. Null if there
+	 * are none left. */
+	HashMap<String, Integer> unparsedManifestEntries;
+	byte[] unparsedManifestData;
 
 	/** Archive internal redirect: name of file in archive 
 	 *  SympolicShortLink: Target name*/
@@ -341,29 +349,32 @@ public class Metadata implements Cloneable {
 
 			manifestEntries = new HashMap<String, Metadata>();
 
-			// Parse the sub-Manifest.
+			// Index the sub-Manifest. Entries are parsed on demand by getDocument().
 
 			if(logMINOR)Logger.minor(this, "Simple manifest, "+manifestEntryCount+" entries");
 
-			for(int i=0;i<manifestEntryCount;i++) {
-				short nameLength = dis.readShort();
-				byte[] buf = new byte[nameLength];
-				dis.readFully(buf);
-				String name = new String(buf, "UTF-8").intern();
-				if(logMINOR) Logger.minor(this, "Entry "+i+" name "+name);
-				short len = dis.readShort();
-				if(len < 0)
-					throw new MetadataParseException("Invalid manifest entry size: "+len);
-				if(len > length)
-					throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
-				byte[] data = new byte[len];
-				dis.readFully(data);
-				try {
-					Metadata m = Metadata.construct(data);
-					manifestEntries.put(name, m);
-				} catch (Throwable t) {
-					Logger.error(this, "Could not parse sub-manifest: "+t, t);
+			if(manifestEntryCount > 0) {
+				unparsedManifestEntries = new HashMap<String, Integer>();
+				ByteArrayOutputStream entries = new ByteArrayOutputStream();
+				DataOutputStream entriesOut = new DataOutputStream(entries);
+				byte[] data = new byte[MAX_SIZE_IN_MANIFEST];
+				for(int i=0;i<manifestEntryCount;i++) {
+					short nameLength = dis.readShort();
+					byte[] buf = new byte[nameLength];
+					dis.readFully(buf);
+					String name = new String(buf, "UTF-8").intern();
+					if(logMINOR) Logger.minor(this, "Entry "+i+" name "+name);
+					short len = dis.readShort();
+					if(len < 0)
+						throw new MetadataParseException("Invalid manifest entry size: "+len);
+					if(len > length)
+						throw new MetadataParseException("Impossibly long manifest entry: "+len+" - metadata size "+length);
+					dis.readFully(data, 0, len);
+					unparsedManifestEntries.put(name, entriesOut.size());
+					entriesOut.writeShort(len);
+					entriesOut.write(data, 0, len);
 				}
+				unparsedManifestData = entries.toByteArray();
 			}
 			if(logMINOR) Logger.minor(this, "End of manifest"); // Make it easy to search for it!
 		}
@@ -702,8 +713,13 @@ public class Metadata implements Cloneable {
 	 * Get the sub-document in a manifest file with the given name.
 	 * @throws MetadataParseException 
 	 */
-	public Metadata getDocument(String name) {
-		return manifestEntries.get(name);
+	public synchronized Metadata getDocument(String name) {
+		Metadata m = manifestEntries.get(name);
+		if(m == null && unparsedManifestEntries != null) {
+			m = parseDocument(name);
+			if(m != null) manifestEntries.put(name, m);
+		}
+		return m;
 	}
 	
 	/**
@@ -711,8 +727,44 @@ public class Metadata implements Cloneable {
 	 * so that when removeFrom() is called, the default document won't be 
 	 * removed, since it is being processed.
 	 */
-	public Metadata grabDocument(String name) {
-		return manifestEntries.remove(name);
+	public synchronized Metadata grabDocument(String name) {
+		Metadata m = manifestEntries.remove(name);
+		if(m == null && unparsedManifestEntries != null)
+			m = parseDocument(name);
+		return m;
+	}
+	
+	/**
+	 * Parse a manifest entry which has not been parsed yet, and drop it from
+	 * the unparsed index.
+	 * @return The parsed entry, or null if there is no such entry or it is invalid.
+	 */
+	private Metadata parseDocument(String name) {
+		Integer offset = unparsedManifestEntries.remove(name);
+		if(offset == null) return null;
+		byte[] data = unparsedManifestData;
+		if(unparsedManifestEntries.isEmpty()) {
+			unparsedManifestEntries = null;
+			unparsedManifestData = null;
+		}
+		int off = offset;
+		int len = ((data[off] & 0xff) << 8) | (data[off+1] & 0xff);
+		try {
+			return new Metadata(new DataInputStream(new ByteArrayInputStream(data, off+2, len)), len);
+		} catch (Throwable t) {
+			Logger.error(this, "Could not parse sub-manifest: "+t, t);
+			return null;
+		}
+	}
+	
+	/** Parse all remaining manifest entries. */
+	private void parseAllDocuments() {
+		if(unparsedManifestEntries == null) return;
+		String[] names = unparsedManifestEntries.keySet().toArray(new String[unparsedManifestEntries.size()]);
+		for(String name : names) {
+			Metadata m = parseDocument(name);
+			if(m != null) manifestEntries.put(name, m);
+		}
 	}
 
 	/**
@@ -736,7 +788,8 @@ public class Metadata implements Cloneable {
      * Get all documents in the manifest (ignores default doc).
      * @throws MetadataParseException
      */
-    public HashMap<String, Metadata> getDocuments() {
+    public synchronized HashMap<String, Metadata> getDocuments() {
+    	parseAllDocuments();
     	HashMap<String, Metadata> docs = new HashMap<String, Metadata>();
         Set<String> s = manifestEntries.keySet();
         Iterator<String> i = s.iterator();
@@ -937,52 +990,8 @@ public class Metadata implements Cloneable {
 				writeCHK(dos, splitfileCheckKeys[i]);
 		}
 
-		if(documentType == SIMPLE_MANIFEST) {
-			dos.writeInt(manifestEntries.size());
-			boolean kill = false;
-			LinkedList<Metadata> unresolvedMetadata = null;
-			for(Iterator<String> i=manifestEntries.keySet().iterator();i.hasNext();) {
-				String name = i.next();
-				byte[] nameData = name.getBytes("UTF-8");
-				if(nameData.length > Short.MAX_VALUE) throw new IllegalArgumentException("Manifest name too long");
-				dos.writeShort(nameData.length);
-				dos.write(nameData);
-				Metadata meta = manifestEntries.get(name);
-				try {
-					byte[] data = meta.writeToByteArray();
-					if(data.length > MAX_SIZE_IN_MANIFEST) {
-						FreenetURI uri = meta.resolvedURI;
-						String n = meta.resolvedName;
-						if(uri != null) {
-							meta = new Metadata(SIMPLE_REDIRECT, null, null, uri, null);
-							data = meta.writeToByteArray();
-						} else if (n != null) {
-							meta = new Metadata(ARCHIVE_METADATA_REDIRECT, n);
-							data = meta.writeToByteArray();
-						} else {
-							kill = true;
-							if(unresolvedMetadata == null)
-								unresolvedMetadata = new LinkedList<Metadata>();
-							unresolvedMetadata.addLast(meta);
-						}
-					}
-					dos.writeShort(data.length);
-					dos.write(data);
-				} catch (MetadataUnresolvedException e) {
-					Metadata[] m = e.mustResolve;
-					if(unresolvedMetadata == null)
-						unresolvedMetadata = new LinkedList<Metadata>();
-					for(int j=0;j<m.length;j++)
-						unresolvedMetadata.addFirst(m[j]);
-					kill = true;
-				}
-			}
-			if(kill) {
-				Metadata[] meta = 
-					unresolvedMetadata.toArray(new Metadata[unresolvedMetadata.size()]);
-				throw new MetadataUnresolvedException(meta, "Manifest data too long and not resolved");
-			}
-		}
+		if(documentType == SIMPLE_MANIFEST)
+			writeManifest(dos);
 
 		if((documentType == ARCHIVE_INTERNAL_REDIRECT) || (documentType == ARCHIVE_METADATA_REDIRECT) || (documentType == SYMBOLIC_SHORTLINK)) {
 			byte[] data = targetName.getBytes("UTF-8");
@@ -992,6 +1001,75 @@ public class Metadata implements Cloneable {
 		}
 	}
 
+	/**
+	 * Write the manifest entries. Synchronized so that getDocument() can't
+	 * move an entry from the unparsed to the parsed map in the middle, which
+	 * would write it twice or not at all.
+	 */
+	private synchronized void writeManifest(DataOutputStream dos) throws IOException, MetadataUnresolvedException {
+		dos.writeInt(countDocuments());
+		writeUnparsedDocuments(dos);
+		boolean kill = false;
+		LinkedList<Metadata> unresolvedMetadata = null;
+		for(Iterator<String> i=manifestEntries.keySet().iterator();i.hasNext();) {
+			String name = i.next();
+			byte[] nameData = name.getBytes("UTF-8");
+			if(nameData.length > Short.MAX_VALUE) throw new IllegalArgumentException("Manifest name too long");
+			dos.writeShort(nameData.length);
+			dos.write(nameData);
+			Metadata meta = manifestEntries.get(name);
+			try {
+				byte[] data = meta.writeToByteArray();
+				if(data.length > MAX_SIZE_IN_MANIFEST) {
+					FreenetURI uri = meta.resolvedURI;
+					String n = meta.resolvedName;
+					if(uri != null) {
+						meta = new Metadata(SIMPLE_REDIRECT, null, null, uri, null);
+						data = meta.writeToByteArray();
+					} else if (n != null) {
+						meta = new Metadata(ARCHIVE_METADATA_REDIRECT, n);
+						data = meta.writeToByteArray();
+					} else {
+						kill = true;
+						if(unresolvedMetadata == null)
+							unresolvedMetadata = new LinkedList<Metadata>();
+						unresolvedMetadata.addLast(meta);
+					}
+				}
+				dos.writeShort(data.length);
+				dos.write(data);
+			} catch (MetadataUnresolvedException e) {
+				Metadata[] m = e.mustResolve;
+				if(unresolvedMetadata == null)
+					unresolvedMetadata = new LinkedList<Metadata>();
+				for(int j=0;j<m.length;j++)
+					unresolvedMetadata.addFirst(m[j]);
+				kill = true;
+			}
+		}
+		if(kill) {
+			Metadata[] meta = 
+				unresolvedMetadata.toArray(new Metadata[unresolvedMetadata.size()]);
+			throw new MetadataUnresolvedException(meta, "Manifest data too long and not resolved");
+		}
+	}
+
+	/**
+	 * Copy the manifest entries which have not been parsed straight to the
+	 * output. Their serialized form cannot have changed since we read it.
+	 */
+	private synchronized void writeUnparsedDocuments(DataOutputStream dos) throws IOException {
+		if(unparsedManifestEntries == null) return;
+		for(Map.Entry<String, Integer> entry : unparsedManifestEntries.entrySet()) {
+			byte[] nameData = entry.getKey().getBytes("UTF-8");
+			dos.writeShort(nameData.length);
+			dos.write(nameData);
+			int off = entry.getValue();
+			int len = ((unparsedManifestData[off] & 0xff) << 8) | (unparsedManifestData[off+1] & 0xff);
+			dos.write(unparsedManifestData, off, len + 2);
+		}
+	}
+
 	/**
 	 * have this metadata flags?
 	 */
@@ -1048,9 +1126,27 @@ public class Metadata implements Cloneable {
 		this.resolvedName = name;
 	}
 
+	/**
+	 * Write the metadata to a new read-only bucket. The metadata is streamed
+	 * straight into the bucket, so a big manifest is never held in memory as
+	 * one array.
+	 */
 	public Bucket toBucket(BucketFactory bf) throws MetadataUnresolvedException, IOException {
-		byte[] buf = writeToByteArray();
-		return BucketTools.makeImmutableBucket(bf, buf);
+		Bucket bucket = bf.makeBucket(-1);
+		boolean success = false;
+		try {
+			DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(bucket.getOutputStream(), 4096));
+			try {
+				writeTo(dos);
+			} finally {
+				dos.close();
+			}
+			bucket.setReadOnly();
+			success = true;
+			return bucket;
+		} finally {
+			if(!success) bucket.free();
+		}
 	}
 
 	public boolean isResolved() {
@@ -1102,6 +1198,10 @@ public class Metadata implements Cloneable {
 			}
 			container.delete(manifestEntries);
 		}
+		if(unparsedManifestEntries != null) {
+			container.activate(unparsedManifestEntries, 2);
+			container.delete(unparsedManifestEntries);
+		}
 		if(clientMetadata != null) {
 			container.activate(clientMetadata, 1);
 			clientMetadata.removeFrom(container);
@@ -1114,8 +1214,15 @@ public class Metadata implements Cloneable {
 		splitfileCheckKeys = null;
 	}
 
-	public int countDocuments() {
-		return manifestEntries.size();
+	/**
+	 * Count the documents in the manifest. Entries which have not been parsed
+	 * yet are counted even if they later turn out to be invalid.
+	 */
+	public synchronized int countDocuments() {
+		int count = manifestEntries.size();
+		if(unparsedManifestEntries != null)
+			count += unparsedManifestEntries.size();
+		return count;
 	}
 
 	/**
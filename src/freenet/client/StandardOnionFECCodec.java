@@ -7,7 +7,7 @@ import com.onionnetworks.fec.FECCode;
 import com.onionnetworks.fec.Native8Code;
 import com.onionnetworks.fec.PureCode;
 
-import freenet.support.LRUHashtable;
+import freenet.support.ConcurrentLRUHashtable;
 import freenet.support.Logger;
 
 /**
@@ -15,11 +15,12 @@ import freenet.support.Logger;
  */
 public class StandardOnionFECCodec extends FECCodec {
 	// REDFLAG: How big is one of these?
-	private static int MAX_CACHED_CODECS = 8;
+	private static final int MAX_CACHED_CODECS = 8;
 	
 	static boolean noNative;
 
-	private static final LRUHashtable recentlyUsedCodecs = new LRUHashtable();
+	private static final ConcurrentLRUHashtable<MyKey, StandardOnionFECCodec> recentlyUsedCodecs =
+		new ConcurrentLRUHashtable<MyKey, StandardOnionFECCodec>(MAX_CACHED_CODECS, null);
 	
 	private static class MyKey {
 		/** Number of input blocks */
@@ -46,18 +47,16 @@ public class StandardOnionFECCodec extends FECCodec {
 		}
 	}
 
-	public synchronized static FECCodec getInstance(int dataBlocks, int checkBlocks) {
+	public static FECCodec getInstance(int dataBlocks, int checkBlocks) {
 		MyKey key = new MyKey(dataBlocks, checkBlocks + dataBlocks);
-		StandardOnionFECCodec codec = (StandardOnionFECCodec) recentlyUsedCodecs.get(key);
+		StandardOnionFECCodec codec = recentlyUsedCodecs.get(key);
 		if(codec != null) {
 			recentlyUsedCodecs.push(key, codec);
 			return codec;
 		}
+		// Not locked: two threads may both create a codec for the same key, which is harmless.
 		codec = new StandardOnionFECCodec(dataBlocks, checkBlocks + dataBlocks);
 		recentlyUsedCodecs.push(key, codec);
-		while(recentlyUsedCodecs.size() > MAX_CACHED_CODECS) {
-			recentlyUsedCodecs.popKey();
-		}
 		return codec;
 	}
 
@@ -2,33 +2,167 @@ package freenet.client.async;
 
 import java.lang.ref.SoftReference;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
 import com.db4o.query.Query;
 
 import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.io.NativeThread;
 
 /**
  * Keeps a queue of SingleBlockInserter's to encode.
- * Encodes them.
+ * Encodes them, on one worker thread per CPU.
+ *
+ * Workers also help out with batches passed to {@link #encodeInOrder(int, BatchEncoder)},
+ * which lets a splitfile segment fan the encoding of its blocks out over the
+ * pool while still completing them one by one, in order, on its own thread.
  */
 public class BackgroundBlockEncoder implements PrioRunnable {
 
 	// Minimize memory usage at the cost of having to encode from the end
 	private final ArrayList<SoftReference<Encodeable>> queue;
+	/** Batches which still have blocks nobody has started on. */
+	private final ArrayList<EncodeBatch<?>> batches;
 	private ClientContext context;
+	private final int workerThreads;
 	
 	public BackgroundBlockEncoder() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+	
+	public BackgroundBlockEncoder(int workerThreads) {
 		queue = new ArrayList<SoftReference<Encodeable>>();
+		batches = new ArrayList<EncodeBatch<?>>();
+		this.workerThreads = Math.max(1, workerThreads);
 	}
 	
 	public void setContext(ClientContext context) {
 		this.context = context;
 	}
 	
+	/** Start the worker threads. */
+	public void start(Executor executor) {
+		for(int i=0;i<workerThreads;i++)
+			executor.execute(this, "Background block encoder "+i);
+	}
+	
+	/**
+	 * Encodes blocks of a batch and gets the results back in order.
+	 */
+	public interface BatchEncoder<T> {
+		
+		/** Do the expensive part of encoding block i. May be called on any thread,
+		 * so must not touch the database. */
+		T encode(int i) throws Exception;
+		
+		/** Called on the thread which called encodeInOrder(), for i = 0, 1, 2, ... */
+		void onEncoded(int i, T result);
+		
+		/** Called instead of onEncoded() if encode(i) threw. */
+		void onFailure(int i, Throwable t);
+		
+	}
+	
+	private static class EncodeBatch<T> {
+		private final BatchEncoder<T> encoder;
+		private final int count;
+		private final AtomicInteger nextIndex;
+		private final Object[] results;
+		private final Throwable[] failures;
+		private final boolean[] done;
+		private int delivered;
+		
+		EncodeBatch(BatchEncoder<T> encoder, int count) {
+			this.encoder = encoder;
+			this.count = count;
+			nextIndex = new AtomicInteger();
+			results = new Object[count];
+			failures = new Throwable[count];
+			done = new boolean[count];
+		}
+		
+		/** @return The next block to encode, or -1 if all have been started. */
+		int claim() {
+			int i = nextIndex.getAndIncrement();
+			return i < count ? i : -1;
+		}
+		
+		void encode(int i) {
+			Object result = null;
+			Throwable failure = null;
+			try {
+				result = encoder.encode(i);
+			} catch (Throwable t) {
+				failure = t;
+			}
+			synchronized(this) {
+				results[i] = result;
+				failures[i] = failure;
+				done[i] = true;
+				notifyAll();
+			}
+		}
+		
+		/** Deliver completed blocks in order, optionally waiting for all of them. */
+		@SuppressWarnings("unchecked")
+		void deliver(boolean waitForAll) {
+			while(delivered < count) {
+				int i = delivered;
+				Object result;
+				Throwable failure;
+				synchronized(this) {
+					while(!done[i]) {
+						if(!waitForAll) return;
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+					result = results[i];
+					failure = failures[i];
+					results[i] = null;
+				}
+				delivered++;
+				if(failure != null)
+					encoder.onFailure(i, failure);
+				else
+					encoder.onEncoded(i, (T) result);
+			}
+		}
+	}
+	
+	/**
+	 * Encode count blocks in parallel, using whichever workers are idle as well
+	 * as the calling thread, and call back onEncoded()/onFailure() in order on
+	 * the calling thread. Returns when every block has been delivered. Safe to
+	 * call from a worker: the caller always makes progress on its own batch, so
+	 * it never waits on a block which nobody is encoding.
+	 */
+	public <T> void encodeInOrder(int count, BatchEncoder<T> encoder) {
+		if(count <= 0) return;
+		EncodeBatch<T> batch = new EncodeBatch<T>(encoder, count);
+		if(count > 1 && workerThreads > 1) {
+			synchronized(this) {
+				batches.add(batch);
+				notifyAll();
+			}
+		}
+		int i;
+		while((i = batch.claim()) != -1) {
+			batch.encode(i);
+			batch.deliver(false);
+		}
+		synchronized(this) {
+			batches.remove(batch);
+		}
+		batch.deliver(true);
+	}
+	
 	public void queue(Encodeable sbi, ObjectContainer container, ClientContext context) {
 		if(sbi.persistent()) {
 			queuePersistent(sbi, container, context);
@@ -88,22 +222,43 @@ public class BackgroundBlockEncoder implements PrioRunnable {
 	    freenet.support.Logger.OSThread.logPID(this);
 		while(true) {
 			Encodeable sbi = null;
+			EncodeBatch<?> batch = null;
+			int index = -1;
 			synchronized(this) {
-				while(queue.isEmpty()) {
+				while(queue.isEmpty() && batches.isEmpty()) {
 					try {
 						wait(100*1000);
 					} catch (InterruptedException e) {
 						// Ignore
 					}
 				}
-				while(!queue.isEmpty()) {
-					SoftReference<Encodeable> ref = queue.remove(queue.size()-1);
-					sbi = ref.get();
-					if(sbi != null) break;
+				// Help with batches first, somebody is waiting for them.
+				while(!batches.isEmpty()) {
+					batch = batches.get(0);
+					index = batch.claim();
+					if(index != -1) break;
+					batches.remove(0);
+					batch = null;
+				}
+				if(batch == null) {
+					while(!queue.isEmpty()) {
+						SoftReference<Encodeable> ref = queue.remove(queue.size()-1);
+						sbi = ref.get();
+						if(sbi != null) break;
+					}
 				}
 			}
+			if(batch != null) {
+				batch.encode(index);
+				continue;
+			}
+			if(sbi == null) continue;
 			Logger.minor(this, "Encoding "+sbi);
-			sbi.tryEncode(null, context);
+			try {
+				sbi.tryEncode(null, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" encoding "+sbi, t);
+			}
 		}
 	}
 
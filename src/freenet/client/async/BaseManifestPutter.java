@@ -28,7 +28,6 @@ import freenet.node.RequestClient;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
-import freenet.support.io.BucketTools;
 import freenet.support.io.NativeThread;
 
 /**
@@ -861,7 +860,7 @@ public abstract class BaseManifestPutter extends BaseClientPutter implements Put
 			try {
 				if(persistent())
 					container.activate(baseMetadata, Integer.MAX_VALUE);
-				bucket = BucketTools.makeImmutableBucket(context.getBucketFactory(persistent()), baseMetadata.writeToByteArray());
+				bucket = baseMetadata.toBucket(context.getBucketFactory(persistent()));
 				if(logMINOR)
 					Logger.minor(this, "Metadata bucket is "+bucket.size()+" bytes long");
 				break;
@@ -59,11 +59,12 @@ public class ClientContext {
 			USKManager uskManager, RandomSource strongRandom, 
 			Random fastWeakRandom, Ticker ticker, 
 			FilenameGenerator fg, FilenameGenerator persistentFG, RealCompressor rc) {
-		this.bootID = core.node.bootID;
+		// core is null in unit tests which only need e.g. the random sources.
+		this.bootID = core == null ? 0 : core.node.bootID;
 		this.fecQueue = fecQueue;
 		jobRunner = core;
 		this.mainExecutor = mainExecutor;
-		this.nodeDBHandle = core.node.nodeDBHandle;
+		this.nodeDBHandle = core == null ? 0 : core.node.nodeDBHandle;
 		this.backgroundBlockEncoder = blockEncoder;
 		this.random = strongRandom;
 		this.archiveManager = archiveManager;
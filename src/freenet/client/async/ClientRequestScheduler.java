@@ -5,7 +5,7 @@ package freenet.client.async;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.List;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -392,10 +392,8 @@ public class ClientRequestScheduler implements RequestScheduler {
 	}
 
 	private void maybeFillStarterQueue(ObjectContainer container, ClientContext context, SendableRequest[] mightBeActive) {
-		synchronized(this) {
-			if(starterQueue.size() > MAX_STARTER_QUEUE_SIZE / 2)
-				return;
-		}
+		if(starterQueue.size() > MAX_STARTER_QUEUE_SIZE / 2)
+			return;
 		fillRequestStarterQueue(container, context, mightBeActive);
 	}
 
@@ -415,12 +413,12 @@ public class ClientRequestScheduler implements RequestScheduler {
 	 * if they are deactivated, they will be unreliable. Fortunately, this will be fairly small most
 	 * of the time, since a single SendableRequest might include 256 actual requests.
 	 * 
-	 * SYNCHRONIZATION: Synched on starterQueue.
+	 * SYNCHRONIZATION: Synched on itself.
 	 */
 	private final transient ArrayList<SendableRequest> runningPersistentRequests = new ArrayList<SendableRequest> ();
 	
 	public void removeRunningRequest(SendableRequest request) {
-		synchronized(starterQueue) {
+		synchronized(runningPersistentRequests) {
 			for(int i=0;i<runningPersistentRequests.size();i++) {
 				if(runningPersistentRequests.get(i) == request) {
 					runningPersistentRequests.remove(i);
@@ -433,16 +431,13 @@ public class ClientRequestScheduler implements RequestScheduler {
 	}
 	
 	public boolean isRunningOrQueuedPersistentRequest(SendableRequest request) {
-		synchronized(starterQueue) {
+		synchronized(runningPersistentRequests) {
 			for(int i=0;i<runningPersistentRequests.size();i++) {
 				if(runningPersistentRequests.get(i) == request)
 					return true;
 			}
-			for(PersistentChosenRequest req : starterQueue) {
-				if(req.request == request) return true;
-			}
 		}
-		return false;
+		return starterQueue.contains(request);
 	}
 	
 	/** The maximum number of requests that we will keep on the in-RAM request
@@ -457,26 +452,40 @@ public class ClientRequestScheduler implements RequestScheduler {
 	static final int WARNING_STARTER_QUEUE_SIZE = 800;
 	private static final long WAIT_AFTER_NOTHING_TO_START = 60*1000;
 	
-	private transient LinkedList<PersistentChosenRequest> starterQueue = new LinkedList<PersistentChosenRequest>();
+	private final transient StarterQueue starterQueue = new StarterQueue();
 	
 	/**
 	 * Called by RequestStarter to find a request to run.
 	 */
 	public ChosenBlock grabRequest() {
+		ChosenBlock block = grabOneRequest();
+		queueFillRequestStarterQueue();
+		return block;
+	}
+	
+	/**
+	 * Called by RequestStarter to find several requests to run, in the order
+	 * they should be started.
+	 */
+	public int grabRequests(List<ChosenBlock> blocks, int max) {
+		int count = 0;
+		while(count < max) {
+			ChosenBlock block = grabOneRequest();
+			if(block == null) break;
+			blocks.add(block);
+			count++;
+			// Transient blocks are chosen from keys which are not being fetched,
+			// and this one won't be until it is started, so we might choose it again.
+			if(!block.isPersistent()) break;
+		}
+		// Only check whether to refill the queue once per batch.
+		queueFillRequestStarterQueue();
+		return count;
+	}
+	
+	private ChosenBlock grabOneRequest() {
 		while(true) {
-			PersistentChosenRequest reqGroup = null;
-			synchronized(starterQueue) {
-				short bestPriority = Short.MAX_VALUE;
-				int bestRetryCount = Integer.MAX_VALUE;
-				for(PersistentChosenRequest req : starterQueue) {
-					if(req.prio < bestPriority || 
-							(req.prio == bestPriority && req.retryCount < bestRetryCount)) {
-						bestPriority = req.prio;
-						bestRetryCount = req.retryCount;
-						reqGroup = req;
-					}
-				}
-			}
+			PersistentChosenRequest reqGroup = starterQueue.best();
 			if(reqGroup != null) {
 				// Try to find a better non-persistent request
 				if(logMINOR) Logger.minor(this, "Persistent request: "+reqGroup+" prio "+reqGroup.prio+" retryCount "+reqGroup.retryCount);
@@ -492,31 +501,20 @@ public class ClientRequestScheduler implements RequestScheduler {
 				queueFillRequestStarterQueue();
 				return getBetterNonPersistentRequest(Short.MAX_VALUE, Integer.MAX_VALUE);
 			}
-			ChosenBlock block;
-			int finalLength = 0;
-			synchronized(starterQueue) {
-				block = reqGroup.grabNotStarted(clientContext.fastWeakRandom, this);
-				if(block == null) {
-					for(int i=0;i<starterQueue.size();i++) {
-						if(starterQueue.get(i) == reqGroup) {
-							starterQueue.remove(i);
-							if(logMINOR)
-								Logger.minor(this, "Removed "+reqGroup+" from starter queue because is empty");
-							i--;
-						} else {
-							finalLength += starterQueue.get(i).sizeNotStarted();
-						}
-					}
-					continue;
-				} else {
-					// Prevent this request being selected, even though we may remove the PCR from the starter queue
-					// in the very near future. When the PCR finishes, the requests will be un-blocked.
-					if(!runningPersistentRequests.contains(reqGroup.request))
-						runningPersistentRequests.add(reqGroup.request);
-				}
+			int before = reqGroup.sizeNotStarted();
+			ChosenBlock block = reqGroup.grabNotStarted(clientContext.fastWeakRandom, this);
+			if(block == null) {
+				if(starterQueue.remove(reqGroup) && logMINOR)
+					Logger.minor(this, "Removed "+reqGroup+" from starter queue because is empty");
+				continue;
+			}
+			starterQueue.changedLength(reqGroup.sizeNotStarted() - before);
+			// Prevent this request being selected, even though we may remove the PCR from the starter queue
+			// in the very near future. When the PCR finishes, the requests will be un-blocked.
+			synchronized(runningPersistentRequests) {
+				if(!runningPersistentRequests.contains(reqGroup.request))
+					runningPersistentRequests.add(reqGroup.request);
 			}
-			if(finalLength < MAX_STARTER_QUEUE_SIZE)
-				queueFillRequestStarterQueue();
 			if(logMINOR)
 				Logger.minor(this, "grabRequest() returning "+block+" for "+reqGroup);
 			return block;
@@ -542,13 +540,10 @@ public class ClientRequestScheduler implements RequestScheduler {
 		}
 	}
 
+	/** @return The number of blocks on the starter queue, estimated without
+	 * asking every request. */
 	private int starterQueueLength() {
-		int length = 0;
-		synchronized(starterQueue) {
-			for(PersistentChosenRequest request : starterQueue)
-				length += request.sizeNotStarted();
-		}
-		return length;
+		return starterQueue.length();
 	}
 
 	/**
@@ -569,50 +564,27 @@ public class ClientRequestScheduler implements RequestScheduler {
 		if(logMINOR)
 			Logger.minor(this, "Created PCR: "+chosen);
 		container.deactivate(request, 1);
-		boolean dumpNew = false;
-		synchronized(starterQueue) {
-			for(PersistentChosenRequest req : starterQueue) {
-				if(req.request == request) {
-					Logger.error(this, "Already on starter queue: "+req+" for "+request, new Exception("debug"));
-					dumpNew = true;
-					break;
-				}
-			}
-			if(!dumpNew) {
-				starterQueue.add(chosen);
-				int length = starterQueueLength();
-				length += chosen.sizeNotStarted();
-				runningPersistentRequests.add(request);
-				if(logMINOR)
-					Logger.minor(this, "Added to running persistent requests, size now "+runningPersistentRequests.size()+" : "+request);
-				return length > MAX_STARTER_QUEUE_SIZE;
-			}
-		}
-		if(dumpNew)
+		if(!starterQueue.add(chosen)) {
+			Logger.error(this, "Already on starter queue: "+chosen+" for "+request, new Exception("debug"));
 			chosen.onDumped(schedCore, container, false);
-		return false;
+			return false;
+		}
+		synchronized(runningPersistentRequests) {
+			runningPersistentRequests.add(request);
+			if(logMINOR)
+				Logger.minor(this, "Added to running persistent requests, size now "+runningPersistentRequests.size()+" : "+request);
+		}
+		return starterQueue.recount() > MAX_STARTER_QUEUE_SIZE;
 	}
 	
 	void removeFromStarterQueue(SendableRequest req, ObjectContainer container, boolean reqAlreadyActive) {
-		PersistentChosenRequest dumped = null;
-		synchronized(starterQueue) {
-			for(int i=0;i<starterQueue.size();i++) {
-				PersistentChosenRequest pcr = starterQueue.get(i);
-				if(pcr.request == req) {
-					starterQueue.remove(i);
-					dumped = pcr;
-					break;
-				}
-			}
-		}
+		PersistentChosenRequest dumped = starterQueue.remove(req);
 		if(dumped != null)
 			dumped.onDumped(schedCore, container, reqAlreadyActive);
 	}
 	
 	int starterQueueSize() {
-		synchronized(starterQueue) {
-			return starterQueue.size();
-		}
+		return starterQueue.size();
 	}
 	
 	private DBJob requestStarterQueueFiller = new DBJob() {
@@ -640,46 +612,47 @@ public class ClientRequestScheduler implements RequestScheduler {
 		else if(PRIORITY_HARD.equals(choosenPriorityScheduler))
 			fuzz = 0;
 		boolean added = false;
-		synchronized(starterQueue) {
-			if(logMINOR && (!isSSKScheduler) && (!isInsertScheduler)) {
-				Logger.minor(this, "Scheduling CHK fetches...");
-				for(SendableRequest req : runningPersistentRequests) {
-					boolean wasActive = container.ext().isActive(req);
-					if(!wasActive) container.activate(req, 1);
-					Logger.minor(this, "Running persistent request: "+req);
-					if(!wasActive) container.deactivate(req, 1);
-				}
+		if(logMINOR && (!isSSKScheduler) && (!isInsertScheduler)) {
+			Logger.minor(this, "Scheduling CHK fetches...");
+			SendableRequest[] running;
+			synchronized(runningPersistentRequests) {
+				running = runningPersistentRequests.toArray(new SendableRequest[runningPersistentRequests.size()]);
 			}
-			// Recompute starterQueueLength
-			int length = 0;
-			PersistentChosenRequest old = null;
-			for(PersistentChosenRequest req : starterQueue) {
-				if(old == req)
-					Logger.error(this, "DUPLICATE CHOSEN REQUESTS ON QUEUE: "+req);
-				if(old != null && old.request == req.request)
-					Logger.error(this, "DUPLICATE REQUEST ON QUEUE: "+old+" vs "+req+" both "+req.request);
-				boolean ignoreActive = false;
-				if(mightBeActive != null) {
-					for(SendableRequest tmp : mightBeActive)
-						if(tmp == req.request) ignoreActive = true;
-				}
-				if(!ignoreActive) {
-					if(container.ext().isActive(req.request))
-						Logger.error(this, "REQUEST ALREADY ACTIVATED: "+req.request+" for "+req+" while checking request queue in filling request queue");
-					else if(logMINOR)
-						Logger.minor(this, "Not already activated for "+req+" in while checking request queue in filling request queue");
-				} else if(logMINOR)
-					Logger.minor(this, "Ignoring active because just registered: "+req.request);
-				req.pruneDuplicates(ClientRequestScheduler.this);
-				old = req;
-				length += req.sizeNotStarted();
+			for(SendableRequest req : running) {
+				boolean wasActive = container.ext().isActive(req);
+				if(!wasActive) container.activate(req, 1);
+				Logger.minor(this, "Running persistent request: "+req);
+				if(!wasActive) container.deactivate(req, 1);
 			}
-			if(logMINOR) Logger.minor(this, "Queue size: "+length+" SSK="+isSSKScheduler+" insert="+isInsertScheduler);
-			if(length > MAX_STARTER_QUEUE_SIZE * 3 / 4) {
-				if(length >= WARNING_STARTER_QUEUE_SIZE)
-					Logger.error(this, "Queue already full: "+length);
-				return;
+		}
+		PersistentChosenRequest old = null;
+		for(PersistentChosenRequest req : starterQueue) {
+			if(old == req)
+				Logger.error(this, "DUPLICATE CHOSEN REQUESTS ON QUEUE: "+req);
+			if(old != null && old.request == req.request)
+				Logger.error(this, "DUPLICATE REQUEST ON QUEUE: "+old+" vs "+req+" both "+req.request);
+			boolean ignoreActive = false;
+			if(mightBeActive != null) {
+				for(SendableRequest tmp : mightBeActive)
+					if(tmp == req.request) ignoreActive = true;
 			}
+			if(!ignoreActive) {
+				if(container.ext().isActive(req.request))
+					Logger.error(this, "REQUEST ALREADY ACTIVATED: "+req.request+" for "+req+" while checking request queue in filling request queue");
+				else if(logMINOR)
+					Logger.minor(this, "Not already activated for "+req+" in while checking request queue in filling request queue");
+			} else if(logMINOR)
+				Logger.minor(this, "Ignoring active because just registered: "+req.request);
+			req.pruneDuplicates(ClientRequestScheduler.this);
+			old = req;
+		}
+		// Recompute starterQueueLength
+		int length = starterQueue.recount();
+		if(logMINOR) Logger.minor(this, "Queue size: "+length+" SSK="+isSSKScheduler+" insert="+isInsertScheduler);
+		if(length > MAX_STARTER_QUEUE_SIZE * 3 / 4) {
+			if(length >= WARNING_STARTER_QUEUE_SIZE)
+				Logger.error(this, "Queue already full: "+length);
+			return;
 		}
 		
 		if((!isSSKScheduler) && (!isInsertScheduler)) {
@@ -726,46 +699,44 @@ public class ClientRequestScheduler implements RequestScheduler {
 		if(logMINOR)
 			Logger.minor(this, "Maybe adding to starter queue: prio="+prio+" retry count="+retryCount);
 		boolean logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
-		synchronized(starterQueue) {
-			boolean betterThanSome = false;
-			int size = 0;
-			PersistentChosenRequest prev = null;
-			for(PersistentChosenRequest old : starterQueue) {
-				if(old.request == req) {
-					// Wait for a reselect. Otherwise we can starve other
-					// requests. Note that this happens with persistent SBI's:
-					// they are added at the new retry count before being
-					// removed at the old retry count.
-					if(logMINOR) Logger.minor(this, "Already on starter queue: "+old+" for "+req);
-					return;
-				}
-				if(prev == old)
-					Logger.error(this, "ON STARTER QUEUE TWICE: "+prev+" for "+prev.request);
-				if(prev != null && prev.request == old.request)
-					Logger.error(this, "REQUEST ON STARTER QUEUE TWICE: "+prev+" for "+prev.request+" vs "+old+" for "+old.request);
-				boolean ignoreActive = false;
-				if(mightBeActive != null) {
-					for(SendableRequest tmp : mightBeActive)
-						if(tmp == old.request) ignoreActive = true;
-				}
-				if(!ignoreActive) {
-					if(container.ext().isActive(old.request))
-						Logger.error(this, "REQUEST ALREADY ACTIVATED: "+old.request+" for "+old+" while checking request queue in maybeAddToStarterQueue for "+req);
-					else if(logDEBUG)
-						Logger.debug(this, "Not already activated for "+old+" in while checking request queue in maybeAddToStarterQueue for "+req);
-				} else if(logMINOR)
-					Logger.minor(this, "Ignoring active because just registered: "+old.request+" in maybeAddToStarterQueue for "+req);
-				size += old.sizeNotStarted();
-				if(old.prio > prio || (old.prio == prio && old.retryCount > retryCount))
-					betterThanSome = true;
-				if(old.request == req) return;
-				prev = old;
-			}
-			if(size >= MAX_STARTER_QUEUE_SIZE && !betterThanSome) {
-				if(logMINOR)
-					Logger.minor(this, "Not adding to starter queue: over limit and req not better than any queued requests");
+		boolean betterThanSome = false;
+		int size = 0;
+		PersistentChosenRequest prev = null;
+		for(PersistentChosenRequest old : starterQueue) {
+			if(old.request == req) {
+				// Wait for a reselect. Otherwise we can starve other
+				// requests. Note that this happens with persistent SBI's:
+				// they are added at the new retry count before being
+				// removed at the old retry count.
+				if(logMINOR) Logger.minor(this, "Already on starter queue: "+old+" for "+req);
 				return;
 			}
+			if(prev == old)
+				Logger.error(this, "ON STARTER QUEUE TWICE: "+prev+" for "+prev.request);
+			if(prev != null && prev.request == old.request)
+				Logger.error(this, "REQUEST ON STARTER QUEUE TWICE: "+prev+" for "+prev.request+" vs "+old+" for "+old.request);
+			boolean ignoreActive = false;
+			if(mightBeActive != null) {
+				for(SendableRequest tmp : mightBeActive)
+					if(tmp == old.request) ignoreActive = true;
+			}
+			if(!ignoreActive) {
+				if(container.ext().isActive(old.request))
+					Logger.error(this, "REQUEST ALREADY ACTIVATED: "+old.request+" for "+old+" while checking request queue in maybeAddToStarterQueue for "+req);
+				else if(logDEBUG)
+					Logger.debug(this, "Not already activated for "+old+" in while checking request queue in maybeAddToStarterQueue for "+req);
+			} else if(logMINOR)
+				Logger.minor(this, "Ignoring active because just registered: "+old.request+" in maybeAddToStarterQueue for "+req);
+			size += old.sizeNotStarted();
+			if(old.prio > prio || (old.prio == prio && old.retryCount > retryCount))
+				betterThanSome = true;
+			if(old.request == req) return;
+			prev = old;
+		}
+		if(size >= MAX_STARTER_QUEUE_SIZE && !betterThanSome) {
+			if(logMINOR)
+				Logger.minor(this, "Not adding to starter queue: over limit and req not better than any queued requests");
+			return;
 		}
 		addToStarterQueue(req, container);
 		trimStarterQueue(container);
@@ -774,43 +745,23 @@ public class ClientRequestScheduler implements RequestScheduler {
 	private void trimStarterQueue(ObjectContainer container) {
 		ArrayList<PersistentChosenRequest> dumped = null;
 		synchronized(starterQueue) {
-			int length = starterQueueLength();
+			int length = starterQueue.recount();
 			while(length > MAX_STARTER_QUEUE_SIZE) {
 				// Find the lowest priority/retry count request.
 				// If we can dump it without going below the limit, then do so.
 				// If we can't, return.
-				PersistentChosenRequest worst = null;
-				short worstPrio = -1;
-				int worstRetryCount = -1;
-				int worstIndex = -1;
-				int worstLength = -1;
-				if(starterQueue.isEmpty()) {
+				PersistentChosenRequest worst = starterQueue.worst();
+				if(worst == null) {
 					break;
 				}
-				length = 0;
-				for(int i=0;i<starterQueue.size();i++) {
-					PersistentChosenRequest req = starterQueue.get(i);
-					short prio = req.prio;
-					int retryCount = req.retryCount;
-					int size = req.sizeNotStarted();
-					length += size;
-					if(prio > worstPrio ||
-							(prio == worstPrio && retryCount > worstRetryCount)) {
-						worstPrio = prio;
-						worstRetryCount = retryCount;
-						worst = req;
-						worstIndex = i;
-						worstLength = size;
-						continue;
-					}
-				}
-				int lengthAfter = length - worstLength;
+				int lengthAfter = length - worst.sizeNotStarted();
 				if(lengthAfter >= MAX_STARTER_QUEUE_SIZE) {
 					if(dumped == null)
 						dumped = new ArrayList<PersistentChosenRequest>(2);
 					dumped.add(worst);
-					starterQueue.remove(worstIndex);
+					starterQueue.remove(worst);
 					if(lengthAfter == MAX_STARTER_QUEUE_SIZE) break;
+					length = starterQueue.length();
 				} else {
 					// Can't remove any more.
 					break;
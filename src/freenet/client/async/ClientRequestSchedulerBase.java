@@ -38,7 +38,7 @@ import freenet.support.SortedVectorByNumber;
  * @author toad
  */
 // WARNING: THIS CLASS IS STORED IN DB4O -- THINK TWICE BEFORE ADD/REMOVE/RENAME FIELDS
-abstract class ClientRequestSchedulerBase {
+abstract class ClientRequestSchedulerBase implements KeySalter {
 	
 	private static volatile boolean logMINOR;
 	
@@ -75,6 +75,12 @@ abstract class ClientRequestSchedulerBase {
 	protected transient ClientRequestScheduler sched;
 	/** Transient even for persistent scheduler. */
 	protected transient Set<KeyListener> keyListeners;
+	/** The keyListeners which can list their keys, so we only need to ask
+	 * those which may want a given key. */
+	private transient WantedKeyIndex wantedKeys;
+	/** The keyListeners which can't list their keys, so we ask them about
+	 * every key. */
+	private transient Set<KeyListener> unindexedListeners;
 
 	abstract boolean persistent();
 	
@@ -82,6 +88,8 @@ abstract class ClientRequestSchedulerBase {
 		this.isInsertScheduler = forInserts;
 		this.isSSKScheduler = forSSKs;
 		keyListeners = new HashSet<KeyListener>();
+		wantedKeys = new WantedKeyIndex();
+		unindexedListeners = new HashSet<KeyListener>();
 		priorities = new SortedVectorByNumber[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
 		globalSalt = new byte[32];
 		random.nextBytes(globalSalt);
@@ -227,7 +235,13 @@ abstract class ClientRequestSchedulerBase {
 	public void addPendingKeys(KeyListener listener) {
 		if(listener == null) throw new NullPointerException();
 		synchronized (this) {
-			keyListeners.add(listener);
+			if(keyListeners.add(listener)) {
+				int[] fingerprints = listener.getWantedKeyFingerprints(this);
+				if(fingerprints != null)
+					wantedKeys.add(listener, fingerprints);
+				else
+					unindexedListeners.add(listener);
+			}
 		}
 		if (logMINOR)
 			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
@@ -236,7 +250,7 @@ abstract class ClientRequestSchedulerBase {
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
-			ret = keyListeners.remove(listener);
+			ret = removeListener(listener);
 			listener.onRemove();
 		}
 		if (logMINOR)
@@ -256,6 +270,8 @@ abstract class ClientRequestSchedulerBase {
 			if(listener.getHasKeyListener() == hasListener) {
 				found = true;
 				i.remove();
+				if(!wantedKeys.remove(listener))
+					unindexedListeners.remove(listener);
 				listener.onRemove();
 				Logger.normal(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener);
 			}
@@ -263,16 +279,39 @@ abstract class ClientRequestSchedulerBase {
 		return found;
 	}
 	
+	/** Caller must hold the lock. */
+	private boolean removeListener(KeyListener listener) {
+		if(!keyListeners.remove(listener)) return false;
+		if(!wantedKeys.remove(listener))
+			unindexedListeners.remove(listener);
+		return true;
+	}
+	
+	/**
+	 * The listeners which probably want a key. Only asks those listed under the
+	 * key's fingerprint in the index, plus those which aren't indexed.
+	 * Caller must hold the lock.
+	 * @return Null if none want it.
+	 */
+	private ArrayList<KeyListener> probablyWant(Key key, byte[] saltedKey) {
+		ArrayList<KeyListener> candidates = new ArrayList<KeyListener>();
+		wantedKeys.get(WantedKeyIndex.fingerprint(saltedKey), candidates);
+		candidates.addAll(unindexedListeners);
+		ArrayList<KeyListener> matches = null;
+		for(KeyListener listener : candidates) {
+			if(!listener.probablyWantKey(key, saltedKey)) continue;
+			if(matches == null) matches = new ArrayList<KeyListener>(candidates.size());
+			matches.add(listener);
+		}
+		return matches;
+	}
+	
 	public short getKeyPrio(Key key, short priority, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = probablyWant(key, saltedKey);
 		}
 		if(matches == null) return priority;
 		for(KeyListener listener : matches) {
@@ -293,13 +332,9 @@ abstract class ClientRequestSchedulerBase {
 	public boolean anyWantKey(Key key, ObjectContainer container, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				matches.add(listener);
-			}
+			matches = probablyWant(key, saltedKey);
 		}
 		if(matches != null) {
 			for(KeyListener listener : matches) {
@@ -313,11 +348,7 @@ abstract class ClientRequestSchedulerBase {
 	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		for(KeyListener listener : keyListeners) {
-			if(listener.probablyWantKey(key, saltedKey))
-				return true;
-		}
-		return false;
+		return probablyWant(key, saltedKey) != null;
 	}
 	
 	private long persistentTruePositives;
@@ -331,17 +362,9 @@ abstract class ClientRequestSchedulerBase {
 		}
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
-		ArrayList<KeyListener> matches = null;
+		ArrayList<KeyListener> matches;
 		synchronized(this) {
-			for(KeyListener listener : keyListeners) {
-				if(!listener.probablyWantKey(key, saltedKey)) continue;
-				if(matches == null) matches = new ArrayList<KeyListener> ();
-				if(matches.contains(listener)) {
-					Logger.error(this, "In matches twice, presumably in keyListeners twice?: "+listener);
-					continue;
-				}
-				matches.add(listener);
-			}
+			matches = probablyWant(key, saltedKey);
 		}
 		boolean ret = false;
 		if(matches != null) {
@@ -350,7 +373,7 @@ abstract class ClientRequestSchedulerBase {
 					ret = true;
 				if(listener.isEmpty()) {
 					synchronized(this) {
-						keyListeners.remove(listener);
+						removeListener(listener);
 					}
 					listener.onRemove();
 				}
@@ -418,8 +441,9 @@ abstract class ClientRequestSchedulerBase {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		synchronized(this) {
-		for(KeyListener listener : keyListeners) {
-			if(!listener.probablyWantKey(key, saltedKey)) continue;
+		ArrayList<KeyListener> matches = probablyWant(key, saltedKey);
+		if(matches == null) return null;
+		for(KeyListener listener : matches) {
 			SendableGet[] reqs = listener.getRequestsForKey(key, saltedKey, container, context);
 			if(reqs == null) continue;
 			if(list == null) list = new ArrayList<SendableGet>();
@@ -432,6 +456,8 @@ abstract class ClientRequestSchedulerBase {
 	
 	public void onStarted() {
 		keyListeners = new HashSet<KeyListener>();
+		wantedKeys = new WantedKeyIndex();
+		unindexedListeners = new HashSet<KeyListener>();
 	}
 	
 	@Override
@@ -503,12 +529,29 @@ abstract class ClientRequestSchedulerBase {
 	
 	public byte[] globalSalt;
 	
+	private static class SaltedKey {
+		final Key key;
+		final byte[] salted;
+		SaltedKey(Key key, byte[] salted) {
+			this.key = key;
+			this.salted = salted;
+		}
+	}
+	
+	/** The last key salted. A block is usually looked up several times in a
+	 * row, e.g. anyWantKey() then tripPendingKey(). */
+	private transient volatile SaltedKey lastSalted;
+	
+	/** Callers must not modify the returned array. */
 	public byte[] saltKey(Key key) {
+		SaltedKey last = lastSalted;
+		if(last != null && last.key.equals(key)) return last.salted;
 		MessageDigest md = SHA256.getMessageDigest();
 		md.update(key.getRoutingKey());
 		md.update(globalSalt);
 		byte[] ret = md.digest();
 		SHA256.returnMessageDigest(md);
+		lastSalted = new SaltedKey(key, ret);
 		return ret;
 	}
 	
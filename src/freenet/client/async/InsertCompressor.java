@@ -1,6 +1,12 @@
 package freenet.client.async;
 
+import java.io.DataInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.db4o.ObjectContainer;
 import com.db4o.ObjectSet;
@@ -18,6 +24,8 @@ import freenet.support.api.BucketFactory;
 import freenet.support.compress.CompressJob;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
 import freenet.support.io.BucketChainBucketFactory;
 import freenet.support.io.NativeThread;
 
@@ -105,85 +113,34 @@ public class InsertCompressor implements CompressJob {
 		long origSize = origData.size();
 		COMPRESSOR_TYPE bestCodec = null;
 		Bucket bestCompressedData = origData;
-		long bestCompressedDataSize = origSize;
 		
 		if(logMINOR) Logger.minor(this, "Attempt to compress the data");
 		// Try to compress the data.
-		// Try each algorithm, starting with the fastest and weakest.
+		// Try the algorithms in parallel, as far as we have CPUs, starting with the fastest and weakest.
+		// Abort a codec as soon as its output is bigger than the best so far.
 		// Stop when run out of algorithms, or the compressed data fits in a single block.
+		// The result is the same as trying them one at a time in order, so the same data always
+		// gets the same codec and therefore the same key.
 		try {
 			BucketChainBucketFactory bucketFactory2 = new BucketChainBucketFactory(bucketFactory, NodeCHK.BLOCK_SIZE, persistent ? context.jobRunner : null, 1024);
 			
-			for(final COMPRESSOR_TYPE comp : COMPRESSOR_TYPE.values()) {
-				boolean shouldFreeOnFinally = true;
-				Bucket result = null;
-				try {
-					if(logMINOR)
-						Logger.minor(this, "Attempt to compress using " + comp);
-					// Only produce if we are compressing *the original data*
-					final int phase = comp.metadataID;
-					if(persistent) {
-						context.jobRunner.queue(new DBJob() {
-
-							public boolean run(ObjectContainer container, ClientContext context) {
-								if(!container.ext().isStored(inserter)) {
-									if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
-									return false;
-								}
-								if(container.ext().isActive(inserter))
-									Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
-								container.activate(inserter, 1);
-								inserter.onStartCompression(comp, container, context);
-								container.deactivate(inserter, 1);
-								return false;
-							}
-
-						}, NativeThread.NORM_PRIORITY+1, false);
-					} else {
-						try {
-							inserter.onStartCompression(comp, null, context);
-						} catch (Throwable t) {
-							Logger.error(this, "Transient insert callback threw "+t, t);
-						}
-					}
-
-					result = comp.compress(origData, bucketFactory2, origSize, bestCompressedDataSize);
-					long resultSize = result.size();
-					// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
-					if(resultSize <= minSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" smaller then minSize "+minSize);
-
-						bestCodec = comp;
-						if(bestCompressedData != null && bestCompressedData != origData)
-							// Don't need to removeFrom() : we haven't stored it.
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						shouldFreeOnFinally = false;
-						break;
-					}
-					if(resultSize < bestCompressedDataSize) {
-						if(logMINOR)
-							Logger.minor(this, "New size "+resultSize+" better than old best "+bestCompressedDataSize);
-						if(bestCompressedData != null && bestCompressedData != origData)
-							bestCompressedData.free();
-						bestCompressedData = result;
-						bestCompressedDataSize = resultSize;
-						bestCodec = comp;
-						shouldFreeOnFinally = false;
-					}
-				} catch(CompressionOutputSizeException e) {
-					continue;       // try next compressor type
-				} catch (DatabaseDisabledException e) {
-					Logger.error(this, "Database disabled compressing data", new Exception("error"));
-					shouldFreeOnFinally = true;
-					if(bestCompressedData != null && bestCompressedData != origData && bestCompressedData != result)
-						bestCompressedData.free();
-				} finally {
-					if(shouldFreeOnFinally && (result != null) && result != origData)
-						result.free();
-				}
+			COMPRESSOR_TYPE[] codecs = COMPRESSOR_TYPE.values();
+			if(SAMPLE_FIRST && origSize > SAMPLE_SIZE * 4 && isIncompressible()) {
+				if(logMINOR) Logger.minor(this, "Sample did not compress, not compressing "+origSize+" bytes");
+				skippedBySampling.incrementAndGet();
+				codecs = new COMPRESSOR_TYPE[0];
+			}
+			
+			CodecRace race = new CodecRace(codecs, origSize, bucketFactory2, context);
+			race.run();
+			if(race.failure != null) {
+				if(race.bestData != null)
+					race.bestData.free();
+				throw race.failure;
+			}
+			if(race.bestData != null) {
+				bestCodec = race.bestCodec;
+				bestCompressedData = race.bestData;
 			}
 			
 			final CompressionOutput output = new CompressionOutput(bestCompressedData, bestCodec);
@@ -266,6 +223,380 @@ public class InsertCompressor implements CompressJob {
 		}
 	}
 
+	/** Compress a sample of large files first, and don't compress them at all
+	 * if the sample doesn't shrink: media files and archives are usually
+	 * compressed already. */
+	static final boolean SAMPLE_FIRST = true;
+	/** Size of the sample. */
+	static final int SAMPLE_SIZE = 64*1024;
+	/** The sample must shrink by at least this fraction for us to try to compress. */
+	static final double MIN_SAMPLE_GAIN = 0.02;
+	
+	/** Per codec statistics, indexed by ordinal. */
+	private static final CodecStats[] codecStats;
+	private static final AtomicLong skippedBySampling = new AtomicLong();
+	
+	static {
+		COMPRESSOR_TYPE[] types = COMPRESSOR_TYPE.values();
+		codecStats = new CodecStats[types.length];
+		for(int i=0;i<types.length;i++)
+			codecStats[i] = new CodecStats();
+	}
+	
+	/** Time and bytes spent compressing inserts with one codec, since startup. */
+	public static class CodecStats {
+		private final AtomicLong runs = new AtomicLong();
+		private final AtomicLong aborted = new AtomicLong();
+		private final AtomicLong won = new AtomicLong();
+		private final AtomicLong timeMillis = new AtomicLong();
+		private final AtomicLong bytesOut = new AtomicLong();
+		
+		/** @return How many times the codec was tried. */
+		public long getRuns() { return runs.get(); }
+		/** @return How many times it was stopped early because it was losing. */
+		public long getAborted() { return aborted.get(); }
+		/** @return How many times its output was the one used. */
+		public long getWon() { return won.get(); }
+		/** @return Total time spent in the codec. */
+		public long getTimeMillis() { return timeMillis.get(); }
+		/** @return Total compressed output of the runs which completed. */
+		public long getBytesOut() { return bytesOut.get(); }
+	}
+	
+	public static CodecStats getCodecStats(COMPRESSOR_TYPE type) {
+		return codecStats[type.ordinal()];
+	}
+	
+	/** @return How many inserts were not compressed because a sample didn't compress. */
+	public static long getSkippedBySampling() {
+		return skippedBySampling.get();
+	}
+	
+	/**
+	 * Compress the first SAMPLE_SIZE bytes with the fastest codec.
+	 * @return True if they don't get significantly smaller.
+	 */
+	private boolean isIncompressible() throws IOException {
+		byte[] sample = new byte[SAMPLE_SIZE];
+		InputStream is = origData.getInputStream();
+		try {
+			new DataInputStream(is).readFully(sample);
+		} finally {
+			is.close();
+		}
+		long maxSize = (long) (SAMPLE_SIZE * (1.0 - MIN_SAMPLE_GAIN));
+		try {
+			Bucket compressed = COMPRESSOR_TYPE.GZIP.compress(new ArrayBucket(sample), new ArrayBucketFactory(), SAMPLE_SIZE, maxSize);
+			// The limit is only checked as data is written, not after the final flush.
+			long size = compressed.size();
+			compressed.free();
+			return size > maxSize;
+		} catch (CompressionOutputSizeException e) {
+			return true;
+		}
+	}
+	
+	/** Thrown to stop a codec whose output has become bigger than another codec's. */
+	private static class CodecLosingException extends IOException {
+		private static final long serialVersionUID = -1;
+	}
+	
+	/**
+	 * Runs the codecs, on this thread plus as many helpers as we have spare
+	 * CPUs. Every codec writes through a stream which stops it as soon as it
+	 * can no longer win. We pick the same codec as running them one at a time
+	 * in order would: the first which fits in one block, or if none does, the
+	 * smallest output, the first codec winning ties. So once a codec fits in
+	 * one block, later codecs are stopped, but earlier ones carry on in case
+	 * they fit too.
+	 */
+	private class CodecRace {
+		private final COMPRESSOR_TYPE[] codecs;
+		private final long origSize;
+		private final BucketFactory bf;
+		private final ClientContext context;
+		private final AtomicInteger nextCodec = new AtomicInteger();
+		/** For each codec, the most it may write before it is stopped. */
+		private final AtomicLong[] limits;
+		private int running;
+		/** Index of the first codec whose output fits in one block, or
+		 * codecs.length if none has yet. */
+		private int fitIndex;
+		private int bestIndex;
+		COMPRESSOR_TYPE bestCodec;
+		Bucket bestData;
+		IOException failure;
+		
+		CodecRace(COMPRESSOR_TYPE[] codecs, long origSize, BucketFactory bf, ClientContext context) {
+			this.codecs = codecs;
+			this.origSize = origSize;
+			this.bf = bf;
+			this.context = context;
+			limits = new AtomicLong[codecs.length];
+			for(int i=0;i<codecs.length;i++)
+				limits[i] = new AtomicLong(origSize);
+			fitIndex = codecs.length;
+		}
+		
+		void run() {
+			int helpers = Math.min(codecs.length, Runtime.getRuntime().availableProcessors()) - 1;
+			synchronized(this) {
+				running = helpers + 1;
+			}
+			for(int i=0;i<helpers;i++) {
+				context.mainExecutor.execute(new PrioRunnable() {
+					
+					public void run() {
+						runCodecs();
+					}
+					
+					public int getPriority() {
+						return NativeThread.MIN_PRIORITY;
+					}
+					
+				}, "Compressor helper for "+InsertCompressor.this);
+			}
+			runCodecs();
+			synchronized(this) {
+				while(running > 0) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+		
+		private void runCodecs() {
+			try {
+				int i;
+				while((i = nextCodec.getAndIncrement()) < codecs.length) {
+					synchronized(this) {
+						if(i > fitIndex || failure != null) break;
+					}
+					compress(i);
+				}
+			} finally {
+				synchronized(this) {
+					running--;
+					notifyAll();
+				}
+			}
+		}
+		
+		private void compress(int index) {
+			final COMPRESSOR_TYPE comp = codecs[index];
+			if(logMINOR)
+				Logger.minor(InsertCompressor.this, "Attempt to compress using " + comp);
+			try {
+				onStartCompression(comp, context);
+			} catch (DatabaseDisabledException e) {
+				Logger.error(InsertCompressor.this, "Database disabled compressing data", new Exception("error"));
+				return;
+			}
+			CodecStats stats = codecStats[comp.ordinal()];
+			stats.runs.incrementAndGet();
+			AtomicLong limit = limits[index];
+			LimitedBucketFactory limited = new LimitedBucketFactory(bf, limit);
+			long startTime = System.currentTimeMillis();
+			Bucket result = null;
+			try {
+				comp.compress(origData, limited, origSize, limit.get());
+				result = limited.created;
+				limited.created = null;
+			} catch (CompressionOutputSizeException e) {
+				stats.aborted.incrementAndGet();
+			} catch (CodecLosingException e) {
+				stats.aborted.incrementAndGet();
+			} catch (IOException e) {
+				synchronized(this) {
+					if(failure == null) failure = e;
+				}
+			} finally {
+				stats.timeMillis.addAndGet(System.currentTimeMillis() - startTime);
+				if(limited.created != null)
+					limited.created.free();
+			}
+			if(result != null) {
+				stats.bytesOut.addAndGet(result.size());
+				offer(index, result);
+			}
+		}
+		
+		private synchronized void offer(int index, Bucket result) {
+			COMPRESSOR_TYPE comp = codecs[index];
+			long resultSize = result.size();
+			// minSize is {SSKBlock,CHKBlock}.MAX_COMPRESSED_DATA_LENGTH
+			boolean fits = resultSize <= minSize;
+			boolean better;
+			if(fits)
+				better = index < fitIndex;
+			else if(fitIndex < codecs.length)
+				better = false;
+			else if(bestData == null)
+				better = resultSize < origSize;
+			else
+				better = resultSize < bestData.size() || (resultSize == bestData.size() && index < bestIndex);
+			if(!better) {
+				// Don't need to removeFrom() : we haven't stored it.
+				result.free();
+				return;
+			}
+			if(logMINOR)
+				Logger.minor(InsertCompressor.this, "New size "+resultSize+" with "+comp+" better than old best "+(bestData == null ? origSize : bestData.size()));
+			if(bestData != null) {
+				codecStats[bestCodec.ordinal()].won.decrementAndGet();
+				bestData.free();
+			}
+			bestData = result;
+			bestCodec = comp;
+			bestIndex = index;
+			codecStats[comp.ordinal()].won.incrementAndGet();
+			if(fits) {
+				if(logMINOR)
+					Logger.minor(InsertCompressor.this, "New size "+resultSize+" smaller then minSize "+minSize);
+				fitIndex = index;
+				// Stop the later codecs. The earlier ones can only win by
+				// fitting in one block too.
+				for(int i=0;i<codecs.length;i++) {
+					if(i > index)
+						limits[i].set(-1);
+					else if(i < index)
+						lower(limits[i], minSize);
+				}
+			} else {
+				for(int i=0;i<codecs.length;i++)
+					lower(limits[i], resultSize);
+			}
+		}
+		
+		private void lower(AtomicLong limit, long size) {
+			if(limit.get() > size) limit.set(size);
+		}
+	}
+	
+	private void onStartCompression(final COMPRESSOR_TYPE comp, ClientContext context) throws DatabaseDisabledException {
+		// Only produce if we are compressing *the original data*
+		if(persistent) {
+			context.jobRunner.queue(new DBJob() {
+
+				public boolean run(ObjectContainer container, ClientContext context) {
+					if(!container.ext().isStored(inserter)) {
+						if(InsertCompressor.logMINOR) Logger.minor(this, "Already deleted (start compression): "+inserter+" for "+InsertCompressor.this);
+						return false;
+					}
+					if(container.ext().isActive(inserter))
+						Logger.error(this, "ALREADY ACTIVE in start compression callback: "+inserter);
+					container.activate(inserter, 1);
+					inserter.onStartCompression(comp, container, context);
+					container.deactivate(inserter, 1);
+					return false;
+				}
+
+			}, NativeThread.NORM_PRIORITY+1, false);
+		} else {
+			try {
+				inserter.onStartCompression(comp, null, context);
+			} catch (Throwable t) {
+				Logger.error(this, "Transient insert callback threw "+t, t);
+			}
+		}
+	}
+	
+	/**
+	 * Makes buckets whose OutputStream fails with a CodecLosingException once
+	 * more than limit bytes have been written, and remembers the bucket so it
+	 * can be freed if the compressor throws.
+	 */
+	private static class LimitedBucketFactory implements BucketFactory {
+		private final BucketFactory bf;
+		private final AtomicLong limit;
+		Bucket created;
+		
+		LimitedBucketFactory(BucketFactory bf, AtomicLong limit) {
+			this.bf = bf;
+			this.limit = limit;
+		}
+		
+		public Bucket makeBucket(long size) throws IOException {
+			final Bucket bucket = bf.makeBucket(size);
+			created = bucket;
+			return new Bucket() {
+				
+				public OutputStream getOutputStream() throws IOException {
+					return new LimitedOutputStream(bucket.getOutputStream(), limit);
+				}
+				
+				public InputStream getInputStream() throws IOException {
+					return bucket.getInputStream();
+				}
+				
+				public String getName() {
+					return bucket.getName();
+				}
+				
+				public long size() {
+					return bucket.size();
+				}
+				
+				public boolean isReadOnly() {
+					return bucket.isReadOnly();
+				}
+				
+				public void setReadOnly() {
+					bucket.setReadOnly();
+				}
+				
+				public void free() {
+					bucket.free();
+				}
+				
+				public void storeTo(ObjectContainer container) {
+					throw new UnsupportedOperationException();
+				}
+				
+				public void removeFrom(ObjectContainer container) {
+					throw new UnsupportedOperationException();
+				}
+				
+				public Bucket createShadow() throws IOException {
+					return bucket.createShadow();
+				}
+				
+			};
+		}
+	}
+	
+	private static class LimitedOutputStream extends FilterOutputStream {
+		private final AtomicLong limit;
+		private long written;
+		private boolean losing;
+		
+		LimitedOutputStream(OutputStream os, AtomicLong limit) {
+			super(os);
+			this.limit = limit;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			// Once we have thrown, swallow whatever the compressor writes while
+			// closing, so that the original exception gets out.
+			if(losing) return;
+			written += len;
+			if(written > limit.get()) {
+				losing = true;
+				throw new CodecLosingException();
+			}
+			out.write(buf, off, len);
+		}
+	}
+	
 	/**
 	 * Create an InsertCompressor, add it to the database, schedule it.
 	 * @param container
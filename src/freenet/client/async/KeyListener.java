@@ -30,6 +30,19 @@ public interface KeyListener {
 	 */
 	public boolean probablyWantKey(Key key, byte[] saltedKey);
 	
+	/**
+	 * The fingerprints of the salted keys we want, so the scheduler can index
+	 * them and only call probablyWantKey() on the listeners which may want a
+	 * key, rather than on every listener. May include keys we no longer want.
+	 * LOCKING: Should avoid external locking if possible. Will be called
+	 * within the CRSBase lock, once, when the listener is registered.
+	 * @param salter Salts a key, giving the saltedKey passed to the other methods.
+	 * @return WantedKeyIndex.fingerprint() of each salted key, or null if we
+	 * can't list our keys, in which case probablyWantKey() will be called for
+	 * every key.
+	 */
+	public int[] getWantedKeyFingerprints(KeySalter salter);
+	
 	/**
 	 * Do we want the key? This is called by the ULPR code, because fetching the
 	 * key will involve significant work. tripPendingKey() on the other hand
@@ -0,0 +1,16 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import freenet.keys.Key;
+
+/**
+ * Salts a key's routing key with the scheduler's global salt, giving the
+ * saltedKey passed to a KeyListener.
+ */
+public interface KeySalter {
+
+	public byte[] saltKey(Key key);
+
+}
@@ -28,6 +28,10 @@ import freenet.support.Logger;
 public class PersistentCooldownQueue implements CooldownQueue {
 	
 	private long cooldownTime;
+	
+	/** Nothing is due before this time, so we don't need to query the database
+	 * until then. 0 if we don't know e.g. just after startup. Not stored. */
+	private transient long nextDue;
 
 	void setCooldownTime(long time) {
 		cooldownTime = time;
@@ -39,6 +43,9 @@ public class PersistentCooldownQueue implements CooldownQueue {
 		container.activate(key, 5);
 		PersistentCooldownQueueItem persistentCooldownQueueItem = new PersistentCooldownQueueItem(client, key.cloneKey(), removeTime, this);
 		container.store(persistentCooldownQueueItem);
+		synchronized(this) {
+			if(nextDue != 0 && removeTime < nextDue) nextDue = removeTime;
+		}
 		return removeTime;
 	}
 
@@ -98,6 +105,13 @@ public class PersistentCooldownQueue implements CooldownQueue {
 //				return true;
 //			}
 //		});
+		synchronized(this) {
+			if(nextDue > now) {
+				if(Logger.shouldLog(Logger.MINOR, this))
+					Logger.minor(this, "Nothing due until "+nextDue);
+				return nextDue < now + dontCareAfterMillis ? Long.valueOf(nextDue) : null;
+			}
+		}
 		// Lets re-code it in SODA.
 		long tStart = System.currentTimeMillis();
 		Query query = container.query();
@@ -133,17 +147,13 @@ public class PersistentCooldownQueue implements CooldownQueue {
 				i.delete(container);
 			}
 			if(!v.isEmpty()) {
+				// There may be more, check next time.
+				synchronized(this) {
+					nextDue = 0;
+				}
 				return v.toArray(new Key[v.size()]);
 			} else {
-				query = container.query();
-				query.descend("time").orderAscending().constrain(Long.valueOf(now + dontCareAfterMillis)).smaller().
-					and(query.descend("parent").constrain(this).identity());
-				results = query.execute();
-				if(results.hasNext()) {
-					return ((PersistentCooldownQueueItem) results.next()).time;
-				} else {
-					return null;
-				}
+				return findNextDue(now, dontCareAfterMillis, container);
 			}
 		} else {
 			long tEnd = System.currentTimeMillis();
@@ -152,8 +162,28 @@ public class PersistentCooldownQueue implements CooldownQueue {
 			else
 				if(Logger.shouldLog(Logger.MINOR, this))
 					Logger.minor(this, "Query took "+(tEnd-tStart));
-			return null;
+			return findNextDue(now, dontCareAfterMillis, container);
+		}
+	}
+	
+	/**
+	 * Find when the next key is due, and remember it so we don't query again
+	 * before then. Call only when no keys are due now.
+	 * @return The time the next key is due as a Long, or null if nothing is
+	 * due in the next dontCareAfterMillis.
+	 */
+	private Object findNextDue(long now, long dontCareAfterMillis, ObjectContainer container) {
+		Query query = container.query();
+		query.descend("time").orderAscending().constrain(Long.valueOf(now + dontCareAfterMillis)).smaller().
+			and(query.descend("parent").constrain(this).identity());
+		ObjectSet results = query.execute();
+		Long ret = null;
+		if(results.hasNext())
+			ret = ((PersistentCooldownQueueItem) results.next()).time;
+		synchronized(this) {
+			nextDue = ret == null ? now + dontCareAfterMillis : ret;
 		}
+		return ret;
 	}
 
 	public long size(ObjectContainer container) {
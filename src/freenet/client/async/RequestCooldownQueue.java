@@ -4,12 +4,12 @@
 package freenet.client.async;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 
 import com.db4o.ObjectContainer;
 
 import freenet.keys.Key;
 import freenet.node.SendableGet;
-import freenet.support.Fields;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
 
@@ -17,24 +17,37 @@ import freenet.support.LogThresholdCallback;
  * Queue of keys which have been recently requested, which we have unregistered for a fixed period.
  * They won't be requested for a while, although we still have ULPR subscriptions set up for them.
  * 
- * We add to the end, remove from the beginning, and occasionally remove from the middle. It's a
- * circular buffer, we expand it if necessary.
+ * The cooldown period is fixed, so keys come out in the order they went in: we add to the end
+ * of a linked list and drain whatever is due from the beginning. Each run of keys with the same
+ * wakeup time is effectively a time bucket. Keys are also indexed by key, so removing one from
+ * the middle doesn't need a search. Everything is O(1) per key however many keys are queued.
  * @author toad
  */
 public class RequestCooldownQueue implements CooldownQueue {
 
-	/** keys which have been put onto the cooldown queue */ 
-	private Key[] keys;
-	/** times at which keys will be valid again */
-	private long[] times;
-	/** clients responsible for the keys */
-	private SendableGet[] clients;
-	/** count of keys removed from middle i.e. holes */
-	int holes;
-	/** location of first (chronologically) key */
-	int startPtr;
-	/** location next key will be put in (may be < startPtr if wrapped around) */
-	int endPtr;
+	private static class Item {
+		final Key key;
+		final SendableGet client;
+		/** time at which the key will be valid again */
+		final long time;
+		Item prev;
+		Item next;
+		/** next item for an equal key, usually null */
+		Item sameKey;
+		Item(Key key, SendableGet client, long time) {
+			this.key = key;
+			this.client = client;
+			this.time = time;
+		}
+	}
+
+	/** first (chronologically) key */
+	private Item head;
+	/** last key added */
+	private Item tail;
+	/** items by key */
+	private final HashMap<Key, Item> byKey;
+	private int size;
 	private static volatile boolean logMINOR;
 	private static volatile boolean logDEBUG;
 
@@ -48,17 +61,10 @@ public class RequestCooldownQueue implements CooldownQueue {
 		});
 	}
 	
-	static final int MIN_SIZE = 128;
-	
 	final long cooldownTime;
 
 	RequestCooldownQueue(long cooldownTime) {
-		keys = new Key[MIN_SIZE];
-		times = new long[MIN_SIZE];
-		clients = new SendableGet[MIN_SIZE];
-		holes = 0;
-		startPtr = 0;
-		endPtr = 0;
+		byKey = new HashMap<Key, Item>();
 		this.cooldownTime = cooldownTime;
 	}
 	
@@ -76,108 +82,87 @@ public class RequestCooldownQueue implements CooldownQueue {
 	}
 	
 	private synchronized long getLastTime() {
-		if(startPtr == endPtr) return -1;
-		if(endPtr > 0) return times[endPtr-1];
-		return times[times.length-1];
+		if(tail == null) return -1;
+		return tail.time;
 	}
 
 	private synchronized void add(Key key, SendableGet client, long removeTime) {
-		if(holes < 0) Logger.error(this, "holes = "+holes+" !!");
 		if(logMINOR)
-			Logger.minor(this, "Adding key "+key+" client "+client+" remove time "+removeTime+" startPtr="+startPtr+" endPtr="+endPtr+" keys.length="+keys.length);
-		int ptr = endPtr;
-		if(endPtr > startPtr) {
-			if(logMINOR) Logger.minor(this, "endPtr > startPtr");
-			if(endPtr == keys.length-1) {
-				// Last key
-				if(startPtr == 0) {
-					// No room
-					expandQueue();
-					add(key, client, null);
-					return;
-				} else {
-					// Wrap around
-					endPtr = 0;
+			Logger.minor(this, "Adding key "+key+" client "+client+" remove time "+removeTime+" size="+size);
+		Item item = new Item(key, client, removeTime);
+		if(tail == null) {
+			head = tail = item;
+		} else {
+			tail.next = item;
+			item.prev = tail;
+			tail = item;
+		}
+		item.sameKey = byKey.put(key, item);
+		size++;
+	}
+
+	/** Unlink an item from the list and the index. */
+	private void remove(Item item) {
+		if(item.prev == null) head = item.next;
+		else item.prev.next = item.next;
+		if(item.next == null) tail = item.prev;
+		else item.next.prev = item.prev;
+		item.prev = item.next = null;
+		Item first = byKey.get(item.key);
+		if(first == item) {
+			if(item.sameKey == null) byKey.remove(item.key);
+			else byKey.put(item.key, item.sameKey);
+		} else {
+			while(first != null) {
+				if(first.sameKey == item) {
+					first.sameKey = item.sameKey;
+					break;
 				}
-			} else {
-				endPtr++;
-			}
-		} else if(endPtr < startPtr){
-			if(logMINOR) Logger.minor(this, "endPtr < startPtr");
-			if(endPtr == startPtr - 1) {
-				expandQueue();
-				add(key, client, null);
-				return;
-			} else {
-				endPtr++;
+				first = first.sameKey;
 			}
-		} else /* endPtr == startPtr : nothing queued */ {
-			if(logMINOR) Logger.minor(this, "endPtr == startPtr");
-			endPtr = 1;
-			startPtr = 0;
-			ptr = 0;
 		}
-		if(logMINOR) Logger.minor(this, "Added at "+ptr+" startPtr="+startPtr+" endPtr="+endPtr);
-		keys[ptr] = key;
-		times[ptr] = removeTime;
-		clients[ptr] = client;
-		return;
+		item.sameKey = null;
+		size--;
 	}
 
 	/* (non-Javadoc)
 	 * @see freenet.client.async.CooldownQueue#removeKeyBefore(long)
 	 */
 	public synchronized Object removeKeyBefore(long now, long dontCareAfterMillis, ObjectContainer container, int maxKeys) {
-		ArrayList<Key> v = new ArrayList<Key>();
 		boolean foundIT = false;
 		if(logDEBUG) {
 			foundIT = bigLog();
 		}
 		if(logMINOR)
-			Logger.minor(this, "Remove key before "+now+" : startPtr="+startPtr+" endPtr="+endPtr+" holes="+holes+" keys.length="+keys.length);
-		if(holes < 0) Logger.error(this, "holes = "+holes+" !!");
+			Logger.minor(this, "Remove key before "+now+" : size="+size);
 		if(foundIT) {
 			if(logMINOR) Logger.minor(this, "FOUND IT!"); // FIXME remove
 		}
-		while(true) {
-			if(startPtr == endPtr) {
-				if(logMINOR) Logger.minor(this, "No keys queued");
-				if(!v.isEmpty())
-					return v.toArray(new Key[v.size()]);
-				else
-					return null;
-			}
-			long time = times[startPtr];
-			Key key = keys[startPtr];
-			if(key == null) {
-				times[startPtr] = 0;
-				clients[startPtr] = null;
-				startPtr++;
-				holes--;
-				if(startPtr == times.length) startPtr = 0;
-				if(logMINOR) Logger.minor(this, "Skipped hole");
-				continue;
-			} else {
-				if(time > now) {
-					if(logMINOR) Logger.minor(this, "First key is later at time "+time);
-					if(!v.isEmpty())
-						return v.toArray(new Key[v.size()]);
-					else if(time < (now + dontCareAfterMillis)) 
-						return Long.valueOf(time);
-					else
-						return null;
-				}
-				times[startPtr] = 0;
-				keys[startPtr] = null;
-				clients[startPtr] = null;
-				startPtr++;
-				if(startPtr == times.length) startPtr = 0;
-			}
-			if(logMINOR) Logger.minor(this, "Returning key "+key);
-			v.add(key);
-			if(v.size() == maxKeys)
-				return v.toArray(new Key[v.size()]);
+		if(head == null) {
+			if(logMINOR) Logger.minor(this, "No keys queued");
+			return null;
 		}
+		if(head.time > now) {
+			long time = head.time;
+			if(logMINOR) Logger.minor(this, "First key is later at time "+time);
+			if(time < (now + dontCareAfterMillis))
+				return Long.valueOf(time);
+			else
+				return null;
+		}
+		ArrayList<Key> v = new ArrayList<Key>();
+		while(head != null && head.time <= now && v.size() < maxKeys) {
+			Item item = head;
+			remove(item);
+			if(logMINOR) Logger.minor(this, "Returning key "+item.key);
+			v.add(item.key);
+		}
+		return v.toArray(new Key[v.size()]);
+	}
+	
+	/** Number of keys queued */
+	synchronized int size() {
+		return size;
 	}
 	
 	private static String DEBUG_TARGET_URI = "CHK@.../chaosradio_131.mp3";
@@ -189,8 +174,8 @@ public class RequestCooldownQueue implements CooldownQueue {
 	 */
 	private boolean bigLog() {
 		boolean foundIT = false;
-		if(clients[startPtr] != null) {
-			ClientRequester cr = clients[startPtr].parent;
+		if(head != null && head.client != null) {
+			ClientRequester cr = head.client.parent;
 			if(cr instanceof ClientGetter) {
 				String s = ((ClientGetter)cr).getURI().toShortString();
 				if(logMINOR) Logger.minor(this, "client = "+s);
@@ -205,17 +190,17 @@ public class RequestCooldownQueue implements CooldownQueue {
 		int nullClients = 0;
 		int notGetter = 0;
 		int valid = 0;
-		for(int i=0;i<keys.length;i++) {
-			if(keys[i] == null) {
+		for(Item item = head; item != null; item = item.next) {
+			if(item.key == null) {
 				nulls++;
 				continue;
 			}
-			if(clients[i] == null) {
+			if(item.client == null) {
 				nullClients++; // Odd...
 				continue;
 			}
 			valid++;
-			ClientRequester cr = clients[i].parent;
+			ClientRequester cr = item.client.parent;
 			if(cr instanceof ClientGetter) {
 				String shortURI = ((ClientGetter)cr).getURI().toShortString();
 				Integer ctr = (Integer) countsByShortURI.get(shortURI);
@@ -247,124 +232,16 @@ public class RequestCooldownQueue implements CooldownQueue {
 	 */
 	public synchronized boolean removeKey(Key key, SendableGet client, long time, ObjectContainer container) {
 		if(time <= 0) return false; // We won't find it.
-		if(holes < 0) Logger.error(this, "holes = "+holes+" !!");
-		if(logMINOR) Logger.minor(this, "Remove key "+key+" client "+client+" at time "+time+" startPtr="+startPtr+" endPtr="+endPtr+" holes="+holes+" keys.length="+keys.length);
-		int idx = -1;
-		if(endPtr > startPtr) {
-			idx = Fields.binarySearch(times, time, startPtr, endPtr);
-		} else if(endPtr == startPtr) {
-			if(logMINOR) Logger.minor(this, "No keys queued");
-			return false;
-		} else { // endPtr < startPtr
-			// FIXME: ARGH! Java doesn't provide binarySearch with from and to!
-			if(startPtr != times.length - 1)
-				idx = Fields.binarySearch(times, time, startPtr, times.length - 1);
-			if(idx < 0 && startPtr != 0)
-				idx = Fields.binarySearch(times, time, 0, endPtr);
-		}
-		if(logMINOR) Logger.minor(this, "idx = "+idx);
-		if(idx < 0) return false;
-		if(keys[idx] == key && clients[idx] == client) {
-			keys[idx] = null;
-			clients[idx] = null;
-			holes++;
-			if(logMINOR) Logger.minor(this, "Found (exact)");
-			return true;
-		}
-		// Try backwards first
-		int nidx = idx;
-		while(true) {
-			if(times[nidx] != time) break;
-			if(keys[nidx] == key && clients[nidx] == client) {
-				keys[nidx] = null;
-				clients[nidx] = null;
-				holes++;
-				if(logMINOR) Logger.minor(this, "Found (backwards)");
-				return true;
-			}
-			if(nidx == startPtr) break;
-			nidx--;
-			if(nidx == -1) nidx = times.length-1;
-		}
-		nidx = idx;
-		// Now try forwards
-		while(true) {
-			if(times[nidx] != time) break;
-			if(keys[nidx] == key && clients[nidx] == client) {
-				keys[nidx] = null;
-				clients[nidx] = null;
-				holes++;
-				if(logMINOR) Logger.minor(this, "Found (forwards)");
+		if(logMINOR) Logger.minor(this, "Remove key "+key+" client "+client+" at time "+time+" size="+size);
+		for(Item item = byKey.get(key); item != null; item = item.sameKey) {
+			if(item.key == key && item.client == client && item.time == time) {
+				remove(item);
+				if(logMINOR) Logger.minor(this, "Found");
 				return true;
 			}
-			if(nidx == endPtr) break;
-			nidx++;
-			if(nidx == times.length) nidx = 0;
 		}
 		if(logMINOR) Logger.minor(this, "Not found");
 		return false;
 	}
 
-	/**
-	 * Allocate a new queue, and compact while copying.
-	 */
-	private synchronized void expandQueue() {
-		if(logMINOR) Logger.minor(this, "Expanding queue");
-		if(holes < 0) {
-			Logger.error(this, "holes = "+holes+" !!");
-			holes = 0;
-		}
-		int newSize = (keys.length - holes) * 2;
-		if(newSize < MIN_SIZE) newSize = MIN_SIZE;
-		// FIXME reuse the old buffers if it fits
-		Key[] newKeys = new Key[newSize];
-		long[] newTimes = new long[newSize];
-		SendableGet[] newClients = new SendableGet[newSize];
-		// Reset startPtr to 0, and remove holes.
-		int x = 0;
-		long lastTime = -1;
-		if(endPtr > startPtr) {
-			for(int i=startPtr;i<endPtr;i++) {
-				if(keys[i] == null) continue;
-				newKeys[x] = keys[i];
-				newTimes[x] = times[i];
-				newClients[x] = clients[i];
-				if(lastTime > times[i])
-					Logger.error(this, "RequestCooldownQueue INCONSISTENCY: times["+i+"] = times[i] but lastTime="+lastTime);
-				lastTime = times[i];
-				x++;
-			}
-		} else if(endPtr < startPtr) {
-			for(int i=startPtr;i<keys.length;i++) {
-				if(keys[i] == null) continue;
-				newKeys[x] = keys[i];
-				newTimes[x] = times[i];
-				newClients[x] = clients[i];
-				if(lastTime > times[i])
-					Logger.error(this, "RequestCooldownQueue INCONSISTENCY: times["+i+"] = times[i] but lastTime="+lastTime);
-				lastTime = times[i];
-				x++;
-			}
-			for(int i=0;i<endPtr;i++) {
-				if(keys[i] == null) continue;
-				newKeys[x] = keys[i];
-				newTimes[x] = times[i];
-				newClients[x] = clients[i];
-				if(lastTime > times[i])
-					Logger.error(this, "RequestCooldownQueue INCONSISTENCY: times["+i+"] = times[i] but lastTime="+lastTime);
-				lastTime = times[i];
-				x++;
-			}
-		} else /* endPtr == startPtr */ {
-			Logger.error(this, "RequestCooldownQueue: expandQueue() called with endPtr == startPtr == "+startPtr+" !!");
-			return;
-		}
-		holes = 0;
-		startPtr = 0;
-		keys = newKeys;
-		times = newTimes;
-		clients = newClients;
-		endPtr = x;
-	}
-
 }
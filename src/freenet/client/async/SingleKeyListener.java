@@ -80,6 +80,11 @@ public class SingleKeyListener implements KeyListener {
 		return key.equals(this.key);
 	}
 
+	public synchronized int[] getWantedKeyFingerprints(KeySalter salter) {
+		if(done) return new int[0];
+		return new int[] { WantedKeyIndex.fingerprint(salter.saltKey(key)) };
+	}
+
 	public synchronized void onRemove() {
 		done = true;
 	}
@@ -68,6 +68,11 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	 * filters use the global salt. */
 	private final byte[] localSalt;
 	private boolean killed;
+	/** WantedKeyIndex fingerprints of the globally salted keys, or null if we
+	 * don't know them, because the filter was written before we kept them.
+	 * Stored after the main filter in mainBloomFile. */
+	private int[] fingerprints;
+	private int fingerprintCount;
 
 	/**
 	 * Caller must create bloomFile, but it may be empty.
@@ -107,11 +112,19 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		if(newFilter) {
 			filter = new CountingBloomFilter(mainBloomSizeBytes * 8 / 2, mainBloomK, filterBuffer);
 			filter.setWarnOnRemoveFromEmpty();
+			fingerprints = new int[Math.max(keyCount, 16)];
 		} else {
 			// Read from file.
 			FileInputStream fis = new FileInputStream(bloomFile);
 			DataInputStream dis = new DataInputStream(fis);
 			dis.readFully(filterBuffer);
+			long extra = bloomFile.length() - mainBloomSizeBytes;
+			if(extra > 0 && extra % 4 == 0 && extra / 4 <= Integer.MAX_VALUE) {
+				fingerprintCount = (int) (extra / 4);
+				fingerprints = new int[fingerprintCount];
+				for(int i=0;i<fingerprintCount;i++)
+					fingerprints[i] = dis.readInt();
+			}
 			dis.close();
 			filter = new CountingBloomFilter(mainBloomSizeBytes * 8 / 2, mainBloomK, filterBuffer);
 			filter.setWarnOnRemoveFromEmpty();
@@ -135,12 +148,30 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 	void addKey(Key key, int segNo, ClientContext context) {
 		byte[] saltedKey = context.getChkFetchScheduler().saltKey(persistent, key);
 		filter.addKey(saltedKey);
+		addFingerprint(WantedKeyIndex.fingerprint(saltedKey));
 		byte[] localSalted = localSaltKey(key);
 		segmentFilters[segNo].addKey(localSalted);
 //		if(!segmentFilters[segNo].checkFilter(localSalted))
 //			Logger.error(this, "Key added but not in filter: "+key+" on "+this);
 	}
 
+	private synchronized void addFingerprint(int fingerprint) {
+		if(fingerprints == null) return;
+		if(fingerprintCount == fingerprints.length) {
+			int[] newFingerprints = new int[fingerprints.length * 2];
+			System.arraycopy(fingerprints, 0, newFingerprints, 0, fingerprintCount);
+			fingerprints = newFingerprints;
+		}
+		fingerprints[fingerprintCount++] = fingerprint;
+	}
+
+	public synchronized int[] getWantedKeyFingerprints(KeySalter salter) {
+		if(fingerprints == null) return null;
+		int[] ret = new int[fingerprintCount];
+		System.arraycopy(fingerprints, 0, ret, 0, fingerprintCount);
+		return ret;
+	}
+
 	private byte[] localSaltKey(Key key) {
 		MessageDigest md = SHA256.getMessageDigest();
 		md.update(key.getRoutingKey());
@@ -302,6 +333,14 @@ public class SplitFileFetcherKeyListener implements KeyListener {
 		}
 		RandomAccessFile raf = new RandomAccessFile(mainBloomFile, "rw");
 		raf.write(filterBuffer);
+		synchronized(this) {
+			if(fingerprints != null) {
+				ByteBuffer buf = ByteBuffer.allocate(fingerprintCount * 4);
+				buf.asIntBuffer().put(fingerprints, 0, fingerprintCount);
+				raf.write(buf.array());
+			}
+		}
+		raf.setLength(raf.getFilePointer());
 		raf.close();
 		raf = new RandomAccessFile(altBloomFile, "rw");
 		raf.write(segmentsFilterBuffer);
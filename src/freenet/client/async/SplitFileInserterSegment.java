@@ -480,23 +480,22 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		}
 	}
 
-	public void tryEncode(ObjectContainer container, ClientContext context) {
+	public void tryEncode(final ObjectContainer container, final ClientContext context) {
+		// Work out which blocks need encoding, then encode them in parallel.
+		// Activation and the callbacks stay on this thread, in block order.
+		final ArrayList<Integer> indexes = new ArrayList<Integer>();
+		final ArrayList<Bucket> buckets = new ArrayList<Bucket>();
+		final ArrayList<Boolean> deactivate = new ArrayList<Boolean>();
 		for(int i=0;i<dataBlocks.length;i++) {
 			if(dataURIs[i] == null && dataBlocks[i] != null) {
-				try {
-					boolean deactivate = false;
-					if(persistent) {
-						deactivate = !container.ext().isActive(dataBlocks[i]);
-						if(deactivate) container.activate(dataBlocks[i], 1);
-					}
-					ClientCHK key = (ClientCHK) encodeBucket(dataBlocks[i]).getClientKey();
-					if(deactivate) container.deactivate(dataBlocks[i], 1);
-					onEncode(i, key, container, context);
-				} catch (CHKEncodeException e) {
-					fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);						
-				} catch (IOException e) {
-					fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
+				boolean deactivateBlock = false;
+				if(persistent) {
+					deactivateBlock = !container.ext().isActive(dataBlocks[i]);
+					if(deactivateBlock) container.activate(dataBlocks[i], 1);
 				}
+				indexes.add(i);
+				buckets.add(dataBlocks[i]);
+				deactivate.add(deactivateBlock);
 			} else if(dataURIs[i] == null && dataBlocks[i] == null) {
 				fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);					
 			}
@@ -504,25 +503,42 @@ public class SplitFileInserterSegment extends SendableInsert implements FECCallb
 		if(encoded) {
 			for(int i=0;i<checkBlocks.length;i++) {
 				if(checkURIs[i] == null && checkBlocks[i] != null) {
-					try {
-						boolean deactivate = false;
-						if(persistent) {
-							deactivate = !container.ext().isActive(checkBlocks[i]);
-							if(deactivate) container.activate(checkBlocks[i], 1);
-						}
-						ClientCHK key = (ClientCHK) encodeBucket(checkBlocks[i]).getClientKey();
-						if(deactivate) container.deactivate(checkBlocks[i], 1);
-						onEncode(i+dataBlocks.length, key, container, context);
-					} catch (CHKEncodeException e) {
-						fail(new InsertException(InsertException.INTERNAL_ERROR, e, null), container, context);						
-					} catch (IOException e) {
-						fail(new InsertException(InsertException.BUCKET_ERROR, e, null), container, context);
+					boolean deactivateBlock = false;
+					if(persistent) {
+						deactivateBlock = !container.ext().isActive(checkBlocks[i]);
+						if(deactivateBlock) container.activate(checkBlocks[i], 1);
 					}
+					indexes.add(i+dataBlocks.length);
+					buckets.add(checkBlocks[i]);
+					deactivate.add(deactivateBlock);
 				} else if(checkURIs[i] == null && checkBlocks[i] == null) {
 					fail(new InsertException(InsertException.INTERNAL_ERROR, "Data block "+i+" cannot be encoded: no data", null), container, context);					
 				}
 			}
 		}
+		context.backgroundBlockEncoder.encodeInOrder(indexes.size(), new BackgroundBlockEncoder.BatchEncoder<ClientCHK>() {
+
+			public ClientCHK encode(int i) throws CHKEncodeException, IOException {
+				return (ClientCHK) encodeBucket(buckets.get(i)).getClientKey();
+			}
+
+			public void onEncoded(int i, ClientCHK key) {
+				if(deactivate.get(i)) container.deactivate(buckets.get(i), 1);
+				onEncode(indexes.get(i), key, container, context);
+			}
+
+			public void onFailure(int i, Throwable t) {
+				if(deactivate.get(i)) container.deactivate(buckets.get(i), 1);
+				if(t instanceof IOException)
+					fail(new InsertException(InsertException.BUCKET_ERROR, t, null), container, context);
+				else {
+					if(!(t instanceof CHKEncodeException))
+						Logger.error(SplitFileInserterSegment.this, "Caught "+t+" encoding block "+indexes.get(i), t);
+					fail(new InsertException(InsertException.INTERNAL_ERROR, t, null), container, context);
+				}
+			}
+			
+		});
 	}
 
 	public void onDecodedSegment(ObjectContainer container, ClientContext context, FECJob job, Bucket[] dataBuckets, Bucket[] checkBuckets, SplitfileBlock[] dataBlockStatus, SplitfileBlock[] checkBlockStatus) {} // irrevelant
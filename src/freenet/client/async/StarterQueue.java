@@ -0,0 +1,170 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.RequestStarter;
+import freenet.node.SendableRequest;
+
+/**
+ * The persistent requests chosen by the database thread, whose blocks are
+ * waiting for the RequestStarter to start them. There is one lane for each
+ * priority class. The database thread only adds and removes a few requests
+ * a second, but the RequestStarter looks at the queue for every block it
+ * starts, so the lanes are copy-on-write lists and reading them doesn't take
+ * a lock.
+ *
+ * We also keep an estimate of the number of blocks not started, so that we
+ * can decide whether to refill the queue without asking every request.
+ *
+ * LOCKING: Changes are synchronized on this, so that checking whether a
+ * request is already queued and adding it is atomic. Reads don't lock.
+ * Iterating returns the requests in priority order, as of some point during
+ * the iteration.
+ */
+class StarterQueue implements Iterable<PersistentChosenRequest> {
+
+	private final CopyOnWriteArrayList<PersistentChosenRequest>[] lanes;
+	/** Blocks not started over all the requests, as of the last change we
+	 * were told about */
+	private final AtomicInteger length;
+	/** Number of requests */
+	private final AtomicInteger size;
+
+	@SuppressWarnings("unchecked")
+	StarterQueue() {
+		lanes = new CopyOnWriteArrayList[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<lanes.length;i++)
+			lanes[i] = new CopyOnWriteArrayList<PersistentChosenRequest>();
+		length = new AtomicInteger();
+		size = new AtomicInteger();
+	}
+
+	private CopyOnWriteArrayList<PersistentChosenRequest> lane(short prio) {
+		if(prio < 0) prio = 0;
+		if(prio >= lanes.length) prio = (short) (lanes.length - 1);
+		return lanes[prio];
+	}
+
+	/**
+	 * @return The request with the best priority, and the lowest retry count
+	 * within that priority, or null if the queue is empty.
+	 */
+	PersistentChosenRequest best() {
+		for(CopyOnWriteArrayList<PersistentChosenRequest> lane : lanes) {
+			PersistentChosenRequest best = null;
+			for(PersistentChosenRequest req : lane) {
+				if(best == null || req.retryCount < best.retryCount)
+					best = req;
+			}
+			if(best != null) return best;
+		}
+		return null;
+	}
+
+	/**
+	 * @return The request with the worst priority, and the highest retry count
+	 * within that priority, or null if the queue is empty.
+	 */
+	PersistentChosenRequest worst() {
+		for(int i=lanes.length-1;i>=0;i--) {
+			PersistentChosenRequest worst = null;
+			for(PersistentChosenRequest req : lanes[i]) {
+				if(worst == null || req.retryCount > worst.retryCount)
+					worst = req;
+			}
+			if(worst != null) return worst;
+		}
+		return null;
+	}
+
+	/** @return False if there is already a PersistentChosenRequest for the
+	 * same SendableRequest on the queue. */
+	synchronized boolean add(PersistentChosenRequest req) {
+		if(contains(req.request)) return false;
+		lane(req.prio).add(req);
+		size.incrementAndGet();
+		length.addAndGet(req.sizeNotStarted());
+		return true;
+	}
+
+	/** @return False if it wasn't on the queue. */
+	synchronized boolean remove(PersistentChosenRequest req) {
+		CopyOnWriteArrayList<PersistentChosenRequest> lane = lane(req.prio);
+		// Compare by pointer, the request may be deactivated.
+		for(int i=0;i<lane.size();i++) {
+			if(lane.get(i) == req) {
+				lane.remove(i);
+				size.decrementAndGet();
+				recount();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** Remove the PersistentChosenRequest for a SendableRequest.
+	 * @return The PersistentChosenRequest removed, or null. */
+	synchronized PersistentChosenRequest remove(SendableRequest request) {
+		for(PersistentChosenRequest req : this) {
+			if(req.request == request) {
+				remove(req);
+				return req;
+			}
+		}
+		return null;
+	}
+
+	boolean contains(SendableRequest request) {
+		for(CopyOnWriteArrayList<PersistentChosenRequest> lane : lanes) {
+			for(PersistentChosenRequest req : lane) {
+				if(req.request == request) return true;
+			}
+		}
+		return false;
+	}
+
+	/** Tell the queue that the number of blocks not started on one of its
+	 * requests has changed e.g. because we have started one. */
+	void changedLength(int delta) {
+		length.addAndGet(delta);
+	}
+
+	/** Count the blocks not started exactly, and correct the estimate.
+	 * @return The number of blocks not started. */
+	int recount() {
+		int total = 0;
+		for(PersistentChosenRequest req : this)
+			total += req.sizeNotStarted();
+		length.set(total);
+		return total;
+	}
+
+	/** @return The estimated number of blocks not started. */
+	int length() {
+		return Math.max(0, length.get());
+	}
+
+	/** @return The number of requests on the queue. */
+	int size() {
+		return size.get();
+	}
+
+	boolean isEmpty() {
+		return size.get() == 0;
+	}
+
+	public Iterator<PersistentChosenRequest> iterator() {
+		ArrayList<PersistentChosenRequest> all = new ArrayList<PersistentChosenRequest>(size());
+		for(CopyOnWriteArrayList<PersistentChosenRequest> lane : lanes)
+			all.addAll(lane);
+		return Collections.unmodifiableList(all).iterator();
+	}
+
+}
@@ -0,0 +1,126 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.keys.USK;
+
+/**
+ * The latest known editions of every USK, shared by all the fetchers and
+ * subscribers for the same USK, so that looking up an edition doesn't take
+ * the USKManager lock. Also estimates how often each USK is updated, so
+ * that pollers can back off further on USKs which are rarely updated, and
+ * counts how many probes we send for each edition we find.
+ *
+ * Keyed by the clear USK, i.e. with the edition number blanked.
+ */
+class USKEditionCache {
+
+	/** Weight of a new sample in the average update interval */
+	private static final double INTERVAL_ALPHA = 0.25;
+
+	private static class Editions {
+		/** Latest version successfully fetched */
+		final AtomicLong knownGood = new AtomicLong(-1);
+		/** Latest SSK slot known to be by the author */
+		final AtomicLong slot = new AtomicLong(-1);
+		/** When we last found a new slot, or -1 */
+		long lastFound = -1;
+		/** Average time between editions, in milliseconds, or -1 if unknown */
+		long updateInterval = -1;
+	}
+
+	private final ConcurrentHashMap<USK, Editions> editionsByClearUSK;
+	/** Edition probes sent over all USKs */
+	private final AtomicLong probes;
+	/** New slots found over all USKs */
+	private final AtomicLong found;
+
+	USKEditionCache() {
+		editionsByClearUSK = new ConcurrentHashMap<USK, Editions>();
+		probes = new AtomicLong();
+		found = new AtomicLong();
+	}
+
+	private Editions get(USK clear) {
+		Editions e = editionsByClearUSK.get(clear);
+		if(e != null) return e;
+		e = new Editions();
+		Editions old = editionsByClearUSK.putIfAbsent(clear, e);
+		return old == null ? e : old;
+	}
+
+	/** @return The latest known good edition, or -1. */
+	long knownGood(USK clear) {
+		Editions e = editionsByClearUSK.get(clear);
+		return e == null ? -1 : e.knownGood.get();
+	}
+
+	/** @return The latest known slot, or -1. */
+	long slot(USK clear) {
+		Editions e = editionsByClearUSK.get(clear);
+		return e == null ? -1 : e.slot.get();
+	}
+
+	/** @return True if the known good edition was increased. */
+	boolean updateKnownGood(USK clear, long edition) {
+		return raise(get(clear).knownGood, edition) != Long.MAX_VALUE;
+	}
+
+	/** @return True if the latest slot was increased. */
+	boolean updateSlot(USK clear, long edition) {
+		Editions e = get(clear);
+		long old = raise(e.slot, edition);
+		if(old == Long.MAX_VALUE) return false;
+		long now = System.currentTimeMillis();
+		found.addAndGet(old < 0 ? 1 : edition - old);
+		synchronized(e) {
+			// The first edition we see tells us nothing about how often it is updated.
+			if(old >= 0 && e.lastFound > 0 && now > e.lastFound) {
+				long sample = (now - e.lastFound) / (edition - old);
+				if(e.updateInterval < 0)
+					e.updateInterval = sample;
+				else
+					e.updateInterval = (long) (e.updateInterval * (1 - INTERVAL_ALPHA) + sample * INTERVAL_ALPHA);
+			}
+			e.lastFound = now;
+		}
+		return true;
+	}
+
+	/** Set the value to the edition if it is higher.
+	 * @return The old value, or Long.MAX_VALUE if it was not changed. */
+	private static long raise(AtomicLong value, long edition) {
+		while(true) {
+			long old = value.get();
+			if(old >= edition) return Long.MAX_VALUE;
+			if(value.compareAndSet(old, edition)) return old;
+		}
+	}
+
+	/** @return The average time between new editions of the USK, in
+	 * milliseconds, or -1 if we haven't seen it updated often enough to tell. */
+	long updateInterval(USK clear) {
+		Editions e = editionsByClearUSK.get(clear);
+		if(e == null) return -1;
+		synchronized(e) {
+			return e.updateInterval;
+		}
+	}
+
+	void onProbe() {
+		probes.incrementAndGet();
+	}
+
+	long countProbes() {
+		return probes.get();
+	}
+
+	long countFound() {
+		return found.get();
+	}
+
+}
@@ -203,6 +203,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					Logger.minor(this, "Checker == null in schedule() for "+this, new Exception("debug"));
 			} else {
 				assert(!checker.persistent());
+				uskManager.editions.onProbe();
 				checker.schedule(container, context);
 			}
 		}
@@ -238,6 +239,10 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	static final int origSleepTime = 30 * 60 * 1000;
 	static final int maxSleepTime = 24 * 60 * 60 * 1000;
 	int sleepTime = origSleepTime;
+	
+	/** How much of the time between editions we wait before polling again
+	 * after finding one: 1/UPDATE_INTERVAL_FRACTION */
+	static final int UPDATE_INTERVAL_FRACTION = 4;
 
 	/** Maximum number of editions to probe ahead. */
 	private final long maxMinFailures;
@@ -304,6 +309,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 	private void finishSuccess(ClientContext context) {
 		if(backgroundPoll) {
 			long valAtEnd = uskManager.lookupLatestSlot(origUSK);
+			int resetSleepTime = resetSleepTime();
 			long end;
 			long now = System.currentTimeMillis();
 			synchronized(this) {
@@ -319,7 +325,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 					// We have advanced; keep trying as if we just started.
 					// Only if we actually DO advance, not if we just confirm our suspicion (valueAtSchedule always starts at 0).
 					minFailures = origMinFailures;
-					sleepTime = origSleepTime;
+					sleepTime = resetSleepTime;
 					end = now;
 					if(logMINOR)
 						Logger.minor(this, "We have advanced: at start, "+valueAtSchedule+" at end, "+valAtEnd);
@@ -363,6 +369,21 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		}
 	}
 
+	/**
+	 * How long to sleep after finding a new edition, before doubling. A USK
+	 * which is rarely updated is not worth polling every half hour, so we
+	 * start from a fraction of the time between its editions, as seen by any
+	 * fetcher for the same USK.
+	 */
+	private int resetSleepTime() {
+		long interval = uskManager.lookupUpdateInterval(origUSK);
+		if(interval < 0) return origSleepTime;
+		interval /= UPDATE_INTERVAL_FRACTION;
+		if(interval < origSleepTime) return origSleepTime;
+		if(interval > maxSleepTime) return maxSleepTime;
+		return (int) interval;
+	}
+
 	void onSuccess(USKAttempt att, boolean dontUpdate, ClientSSKBlock block, final ClientContext context) {
 		final long lastEd = uskManager.lookupLatestSlot(origUSK);
 		long curLatest;
@@ -991,6 +1012,11 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 		return false;
 	}
 
+	public int[] getWantedKeyFingerprints(KeySalter salter) {
+		// keysWatching changes as we find new editions.
+		return null;
+	}
+
 	public synchronized boolean probablyWantKey(Key key, byte[] saltedKey) {
 		for(ClientSSK ssk : keysWatching)
 			if(ssk.getNodeKey().equals(key)) return true;
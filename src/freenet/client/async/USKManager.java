@@ -6,11 +6,13 @@ package freenet.client.async;
 import java.net.MalformedURLException;
 import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.db4o.ObjectContainer;
 
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
+import freenet.client.FetchResult;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.NullClientCallback;
 import freenet.clients.http.FProxyToadlet;
@@ -45,11 +47,13 @@ public class USKManager implements RequestClient {
 		});
 	}
 	
-	/** Latest version successfully fetched by blanked-edition-number USK */
-	final HashMap<USK, Long> latestKnownGoodByClearUSK;
+	/** Latest version successfully fetched, and latest SSK slot known to be by
+	 * the author, by blanked-edition-number USK. Not protected by the lock on
+	 * this, so lookups don't wait for it. */
+	final USKEditionCache editions;
 	
-	/** Latest SSK slot known to be by the author by blanked-edition-number USK */
-	final HashMap<USK, Long> latestSlotByClearUSK;
+	/** Editions being fetched by hintUpdate(), so we only fetch each once */
+	private final ConcurrentHashMap<USK, Boolean> hintsRunning;
 	
 	/** Subscribers by clear USK */
 	final HashMap<USK, USKCallback[]> subscribersByClearUSK;
@@ -83,8 +87,8 @@ public class USKManager implements RequestClient {
 		backgroundFetchContext = client.getFetchContext();
 		backgroundFetchContext.followRedirects = false;
 		realFetchContext = client.getFetchContext();
-		latestKnownGoodByClearUSK = new HashMap<USK, Long>();
-		latestSlotByClearUSK = new HashMap<USK, Long>();
+		editions = new USKEditionCache();
+		hintsRunning = new ConcurrentHashMap<USK, Boolean>();
 		subscribersByClearUSK = new HashMap<USK, USKCallback[]>();
 		fetchersByUSK = new HashMap<USK, USKFetcher>();
 		backgroundFetchersByClearUSK = new HashMap<USK, USKFetcher>();
@@ -105,11 +109,8 @@ public class USKManager implements RequestClient {
 	 * Look up the latest known working version of the given USK.
 	 * @return The latest known edition number, or -1.
 	 */
-	public synchronized long lookupKnownGood(USK usk) {
-		Long l = latestKnownGoodByClearUSK.get(usk.clearCopy());
-		if(l != null)
-			return l.longValue();
-		else return -1;
+	public long lookupKnownGood(USK usk) {
+		return editions.knownGood(usk.clearCopy());
 	}
 
 	/**
@@ -117,11 +118,16 @@ public class USKManager implements RequestClient {
 	 * fetched or not, of the given USK.
 	 * @return The latest known edition number, or -1.
 	 */
-	public synchronized long lookupLatestSlot(USK usk) {
-		Long l = latestSlotByClearUSK.get(usk.clearCopy());
-		if(l != null)
-			return l.longValue();
-		else return -1;
+	public long lookupLatestSlot(USK usk) {
+		return editions.slot(usk.clearCopy());
+	}
+
+	/**
+	 * @return The average time between new editions of the given USK, in
+	 * milliseconds, or -1 if we don't know.
+	 */
+	public long lookupUpdateInterval(USK usk) {
+		return editions.updateInterval(usk.clearCopy());
 	}
 
 	public USKFetcherTag getFetcher(USK usk, FetchContext ctx, boolean keepLast, boolean persistent, 
@@ -149,19 +155,40 @@ public class USKManager implements RequestClient {
 	 * A non-authoritative hint that a specific edition *might* exist. At the moment,
 	 * we just fetch the block. We do not fetch the contents, and it is possible that
 	 * USKFetcher's are also fetching the block. FIXME would it be more efficient to
-	 * pass it along to a USKFetcher?
+	 * pass it along to a USKFetcher? If several clients hint the same edition
+	 * while we are still fetching it, we only fetch it once.
 	 * @param usk
 	 * @param edition
 	 * @param context
 	 */
 	public void hintUpdate(USK usk, long edition, ClientContext context) {
 		if(edition < lookupLatestSlot(usk)) return;
-		FreenetURI uri = usk.copy(edition).getURI();
-		final ClientGetter get = new ClientGetter(new NullClientCallback(), uri, new FetchContext(backgroundFetchContext, FetchContext.IDENTICAL_MASK, false, null), RequestStarter.UPDATE_PRIORITY_CLASS, USKManager.this, new NullBucket(), null);
+		final USK hinted = usk.copy(edition);
+		if(hintsRunning.putIfAbsent(hinted, Boolean.TRUE) != null) {
+			if(logMINOR) Logger.minor(this, "Already fetching hinted edition "+hinted);
+			return;
+		}
+		ClientCallback cb = new NullClientCallback() {
+
+			@Override
+			public void onSuccess(FetchResult result, ClientGetter state, ObjectContainer container) {
+				hintsRunning.remove(hinted);
+				super.onSuccess(result, state, container);
+			}
+
+			@Override
+			public void onFailure(FetchException e, ClientGetter state, ObjectContainer container) {
+				hintsRunning.remove(hinted);
+				super.onFailure(e, state, container);
+			}
+
+		};
+		final ClientGetter get = new ClientGetter(cb, hinted.getURI(), new FetchContext(backgroundFetchContext, FetchContext.IDENTICAL_MASK, false, null), RequestStarter.UPDATE_PRIORITY_CLASS, USKManager.this, new NullBucket(), null);
+		editions.onProbe();
 		try {
 			get.start(null, context);
 		} catch (FetchException e) {
-			// Ignore
+			hintsRunning.remove(hinted);
 		}
 	}
 
@@ -174,13 +201,7 @@ public class USKManager implements RequestClient {
 	 * @throws MalformedURLException If the uri passed in is not a USK.
 	 */
 	public void hintUpdate(FreenetURI uri, ClientContext context) throws MalformedURLException {
-		if(uri.getSuggestedEdition() < lookupLatestSlot(USK.create(uri))) return;
-		final ClientGetter get = new ClientGetter(new NullClientCallback(), uri, new FetchContext(backgroundFetchContext, FetchContext.IDENTICAL_MASK, false, null), RequestStarter.UPDATE_PRIORITY_CLASS, USKManager.this, new NullBucket(), null);
-		try {
-			get.start(null, context);
-		} catch (FetchException e) {
-			// Ignore
-		}
+		hintUpdate(USK.create(uri), uri.getSuggestedEdition(), context);
 	}
 
 	public void startTemporaryBackgroundFetcher(USK usk, ClientContext context, final FetchContext fctx, boolean prefetchContent) {
@@ -261,26 +282,11 @@ public class USKManager implements RequestClient {
 		if(logMINOR) Logger.minor(this, "Updating "+origUSK.getURI()+" : "+number);
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
-		boolean newSlot = false;
+		if(!editions.updateKnownGood(clear, number))
+			return; // If it's in KnownGood, it will also be in Slot
+		boolean newSlot = editions.updateSlot(clear, number);
+		if(logMINOR) Logger.minor(this, "Put "+number+" new slot: "+newSlot);
 		synchronized(this) {
-			Long l = latestKnownGoodByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old known good: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestKnownGoodByClearUSK.put(clear, l);
-				if(logMINOR) Logger.minor(this, "Put "+number);
-			} else
-				return; // If it's in KnownGood, it will also be in Slot
-			
-			l = latestSlotByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old slot: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestSlotByClearUSK.put(clear, l);
-				if(logMINOR) Logger.minor(this, "Put "+number);
-				newSlot = true;
-			} 
-			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
 		if(callbacks != null) {
@@ -301,16 +307,10 @@ public class USKManager implements RequestClient {
 		if(logMINOR) Logger.minor(this, "Updating "+origUSK.getURI()+" : "+number);
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
+		if(!editions.updateSlot(clear, number))
+			return;
+		if(logMINOR) Logger.minor(this, "Put "+number);
 		synchronized(this) {
-			Long l = latestSlotByClearUSK.get(clear);
-			if(logMINOR) Logger.minor(this, "Old slot: "+l);
-			if((l == null) || (number > l.longValue())) {
-				l = Long.valueOf(number);
-				latestSlotByClearUSK.put(clear, l);
-				if(logMINOR) Logger.minor(this, "Put "+number);
-			} else
-				return;
-			
 			callbacks = subscribersByClearUSK.get(clear);
 		}
 		if(callbacks != null) {
@@ -483,6 +483,21 @@ public class USKManager implements RequestClient {
 		return temporaryBackgroundFetchersLRU.size();
 	}
 
+	/**
+	 * @return The number of editions probed for, by USKFetcher's and hints,
+	 * since startup.
+	 */
+	public long countProbes() {
+		return editions.countProbes();
+	}
+
+	/**
+	 * @return The number of new editions found since startup, over all USKs.
+	 */
+	public long countEditionsFound() {
+		return editions.countFound();
+	}
+
 	public void onFinished(USKFetcher fetcher) {
 		USK orig = fetcher.getOriginalUSK();
 		USK clear = orig.clearCopy();
@@ -0,0 +1,195 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Finds the KeyListener's which may want a key, from a fingerprint of the
+ * salted key, without asking every listener. Maps fingerprints to listeners
+ * with an open addressing hash table of (fingerprint, listener number) pairs
+ * packed into longs, so it costs 8 bytes per slot and a lookup only looks at
+ * a few slots however many listeners there are.
+ *
+ * Entries are never removed for individual keys: a listener may be returned
+ * for a key it no longer wants, or for a different key with the same
+ * fingerprint, so the caller must still check with probablyWantKey(). When a
+ * listener is removed, its entries are left until there are enough dead
+ * entries to make it worth rebuilding the table.
+ *
+ * LOCKING: Not thread safe, the caller must synchronize.
+ */
+class WantedKeyIndex {
+
+	private static final int MIN_CAPACITY = 64;
+
+	/** (fingerprint << 32) | listener number, or 0 for an empty slot */
+	private long[] table;
+	private int mask;
+	/** Number of slots in use, including those of removed listeners */
+	private int used;
+	/** Number of slots belonging to removed listeners */
+	private int dead;
+	/** Listener by number, null if removed. Number 0 is not used, so that a
+	 * slot is never 0. */
+	private final ArrayList<KeyListener> listeners;
+	/** Number of slots used by each listener, by number */
+	private int[] slotCounts;
+	private final HashMap<KeyListener, Integer> numbers;
+
+	WantedKeyIndex() {
+		table = new long[MIN_CAPACITY];
+		mask = MIN_CAPACITY - 1;
+		listeners = new ArrayList<KeyListener>();
+		listeners.add(null);
+		slotCounts = new int[16];
+		numbers = new HashMap<KeyListener, Integer>();
+	}
+
+	/** The fingerprint of a salted key, as used by add() and get(). */
+	static int fingerprint(byte[] saltedKey) {
+		return ((saltedKey[0] & 0xff) << 24) | ((saltedKey[1] & 0xff) << 16) |
+			((saltedKey[2] & 0xff) << 8) | (saltedKey[3] & 0xff);
+	}
+
+	/**
+	 * Add a listener.
+	 * @param fingerprints The fingerprints of the keys it wants.
+	 * @return False if it was already in the index.
+	 */
+	boolean add(KeyListener listener, int[] fingerprints) {
+		if(numbers.containsKey(listener)) return false;
+		int number = listeners.size();
+		listeners.add(listener);
+		numbers.put(listener, number);
+		if(number >= slotCounts.length) {
+			int[] newCounts = new int[slotCounts.length * 2];
+			System.arraycopy(slotCounts, 0, newCounts, 0, slotCounts.length);
+			slotCounts = newCounts;
+		}
+		ensureCapacity(used + fingerprints.length);
+		for(int fp : fingerprints)
+			insert(table, mask, pack(fp, number));
+		used += fingerprints.length;
+		slotCounts[number] = fingerprints.length;
+		return true;
+	}
+
+	/** @return False if the listener was not in the index. */
+	boolean remove(KeyListener listener) {
+		Integer number = numbers.remove(listener);
+		if(number == null) return false;
+		listeners.set(number, null);
+		dead += slotCounts[number];
+		slotCounts[number] = 0;
+		if(numbers.isEmpty()) {
+			clear();
+		} else if(dead > MIN_CAPACITY && dead > used / 2) {
+			rebuild(table.length);
+		}
+		return true;
+	}
+
+	boolean contains(KeyListener listener) {
+		return numbers.containsKey(listener);
+	}
+
+	/** Number of listeners */
+	int size() {
+		return numbers.size();
+	}
+
+	/**
+	 * Add the listeners which may want a key to a list.
+	 * @param fingerprint The fingerprint of the salted key.
+	 * @param matches Listeners are added to this if they are not already in it.
+	 */
+	void get(int fingerprint, ArrayList<KeyListener> matches) {
+		long[] t = table;
+		int i = hash(fingerprint) & mask;
+		while(true) {
+			long slot = t[i];
+			if(slot == 0) return;
+			if((int) (slot >>> 32) == fingerprint) {
+				KeyListener listener = listeners.get((int) slot);
+				// Listeners rarely have two keys with the same fingerprint.
+				if(listener != null && !matches.contains(listener))
+					matches.add(listener);
+			}
+			i = (i + 1) & mask;
+		}
+	}
+
+	private void clear() {
+		table = new long[MIN_CAPACITY];
+		mask = MIN_CAPACITY - 1;
+		used = 0;
+		dead = 0;
+		listeners.clear();
+		listeners.add(null);
+	}
+
+	private void ensureCapacity(int slots) {
+		// Keep the table at most 3/4 full, or probing gets slow.
+		if(slots - dead <= table.length / 4 * 3 && slots <= table.length / 8 * 7) return;
+		int capacity = table.length;
+		while(slots - dead > capacity / 4 * 3)
+			capacity *= 2;
+		rebuild(capacity);
+	}
+
+	/** Copy the live entries to a new table, and renumber the listeners. */
+	private void rebuild(int capacity) {
+		int[] renumber = new int[listeners.size()];
+		ArrayList<KeyListener> newListeners = new ArrayList<KeyListener>(numbers.size() + 1);
+		newListeners.add(null);
+		int[] newCounts = new int[Math.max(16, slotCounts.length)];
+		for(int i=1;i<listeners.size();i++) {
+			KeyListener listener = listeners.get(i);
+			if(listener == null) continue;
+			int number = newListeners.size();
+			renumber[i] = number;
+			newListeners.add(listener);
+			numbers.put(listener, number);
+			newCounts[number] = slotCounts[i];
+		}
+		long[] newTable = new long[capacity];
+		int newMask = capacity - 1;
+		int newUsed = 0;
+		for(long slot : table) {
+			if(slot == 0) continue;
+			int number = renumber[(int) slot];
+			if(number == 0) continue;
+			insert(newTable, newMask, pack((int) (slot >>> 32), number));
+			newUsed++;
+		}
+		table = newTable;
+		mask = newMask;
+		used = newUsed;
+		dead = 0;
+		listeners.clear();
+		listeners.addAll(newListeners);
+		slotCounts = newCounts;
+	}
+
+	private static long pack(int fingerprint, int number) {
+		return (((long) fingerprint) << 32) | (number & 0xffffffffL);
+	}
+
+	private static void insert(long[] t, int mask, long slot) {
+		int i = hash((int) (slot >>> 32)) & mask;
+		while(t[i] != 0)
+			i = (i + 1) & mask;
+		t[i] = slot;
+	}
+
+	/** The fingerprint is already random, but spread it anyway in case a
+	 * listener's salt isn't. */
+	private static int hash(int fingerprint) {
+		int h = fingerprint * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
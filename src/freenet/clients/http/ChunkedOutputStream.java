@@ -0,0 +1,85 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes a reply body with HTTP/1.1 chunked transfer encoding, for replies
+ * whose length is not known when the headers are sent. Data is collected into
+ * chunks of up to CHUNK_SIZE bytes, and each chunk goes to the socket in a
+ * single write. close() ends the reply but leaves the connection open.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+	static final int CHUNK_SIZE = 8192;
+	/** Room for the length in hex plus CRLF before the data */
+	private static final int HEADER_SPACE = 6;
+
+	private final OutputStream out;
+	/** Header space, then data, then room for the trailing CRLF */
+	private final byte[] buf;
+	private int count;
+	private boolean closed;
+
+	ChunkedOutputStream(OutputStream out) {
+		this.out = out;
+		buf = new byte[HEADER_SPACE + CHUNK_SIZE + 2];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		checkOpen();
+		if(count == CHUNK_SIZE) writeChunk();
+		buf[HEADER_SPACE + count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] data, int offset, int length) throws IOException {
+		checkOpen();
+		while(length > 0) {
+			if(count == CHUNK_SIZE) writeChunk();
+			int toCopy = Math.min(length, CHUNK_SIZE - count);
+			System.arraycopy(data, offset, buf, HEADER_SPACE + count, toCopy);
+			count += toCopy;
+			offset += toCopy;
+			length -= toCopy;
+		}
+	}
+
+	/** Send what we have as a chunk, so the browser can start on it. */
+	@Override
+	public void flush() throws IOException {
+		checkOpen();
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed) return;
+		writeChunk();
+		closed = true;
+		// Last chunk, no trailers
+		out.write(new byte[] { '0', '\r', '\n', '\r', '\n' });
+		out.flush();
+	}
+
+	private void writeChunk() throws IOException {
+		if(count == 0) return;
+		byte[] header = (Integer.toHexString(count) + "\r\n").getBytes("US-ASCII");
+		int start = HEADER_SPACE - header.length;
+		System.arraycopy(header, 0, buf, start, header.length);
+		buf[HEADER_SPACE + count] = '\r';
+		buf[HEADER_SPACE + count + 1] = '\n';
+		out.write(buf, start, header.length + count + 2);
+		count = 0;
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed) throw new IOException("Already closed");
+	}
+
+}
@@ -89,19 +89,24 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	/** Show even non-fatal failures for 5 seconds. Necessary for javascript to work,
 	 * because it fetches the page and then reloads it if it isn't a progress update. */
 	private long timeFailed;
+	/** Started in the background for a page which links to it, and nobody
+	 * has asked for it yet. */
+	private boolean prefetch;
 	
-	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc) {
+	public FProxyFetchInProgress(FProxyFetchTracker tracker, FreenetURI key, long maxSize2, long identifier, ClientContext context, FetchContext fctx, RequestClient rc, short priority) {
 		this.tracker = tracker;
 		this.uri = key;
 		this.maxSize = maxSize2;
 		this.timeStarted = System.currentTimeMillis();
+		this.lastTouched = timeStarted;
+		this.prefetch = priority != FProxyToadlet.PRIORITY;
 		this.identifier = identifier;
 		fctx = new FetchContext(fctx, FetchContext.IDENTICAL_MASK, false, null);
 		fctx.maxOutputLength = fctx.maxTempLength = maxSize;
 		fctx.eventProducer.addEventListener(this);
 		waiters = new ArrayList<FProxyFetchWaiter>();
 		results = new ArrayList<FProxyFetchResult>();
-		getter = new ClientGetter(this, uri, fctx, FProxyToadlet.PRIORITY, rc, null, null);
+		getter = new ClientGetter(this, uri, fctx, priority, rc, null, null);
 	}
 	
 	public synchronized FProxyFetchWaiter getWaiter() {
@@ -293,6 +298,17 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		return false;
 	}
 	
+	/** A browser wants the data now, so if we were prefetching it, fetch it at
+	 * the same priority as any other fproxy request. */
+	public void promote(ClientContext context) {
+		synchronized(this) {
+			if(!prefetch) return;
+			prefetch = false;
+		}
+		if(logMINOR) Logger.minor(this, "Promoting prefetch "+this+" : "+uri);
+		getter.setPriorityClass(FProxyToadlet.PRIORITY, context, null);
+	}
+
 	public synchronized boolean hasNotifiedFailure() {
 		return true;
 	}
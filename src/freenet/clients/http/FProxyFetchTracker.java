@@ -9,6 +9,7 @@ import freenet.client.FetchException;
 import freenet.client.async.ClientContext;
 import freenet.keys.FreenetURI;
 import freenet.node.RequestClient;
+import freenet.node.RequestStarter;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.MultiValueTable;
@@ -44,21 +45,24 @@ public class FProxyFetchTracker implements Runnable {
 	
 	FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize) throws FetchException {
 		FProxyFetchInProgress progress;
+		FProxyFetchWaiter waiter;
 		/* LOCKING:
 		 * Call getWaiter() inside the fetchers lock, since we will purge old 
 		 * fetchers inside that lock, hence avoid a race condition. FetchInProgress 
 		 * lock is always taken last. */
 		synchronized(fetchers) {
-			if(fetchers.containsKey(key)) {
-				Object[] check = fetchers.getArray(key);
-				for(int i=0;i<check.length;i++) {
-					progress = (FProxyFetchInProgress) check[i];
-					if((progress.maxSize == maxSize && progress.notFinishedOrFatallyFinished())
-							|| progress.hasData()) return progress.getWaiter();
-				}
+			progress = findFetcher(key, maxSize);
+			if(progress != null)
+				waiter = progress.getWaiter();
+			else {
+				waiter = null;
+				progress = new FProxyFetchInProgress(this, key, maxSize, fetchIdentifiers++, context, fctx, rc, FProxyToadlet.PRIORITY);
+				fetchers.put(key, progress);
 			}
-			progress = new FProxyFetchInProgress(this, key, maxSize, fetchIdentifiers++, context, fctx, rc);
-			fetchers.put(key, progress);
+		}
+		if(waiter != null) {
+			progress.promote(context);
+			return waiter;
 		}
 		try {
 			progress.start(context);
@@ -70,10 +74,67 @@ public class FProxyFetchTracker implements Runnable {
 		}
 		if(logMINOR) Logger.minor(this, "Created new fetcher: "+progress);
 		return progress.getWaiter();
-		// FIXME promote a fetcher when it is re-used
 		// FIXME get rid of fetchers over some age
 	}
 
+	/**
+	 * Get a waiter for a fetch which is already running or has already
+	 * finished, typically one started by prefetch(), and raise it to fproxy's
+	 * usual priority.
+	 * @return Null if we are not fetching the key.
+	 */
+	FProxyFetchWaiter getExistingFetcher(FreenetURI key, long maxSize) {
+		FProxyFetchInProgress progress;
+		FProxyFetchWaiter waiter;
+		synchronized(fetchers) {
+			progress = findFetcher(key, maxSize);
+			if(progress == null) return null;
+			waiter = progress.getWaiter();
+		}
+		progress.promote(context);
+		return waiter;
+	}
+
+	/**
+	 * Start fetching a key, at prefetch priority, which a page we are showing
+	 * links to and the browser will probably ask for shortly. Nobody is
+	 * waiting for it, so unless makeFetcher() or getExistingFetcher() picks it
+	 * up within FProxyFetchInProgress.LIFETIME it will be cancelled, along
+	 * with any data it has fetched.
+	 * @return True if we started a fetch, false if we already had one.
+	 */
+	boolean prefetch(FreenetURI key, long maxSize) {
+		FProxyFetchInProgress progress;
+		synchronized(fetchers) {
+			if(findFetcher(key, maxSize) != null) return false;
+			progress = new FProxyFetchInProgress(this, key, maxSize, fetchIdentifiers++, context, fctx, rc, RequestStarter.PREFETCH_PRIORITY_CLASS);
+			fetchers.put(key, progress);
+		}
+		try {
+			progress.start(context);
+		} catch (FetchException e) {
+			synchronized(fetchers) {
+				fetchers.removeElement(key, progress);
+			}
+			return false;
+		}
+		if(logMINOR) Logger.minor(this, "Prefetching "+key+" : "+progress);
+		queueCancel(progress);
+		return true;
+	}
+
+	/** Caller must hold the fetchers lock. */
+	private FProxyFetchInProgress findFetcher(FreenetURI key, long maxSize) {
+		if(!fetchers.containsKey(key)) return null;
+		Object[] check = fetchers.getArray(key);
+		for(int i=0;i<check.length;i++) {
+			FProxyFetchInProgress progress = (FProxyFetchInProgress) check[i];
+			if((progress.maxSize == maxSize && progress.notFinishedOrFatallyFinished())
+					|| progress.hasData()) return progress;
+		}
+		return null;
+	}
+
 	public void queueCancel(FProxyFetchInProgress progress) {
 		if(logMINOR) Logger.minor(this, "Queueing removal of old FProxyFetchInProgress's");
 		synchronized(this) {
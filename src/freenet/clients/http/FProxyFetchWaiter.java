@@ -33,6 +33,12 @@ public class FProxyFetchWaiter {
 		return progress.innerGetResult(waited);
 	}
 
+	/** Has the fetch finished? If so getResult() returns the data or the
+	 * failure straight away. */
+	public synchronized boolean isFinished() {
+		return finished;
+	}
+
 	public void close() {
 		progress.close(this);
 	}
@@ -10,8 +10,6 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.NumberFormat;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
 
 import com.db4o.ObjectContainer;
 
@@ -25,6 +23,7 @@ import freenet.clients.http.filter.ContentFilter;
 import freenet.clients.http.filter.FoundURICallback;
 import freenet.clients.http.filter.UnsafeContentTypeException;
 import freenet.clients.http.filter.ContentFilter.FilterOutput;
+import freenet.clients.http.filter.ContentFilter.StreamingFilter;
 import freenet.config.Config;
 import freenet.config.SubConfig;
 import freenet.crypt.SHA256;
@@ -55,16 +54,11 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 	private static byte[] random;
 	final NodeClientCore core;
 	final ClientContext context;
+	/** Also where handleDownload() starts prefetches of inline images etc. */
 	final FProxyFetchTracker fetchTracker;
 	
-	private static FoundURICallback prefetchHook;
-	static final Set<String> prefetchAllowedTypes = new HashSet<String>();
-	static {
-		// Only valid inlines
-		prefetchAllowedTypes.add("image/png");
-		prefetchAllowedTypes.add("image/jpeg");
-		prefetchAllowedTypes.add("image/gif");
-	}
+	/** Maximum number of inline resources to prefetch for a single page */
+	static final int MAX_PREFETCH_PER_PAGE = 16;
 	
 	// ?force= links become invalid after 2 hours.
 	private static final long FORCE_GRAIN_INTERVAL = 60*60*1000;
@@ -87,23 +81,6 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		client.setMaxIntermediateLength(MAX_LENGTH);
 		this.core = core;
 		this.context = core.clientContext;
-		prefetchHook = new FoundURICallback() {
-
-				public void foundURI(FreenetURI uri) {
-					// Ignore
-				}
-				
-				public void foundURI(FreenetURI uri, boolean inline) {
-					if(!inline) return;
-					if(Logger.shouldLog(Logger.MINOR, this)) Logger.minor(this, "Prefetching "+uri);
-					client.prefetch(uri, 60*1000, 512*1024, prefetchAllowedTypes);
-				}
-
-				public void onText(String text, String type, URI baseURI) {
-					// Ignore
-				}
-				
-			};
 		fetchTracker = new FProxyFetchTracker(context, getClientImpl().getFetchContext(), this);
 	}
 	
@@ -151,68 +128,26 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		Bucket tmpRange = null;
 		try {
 			if((!force) && (!forceDownload)) {
-				FilterOutput fo = ContentFilter.filter(data, bucketFactory, mimeType, key.toURI(basePath), container.enableInlinePrefetch() ? prefetchHook : null);
+				FoundURICallback prefetch = null;
+				FProxyToadlet fproxy = core.getFProxy();
+				if(container.enableInlinePrefetch() && fproxy != null)
+					prefetch = new InlinePrefetcher(fproxy.fetchTracker, key);
+				StreamingFilter streamingFilter = null;
+				if(context.getHeaders().get("range") == null)
+					streamingFilter = ContentFilter.getStreamingFilter(data, mimeType);
+				if(streamingFilter != null) {
+					mimeType = streamingFilter.type;
+					if(!sendFiltered(context, streamingFilter, data, key.toURI(basePath), prefetch))
+						sendDangerousRSSPage(context, mimeType, basePath, key, now, extras, extrasNoMime, referrer);
+					return;
+				}
+				FilterOutput fo = ContentFilter.filter(data, bucketFactory, mimeType, key.toURI(basePath), prefetch);
 				if(data != fo.data) toFree = fo.data;
 				data = fo.data;
 				mimeType = fo.type;
 				
 				if(horribleEvilHack(data) && !(mimeType.startsWith("application/rss+xml"))) {
-					PageNode page = context.getPageMaker().getPageNode(l10n("dangerousRSSTitle"), context);
-					HTMLNode pageNode = page.outer;
-					HTMLNode contentNode = page.content;
-					
-					HTMLNode infobox = contentNode.addChild("div", "class", "infobox infobox-alert");
-					infobox.addChild("div", "class", "infobox-header", l10n("dangerousRSSSubtitle"));
-					HTMLNode infoboxContent = infobox.addChild("div", "class", "infobox-content");
-					infoboxContent.addChild("#", L10n.getString("FProxyToadlet.dangerousRSS", new String[] { "type" }, new String[] { mimeType }));
-					infoboxContent.addChild("p", l10n("options"));
-					HTMLNode optionList = infoboxContent.addChild("ul");
-					HTMLNode option = optionList.addChild("li");
-					
-					L10n.addL10nSubstitution(option, "FProxyToadlet.openPossRSSAsPlainText", new String[] { "link", "/link", "bold", "/bold" },
-							new String[] { 
-								"<a href=\""+basePath+key.toString()+"?type=text/plain&force="+getForceValue(key,now)+extrasNoMime+"\">",
-								"</a>",
-								"<b>",
-								"</b>" });
-					// 	FIXME: is this safe? See bug #131
-					option = optionList.addChild("li");
-					L10n.addL10nSubstitution(option, "FProxyToadlet.openPossRSSForceDisk", new String[] { "link", "/link", "bold", "/bold" },
-							new String[] { 
-								"<a href=\""+basePath+key.toString()+"?forcedownload"+extras+"\">",
-								"</a>",
-								"<b>",
-								"</b>" });
-					boolean mimeRSS = mimeType.startsWith("application/xml+rss") || mimeType.startsWith("text/xml"); /* blergh! */
-					if(!(mimeRSS || mimeType.startsWith("text/plain"))) {
-						option = optionList.addChild("li");
-						L10n.addL10nSubstitution(option, "FProxyToadlet.openRSSForce", new String[] { "link", "/link", "bold", "/bold", "mime" },
-								new String[] { 
-									"<a href=\""+basePath+key.toString()+"?force="+getForceValue(key, now)+extras+"\">",
-									"</a>",
-									"<b>",
-									"</b>",
-									HTMLEncoder.encode(mimeType) /* these are not encoded because mostly they are tags, so we have to encode it */ });
-					}
-					option = optionList.addChild("li");
-					L10n.addL10nSubstitution(option, "FProxyToadlet.openRSSAsRSS", new String[] { "link", "/link", "bold", "/bold" },
-							new String[] {
-								"<a href=\""+basePath + key.toString() + "?type=application/xml+rss&force=" + getForceValue(key, now)+extrasNoMime+"\">",
-								"</a>",
-								"<b>",
-								"</b>" });
-					if(referrer != null) {
-						option = optionList.addChild("li");
-						L10n.addL10nSubstitution(option, "FProxyToadlet.backToReferrer", new String[] { "link", "/link" },
-								new String[] { "<a href=\""+HTMLEncoder.encode(referrer)+"\">", "</a>" });
-					}
-					option = optionList.addChild("li");
-					L10n.addL10nSubstitution(option, "FProxyToadlet.backToFProxy", new String[] { "link", "/link" },
-							new String[] { "<a href=\"/\">", "</a>" });
-					
-					byte[] pageBytes = pageNode.generate().getBytes("UTF-8");
-					context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), "text/html; charset=utf-8", pageBytes.length);
-					context.writeData(pageBytes);
+					sendDangerousRSSPage(context, mimeType, basePath, key, now, extras, extrasNoMime, referrer);
 					return;
 				}
 			}
@@ -320,6 +255,214 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		return L10n.getString("FProxyToadlet."+msg);
 	}
 
+	/**
+	 * Tell the user that the page might be taken for RSS by the browser, and
+	 * offer ways to open it safely.
+	 */
+	private static void sendDangerousRSSPage(ToadletContext context, String mimeType, String basePath, FreenetURI key, long now, String extras, String extrasNoMime, String referrer) throws ToadletContextClosedException, IOException {
+		PageNode page = context.getPageMaker().getPageNode(l10n("dangerousRSSTitle"), context);
+		HTMLNode pageNode = page.outer;
+		HTMLNode contentNode = page.content;
+		
+		HTMLNode infobox = contentNode.addChild("div", "class", "infobox infobox-alert");
+		infobox.addChild("div", "class", "infobox-header", l10n("dangerousRSSSubtitle"));
+		HTMLNode infoboxContent = infobox.addChild("div", "class", "infobox-content");
+		infoboxContent.addChild("#", L10n.getString("FProxyToadlet.dangerousRSS", new String[] { "type" }, new String[] { mimeType }));
+		infoboxContent.addChild("p", l10n("options"));
+		HTMLNode optionList = infoboxContent.addChild("ul");
+		HTMLNode option = optionList.addChild("li");
+		
+		L10n.addL10nSubstitution(option, "FProxyToadlet.openPossRSSAsPlainText", new String[] { "link", "/link", "bold", "/bold" },
+				new String[] { 
+					"<a href=\""+basePath+key.toString()+"?type=text/plain&force="+getForceValue(key,now)+extrasNoMime+"\">",
+					"</a>",
+					"<b>",
+					"</b>" });
+		// 	FIXME: is this safe? See bug #131
+		option = optionList.addChild("li");
+		L10n.addL10nSubstitution(option, "FProxyToadlet.openPossRSSForceDisk", new String[] { "link", "/link", "bold", "/bold" },
+				new String[] { 
+					"<a href=\""+basePath+key.toString()+"?forcedownload"+extras+"\">",
+					"</a>",
+					"<b>",
+					"</b>" });
+		boolean mimeRSS = mimeType.startsWith("application/xml+rss") || mimeType.startsWith("text/xml"); /* blergh! */
+		if(!(mimeRSS || mimeType.startsWith("text/plain"))) {
+			option = optionList.addChild("li");
+			L10n.addL10nSubstitution(option, "FProxyToadlet.openRSSForce", new String[] { "link", "/link", "bold", "/bold", "mime" },
+					new String[] { 
+						"<a href=\""+basePath+key.toString()+"?force="+getForceValue(key, now)+extras+"\">",
+						"</a>",
+						"<b>",
+						"</b>",
+						HTMLEncoder.encode(mimeType) /* these are not encoded because mostly they are tags, so we have to encode it */ });
+		}
+		option = optionList.addChild("li");
+		L10n.addL10nSubstitution(option, "FProxyToadlet.openRSSAsRSS", new String[] { "link", "/link", "bold", "/bold" },
+				new String[] {
+					"<a href=\""+basePath + key.toString() + "?type=application/xml+rss&force=" + getForceValue(key, now)+extrasNoMime+"\">",
+					"</a>",
+					"<b>",
+					"</b>" });
+		if(referrer != null) {
+			option = optionList.addChild("li");
+			L10n.addL10nSubstitution(option, "FProxyToadlet.backToReferrer", new String[] { "link", "/link" },
+					new String[] { "<a href=\""+HTMLEncoder.encode(referrer)+"\">", "</a>" });
+		}
+		option = optionList.addChild("li");
+		L10n.addL10nSubstitution(option, "FProxyToadlet.backToFProxy", new String[] { "link", "/link" },
+				new String[] { "<a href=\"/\">", "</a>" });
+		
+		byte[] pageBytes = pageNode.generate().getBytes("UTF-8");
+		context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), "text/html; charset=utf-8", pageBytes.length);
+		context.writeData(pageBytes);
+	}
+	
+	/**
+	 * Starts background fetches for the images, stylesheets and so on that
+	 * the filter finds on a page, so that they are already on their way when
+	 * the browser asks for them. Only keys on the same site as the page are
+	 * fetched, and at most MAX_PREFETCH_PER_PAGE of them.
+	 */
+	private static class InlinePrefetcher implements FoundURICallback {
+
+		private final FProxyFetchTracker tracker;
+		private final FreenetURI page;
+		private final byte[] routingKey;
+		private int started;
+
+		InlinePrefetcher(FProxyFetchTracker tracker, FreenetURI page) {
+			this.tracker = tracker;
+			this.page = page;
+			this.routingKey = page.getRoutingKey();
+		}
+
+		public void foundURI(FreenetURI uri) {
+			// Ignore
+		}
+
+		public void foundURI(FreenetURI uri, boolean inline) {
+			if(!inline) return;
+			if(started >= MAX_PREFETCH_PER_PAGE) return;
+			if(routingKey == null || !Arrays.equals(routingKey, uri.getRoutingKey())) return;
+			if(uri.equals(page)) return;
+			// Same max size as a browser request, so the fetch can be reused.
+			if(tracker.prefetch(uri, MAX_LENGTH)) {
+				started++;
+				if(Logger.shouldLog(Logger.MINOR, this)) Logger.minor(this, "Prefetching "+uri+" for "+page);
+			}
+		}
+
+		public void onText(String text, String type, URI baseURI) {
+			// Ignore
+		}
+
+	}
+
+	/**
+	 * Filter the data straight to the browser, rather than into a bucket
+	 * first, so that the top of a large page arrives while the rest of it is
+	 * still being filtered.
+	 * @return False if the start of the output looks like RSS, in which case
+	 * nothing has been sent.
+	 */
+	private static boolean sendFiltered(ToadletContext context, StreamingFilter filter, Bucket data, URI baseURI, FoundURICallback cb) throws ToadletContextClosedException, IOException {
+		FilteredReplyStream os = new FilteredReplyStream(context, filter.type);
+		try {
+			filter.filter(data, os, baseURI, cb);
+			os.close();
+		} catch (LooksLikeRSSException e) {
+			return false;
+		} catch (IOException e) {
+			// Until the headers are sent, the caller can still send an error page.
+			if(!os.committed) throw e;
+			// Too late for that, cut the reply short so the browser knows it's incomplete.
+			context.forceDisconnect();
+			if(!(e instanceof UnsafeContentTypeException)) throw e;
+			Logger.error(FProxyToadlet.class, "Filter failed after sending part of the page: "+e, e);
+		}
+		return true;
+	}
+	
+	private static class LooksLikeRSSException extends IOException {
+		private static final long serialVersionUID = -1;
+	}
+	
+	/**
+	 * The output of a streaming filter, on its way to the browser. The first
+	 * HOLD_BACK bytes are held until we have checked them for RSS. If the
+	 * whole page fits, it is sent with a Content-Length; otherwise the rest
+	 * is sent chunked, as the filter produces it.
+	 */
+	private static class FilteredReplyStream extends OutputStream {
+		
+		static final int HOLD_BACK = 512;
+		
+		private final ToadletContext context;
+		private final String mimeType;
+		private ByteArrayOutputStream held;
+		private OutputStream out;
+		/** Have we started sending the reply? */
+		boolean committed;
+		
+		FilteredReplyStream(ToadletContext context, String mimeType) {
+			this.context = context;
+			this.mimeType = mimeType;
+			held = new ByteArrayOutputStream(HOLD_BACK * 2);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] buf, int offset, int length) throws IOException {
+			if(committed) {
+				if(out == null) throw new IOException("Already closed");
+				out.write(buf, offset, length);
+				return;
+			}
+			held.write(buf, offset, length);
+			if(held.size() >= HOLD_BACK)
+				commit(false);
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if(out != null) out.flush();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if(!committed)
+				commit(true);
+			else if(out != null)
+				out.close();
+			out = null;
+		}
+		
+		private void commit(boolean complete) throws IOException {
+			byte[] buf = held.toByteArray();
+			held = null;
+			if(horribleEvilHack(buf)) throw new LooksLikeRSSException();
+			committed = true;
+			try {
+				if(complete) {
+					context.sendReplyHeaders(200, "OK", new MultiValueTable<String, String>(), mimeType, buf.length);
+					context.writeData(buf);
+				} else {
+					out = context.sendReplyHeadersChunked(200, "OK", new MultiValueTable<String, String>(), mimeType, null);
+					out.write(buf);
+				}
+			} catch (ToadletContextClosedException e) {
+				IOException ioe = new IOException("Connection closed");
+				ioe.initCause(e);
+				throw ioe;
+			}
+		}
+	}
+	
 	/** Does the first 512 bytes of the data contain anything that Firefox might regard as RSS?
 	 * This is a horrible evil hack; we shouldn't be doing blacklisting, we should be doing whitelisting.
 	 * REDFLAG Expect future security issues! 
@@ -334,7 +477,21 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			byte[] buf = new byte[sz];
 			// FIXME Fortunately firefox doesn't detect RSS in UTF16 etc ... yet
 			is.read(buf);
-			/**
+			return horribleEvilHack(buf);
+		}
+		finally {
+			Closer.close(is);
+		}
+	}
+	
+	/** Does the start of the data contain anything that Firefox might regard as RSS? */
+	private static boolean horribleEvilHack(byte[] data) {
+		byte[] buf = data;
+		if(data.length > 512) {
+			buf = new byte[512];
+			System.arraycopy(data, 0, buf, 0, buf.length);
+		}
+		/**
 		 * Look for any of the following strings:
 		 * <rss
 		 * &lt;feed
@@ -343,16 +500,12 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 		 * If they start at the beginning of the file, or are preceded by one or more &lt;! or &lt;? tags,
 		 * then firefox will read it as RSS. In which case we must force it to be downloaded to disk. 
 		 */
-			if(checkForString(buf, "<rss"))
-				return true;
-			if(checkForString(buf, "<feed"))
-				return true;
-			if(checkForString(buf, "<rdf:RDF"))
-				return true;
-		}
-		finally {
-			Closer.close(is);
-		}
+		if(checkForString(buf, "<rss"))
+			return true;
+		if(checkForString(buf, "<feed"))
+			return true;
+		if(checkForString(buf, "<rdf:RDF"))
+			return true;
 		return false;
 	}
 
@@ -644,6 +797,32 @@ public final class FProxyToadlet extends Toadlet implements RequestClient {
 			}
 		}
 		
+		if(fr == null && fe == null) {
+			// The page which links to it may have fetched it already.
+			// If it is still running, fetch it as usual rather than tie up
+			// this thread waiting for it with no progress page.
+			FProxyFetchWaiter fetch = fetchTracker.getExistingFetcher(key, maxSize);
+			if(fetch != null) {
+				if(fetch.isFinished()) {
+					if(logMINOR) Logger.minor(this, "Using prefetch for "+key);
+					fr = fetch.getResult();
+				}
+				fetch.close(); // Still locked the results until sent
+				if(fr != null) {
+					if(fr.hasData()) {
+						data = fr.data;
+						mimeType = fr.mimeType;
+					} else if(fr.failed != null) {
+						fe = fr.failed;
+					} else {
+						// Cancelled, fetch it ourselves.
+						fr.close();
+						fr = null;
+					}
+				}
+			}
+		}
+		
 		try {
 			if(Logger.shouldLog(Logger.MINOR, this))
 				Logger.minor(this, "FProxy fetching "+key+" ("+maxSize+ ')');
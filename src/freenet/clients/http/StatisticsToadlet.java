@@ -12,6 +12,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.HighLevelSimpleClient;
+import freenet.client.async.InsertCompressor;
 import freenet.config.SubConfig;
 import freenet.l10n.L10n;
 import freenet.node.Location;
@@ -27,6 +28,8 @@ import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
 import freenet.support.api.HTTPRequest;
+import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
+import freenet.support.io.ChunkPool;
 
 public class StatisticsToadlet extends Toadlet {
 
@@ -220,6 +223,11 @@ public class StatisticsToadlet extends Toadlet {
 				timeDetailBox.addChild("div", "class", "infobox-header", "Detailed timings (local CHK fetches)");
 				HTMLNode timingsContent = timeDetailBox.addChild("div", "class", "infobox-content");
 				stats.fillDetailedTimingsBox(timingsContent);
+				
+				HTMLNode requestTimingsBox = nextTableCell.addChild("div", "class", "infobox");
+				requestTimingsBox.addChild("div", "class", "infobox-header", "Request timings by phase (ms)");
+				HTMLNode requestTimingsContent = requestTimingsBox.addChild("div", "class", "infobox-content");
+				stats.requestTimings.fillTimingsBox(requestTimingsContent);
 			}
 		}
 
@@ -281,6 +289,7 @@ public class StatisticsToadlet extends Toadlet {
 						
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
+			node.drawHandshakeBox(threadsPriorityInfobox);
 			
 			nextTableCell = overviewTableRow.addChild("td");
 
@@ -613,6 +622,7 @@ public class StatisticsToadlet extends Toadlet {
 		
 		node.drawClientCacheBox(storeSizeInfobox);
 		node.drawSlashdotCacheBox(storeSizeInfobox);
+		node.drawStoreIOBox(storeSizeInfobox);
 	}
 
 	private void drawUnclaimedFIFOMessageCountsBox(HTMLNode unclaimedFIFOMessageCountsInfobox) {
@@ -836,6 +846,9 @@ public class StatisticsToadlet extends Toadlet {
 			activityList.addChild("li", "FetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getFetcherByUSKSize());
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			long uskProbes = node.clientCore.uskManager.countProbes();
+			long uskFound = node.clientCore.uskManager.countEditionsFound();
+			activityList.addChild("li", "USKProbesPerEdition:\u00a0" + (uskFound == 0 ? "-" : fix1p2.format(((double) uskProbes) / uskFound)) + "\u00a0(" + uskProbes + "\u00a0/\u00a0" + uskFound + ')');
 		}
 		
 	}
@@ -1027,6 +1040,18 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantReject:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantly()));
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
+		ChunkPool chunkPool = core.tempBucketFactory.getChunkPool();
+		overviewList.addChild("li", "RAMBucketChunks:\u00a0" + chunkPool.getChunksInUse() + " in use, " + chunkPool.getIdleChunks() + " idle ("
+				+ SizeUtil.formatSize((long)(chunkPool.getChunksInUse() + chunkPool.getIdleChunks()) * chunkPool.getChunkSize()) + "), "
+				+ chunkPool.getChunksReused() + " reused / " + chunkPool.getChunksAllocated() + " allocated");
+		for(COMPRESSOR_TYPE type : COMPRESSOR_TYPE.values()) {
+			InsertCompressor.CodecStats codecStats = InsertCompressor.getCodecStats(type);
+			overviewList.addChild("li", "InsertCompression" + type.name + ":\u00a0" + codecStats.getRuns() + " runs, "
+					+ codecStats.getWon() + " used, " + codecStats.getAborted() + " stopped early, "
+					+ TimeUtil.formatTime(codecStats.getTimeMillis(), 2, true) + ", "
+					+ SizeUtil.formatSize(codecStats.getBytesOut()) + " output");
+		}
+		overviewList.addChild("li", "InsertCompressionSkippedBySampling:\u00a0" + InsertCompressor.getSkippedBySampling());
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
 	}
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.Date;
 
 import freenet.support.HTMLNode;
@@ -27,6 +28,19 @@ public interface ToadletContext {
 	
 	void sendReplyHeaders(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, long length) throws ToadletContextClosedException, IOException;
 
+	/**
+	 * Write reply headers for a reply whose length is not known yet, and get a
+	 * stream to write the reply to. HTTP/1.1 clients get it with chunked
+	 * transfer encoding; for anything else the connection is closed after the
+	 * reply. Closing the stream ends the reply. Don't use writeData() as well.
+	 * @param code HTTP code.
+	 * @param desc HTTP code description.
+	 * @param mvt Any extra headers.
+	 * @param mimeType The MIME type of the reply.
+	 * @param mTime The modification time of the data being sent or null for 'now' and disabling caching
+	 */
+	OutputStream sendReplyHeadersChunked(int code, String desc, MultiValueTable<String,String> mvt, String mimeType, Date mTime) throws ToadletContextClosedException, IOException;
+
 	/**
 	 * Write data. Note you must send reply headers first.
 	 */
@@ -1,6 +1,7 @@
 package freenet.clients.http;
 
 import java.io.BufferedInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -52,6 +53,8 @@ public class ToadletContextImpl implements ToadletContext {
 	 */
 	private boolean closed;
 	private boolean shouldDisconnect;
+	/** Did the client ask with HTTP/1.0? If so it may not understand chunked replies. */
+	private boolean isHTTP10;
 	
 	public ToadletContextImpl(Socket sock, MultiValueTable<String,String> headers, BucketFactory bf, PageMaker pageMaker, ToadletContainer container) throws IOException {
 		this.headers = headers;
@@ -137,6 +140,34 @@ public class ToadletContextImpl implements ToadletContext {
 		sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, contentLength, mTime, shouldDisconnect);
 	}
 	
+	public OutputStream sendReplyHeadersChunked(int replyCode, String replyDescription, MultiValueTable<String,String> mvt, String mimeType, Date mTime) throws ToadletContextClosedException, IOException {
+		if(closed) throw new ToadletContextClosedException();
+		if(sentReplyHeaders) {
+			throw new IllegalStateException("Already sent headers!");
+		}
+		sentReplyHeaders = true;
+		if(isHTTP10) {
+			// The end of the connection is the end of the reply.
+			shouldDisconnect = true;
+			sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, -1, mTime, true);
+			return new FilterOutputStream(sockOutputStream) {
+				@Override
+				public void write(byte[] data, int offset, int length) throws IOException {
+					out.write(data, offset, length);
+				}
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+		}
+		if(mvt == null)
+			mvt = new MultiValueTable<String,String>();
+		mvt.put("transfer-encoding", "chunked");
+		sendReplyHeaders(sockOutputStream, replyCode, replyDescription, mvt, mimeType, -1, mTime, shouldDisconnect);
+		return new ChunkedOutputStream(sockOutputStream);
+	}
+	
 	public PageMaker getPageMaker() {
 		return pagemaker;
 	}
@@ -297,13 +328,15 @@ public class ToadletContextImpl implements ToadletContext {
 					headers.put(before, after);
 				}
 				
-				boolean disconnect = shouldDisconnectAfterHandled(split[2].equals("HTTP/1.0"), headers) || !container.enablePersistentConnections();
+				boolean isHTTP10 = split[2].equals("HTTP/1.0");
+				boolean disconnect = shouldDisconnectAfterHandled(isHTTP10, headers) || !container.enablePersistentConnections();
 
 				boolean allowPost = container.allowPosts();
 				BucketFactory bf = container.getBucketFactory();
 				
 				ToadletContextImpl ctx = new ToadletContextImpl(sock, headers, bf, pageMaker, container);
 				ctx.shouldDisconnect = disconnect;
+				ctx.isHTTP10 = isHTTP10;
 				
 				/*
 				 * if we're handling a POST, copy the data into a bucket now,
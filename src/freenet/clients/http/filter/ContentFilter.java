@@ -7,6 +7,7 @@ import java.io.BufferedInputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.util.HashMap;
@@ -16,7 +17,10 @@ import freenet.l10n.L10n;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.ReadOnlyBucketSliceBucket;
 
 /**
  * Freenet content filter. This doesn't actually do any filtering,
@@ -26,6 +30,11 @@ public class ContentFilter {
 
 	static final Hashtable<String, MIMEType> mimeTypesByName = new Hashtable<String, MIMEType>();
 	
+	/** Charset detection only looks this far into the data. A charset
+	 * declared further in than this is ignored: by then it is too late for
+	 * the filter to be streaming the output in that charset. */
+	static final int CHARSET_SCAN_LENGTH = 64 * 1024;
+	
 	static {
 		init();
 	}
@@ -139,69 +148,142 @@ public class ContentFilter {
 	public static FilterOutput filter(Bucket data, BucketFactory bf, String typeName, URI baseURI, FoundURICallback cb) throws UnsafeContentTypeException, IOException {
 		if(Logger.shouldLog(Logger.MINOR, ContentFilter.class))
 			Logger.minor(ContentFilter.class, "filter(data.size="+data.size()+" typeName="+typeName);
-		String type = typeName;
-		String options = "";
-		String charset = null;
-		HashMap<String, String> otherParams = null;
+		ParsedType parsed = new ParsedType(typeName);
+		MIMEType handler = parsed.handler;
 		
-		// First parse the MIME type
+		// Run the read filter if there is one.
+		if(handler.readFilter != null) {
+			String charset = parsed.getCharset(data);
+			Bucket outputData = handler.readFilter.readFilter(data, bf, charset, parsed.otherParams, new GenericReadFilterCallback(baseURI, cb));
+			return new FilterOutput(outputData, parsed.outputType(charset));
+		}
 		
-		int idx = type.indexOf(';');
-		if(idx != -1) {
-			options = type.substring(idx+1);
-			type = type.substring(0, idx);
-			// Parse options
-			// Format: <type>/<subtype>[ optional white space ];[ optional white space ]<param>=<value>; <param2>=<value2>; ...
-			String[] rawOpts = options.split(";");
-			for(int i=0;i<rawOpts.length;i++) {
-				String raw = rawOpts[i];
-				idx = raw.indexOf('=');
-				if(idx == -1) {
-					Logger.error(ContentFilter.class, "idx = -1 for '=' on option: "+raw+" from "+typeName);
-					continue;
-				}
-				String before = raw.substring(0, idx).trim();
-				String after = raw.substring(idx+1).trim();
-				if(before.equals("charset")) {
-					charset = after;
-				} else {
-					if (otherParams == null)
-						otherParams = new HashMap<String, String>();
-					otherParams.put(before, after);
-				}
-			}
+		if(handler.safeToRead) {
+			return new FilterOutput(data, typeName);
 		}
 		
-		// Now look for a MIMEType handler
+		handler.throwUnsafeContentTypeException();
+		return null;
+	}
+	
+	/**
+	 * Get a filter which writes to a stream as it goes, if the MIME type has
+	 * one. The charset is detected now, from the start of the data, so that
+	 * the type of the output is known before any of it has been written.
+	 * @return The filter, or null if there is no streaming filter for this
+	 * type, in which case use {@link #filter(Bucket, BucketFactory, String, URI, FoundURICallback)}.
+	 * @throws UnsafeContentTypeException If the MIME type is unknown.
+	 */
+	public static StreamingFilter getStreamingFilter(Bucket data, String typeName) throws UnsafeContentTypeException, IOException {
+		ParsedType parsed = new ParsedType(typeName);
+		if(!(parsed.handler.readFilter instanceof StreamingContentDataFilter))
+			return null;
+		String charset = parsed.getCharset(data);
+		return new StreamingFilter((StreamingContentDataFilter) parsed.handler.readFilter, parsed.outputType(charset), charset, parsed.otherParams);
+	}
+	
+	/**
+	 * A filter for one piece of data, whose output type is already known.
+	 */
+	public static class StreamingFilter {
+		/** The MIME type of the output, including the charset */
+		public final String type;
+		private final StreamingContentDataFilter filter;
+		private final String charset;
+		private final HashMap<String, String> otherParams;
 		
-		MIMEType handler = getMIMEType(type);
+		StreamingFilter(StreamingContentDataFilter filter, String type, String charset, HashMap<String, String> otherParams) {
+			this.filter = filter;
+			this.type = type;
+			this.charset = charset;
+			this.otherParams = otherParams;
+		}
 		
-		if(handler == null)
-			throw new UnknownContentTypeException(typeName);
-		else {
-			// Run the read filter if there is one.
-			if(handler.readFilter != null) {
-				if(handler.takesACharset && ((charset == null) || (charset.length() == 0))) {
-					charset = detectCharset(data, handler);
-				}
-				
-				Bucket outputData = handler.readFilter.readFilter(data, bf, charset, otherParams, new GenericReadFilterCallback(baseURI, cb));
-				if(charset != null)
-					type = type + "; charset="+charset;
-				return new FilterOutput(outputData, type);
+		/**
+		 * Filter the data to a stream, which is flushed but not closed.
+		 */
+		public void filter(Bucket data, OutputStream output, URI baseURI, FoundURICallback cb) throws DataFilterException, IOException {
+			InputStream is = data.getInputStream();
+			try {
+				filter.readFilter(is, output, charset, otherParams, new GenericReadFilterCallback(baseURI, cb));
+			} finally {
+				Closer.close(is);
 			}
+		}
+	}
+	
+	/**
+	 * A MIME type split into its parts, and the handler for it.
+	 */
+	private static class ParsedType {
+		final String type;
+		final MIMEType handler;
+		String charset;
+		HashMap<String, String> otherParams;
+		
+		ParsedType(String typeName) throws UnknownContentTypeException {
+			String type = typeName;
+			String options = "";
+			
+			// First parse the MIME type
 			
-			if(handler.safeToRead) {
-				return new FilterOutput(data, typeName);
+			int idx = type.indexOf(';');
+			if(idx != -1) {
+				options = type.substring(idx+1);
+				type = type.substring(0, idx);
+				// Parse options
+				// Format: <type>/<subtype>[ optional white space ];[ optional white space ]<param>=<value>; <param2>=<value2>; ...
+				String[] rawOpts = options.split(";");
+				for(int i=0;i<rawOpts.length;i++) {
+					String raw = rawOpts[i];
+					idx = raw.indexOf('=');
+					if(idx == -1) {
+						Logger.error(ContentFilter.class, "idx = -1 for '=' on option: "+raw+" from "+typeName);
+						continue;
+					}
+					String before = raw.substring(0, idx).trim();
+					String after = raw.substring(idx+1).trim();
+					if(before.equals("charset")) {
+						charset = after;
+					} else {
+						if (otherParams == null)
+							otherParams = new HashMap<String, String>();
+						otherParams.put(before, after);
+					}
+				}
 			}
+			this.type = type;
 			
-			handler.throwUnsafeContentTypeException();
-			return null;
+			// Now look for a MIMEType handler
+			
+			handler = getMIMEType(type);
+			
+			if(handler == null)
+				throw new UnknownContentTypeException(typeName);
+		}
+		
+		/** The charset given in the type, or if there isn't one, and the
+		 * type takes one, detected from the data. */
+		String getCharset(Bucket data) throws IOException {
+			if(handler.takesACharset && ((charset == null) || (charset.length() == 0)))
+				return detectCharset(data, handler);
+			return charset;
+		}
+		
+		String outputType(String charset) {
+			if(charset != null)
+				return type + "; charset="+charset;
+			return type;
 		}
 	}
 
 	private static String detectCharset(Bucket data, MIMEType handler) throws IOException {
 		
+		// Only look at the start of the data, and only read it once, however
+		// many charsets we have to try.
+		if(data.size() > CHARSET_SCAN_LENGTH)
+			data = new ArrayBucket(BucketTools.toByteArray(new ReadOnlyBucketSliceBucket(data, 0, CHARSET_SCAN_LENGTH)));
+		
 		// Detect charset
 		
 		String charset = detectBOM(data);
@@ -2,9 +2,6 @@
 
 package freenet.clients.http.filter;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -35,40 +32,25 @@ import freenet.support.api.BucketFactory;
 import freenet.support.io.Closer;
 import freenet.support.io.NullWriter;
 
-public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
+public class HTMLFilter implements StreamingContentDataFilter, CharsetExtractor {
 
 	private static boolean logMINOR;
 	private static boolean logDEBUG;
 	
 	private static boolean deleteWierdStuff = true;
 	private static boolean deleteErrors = true;
+	
+	/** Characters read from the input, and written to the output, at a time. */
+	static final int BUFFER_SIZE = 4096;
 
 	public Bucket readFilter(Bucket bucket, BucketFactory bf, String charset, HashMap<String, String> otherParams,
 	        FilterCallback cb) throws DataFilterException, IOException {
-		logMINOR = Logger.shouldLog(Logger.MINOR, this);
-		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
-		if(logMINOR) Logger.minor(this, "readFilter(): charset="+charset);
 		InputStream strm = bucket.getInputStream();
-		BufferedInputStream bis = new BufferedInputStream(strm, 4096);
 		Bucket temp = bf.makeBucket(-1);
 		OutputStream os = temp.getOutputStream();
-		BufferedOutputStream bos = new BufferedOutputStream(os, 4096);
-		Reader r = null;
-		Writer w = null;
-		InputStreamReader isr = null;
-		OutputStreamWriter osw = null;
 		try {
-			try {
-				isr = new InputStreamReader(bis, charset);
-				osw = new OutputStreamWriter(bos, charset);
-				r = new BufferedReader(isr, 4096);
-				w = new BufferedWriter(osw, 4096);
-			} catch(UnsupportedEncodingException e) {
-				throw UnknownCharsetException.create(e, charset);
-			}
-			HTMLParseContext pc = new HTMLParseContext(r, w, charset, cb, false);
-			pc.run(temp);
-			w.close();
+			readFilter(strm, os, charset, otherParams, cb);
+			os.close();
 			os = null;
 		} finally {
 			Closer.close(os);
@@ -77,6 +59,27 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		return temp;
 	}
 	
+	public void readFilter(InputStream input, OutputStream output, String charset, HashMap<String, String> otherParams,
+	        FilterCallback cb) throws DataFilterException, IOException {
+		logMINOR = Logger.shouldLog(Logger.MINOR, this);
+		logDEBUG = Logger.shouldLog(Logger.DEBUG, this);
+		if(logMINOR) Logger.minor(this, "readFilter(): charset="+charset);
+		Reader r;
+		Writer w;
+		try {
+			// InputStreamReader decodes whole buffers at a time, and run()
+			// reads whole buffers from it, so there is no need to wrap it.
+			r = new InputStreamReader(input, charset);
+			w = new BufferedWriter(new OutputStreamWriter(output, charset), BUFFER_SIZE);
+		} catch(UnsupportedEncodingException e) {
+			throw UnknownCharsetException.create(e, charset);
+		}
+		HTMLParseContext pc = new HTMLParseContext(r, w, charset, cb, false);
+		pc.run(null);
+		// Don't close, the caller owns the streams.
+		w.flush();
+	}
+	
 	public Bucket writeFilter(Bucket bucket, BucketFactory bf, String charset, HashMap<String, String> otherParams,
 	        FilterCallback cb) throws DataFilterException, IOException {
 		throw new UnsupportedOperationException();
@@ -86,11 +89,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);		
 		if(logMINOR) Logger.minor(this, "getCharset(): default="+parseCharset);
 		InputStream strm = bucket.getInputStream();
-		BufferedInputStream bis = new BufferedInputStream(strm, 4096);
 		Writer w = new NullWriter();
 		Reader r;
 		try {
-			r = new BufferedReader(new InputStreamReader(bis, parseCharset), 4096);
+			r = new InputStreamReader(strm, parseCharset);
 		} catch (UnsupportedEncodingException e) {
 			strm.close();
 			throw e;
@@ -158,12 +160,25 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			char prevC = 0;
 			char c = 0;
 			mode = INTEXT;
+			// Scan a buffer at a time rather than calling read() for every
+			// character, which costs a lock and a bounds check each time.
+			char[] cbuf = new char[BUFFER_SIZE];
+			int cbufLength = 0;
+			int cbufPos = 0;
 
 			while (true) {
 				int x;
 				
-				try {
-					x = r.read();
+				if(cbufPos < cbufLength) {
+					x = cbuf[cbufPos++];
+				} else try {
+					cbufLength = r.read(cbuf, 0, cbuf.length);
+					cbufPos = 0;
+					if(cbufLength <= 0) {
+						cbufLength = 0;
+						x = -1;
+					} else
+						x = cbuf[cbufPos++];
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -0,0 +1,25 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http.filter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+
+/**
+ * Data filter which can write its output as it goes, rather than into a
+ * Bucket, so that the start of a page can be sent before the end has been
+ * filtered.
+ */
+public interface StreamingContentDataFilter extends ContentDataFilter {
+
+	/**
+	 * Filter data from one stream to another. Neither stream is closed.
+	 * The output is flushed before returning.
+	 */
+	public void readFilter(InputStream input, OutputStream output, String charset, HashMap<String, String> otherParams,
+	        FilterCallback cb) throws DataFilterException, IOException;
+
+}
@@ -38,19 +38,24 @@ public class DiffieHellman {
 	private static Stack<NativeBigInteger[]> precalcBuffer = new Stack<NativeBigInteger[]>();
 	private static Object precalcerWaitObj = new Object();
 
-	private static NativeThread precalcThread;
+	/** One precalculation thread per core, up to four, so a burst of
+	 * handshakes doesn't empty the buffer faster than one core can fill it. */
+	private static final NativeThread[] precalcThreads;
 	
 	public static final BigInteger MIN_EXPONENTIAL_VALUE = new BigInteger("2").pow(24);
 	public static final BigInteger MAX_EXPONENTIAL_VALUE = group.getP().subtract(MIN_EXPONENTIAL_VALUE);
 	
 	static {
-		precalcThread = new PrecalcBufferFill();
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+		precalcThreads = new NativeThread[threads];
+		for(int i=0;i<threads;i++)
+			precalcThreads[i] = new PrecalcBufferFill(i);
 	}
 
 	private static class PrecalcBufferFill extends NativeThread {
 
-		public PrecalcBufferFill() {
-			super("Diffie-Hellman-Precalc", NativeThread.MIN_PRIORITY, false);
+		public PrecalcBufferFill(int number) {
+			super("Diffie-Hellman-Precalc-"+number, NativeThread.MIN_PRIORITY, false);
 			setDaemon(true);
 		}
 
@@ -84,16 +89,17 @@ public class DiffieHellman {
 
 	public static void init(Random random) {
 		r = random;
-		precalcThread.start();
+		for(NativeThread t : precalcThreads)
+			t.start();
 	}
 
-	/** Will ask the precalc thread to refill the buffer if necessary */
+	/** Will ask the precalc threads to refill the buffer if necessary */
 	private static void askRefill() {
 		// If the buffer size is below the threshold then wake the precalc
-		// thread
+		// threads
 		if (precalcBuffer.size() < PRECALC_RESUME) {
 			synchronized (precalcerWaitObj) {
-				precalcerWaitObj.notify();
+				precalcerWaitObj.notifyAll();
 			}
 		}
 	}
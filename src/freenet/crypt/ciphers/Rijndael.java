@@ -1,6 +1,12 @@
 package freenet.crypt.ciphers;
 
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
 
 import freenet.crypt.BlockCipher;
 import freenet.crypt.UnsupportedCipherException;
@@ -15,11 +21,48 @@ import freenet.support.Logger;
 /**
  * Interfaces with the Rijndael AES candidate to implement the Rijndael
  * algorithm
+ *
+ * Instances are thread-safe without locking: the expanded key is immutable
+ * once {@link #initialize(byte[])} has published it, and all per-block state
+ * lives on the stack. With a 128-bit block size (i.e. AES proper) blocks are
+ * handed to the JCE "AES" provider when it is available and agrees with our
+ * implementation, so that hardware AES instructions are used where the JVM
+ * supports them.
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	private volatile KeyState state;
 	private final int keysize, blocksize;
 
+	private static final String JCE_TRANSFORMATION = "AES/ECB/NoPadding";
+	/** Whether the JCE provider passed the known answer test in {@link #testJCE()}. */
+	private static final boolean JCE_AVAILABLE = testJCE();
+
+	/**
+	 * Everything derived from a key. Replaced as a whole on re-initialization
+	 * so that a concurrent encipher() never sees half of one key and half of
+	 * another.
+	 */
+	private static final class KeyState {
+		final Object sessionKey;
+		/** Null if the JCE is not used for this key. */
+		final SecretKeySpec jceKey;
+		/** JCE Cipher objects are not thread-safe, so keep a lock-free pool of them. */
+		final ConcurrentLinkedQueue<Cipher> encryptors;
+		final ConcurrentLinkedQueue<Cipher> decryptors;
+
+		KeyState(Object sessionKey, SecretKeySpec jceKey) {
+			this.sessionKey = sessionKey;
+			this.jceKey = jceKey;
+			if(jceKey != null) {
+				encryptors = new ConcurrentLinkedQueue<Cipher>();
+				decryptors = new ConcurrentLinkedQueue<Cipher>();
+			} else {
+				encryptors = null;
+				decryptors = null;
+			}
+		}
+	}
+
 	/**
 	 * Create a Rijndael instance.
 	 * @param keysize The key size.
@@ -57,17 +100,32 @@ public class Rijndael implements BlockCipher {
 		try {
 			byte[] nkey=new byte[keysize>>3];
 			System.arraycopy(key, 0, nkey, 0, nkey.length);
-			sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			Object sessionKey=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+			SecretKeySpec jceKey = null;
+			if(blocksize == 128 && JCE_AVAILABLE) {
+				jceKey = new SecretKeySpec(nkey, "AES");
+				try {
+					// Restricted policy files may reject larger keys.
+					newCipher(Cipher.ENCRYPT_MODE, jceKey);
+				} catch (GeneralSecurityException e) {
+					jceKey = null;
+				}
+			}
+			state = new KeyState(sessionKey, jceKey);
 		} catch (InvalidKeyException e) {
 			e.printStackTrace();
 			Logger.error(this,"Invalid key");
 		}
 	}
 
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
+		KeyState s = state;
+		if(s.jceKey != null)
+			jceCrypt(s.encryptors, Cipher.ENCRYPT_MODE, s.jceKey, block, result);
+		else
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, s.sessionKey, blocksize/8);
 	}
 
 	/**
@@ -75,22 +133,87 @@ public class Rijndael implements BlockCipher {
 	 * things up by avoiding unnecessary allocations between rounds.
 	 */
 	// only consumer is RijndaelPCFBMode
-	public synchronized final int getTempArraySize() {
+	public final int getTempArraySize() {
 		return blocksize/(8*4);
 	}
 
 	// only consumer is RijndaelPCFBMode
-	public synchronized final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
+	public final void encipher(byte[] block, byte[] result, int[] a, int[] t) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		if(a.length != t.length || t.length != blocksize/(8*4))
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8, a, t);
+		KeyState s = state;
+		if(s.jceKey != null)
+			jceCrypt(s.encryptors, Cipher.ENCRYPT_MODE, s.jceKey, block, result);
+		else
+			Rijndael_Algorithm.blockEncrypt(block, result, 0, s.sessionKey, blocksize/8, a, t);
 	}
 
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
-		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
+		KeyState s = state;
+		if(s.jceKey != null)
+			jceCrypt(s.decryptors, Cipher.DECRYPT_MODE, s.jceKey, block, result);
+		else
+			Rijndael_Algorithm.blockDecrypt(block, result, 0, s.sessionKey, blocksize/8);
+	}
+
+	/**
+	 * @return True if 128-bit blocks enciphered with this key go through the
+	 * JCE provider rather than the pure-Java implementation.
+	 */
+	public final boolean usesJCE() {
+		KeyState s = state;
+		return s != null && s.jceKey != null;
+	}
+
+	private static void jceCrypt(ConcurrentLinkedQueue<Cipher> pool, int mode, SecretKeySpec key, byte[] block, byte[] result) {
+		try {
+			Cipher c = pool.poll();
+			if(c == null)
+				c = newCipher(mode, key);
+			// ECB without padding has no state between blocks, so update() is
+			// enough and the Cipher can be reused as is.
+			c.update(block, 0, block.length, result, 0);
+			pool.offer(c);
+		} catch (GeneralSecurityException e) {
+			// Already worked once for this key in initialize().
+			throw new Error("JCE AES failed: "+e, e);
+		}
+	}
+
+	private static Cipher newCipher(int mode, SecretKeySpec key) throws GeneralSecurityException {
+		Cipher c = Cipher.getInstance(JCE_TRANSFORMATION);
+		c.init(mode, key);
+		return c;
+	}
+
+	/**
+	 * Check that the JCE provider exists and gives the same answer as our own
+	 * implementation, so switching to it can never change a ciphertext.
+	 */
+	private static boolean testJCE() {
+		try {
+			byte[] key = new byte[16];
+			byte[] plaintext = new byte[16];
+			for(int i=0;i<16;i++) {
+				key[i] = (byte) i;
+				plaintext[i] = (byte) (i * 17);
+			}
+			byte[] expected = new byte[16];
+			Rijndael_Algorithm.blockEncrypt(plaintext, expected, 0, Rijndael_Algorithm.makeKey(key, 16), 16);
+			byte[] actual = new byte[16];
+			newCipher(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES")).update(plaintext, 0, 16, actual, 0);
+			if(!Arrays.equals(expected, actual)) {
+				Logger.error(Rijndael.class, "JCE AES does not match Rijndael, not using it");
+				return false;
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			Logger.normal(Rijndael.class, "JCE AES not available, using pure Java Rijndael: "+e);
+			return false;
+		}
 	}
 }
@@ -79,6 +79,7 @@ public class CHKInsertHandler implements PrioRunnable, ByteCounter {
     
     public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
+	    node.nodeStats.requestTimings.reportSince(RequestTimings.CHK_INSERT, RequestTimings.QUEUE, startTime);
         try {
         	realRun();
 		} catch (OutOfMemoryError e) {
@@ -65,7 +65,10 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 		}
 		
 		private void realRun() {
-			this.completedTransfer(bt.send(node.executor));
+			long start = System.currentTimeMillis();
+			boolean sent = bt.send(node.executor);
+			node.nodeStats.requestTimings.reportSince(RequestTimings.CHK_INSERT, RequestTimings.TRANSFER, start);
+			this.completedTransfer(sent);
 			// Double-check that the node is still connected. Pointless to wait otherwise.
 			if (pn.isConnected() && transferSucceeded) {
 				//synch-version: this.receivedNotice(waitForReceivedNotification(this));
@@ -91,12 +94,10 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 				completedTransfer = true;
 				notifyAll();
 			}
-			synchronized(backgroundTransfers) {
-				backgroundTransfers.notifyAll();
-			}
 			if(!success) {
 				setTransferTimedOut();
 			}
+			checkBackgroundTransfers(false);
 		}
 		
 		private void receivedNotice(boolean success) {
@@ -109,12 +110,10 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 				notifyAll();
 				}
 			}
-			synchronized(backgroundTransfers) {
-				backgroundTransfers.notifyAll();
-			}
 			if(!success) {
 				setTransferTimedOut();
 			}			
+			checkBackgroundTransfers(false);
 		}
 		
 		public void onMatched(Message m) {
@@ -248,36 +247,45 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
     
     public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
-        short origHTL;
     	synchronized (this) {
             origHTL = htl;
 		}
 
         node.addInsertSender(myKey, origHTL, this);
-        try {
-        	realRun();
-		} catch (OutOfMemoryError e) {
-			OOMHandler.handleOOM(e);
-        } catch (Throwable t) {
-            Logger.error(this, "Caught "+t, t);
-        } finally {
-        	// Always check: we ALWAYS set status, even if receiveFailed.
-            int myStatus;
-            synchronized (this) {
-				myStatus = status;
-			}
-            if(myStatus == NOT_FINISHED)
-            	finish(INTERNAL_ERROR, null);
-        	node.removeInsertSender(myKey, origHTL, this);
-        }
+        nodesRoutedTo = new HashSet<PeerNode>();
+        new Step() {
+        	@Override
+        	void step() {
+        		routeInsert();
+        	}
+        }.run();
     }
     
-    private void realRun() {
-        HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
-        
-        PeerNode next = null;
+	/*
+	 * Routing is a state machine rather than a loop on a thread, so that an
+	 * insert waiting for a reply from downstream doesn't tie up a thread:
+	 * routeInsert() sends the insert to the next peer, then
+	 * handleAcceptedReply() and handleInsertReply() are run on the executor
+	 * when a message arrives, the filter times out or the peer disconnects.
+	 * Each step either finishes, waits for another message, or routes to
+	 * another peer. finish() doesn't wait for the background transfers
+	 * either: checkBackgroundTransfers() completes it when they are done.
+	 */
+    
+    /** HTL when we started, for removeInsertSender() */
+    private short origHTL;
+    /** Peers we have routed to. Only used by the current step. */
+    private HashSet<PeerNode> nodesRoutedTo;
+    /** The peer we are routing to. Only used by the current step. */
+    private PeerNode next;
+    private long timeSentRequest;
+    private boolean removedFromNode;
+    
+    /** Route to the next peer, or finish if we can't. */
+    private void routeInsert() {
         while(true) {
             if(receiveFailed) {
+            	removeFromNode();
             	return; // don't need to set status as killed by CHKInsertHandler
             }
             
@@ -318,16 +326,6 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
             
             // Wait for ack or reject... will come before even a locally generated DataReply
             
-            MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
-            MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
-            MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
-            
-            // mfRejectedOverload must be the last thing in the or
-            // So its or pointer remains null
-            // Otherwise we need to recreate it below
-            mfRejectedOverload.clearOr();
-            MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
-            
             // Send to next node
             
             try {
@@ -345,6 +343,7 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 				   ACCEPTED_TIMEOUT.
 				 */
 				next.sendAsync(req, null, this);
+				timeSentRequest = System.currentTimeMillis();
 			} catch (NotConnectedException e1) {
 				if(logMINOR) Logger.minor(this, "Not connected to "+next);
 				continue;
@@ -353,235 +352,388 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 				sentRequest = true;				
 			}
             
-            if(receiveFailed) return; // don't need to set status as killed by CHKInsertHandler
-            Message msg = null;
-            
-            /*
-             * Because messages may be re-ordered, it is
-             * entirely possible that we get a non-local RejectedOverload,
-             * followed by an Accepted. So we must loop here.
-             */
+            if(receiveFailed) {
+            	removeFromNode();
+            	return; // don't need to set status as killed by CHKInsertHandler
+            }
             
-            while ((msg==null) || (msg.getSpec() != DMT.FNPAccepted)) {
-            	
-				try {
-					msg = node.usm.waitFor(mf, this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + next
-							+ " while waiting for Accepted");
-					break;
-				}
-				
-				if (receiveFailed)
-					return; // don't need to set status as killed by CHKInsertHandler
-				
-				if (msg == null) {
-					// Terminal overload
-					// Try to propagate back to source
-					if(logMINOR) Logger.minor(this, "Timeout");
-					next.localRejectedOverload("Timeout3");
-					// Try another node.
-					forwardRejectedOverload();
-					break;
-				}
-				
-				if (msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Non-fatal - probably still have time left
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						next.localRejectedOverload("ForwardRejectedOverload5");
-						if(logMINOR) Logger.minor(this,
-										"Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					} else {
-						forwardRejectedOverload();
-					}
-					continue;
-				}
-				
-				if (msg.getSpec() == DMT.FNPRejectedLoop) {
-					next.successNotOverload();
-					// Loop - we don't want to send the data to this one
-					break;
-				}
-				
-				if (msg.getSpec() != DMT.FNPAccepted) {
-					Logger.error(this,
-							"Unexpected message waiting for Accepted: "
-									+ msg);
-					break;
-				}
-				// Otherwise is an FNPAccepted
+            waitForAccepted();
+            return;
+        }
+    }
+    
+    private void waitForAccepted() {
+        MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
+        MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        
+        // mfRejectedOverload must be the last thing in the or
+        // So its or pointer remains null
+        // Otherwise we need to recreate it below
+        MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
+        
+        waitFor(mf, true);
+    }
+    
+    /**
+     * Because messages may be re-ordered, it is
+     * entirely possible that we get a non-local RejectedOverload,
+     * followed by an Accepted. So we wait again after one.
+     * @param msg The reply to our insert, or null if we timed out waiting for it.
+     */
+    private void handleAcceptedReply(Message msg) {
+		if (receiveFailed) {
+			removeFromNode();
+			return; // don't need to set status as killed by CHKInsertHandler
+		}
+		
+		if (msg == null) {
+			// Terminal overload
+			// Try to propagate back to source
+			if(logMINOR) Logger.minor(this, "Timeout");
+			next.localRejectedOverload("Timeout3");
+			// Try another node.
+			forwardRejectedOverload();
+			routeInsert();
+			return;
+		}
+		
+		if (msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Non-fatal - probably still have time left
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				next.localRejectedOverload("ForwardRejectedOverload5");
+				if(logMINOR) Logger.minor(this,
+								"Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				routeInsert();
+				return;
+			} else {
+				forwardRejectedOverload();
 			}
+			waitForAccepted();
+			return;
+		}
+		
+		if (msg.getSpec() == DMT.FNPRejectedLoop) {
+			next.successNotOverload();
+			// Loop - we don't want to send the data to this one
+			routeInsert();
+			return;
+		}
+		
+		if (msg.getSpec() != DMT.FNPAccepted) {
+			Logger.error(this,
+					"Unexpected message waiting for Accepted: "
+							+ msg);
+			routeInsert();
+			return;
+		}
+		// Otherwise is an FNPAccepted
             
-            if((msg == null) || (msg.getSpec() != DMT.FNPAccepted)) continue;
-            
-            if(logMINOR) Logger.minor(this, "Got Accepted on "+this);
-            
-            // Send them the data.
-            // Which might be the new data resulting from a collision...
-
-            Message dataInsert;
-            dataInsert = DMT.createFNPDataInsert(uid, headers);
-            /** What are we waiting for now??:
-             * - FNPRouteNotFound - couldn't exhaust HTL, but send us the 
-             *   data anyway please
-             * - FNPInsertReply - used up all HTL, yay
-             * - FNPRejectOverload - propagating an overload error :(
-             * - FNPRejectTimeout - we took too long to send the DataInsert
-             * - FNPDataInsertRejected - the insert was invalid
-             */
-            
-            MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPInsertReply);
-            mfRejectedOverload.setTimeout(SEARCH_TIMEOUT);
-            mfRejectedOverload.clearOr();
-            MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
-            MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPDataInsertRejected);
-            MessageFilter mfTimeout = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRejectedTimeout);
-            
-            mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
-
-            if(logMINOR) Logger.minor(this, "Sending DataInsert");
-            if(receiveFailed) return;
-            try {
-				next.sendSync(dataInsert, this);
-			} catch (NotConnectedException e1) {
-				if(logMINOR) Logger.minor(this, "Not connected sending DataInsert: "+next+" for "+uid);
-				continue;
-			}
+        if(logMINOR) Logger.minor(this, "Got Accepted on "+this);
+        node.nodeStats.requestTimings.reportSince(RequestTimings.CHK_INSERT, RequestTimings.ACCEPTED, timeSentRequest);
+        
+        // Send them the data.
+        // Which might be the new data resulting from a collision...
 
-			if(logMINOR) Logger.minor(this, "Sending data");
-			startBackgroundTransfer(next, prb);
-			
-            while (true) {
+        Message dataInsert;
+        dataInsert = DMT.createFNPDataInsert(uid, headers);
 
-				if (receiveFailed)
-					return;
-				
-				try {
-					msg = node.usm.waitFor(mf, this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + next
-							+ " while waiting for InsertReply on " + this);
-					break;
+        if(logMINOR) Logger.minor(this, "Sending DataInsert");
+        if(receiveFailed) {
+        	removeFromNode();
+        	return;
+        }
+        try {
+			next.sendThen(dataInsert, this, new Step() {
+				@Override
+				void step() {
+					if(logMINOR) Logger.minor(this, "Sending data");
+					startBackgroundTransfer(next, prb);
+					waitForInsertReply();
 				}
-				if (receiveFailed)
-					return;
-				
-				if ((msg == null) || (msg.getSpec() == DMT.FNPRejectedTimeout)) {
-					// Timeout :(
-					// Fairly serious problem
-					Logger.error(this, "Timeout (" + msg
-							+ ") after Accepted in insert");
-					// Terminal overload
-					// Try to propagate back to source
-					next.localRejectedOverload("AfterInsertAcceptedTimeout2");
-					finish(TIMED_OUT, next);
-					return;
+			}, new Step() {
+				@Override
+				void step() {
+					if(logMINOR) Logger.minor(this, "Not connected sending DataInsert: "+next+" for "+uid);
+					routeInsert();
 				}
+			});
+		} catch (NotConnectedException e1) {
+			if(logMINOR) Logger.minor(this, "Not connected sending DataInsert: "+next+" for "+uid);
+			routeInsert();
+		}
+    }
+    
+    /** What are we waiting for now??:
+     * - FNPRouteNotFound - couldn't exhaust HTL, but send us the 
+     *   data anyway please
+     * - FNPInsertReply - used up all HTL, yay
+     * - FNPRejectOverload - propagating an overload error :(
+     * - FNPRejectTimeout - we took too long to send the DataInsert
+     * - FNPDataInsertRejected - the insert was invalid
+     */
+    private void waitForInsertReply() {
+		if (receiveFailed) {
+			removeFromNode();
+			return;
+		}
+		
+        MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPInsertReply);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPDataInsertRejected);
+        MessageFilter mfTimeout = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRejectedTimeout);
+        
+        MessageFilter mf = mfInsertReply.or(mfRouteNotFound.or(mfDataInsertRejected.or(mfTimeout.or(mfRejectedOverload))));
+        
+        waitFor(mf, false);
+    }
+    
+    /** @param msg The reply after sending the data, or null if we timed out waiting for it. */
+    private void handleInsertReply(Message msg) {
+		if (receiveFailed) {
+			removeFromNode();
+			return;
+		}
+		
+		if ((msg == null) || (msg.getSpec() == DMT.FNPRejectedTimeout)) {
+			// Timeout :(
+			// Fairly serious problem
+			Logger.error(this, "Timeout (" + msg
+					+ ") after Accepted in insert");
+			// Terminal overload
+			// Try to propagate back to source
+			next.localRejectedOverload("AfterInsertAcceptedTimeout2");
+			finish(TIMED_OUT, next);
+			return;
+		}
 
-				if (msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Probably non-fatal, if so, we have time left, can try next one
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						next.localRejectedOverload("ForwardRejectedOverload6");
-						if(logMINOR) Logger.minor(this,
-								"Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					} else {
-						forwardRejectedOverload();
-					}
-					continue; // Wait for any further response
-				}
+		if (msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Probably non-fatal, if so, we have time left, can try next one
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				next.localRejectedOverload("ForwardRejectedOverload6");
+				if(logMINOR) Logger.minor(this,
+						"Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				tryAlternateNode();
+				return;
+			} else {
+				forwardRejectedOverload();
+			}
+			waitForInsertReply(); // Wait for any further response
+			return;
+		}
 
-				if (msg.getSpec() == DMT.FNPRouteNotFound) {
-					if(logMINOR) Logger.minor(this, "Rejected: RNF");
-					short newHtl = msg.getShort(DMT.HTL);
-					synchronized (this) {
-						if (htl > newHtl)
-							htl = newHtl;						
-					}
-					// Finished as far as this node is concerned
-					next.successNotOverload();
-					//RNF means that the HTL was not exhausted, but that the data will still be stored.
-					break;
-				}
+		if (msg.getSpec() == DMT.FNPRouteNotFound) {
+			if(logMINOR) Logger.minor(this, "Rejected: RNF");
+			short newHtl = msg.getShort(DMT.HTL);
+			synchronized (this) {
+				if (htl > newHtl)
+					htl = newHtl;						
+			}
+			// Finished as far as this node is concerned
+			next.successNotOverload();
+			//RNF means that the HTL was not exhausted, but that the data will still be stored.
+			tryAlternateNode();
+			return;
+		}
 
-				//Can occur after reception of the entire chk block
-				if (msg.getSpec() == DMT.FNPDataInsertRejected) {
-					next.successNotOverload();
-					short reason = msg
-							.getShort(DMT.DATA_INSERT_REJECTED_REASON);
-					if(logMINOR) Logger.minor(this, "DataInsertRejected: " + reason);
-						if (reason == DMT.DATA_INSERT_REJECTED_VERIFY_FAILED) {
-						if (fromStore) {
-							// That's odd...
-							Logger.error(this,"Verify failed on next node "
-									+ next + " for DataInsert but we were sending from the store!");
-						} else {
-							try {
-								if (!prb.allReceived())
-									Logger.error(this,
-											"Did not receive all packets but next node says invalid anyway!");
-								else {
-									// Check the data
-									new CHKBlock(prb.getBlock(), headers,
-											myKey);
-									Logger.error(this,
-											"Verify failed on " + next
-											+ " but data was valid!");
-								}
-							} catch (CHKVerifyException e) {
-								Logger.normal(this,
-												"Verify failed because data was invalid");
-							} catch (AbortedException e) {
-								receiveFailed();
-							}
-						}
-						break; // What else can we do?
-					} else if (reason == DMT.DATA_INSERT_REJECTED_RECEIVE_FAILED) {
-						if (receiveFailed) {
-							if(logMINOR) Logger.minor(this, "Failed to receive data, so failed to send data");
-						} else {
-							try {
-								if (prb.allReceived()) {
-									Logger.error(this, "Received all data but send failed to " + next);
-								} else {
-									if (prb.isAborted()) {
-										Logger.normal(this, "Send failed: aborted: " + prb.getAbortReason() + ": " + prb.getAbortDescription());
-									} else
-										Logger.normal(this, "Send failed; have not yet received all data but not aborted: " + next);
-								}
-							} catch (AbortedException e) {
-								receiveFailed();
-							}
+		//Can occur after reception of the entire chk block
+		if (msg.getSpec() == DMT.FNPDataInsertRejected) {
+			next.successNotOverload();
+			short reason = msg
+					.getShort(DMT.DATA_INSERT_REJECTED_REASON);
+			if(logMINOR) Logger.minor(this, "DataInsertRejected: " + reason);
+				if (reason == DMT.DATA_INSERT_REJECTED_VERIFY_FAILED) {
+				if (fromStore) {
+					// That's odd...
+					Logger.error(this,"Verify failed on next node "
+							+ next + " for DataInsert but we were sending from the store!");
+				} else {
+					try {
+						if (!prb.allReceived())
+							Logger.error(this,
+									"Did not receive all packets but next node says invalid anyway!");
+						else {
+							// Check the data
+							new CHKBlock(prb.getBlock(), headers,
+									myKey);
+							Logger.error(this,
+									"Verify failed on " + next
+									+ " but data was valid!");
 						}
+					} catch (CHKVerifyException e) {
+						Logger.normal(this,
+										"Verify failed because data was invalid");
+					} catch (AbortedException e) {
+						receiveFailed();
 					}
-					Logger.error(this, "DataInsert rejected! Reason="
-							+ DMT.getDataInsertRejectedReason(reason));
-					break;
 				}
-				
-				if (msg.getSpec() != DMT.FNPInsertReply) {
-					Logger.error(this, "Unknown reply: " + msg);
-					finish(INTERNAL_ERROR, next);
-					return;
+				tryAlternateNode(); // What else can we do?
+				return;
+			} else if (reason == DMT.DATA_INSERT_REJECTED_RECEIVE_FAILED) {
+				if (receiveFailed) {
+					if(logMINOR) Logger.minor(this, "Failed to receive data, so failed to send data");
 				} else {
-					// Our task is complete, one node (quite deep), has accepted the insert.
-					// The request will not be routed to any other nodes, this is where the data *should* be.
-					finish(SUCCESS, next);
-					return;
+					try {
+						if (prb.allReceived()) {
+							Logger.error(this, "Received all data but send failed to " + next);
+						} else {
+							if (prb.isAborted()) {
+								Logger.normal(this, "Send failed: aborted: " + prb.getAbortReason() + ": " + prb.getAbortDescription());
+							} else
+								Logger.normal(this, "Send failed; have not yet received all data but not aborted: " + next);
+						}
+					} catch (AbortedException e) {
+						receiveFailed();
+					}
 				}
 			}
-			if (logMINOR) Logger.debug(this, "Trying alternate node for insert");
+			Logger.error(this, "DataInsert rejected! Reason="
+					+ DMT.getDataInsertRejectedReason(reason));
+			tryAlternateNode();
+			return;
+		}
+		
+		if (msg.getSpec() != DMT.FNPInsertReply) {
+			Logger.error(this, "Unknown reply: " + msg);
+			finish(INTERNAL_ERROR, next);
+			return;
+		} else {
+			// Our task is complete, one node (quite deep), has accepted the insert.
+			// The request will not be routed to any other nodes, this is where the data *should* be.
+			finish(SUCCESS, next);
+			return;
+		}
+	}
+    
+    private void tryAlternateNode() {
+		if (logMINOR) Logger.debug(this, "Trying alternate node for insert");
+		routeInsert();
+    }
+    
+	/** One step of the insert, run on the executor. */
+	private abstract class Step implements PrioRunnable {
+		
+		public void run() {
+			try {
+				step();
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				failed();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" on "+CHKInsertSender.this, t);
+				failed();
+			}
 		}
+		
+		private void failed() {
+			// Always check: we ALWAYS set status, even if receiveFailed.
+            int myStatus;
+            synchronized (CHKInsertSender.this) {
+				myStatus = status;
+			}
+            if(myStatus == NOT_FINISHED)
+            	finish(INTERNAL_ERROR, null);
+            else
+            	removeFromNode();
+		}
+		
+		abstract void step();
+		
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+		
 	}
+	
+	/**
+	 * Wait for a message from next without a thread.
+	 * @param accepted If true, pass it to handleAcceptedReply(), otherwise to
+	 * handleInsertReply().
+	 */
+	private void waitFor(MessageFilter mf, final boolean accepted) {
+		final PeerNode waitingFor = next;
+		AsyncMessageFilterCallback cb = new AsyncMessageFilterCallback() {
+			
+			private boolean done;
+			
+			private synchronized boolean setDone() {
+				if(done) return false;
+				done = true;
+				return true;
+			}
+			
+			private void handle(final Message m) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						if(accepted)
+							handleAcceptedReply(m);
+						else
+							handleInsertReply(m);
+					}
+				}, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
+
+			public void onMatched(Message m) {
+				handle(m);
+			}
+
+			public boolean shouldTimeout() {
+				return false;
+			}
+
+			public void onTimeout() {
+				handle(null);
+			}
+
+			public void onDisconnect(PeerContext ctx) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						disconnected(waitingFor, accepted);
+					}
+				}, "CHKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
 
+			public void onRestarted(PeerContext ctx) {
+				onDisconnect(ctx);
+			}
+			
+		};
+		try {
+			node.usm.addAsyncFilter(mf, cb);
+		} catch (DisconnectedException e) {
+			disconnected(waitingFor, accepted);
+		}
+	}
+	
+	private void disconnected(PeerNode pn, boolean accepted) {
+		if(accepted) {
+			Logger.normal(this, "Disconnected from " + pn
+					+ " while waiting for Accepted");
+		} else {
+			Logger.normal(this, "Disconnected from " + pn
+					+ " while waiting for InsertReply on " + this);
+		}
+		routeInsert();
+	}
+	
+	private void removeFromNode() {
+		synchronized(this) {
+			if(removedFromNode) return;
+			removedFromNode = true;
+		}
+		node.removeInsertSender(myKey, origHTL, this);
+	}
 	private void startBackgroundTransfer(PeerNode node, PartiallyReceivedBlock prb) {
 		BackgroundTransfer ac = new BackgroundTransfer(node, prb);
 		synchronized(backgroundTransfers) {
 			backgroundTransfers.add(ac);
-			backgroundTransfers.notifyAll();
 		}
 		ac.start();
 	}
@@ -612,8 +764,8 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 	}
     
     /**
-     * Finish the insert process. Will set status, wait for underlings to complete, and report success
-     * if appropriate.
+     * Finish the insert process. Will set status, and once the underlings have completed
+     * (see checkBackgroundTransfers()), report success if appropriate.
      * @param code The status code to set. 
      * @param next The node we successfully inserted to.
      */
@@ -632,23 +784,72 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
         			throw new IllegalStateException("finish() called with "+code+" when was already "+status);
         	} else {
                 status = code;
+                node.nodeStats.requestTimings.reportSince(RequestTimings.CHK_INSERT, RequestTimings.TOTAL, startTime);
         	}
         	
         	notifyAll();
         	if(logMINOR) Logger.minor(this, "Set status code: "+getStatusString()+" on "+uid);
         }
 		
-        boolean failedRecv; // receiveFailed is protected by backgroundTransfers but status by this
         // Now wait for transfers, or for downstream transfer notifications.
         // Note that even the data receive may not have completed by this point.
+        synchronized(backgroundTransfers) {
+        	finishedNode = next;
+        	finishing = true;
+        }
+        if(!checkBackgroundTransfers(false)) {
+        	if(logMINOR) Logger.minor(this, "Waiting for background transfer completions: "+this);
+        	// Generous deadline so we catch bugs more obviously
+        	node.getTicker().queueTimedJob(new Runnable() {
+        		
+        		public void run() {
+        			checkBackgroundTransfers(true);
+        		}
+        		
+        	}, TRANSFER_COMPLETION_ACK_TIMEOUT * 3);
+        }
+    }
+    
+    /** Set by finish(), after which no more background transfers will be added */
+    private boolean finishing;
+    /** Set when finish() has completed */
+    private boolean finishedTransfers;
+    /** The node we successfully inserted to, if any */
+    private PeerNode finishedNode;
+    
+    /**
+     * Complete finish() if all the background transfers have reached a
+     * final-terminal state (success/failure). On success this means that a
+     * successful 'received-notification' has been received. Called whenever
+     * one of them changes state.
+     * @param deadline If true, we have waited long enough, so finish anyway.
+     * @return True if finish() has been completed, now or before.
+     */
+    private boolean checkBackgroundTransfers(boolean deadline) {
+        boolean failedRecv; // receiveFailed is protected by backgroundTransfers but status by this
+        boolean failedTransfers = false;
+        PeerNode next;
 		synchronized(backgroundTransfers) {
+			if(finishedTransfers) return true;
+			if(!finishing) return false;
 			if (!backgroundTransfers.isEmpty()) {
-				waitForBackgroundTransferCompletions();
+				int state = backgroundTransfersState();
+				if(state == TRANSFERS_RUNNING) {
+					if(!deadline) return false;
+					// NORMAL priority because it is normally caused by a transfer taking too long downstream, and that doesn't usually indicate a bug.
+					Logger.normal(this, "Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
+					failedTransfers = true;
+				} else if(state == TRANSFERS_FAILED)
+					failedTransfers = true;
 			} else {
 				if(logMINOR) Logger.minor(this, "No background transfers");
 			}
+			finishedTransfers = true;
 			failedRecv = receiveFailed;
+			next = finishedNode;
 		}
+		if(failedTransfers)
+			setTransferTimedOut();
         
         	synchronized(this) {
         		if(failedRecv)
@@ -661,6 +862,8 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
         	next.onSuccess(true, false);
         
         if(logMINOR) Logger.minor(this, "Returning from finish()");
+        removeFromNode();
+        return true;
     }
 
     public synchronized int getStatus() {
@@ -678,7 +881,6 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
     public void receiveFailed() {
     	synchronized(backgroundTransfers) {
     		receiveFailed = true;
-    		backgroundTransfers.notifyAll();
     	}
     	// Set status immediately.
     	// The code (e.g. waitForStatus()) relies on a status eventually being set,
@@ -689,7 +891,8 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
     		allTransfersCompleted = true;
     		notifyAll();
     	}
-    	// Do not call finish(), that can only be called on the main thread and it will block.
+    	// Do not call finish(), that can only be called by the insert's own steps.
+    	checkBackgroundTransfers(false);
     }
 
     /**
@@ -717,86 +920,47 @@ public final class CHKInsertSender implements PrioRunnable, AnyInsertSender, Byt
 		return sentRequest;
 	}
 		
-		private void waitForBackgroundTransferCompletions() {
-			try {
-		    freenet.support.Logger.OSThread.logPID(this);
-			if(logMINOR) Logger.minor(this, "Waiting for background transfer completions: "+this);
-			
-			// We must presently be at such a stage that no more background transfers will be added.
-			
-			BackgroundTransfer[] transfers;
-			synchronized(backgroundTransfers) {
-				transfers = new BackgroundTransfer[backgroundTransfers.size()];
-				transfers = backgroundTransfers.toArray(transfers);
-			}
-			
-			// Wait for the outgoing transfers to complete.
-			if(!waitForBackgroundTransfers(transfers)) {
-				setTransferTimedOut();
-				return;
-			}
-			} finally {
-				synchronized(CHKInsertSender.this) {
-					allTransfersCompleted = true;
-					CHKInsertSender.this.notifyAll();
-				}
-			}
-		}
+	private static final int TRANSFERS_RUNNING = 0;
+	private static final int TRANSFERS_FAILED = 1;
+	private static final int TRANSFERS_SUCCEEDED = 2;
 
 		/**
-		 * Block until all transfers have reached a final-terminal state (success/failure). On success this means that a
-		 * successful 'received-notification' has been received.
-		 * @return True if all background transfers were successful.
+		 * Have all transfers reached a final-terminal state (success/failure)?
+		 * Caller must hold the backgroundTransfers lock.
+		 * @return TRANSFERS_SUCCEEDED if all background transfers were successful,
+		 * TRANSFERS_FAILED if any failed, otherwise TRANSFERS_RUNNING.
 		 */
-		private boolean waitForBackgroundTransfers(BackgroundTransfer[] transfers) {
-			long start = System.currentTimeMillis();
-			// Generous deadline so we catch bugs more obviously
-			long deadline = start + TRANSFER_COMPLETION_ACK_TIMEOUT * 3;
-			// MAYBE all done
-			while(true) {
-				if(System.currentTimeMillis() > deadline) {
-					// NORMAL priority because it is normally caused by a transfer taking too long downstream, and that doesn't usually indicate a bug.
-					Logger.normal(this, "Timed out waiting for background transfers! Probably caused by async filter not getting a timeout notification! DEBUG ME!");
-					return false;
-				}
-				//If we want to be sure to exit as-soon-as the transfers are done, then we must hold the lock while we check.
-				synchronized(backgroundTransfers) {
-					if(receiveFailed) return false;
+		private int backgroundTransfersState() {
+					if(receiveFailed) return TRANSFERS_FAILED;
 					
 					boolean noneRouteable = true;
 					boolean completedTransfers = true;
 					boolean completedNotifications = true;
-					for(int i=0;i<transfers.length;i++) {
-						if(!transfers[i].pn.isRoutable()) continue;
+					for(BackgroundTransfer transfer : backgroundTransfers) {
+						if(!transfer.pn.isRoutable()) continue;
 						noneRouteable = false;
-						if(!transfers[i].completedTransfer) {
+						if(!transfer.completedTransfer) {
 							if(logMINOR)
-								Logger.minor(this, "Waiting for transfer completion to "+transfers[i].pn+" : "+transfers[i]);
+								Logger.minor(this, "Waiting for transfer completion to "+transfer.pn+" : "+transfer);
 							//must wait
 							completedTransfers = false;
 							break;
 						}
-						if (!transfers[i].receivedCompletionNotice) {
+						if (!transfer.receivedCompletionNotice) {
 							if(logMINOR)
-								Logger.minor(this, "Waiting for completion notice from "+transfers[i].pn+" : "+transfers[i]);
+								Logger.minor(this, "Waiting for completion notice from "+transfer.pn+" : "+transfer);
 							//must wait
 							completedNotifications = false;
 							break;
 						}
-						if (!transfers[i].completionSucceeded)
-							return false;
+						if (!transfer.completionSucceeded)
+							return TRANSFERS_FAILED;
 					}
-					if(noneRouteable) return false;
-					if(completedTransfers && completedNotifications) return true;
+					if(noneRouteable) return TRANSFERS_FAILED;
+					if(completedTransfers && completedNotifications) return TRANSFERS_SUCCEEDED;
 					
 					if(logMINOR) Logger.minor(this, "Waiting: transfer completion=" + completedTransfers + " notification="+completedNotifications); 
-					try {
-						backgroundTransfers.wait(100*1000);
-					} catch (InterruptedException e) {
-						// Ignore
-					}
-				}				
-			}
+					return TRANSFERS_RUNNING;
 		}
 
 
@@ -226,7 +226,7 @@ public class DarknetPeerNode extends PeerNode {
 			isDisabled = false;
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 	}
 	
 	public void disablePeer() {
@@ -238,7 +238,7 @@ public class DarknetPeerNode extends PeerNode {
 		}
 		stopARKFetcher();
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 	}
 
 	@Override
@@ -257,7 +257,7 @@ public class DarknetPeerNode extends PeerNode {
 			stopARKFetcher();
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 	}
 
 	public synchronized boolean isListenOnly() {
@@ -278,7 +278,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(now);
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 	}
 
 	public void setIgnoreSourcePort(boolean setting) {
@@ -312,7 +312,7 @@ public class DarknetPeerNode extends PeerNode {
 			}
 		}
 		setPeerNodeStatus(System.currentTimeMillis());
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 		
 	}
 
@@ -345,7 +345,7 @@ public class DarknetPeerNode extends PeerNode {
 		synchronized(this) {
 			allowLocalAddresses = setting;
 		}
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 	}
 	
 	public boolean readExtraPeerData() {
@@ -386,7 +386,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 
 		if(Arrays.equals(realHash, hash)) {
 			// Got one
-			processDecryptedAuth(payload, pn, peer, oldOpennetPeer);
+			queueDecryptedAuth(payload, pn, peer, oldOpennetPeer);
 			pn.reportIncomingPacket(buf, offset, length, now);
 			return true;
 		} else {
@@ -451,7 +451,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 
 		if(Arrays.equals(realHash, hash)) {
 			// Got one
-			processDecryptedAuthAnon(payload, peer);
+			queueDecryptedAuthAnon(payload, peer);
 			return true;
 		} else {
 			if(logMINOR) Logger.minor(this, "Incorrect hash in tryProcessAuthAnon for "+peer+" (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
@@ -511,7 +511,7 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 
 		if(Arrays.equals(realHash, hash)) {
 			// Got one
-			processDecryptedAuthAnonReply(payload, peer, pn);
+			queueDecryptedAuthAnonReply(payload, peer, pn);
 			return true;
 		} else {
 			if(logMINOR) Logger.minor(this, "Incorrect hash in tryProcessAuth for "+peer+" (length="+dataLength+"): \nreal hash="+HexUtil.bytesToHex(realHash)+"\n bad hash="+HexUtil.bytesToHex(hash));
@@ -519,6 +519,59 @@ public class FNPPacketMangler implements OutgoingPacketMangler, IncomingPacketFi
 		}
 	}
 	
+	/*
+	 * The JFK messages are processed on the node's HandshakeExecutor, not on
+	 * the packet receive thread, because signing, verifying and
+	 * Diffie-Hellman are slow. If it drops a packet, the other side will
+	 * resend it.
+	 */
+
+	private void queueDecryptedAuth(final byte[] payload, final PeerNode pn, final Peer replyTo, final boolean oldOpennetPeer) {
+		queueHandshake(pn, new Runnable() {
+			public void run() {
+				processDecryptedAuth(payload, pn, replyTo, oldOpennetPeer);
+			}
+			@Override
+			public String toString() {
+				return "JFK from "+pn+" at "+replyTo;
+			}
+		});
+	}
+
+	private void queueDecryptedAuthAnon(final byte[] payload, final Peer replyTo) {
+		queueHandshake(replyTo, new Runnable() {
+			public void run() {
+				processDecryptedAuthAnon(payload, replyTo);
+			}
+			@Override
+			public String toString() {
+				return "Anonymous JFK from "+replyTo;
+			}
+		});
+	}
+
+	private void queueDecryptedAuthAnonReply(final byte[] payload, final Peer replyTo, final PeerNode pn) {
+		queueHandshake(pn, new Runnable() {
+			public void run() {
+				processDecryptedAuthAnonReply(payload, replyTo, pn);
+			}
+			@Override
+			public String toString() {
+				return "Anonymous JFK reply from "+pn+" at "+replyTo;
+			}
+		});
+	}
+
+	/**
+	 * @param key The PeerNode, or the address if we don't know the peer yet.
+	 * Messages for the same peer are processed one at a time, because the
+	 * JFK state on PeerNode isn't thread-safe.
+	 */
+	private void queueHandshake(Object key, Runnable job) {
+		// Counted and logged by the executor if dropped.
+		node.handshakeExecutor.execute(job, key);
+	}
+
 	// Anonymous-initiator setup types
 	/** Connect to a node hoping it will act as a seednode for us */
 	static final byte SETUP_OPENNET_SEEDNODE = 1;
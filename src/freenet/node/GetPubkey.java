@@ -11,8 +11,8 @@ import freenet.crypt.DSAPublicKey;
 import freenet.crypt.SHA256;
 import freenet.store.PubkeyStore;
 import freenet.support.ByteArrayWrapper;
+import freenet.support.ConcurrentLRUHashtable;
 import freenet.support.HexUtil;
-import freenet.support.LRUHashtable;
 import freenet.support.Logger;
 
 public class GetPubkey {
@@ -26,7 +26,7 @@ public class GetPubkey {
 	private static final boolean USE_RAM_PUBKEYS_CACHE = true;
 	private static final int MAX_MEMORY_CACHED_PUBKEYS = 1000;
 	
-	private final LRUHashtable<ByteArrayWrapper, DSAPublicKey> cachedPubKeys;
+	private final ConcurrentLRUHashtable<ByteArrayWrapper, DSAPublicKey> cachedPubKeys;
 
 	private PubkeyStore pubKeyDatastore;
 	private PubkeyStore pubKeyDatacache;
@@ -36,7 +36,7 @@ public class GetPubkey {
 	private final Node node;
 	
 	GetPubkey(Node node) {
-		cachedPubKeys = new LRUHashtable<ByteArrayWrapper, DSAPublicKey>();
+		cachedPubKeys = new ConcurrentLRUHashtable<ByteArrayWrapper, DSAPublicKey>(MAX_MEMORY_CACHED_PUBKEYS, null);
 		this.node = node;
 	}
 
@@ -58,14 +58,12 @@ public class GetPubkey {
 			Logger.minor(this, "Getting pubkey: " + HexUtil.bytesToHex(hash));
 
 		if (USE_RAM_PUBKEYS_CACHE) {
-			synchronized (cachedPubKeys) {
-				DSAPublicKey key = cachedPubKeys.get(w);
-				if (key != null) {
-					cachedPubKeys.push(w, key);
-					if (logMINOR)
-						Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from cache");
-					return key;
-				}
+			DSAPublicKey key = cachedPubKeys.get(w);
+			if (key != null) {
+				cachedPubKeys.push(w, key);
+				if (logMINOR)
+					Logger.minor(this, "Got " + HexUtil.bytesToHex(hash) + " from cache");
+				return key;
 			}
 		}
 		try {
@@ -121,39 +119,35 @@ public class GetPubkey {
 		if (logMINOR)
 			Logger.minor(this, "Cache key: " + HexUtil.bytesToHex(hash) + " : " + key);
 		ByteArrayWrapper w = new ByteArrayWrapper(hash);
-		synchronized (cachedPubKeys) {
-			DSAPublicKey key2 = cachedPubKeys.get(w);
-			if ((key2 != null) && !key2.equals(key)) {
-				// FIXME is this test really needed?
-				// SHA-256 inside synchronized{} is a bad idea
-				// FIXME get rid
-				MessageDigest md256 = SHA256.getMessageDigest();
-				try {
-					byte[] hashCheck = md256.digest(key.asBytes());
-					if (Arrays.equals(hashCheck, hash)) {
-						Logger.error(this, "Hash is correct!!!");
-						// Verify the old key
-						byte[] oldHash = md256.digest(key2.asBytes());
-						if (Arrays.equals(oldHash, hash)) {
-							Logger.error(this,
-							        "Old hash is correct too!! - Bug in DSAPublicKey.equals() or SHA-256 collision!");
-						} else {
-							Logger.error(this, "Old hash is wrong!");
-							cachedPubKeys.removeKey(w);
-							cacheKey(hash, key, deep, canWriteClientCache, canWriteDatastore, forULPR, writeLocalToDatastore);
-						}
+		DSAPublicKey key2 = cachedPubKeys.get(w);
+		if ((key2 != null) && !key2.equals(key)) {
+			// FIXME is this test really needed?
+			// FIXME get rid
+			MessageDigest md256 = SHA256.getMessageDigest();
+			try {
+				byte[] hashCheck = md256.digest(key.asBytes());
+				if (Arrays.equals(hashCheck, hash)) {
+					Logger.error(this, "Hash is correct!!!");
+					// Verify the old key
+					byte[] oldHash = md256.digest(key2.asBytes());
+					if (Arrays.equals(oldHash, hash)) {
+						Logger.error(this,
+						        "Old hash is correct too!! - Bug in DSAPublicKey.equals() or SHA-256 collision!");
 					} else {
-						Logger.error(this, "New hash is wrong");
+						Logger.error(this, "Old hash is wrong!");
+						cachedPubKeys.removeKey(w);
+						cacheKey(hash, key, deep, canWriteClientCache, canWriteDatastore, forULPR, writeLocalToDatastore);
 					}
-				} finally {
-					SHA256.returnMessageDigest(md256);
+				} else {
+					Logger.error(this, "New hash is wrong");
 				}
-				throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
+			} finally {
+				SHA256.returnMessageDigest(md256);
 			}
-			cachedPubKeys.push(w, key);
-			while (cachedPubKeys.size() > MAX_MEMORY_CACHED_PUBKEYS)
-				cachedPubKeys.popKey();
+			throw new IllegalArgumentException("Wrong hash?? Already have different key with same hash!");
 		}
+		// Bounded by MAX_MEMORY_CACHED_PUBKEYS, evicts automatically.
+		cachedPubKeys.push(w, key);
 		try {
 			if (canWriteClientCache) {
 				if(pubKeyClientcache != null) {
@@ -0,0 +1,258 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.OOMHandler;
+import freenet.support.io.NativeThread;
+import freenet.support.math.Histogram;
+
+/**
+ * Runs the expensive part of connection setup, the JFK messages with their
+ * signatures and Diffie-Hellman, on a few threads borrowed from the node's
+ * executor, so that a burst of handshakes (an opennet announcement, or many
+ * peers reconnecting at once) doesn't hold up the packet receive thread and
+ * the peers we are already connected to. Both the queue and the CPU time
+ * spent on handshakes in each second are limited: beyond either limit,
+ * handshake packets are dropped, and the other side will resend them.
+ * 
+ * The handshake state on a PeerNode is not thread-safe, so handshakes with
+ * the same key (the PeerNode, or the address for an unknown peer) are run
+ * one at a time, in the order they were queued.
+ */
+public class HandshakeExecutor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(Logger.MINOR, this);
+			}
+		});
+	}
+
+	private static class Job {
+		final Runnable job;
+		final Object key;
+		final long queued;
+		Job(Runnable job, Object key, long queued) {
+			this.job = job;
+			this.key = key;
+			this.queued = queued;
+		}
+	}
+
+	private final Executor realExecutor;
+	private final int maxThreads;
+	private final int maxQueued;
+	/** Nanoseconds of CPU time handshakes may use in each second */
+	private final long cpuBudget;
+	private final ThreadMXBean threadBean;
+	private final LinkedList<Job> jobs;
+	/** Keys of the handshakes being processed right now */
+	private final HashSet<Object> running;
+	private int threads;
+	/** Start of the current second */
+	private long windowStart;
+	/** CPU time used by handshakes in the current second, in nanoseconds */
+	private long cpuUsed;
+	/** Time from queueing a handshake to starting it, in milliseconds */
+	private final Histogram queueTime;
+	private long completed;
+	private long droppedQueueFull;
+	private long droppedOverBudget;
+	/** Handshakes completed in the current and the last minute */
+	private int completedThisMinute;
+	private int completedLastMinute;
+	private long minuteStart;
+
+	/**
+	 * @param realExecutor Where to get threads from.
+	 * @param maxThreads The maximum number of handshakes processed at once.
+	 * @param maxQueued The maximum number of handshakes waiting for a thread.
+	 * @param cpuPercent The share of the CPU, over all cores, which handshakes
+	 * may use.
+	 */
+	public HandshakeExecutor(Executor realExecutor, int maxThreads, int maxQueued, int cpuPercent) {
+		this(realExecutor, maxThreads, maxQueued,
+				1000L * 1000 * 1000 * Runtime.getRuntime().availableProcessors() * cpuPercent / 100);
+	}
+
+	/** @param cpuBudget Nanoseconds of CPU time handshakes may use in each second. */
+	HandshakeExecutor(Executor realExecutor, int maxThreads, int maxQueued, long cpuBudget) {
+		this.realExecutor = realExecutor;
+		this.maxThreads = maxThreads;
+		this.maxQueued = maxQueued;
+		this.cpuBudget = cpuBudget;
+		ThreadMXBean bean = null;
+		try {
+			bean = ManagementFactory.getThreadMXBean();
+			if(!bean.isCurrentThreadCpuTimeSupported()) bean = null;
+			else if(!bean.isThreadCpuTimeEnabled()) bean.setThreadCpuTimeEnabled(true);
+		} catch (Throwable t) {
+			// Use the wall clock instead.
+			bean = null;
+		}
+		threadBean = bean;
+		jobs = new LinkedList<Job>();
+		running = new HashSet<Object>();
+		queueTime = new Histogram(16);
+		minuteStart = windowStart = System.currentTimeMillis();
+	}
+
+	/** Threads for handshakes by default: one per core, up to four. */
+	public static int defaultThreads() {
+		return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+	}
+
+	/**
+	 * Queue a handshake packet to be processed.
+	 * @param key Handshakes with equal keys are never processed at the
+	 * same time. Null to run it as soon as there is a thread.
+	 * @return False if it was dropped because the queue is full or
+	 * handshakes have used their CPU time for this second.
+	 */
+	public boolean execute(Runnable job, Object key) {
+		synchronized(this) {
+			long now = System.currentTimeMillis();
+			rollWindows(now);
+			if(cpuUsed >= cpuBudget) {
+				droppedOverBudget++;
+				if(logMINOR) Logger.minor(this, "Over CPU budget, dropping handshake "+job);
+				return false;
+			}
+			if(jobs.size() >= maxQueued) {
+				droppedQueueFull++;
+				if(logMINOR) Logger.minor(this, "Queue full, dropping handshake "+job);
+				return false;
+			}
+			jobs.add(new Job(job, key, now));
+			if(threads >= maxThreads) return true;
+			threads++;
+		}
+		realExecutor.execute(runner, "Handshake processor");
+		return true;
+	}
+
+	private void rollWindows(long now) {
+		if(now - windowStart >= 1000 || now < windowStart) {
+			windowStart = now;
+			cpuUsed = 0;
+		}
+		if(now - minuteStart >= 60*1000 || now < minuteStart) {
+			completedLastMinute = now - minuteStart >= 120*1000 ? 0 : completedThisMinute;
+			completedThisMinute = 0;
+			minuteStart = now;
+		}
+	}
+
+	private long cpuTime() {
+		if(threadBean != null)
+			return threadBean.getCurrentThreadCpuTime();
+		return System.nanoTime();
+	}
+
+	/** Remove and return the first job whose key isn't being processed. */
+	private Job nextJob() {
+		for(Iterator<Job> it = jobs.iterator(); it.hasNext();) {
+			Job job = it.next();
+			if(job.key == null) {
+				it.remove();
+				return job;
+			}
+			if(running.add(job.key)) {
+				it.remove();
+				return job;
+			}
+		}
+		return null;
+	}
+
+	private final Runnable runner = new PrioRunnable() {
+
+		public void run() {
+			while(true) {
+				Job job;
+				synchronized(HandshakeExecutor.this) {
+					job = nextJob();
+					if(job == null) {
+						// Any jobs left are waiting for a handshake with the
+						// same key, whose thread will run them next.
+						threads--;
+						return;
+					}
+				}
+				long start = System.currentTimeMillis();
+				queueTime.report(start - job.queued);
+				long startCPU = cpuTime();
+				try {
+					job.job.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" processing handshake "+job.job, t);
+				}
+				long used = cpuTime() - startCPU;
+				synchronized(HandshakeExecutor.this) {
+					if(job.key != null) running.remove(job.key);
+					rollWindows(System.currentTimeMillis());
+					cpuUsed += used;
+					completed++;
+					completedThisMinute++;
+				}
+			}
+		}
+
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
+
+	/** Time from queueing a handshake to starting it, in milliseconds */
+	public Histogram getQueueTime() {
+		return queueTime;
+	}
+
+	public synchronized long countCompleted() {
+		return completed;
+	}
+
+	public synchronized long countDroppedQueueFull() {
+		return droppedQueueFull;
+	}
+
+	public synchronized long countDroppedOverBudget() {
+		return droppedOverBudget;
+	}
+
+	/** Handshake packets processed in the last whole minute */
+	public synchronized int completedLastMinute() {
+		rollWindows(System.currentTimeMillis());
+		return completedLastMinute;
+	}
+
+	public synchronized int queued() {
+		return jobs.size();
+	}
+
+	public synchronized int threads() {
+		return threads;
+	}
+
+	public int getMaxThreads() {
+		return maxThreads;
+	}
+
+}
@@ -0,0 +1,133 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.support.Logger;
+
+/**
+ * The load figures which NodeStats.shouldRejectRequest() uses, other than the
+ * number of requests running and the token buckets. Working these out means
+ * walking the thread groups, taking the collector and NodeStats locks and
+ * reading a couple of dozen running averages, none of which change much from
+ * one request to the next. So we work them out every so often, and every
+ * request reads the latest snapshot without taking any locks.
+ *
+ * Immutable.
+ */
+final class LoadSnapshot {
+
+	/** When we took the snapshot */
+	final long time;
+	final int threadCount;
+	/** Average delay caused by throttling for sending a packet */
+	final double bwlimitDelayTime;
+	/** Median ping time over the connected peers */
+	final double pingTime;
+	/** The fraction of output bytes which are used for requests */
+	final double overheadFraction;
+	/** Output bytes we can use for requests in 90 seconds */
+	final double bandwidthAvailableOutput;
+	/** Input bytes we can use for requests in 90 seconds */
+	final double bandwidthAvailableInput;
+
+	// Averages used to work out the bandwidth liability.
+	final double successfulChkFetchBytesSent;
+	final double successfulSskFetchBytesSent;
+	final double successfulChkInsertBytesSent;
+	final double successfulSskInsertBytesSent;
+	final double successfulChkOfferReplyBytesSent;
+	final double successfulSskOfferReplyBytesSent;
+	final double localChkFetchBytesSent;
+	final double localSskFetchBytesSent;
+	final double successfulChkFetchBytesReceived;
+	final double successfulSskFetchBytesReceived;
+	final double successfulChkInsertBytesReceived;
+	final double successfulSskInsertBytesReceived;
+	final double successfulChkOfferReplyBytesReceived;
+	final double successfulSskOfferReplyBytesReceived;
+	final double localChkInsertBytesReceived;
+	final double localSskInsertBytesReceived;
+
+	/** Expected bytes sent and received for a request of each type, see
+	 * expectedBytes() */
+	private final double[] expected;
+
+	LoadSnapshot(NodeStats stats, Node node, long now, boolean logMINOR) {
+		time = now;
+		threadCount = stats.getActiveThreadCount();
+		bwlimitDelayTime = stats.throttledPacketSendAverage.currentValue();
+		pingTime = stats.nodePinger.averagePingTime();
+
+		long[] total = node.collector.getTotalIO();
+		long totalSent = total[0];
+		long totalOverhead = stats.getSentOverhead();
+		long uptime = node.getUptime();
+		double sentOverheadPerSecond = (totalOverhead*1000.0) / (uptime);
+		double overheadFraction = ((double)(totalSent - totalOverhead)) / totalSent;
+		long timeFirstAnyConnections = stats.peers.timeFirstAnyConnections;
+		if(logMINOR) Logger.minor(this, "Output rate: "+(totalSent*1000.0)/uptime+" overhead rate "+sentOverheadPerSecond+" non-overhead fraction "+overheadFraction);
+		if(timeFirstAnyConnections > 0) {
+			long t = now - timeFirstAnyConnections;
+			if(t < NodeStats.DEFAULT_ONLY_PERIOD) {
+				overheadFraction = NodeStats.DEFAULT_OVERHEAD;
+				if(logMINOR) Logger.minor(this, "Adjusted overhead fraction: "+overheadFraction);
+			} else if(t < NodeStats.DEFAULT_ONLY_PERIOD + NodeStats.DEFAULT_TRANSITION_PERIOD) {
+				t -= NodeStats.DEFAULT_ONLY_PERIOD;
+				overheadFraction = (t * overheadFraction +
+					(NodeStats.DEFAULT_TRANSITION_PERIOD - t) * NodeStats.DEFAULT_OVERHEAD) / NodeStats.DEFAULT_TRANSITION_PERIOD;
+				if(logMINOR) Logger.minor(this, "Adjusted overhead fraction: "+overheadFraction);
+			}
+		} else if(overheadFraction < NodeStats.MIN_OVERHEAD) {
+			Logger.error(this, "Overhead fraction is "+overheadFraction+" - assuming this is self-inflicted and using default");
+			overheadFraction = NodeStats.DEFAULT_OVERHEAD;
+		}
+		this.overheadFraction = overheadFraction;
+
+		int outputLimit = node.getOutputBandwidthLimit();
+		double outputAvailablePerSecond = outputLimit - sentOverheadPerSecond;
+		// If there's been an auto-update, we may have used a vast amount of bandwidth for it.
+		// Also, if things have broken, our overhead might be above our bandwidth limit,
+		// especially on a slow node.
+
+		// So impose a minimum of 20% of the bandwidth limit.
+		// This will ensure we don't get stuck in any situation where all our bandwidth is overhead,
+		// and we don't accept any requests because of that, so it remains that way...
+		if(logMINOR) Logger.minor(this, "Overhead per second: "+sentOverheadPerSecond+" bwlimit: "+outputLimit+" => output available per second: "+outputAvailablePerSecond+" but minimum of "+outputLimit / 5.0);
+		outputAvailablePerSecond = Math.max(outputAvailablePerSecond, outputLimit / 5.0);
+		// 90 seconds at full power; we have to leave some time for the search as well
+		bandwidthAvailableOutput = outputAvailablePerSecond * 90;
+		int inputLimit = node.getInputBandwidthLimit();
+		bandwidthAvailableInput = inputLimit * 90L; // 90 seconds at full power; avoid integer overflow
+		if(bandwidthAvailableInput < 0){
+			Logger.error(this, "Negative available bandwidth: "+bandwidthAvailableInput+" node.ibwlimit="+inputLimit+" node.obwlimit="+outputLimit+" node.inputLimitDefault="+node.inputLimitDefault);
+		}
+
+		successfulChkFetchBytesSent = stats.successfulChkFetchBytesSentAverage.currentValue();
+		successfulSskFetchBytesSent = stats.successfulSskFetchBytesSentAverage.currentValue();
+		successfulChkInsertBytesSent = stats.successfulChkInsertBytesSentAverage.currentValue();
+		successfulSskInsertBytesSent = stats.successfulSskInsertBytesSentAverage.currentValue();
+		successfulChkOfferReplyBytesSent = stats.successfulChkOfferReplyBytesSentAverage.currentValue();
+		successfulSskOfferReplyBytesSent = stats.successfulSskOfferReplyBytesSentAverage.currentValue();
+		localChkFetchBytesSent = stats.localChkFetchBytesSentAverage.currentValue();
+		localSskFetchBytesSent = stats.localSskFetchBytesSentAverage.currentValue();
+		successfulChkFetchBytesReceived = stats.successfulChkFetchBytesReceivedAverage.currentValue();
+		successfulSskFetchBytesReceived = stats.successfulSskFetchBytesReceivedAverage.currentValue();
+		successfulChkInsertBytesReceived = stats.successfulChkInsertBytesReceivedAverage.currentValue();
+		successfulSskInsertBytesReceived = stats.successfulSskInsertBytesReceivedAverage.currentValue();
+		successfulChkOfferReplyBytesReceived = stats.successfulChkOfferReplyBytesReceivedAverage.currentValue();
+		successfulSskOfferReplyBytesReceived = stats.successfulSskOfferReplyBytesReceivedAverage.currentValue();
+		localChkInsertBytesReceived = stats.localChkInsertBytesReceivedAverage.currentValue();
+		localSskInsertBytesReceived = stats.localSskInsertBytesReceivedAverage.currentValue();
+
+		expected = new double[16];
+		for(int i=0;i<expected.length;i++)
+			expected[i] = stats.getThrottle((i & 8) != 0, (i & 4) != 0, (i & 2) != 0, (i & 1) != 0).currentValue();
+	}
+
+	/** @return The average bytes sent or received by a request of the given type. */
+	double expectedBytes(boolean isLocal, boolean isInsert, boolean isSSK, boolean isSent) {
+		return expected[(isLocal ? 8 : 0) | (isInsert ? 4 : 0) | (isSSK ? 2 : 0) | (isSent ? 1 : 0)];
+	}
+
+}
@@ -108,13 +108,16 @@ import freenet.store.BerkeleyDBFreenetStore;
 import freenet.store.CHKStore;
 import freenet.store.FreenetStore;
 import freenet.store.KeyCollisionException;
+import freenet.store.MultiStoreFetch;
 import freenet.store.NullFreenetStore;
 import freenet.store.PubkeyStore;
 import freenet.store.RAMFreenetStore;
+import freenet.store.SlabRAMFreenetStore;
 import freenet.store.SSKStore;
 import freenet.store.SlashdotStore;
 import freenet.store.StorableBlock;
 import freenet.store.StoreCallback;
+import freenet.store.StoreIOExecutor;
 import freenet.store.FreenetStore.StoreType;
 import freenet.store.saltedhash.SaltedHashFreenetStore;
 import freenet.support.Base64;
@@ -231,6 +234,14 @@ public class Node implements TimeSkewDetectorCallback {
 				Logger.error(this, "Caught migrating old store: "+e, e);
 			}
 			ramstore.clear();
+		} else if(store instanceof SlabRAMFreenetStore) {
+			SlabRAMFreenetStore<T> ramstore = (SlabRAMFreenetStore<T>)store;
+			try {
+				ramstore.migrateTo(newStore, canReadClientCache);
+			} catch (IOException e) {
+				Logger.error(this, "Caught migrating old store: "+e, e);
+			}
+			ramstore.clear();
 		} else if(store instanceof SaltedHashFreenetStore) {
 			SaltedHashFreenetStore saltstore = (SaltedHashFreenetStore) store;
 			// FIXME
@@ -326,7 +337,7 @@ public class Node implements TimeSkewDetectorCallback {
 			synchronized(Node.this) {
 				type = storeType;
 			}
-			if(type.equals("ram")) {
+			if(type.equals("ram") || type.equals("ram-slab")) {
 				Runnable migrate = new MigrateOldStoreData(false);
 				synchronized(this) { // Serialise this part.
 					String suffix = getStoreSuffix();
@@ -351,7 +362,7 @@ public class Node implements TimeSkewDetectorCallback {
 							throw new InvalidConfigValueException("Unable to create new store: "+e);
 						}
 					} else {
-						initRAMFS();
+						initRAMFS(val.equals("ram-slab"));
 					}
 					
 					if (storeType.equals("salt-hash")) {
@@ -371,7 +382,7 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 
 		public String[] getPossibleValues() {
-			return new String[] { "bdb-index", "salt-hash", "ram" };
+			return new String[] { "bdb-index", "salt-hash", "ram", "ram-slab" };
 		}
 	}
 	
@@ -447,8 +458,8 @@ public class Node implements TimeSkewDetectorCallback {
 						} finally {
 							MasterKeys.clear(key);
 						}
-					} else if(val.equals("ram")) {
-						initRAMClientCacheFS();
+					} else if(val.equals("ram") || val.equals("ram-slab")) {
+						initRAMClientCacheFS(val.equals("ram-slab"));
 					} else /*if(val.equals("none")) */{
 						initNoClientCacheFS();
 					}
@@ -465,7 +476,7 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 
 		public String[] getPossibleValues() {
-			return new String[] { "salt-hash", "ram", "none" };
+			return new String[] { "salt-hash", "ram", "ram-slab", "none" };
 		}
 	}
 	
@@ -654,6 +665,21 @@ public class Node implements TimeSkewDetectorCallback {
 	
 	/** If false, only ULPRs will use the slashdot cache. If true, everything does. */
 	private boolean useSlashdotCache;
+	/** If true, fetch() reads the on-disk stores in parallel on storeIOExecutor. */
+	private boolean parallelStoreFetch;
+	/** Reads and cache writes for the on-disk stores. They are all in storeDir,
+	 * so they share one disk and one executor. */
+	private final StoreIOExecutor storeIOExecutor;
+	/** Processes JFK handshake packets off the packet receive thread */
+	public final HandshakeExecutor handshakeExecutor;
+	/** Maximum number of handshake packets waiting to be processed */
+	static final int HANDSHAKE_MAX_QUEUED = 128;
+	/** Share of the CPU handshakes may use, in percent */
+	static final int HANDSHAKE_CPU_PERCENT = 25;
+	private int storeIOThreads;
+	/** Maximum number of store jobs queued at each priority; after that,
+	 * request threads do their own I/O */
+	private static final int STORE_IO_MAX_QUEUED = 64;
 	/** If true, we write stuff to the datastore even though we shouldn't because the HTL is
 	 * too high. However it is flagged as old so it won't be included in the Bloom filter for
 	 * sharing purposes. */
@@ -780,6 +806,8 @@ public class Node implements TimeSkewDetectorCallback {
 	public final long lastBootID;
 	public final long bootID;
 	public final long startupTime;
+	/** When the last phase of startup finished, see startupPhase() */
+	private long lastStartupPhase;
 
 	private SimpleToadletServer toadlets;
 	
@@ -969,11 +997,13 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println(tmp);
 		collector = new IOStatisticCollector();
 		this.executor = executor;
+		handshakeExecutor = new HandshakeExecutor(executor, HandshakeExecutor.defaultThreads(), HANDSHAKE_MAX_QUEUED, HANDSHAKE_CPU_PERCENT);
 		nodeStarter=ns;
 		if(logConfigHandler != lc)
 			logConfigHandler=lc;
 		getPubKey = new GetPubkey(this);
 		startupTime = System.currentTimeMillis();
+		lastStartupPhase = startupTime;
 		SimpleFieldSet oldConfig = config.getSimpleFieldSet();
 		// Setup node-specific configuration
 		final SubConfig nodeConfig = new SubConfig("node", config);
@@ -1937,7 +1967,7 @@ public class Node implements TimeSkewDetectorCallback {
 		
 		maxTotalDatastoreSize = nodeConfig.getLong("storeSize");
 		
-		if(maxTotalDatastoreSize < 0 || maxTotalDatastoreSize < (32 * 1024 * 1024) && !storeType.equals("ram")) { // totally arbitrary minimum!
+		if(maxTotalDatastoreSize < 0 || maxTotalDatastoreSize < (32 * 1024 * 1024) && !storeType.startsWith("ram")) { // totally arbitrary minimum!
 			throw new NodeInitException(NodeInitException.EXIT_INVALID_STORE_SIZE, "Invalid store size");
 		}
 
@@ -2007,6 +2037,21 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		storeSaltHashResizeOnStart = nodeConfig.getBoolean("storeSaltHashResizeOnStart");
 
+		nodeConfig.register("storeSaltHashMigrationRate", 1280, sortOrder++, true, false,
+				"Node.storeSaltHashMigrationRate", "Node.storeSaltHashMigrationRateLong", new IntCallback() {
+			@Override
+			public Integer get() {
+				return SaltedHashFreenetStore.getMigrationRate();
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				SaltedHashFreenetStore.setMigrationRate(val);
+			}
+		}, false);
+		SaltedHashFreenetStore.setMigrationRate(Math.max(0, nodeConfig.getInt("storeSaltHashMigrationRate")));
+
 		nodeConfig.register("storeDir", "datastore", sortOrder++, true, true, "Node.storeDirectory", "Node.storeDirectoryLong", 
 				new StringCallback() {
 					@Override
@@ -2141,13 +2186,15 @@ public class Node implements TimeSkewDetectorCallback {
 			databaseMaxMemory = Fields.parseLong(nodeConfig.getOption("databaseMaxMemory").getDefault());
 		}
 		
+		startupPhase("Reading the configuration");
 		if (storeType.equals("salt-hash")) {
 			initSaltHashFS(suffix, false, null);
 		} else if (storeType.equals("bdb-index")) {
 			initBDBFS(suffix);
 		} else {
-			initRAMFS();
+			initRAMFS(storeType.equals("ram-slab"));
 		}
+		startupPhase("Opening the datastore");
 		
 		nodeStats = new NodeStats(this, sortOrder, new SubConfig("node.load", config), obwLimit, ibwLimit, nodeDir);
 		
@@ -2261,14 +2308,15 @@ public class Node implements TimeSkewDetectorCallback {
 			initNoClientCacheFS();
 			startedClientCache = true;
 			break;
-		} else { // ram
-			initRAMClientCacheFS();
+		} else { // ram or ram-slab
+			initRAMClientCacheFS(clientCacheType.equals("ram-slab"));
 			startedClientCache = true;
 			break;
 		}
 		}
 		if(!startedClientCache)
-			initRAMClientCacheFS();
+			initRAMClientCacheFS(false);
+		startupPhase("Opening the client cache");
 		
 		if(db == null && databaseKey != null)  {
 			try {
@@ -2304,6 +2352,40 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		useSlashdotCache = nodeConfig.getBoolean("useSlashdotCache");
 		
+		nodeConfig.register("parallelStoreFetch", true, sortOrder++, true, false, "Node.parallelStoreFetch", "Node.parallelStoreFetchLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return parallelStoreFetch;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				parallelStoreFetch = val;
+			}
+			
+		});
+		parallelStoreFetch = nodeConfig.getBoolean("parallelStoreFetch");
+		
+		nodeConfig.register("storeIOThreads", 4, sortOrder++, true, false, "Node.storeIOThreads", "Node.storeIOThreadsLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				return storeIOThreads;
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if(val < 0) throw new InvalidConfigValueException(l10n("mustBePositive"));
+				storeIOThreads = val;
+				storeIOExecutor.setMaxThreads(val);
+			}
+			
+		}, false);
+		storeIOThreads = Math.max(0, nodeConfig.getInt("storeIOThreads"));
+		storeIOExecutor = new StoreIOExecutor(executor, "Datastore I/O", storeIOThreads, STORE_IO_MAX_QUEUED,
+				nodeStats.storeIOQueueDepth, nodeStats.storeIOLatency);
+		
 		nodeConfig.register("writeLocalToDatastore", false, sortOrder++, true, false, "Node.writeLocalToDatastore", "Node.writeLocalToDatastoreLong", new BooleanCallback() {
 
 			@Override
@@ -2473,10 +2555,23 @@ public class Node implements TimeSkewDetectorCallback {
 			toadlets.removeStartupToadlet();
 		}
 
+		startupPhase("Creating the rest of the node");
 		Logger.normal(this, "Node constructor completed");
 		System.out.println("Node constructor completed");
 	}
 
+	/**
+	 * Log how long a phase of startup took, so we can see what slows it down.
+	 * @param phase What we have just finished doing.
+	 */
+	private void startupPhase(String phase) {
+		long now = System.currentTimeMillis();
+		String msg = "Startup: "+phase+" took "+(now - lastStartupPhase)+"ms ("+(now - startupTime)+"ms since start)";
+		Logger.normal(this, msg);
+		System.out.println(msg);
+		lastStartupPhase = now;
+	}
+
 	public void lateSetupDatabase(byte[] databaseKey) throws MasterKeysWrongPasswordException, MasterKeysFileTooBigException, MasterKeysFileTooShortException, IOException {
 		if(db != null) return;
 		System.out.println("Starting late database initialisation");
@@ -2759,13 +2854,19 @@ public class Node implements TimeSkewDetectorCallback {
 		this.clientCore.alerts.register(masterPasswordUserAlert);
 	}
 
-	private void initRAMClientCacheFS() {
+	/**
+	 * Create an in-memory client cache.
+	 * @param slab If true, keep the blocks in preallocated off-heap memory
+	 * (SlabRAMFreenetStore) rather than on the Java heap (RAMFreenetStore).
+	 */
+	private void initRAMClientCacheFS(boolean slab) {
+		int keys = (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys);
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		createRAMStore(chkClientcache, keys, slab);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		createRAMStore(pubKeyClientcache, keys, slab);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		createRAMStore(sskClientcache, keys, slab);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
@@ -2860,24 +2961,38 @@ public class Node implements TimeSkewDetectorCallback {
 		}
 	}
 
-	private void initRAMFS() {
+	/**
+	 * Create an in-memory datastore.
+	 * @param slab If true, keep the blocks in preallocated off-heap memory
+	 * (SlabRAMFreenetStore) rather than on the Java heap (RAMFreenetStore).
+	 */
+	private void initRAMFS(boolean slab) {
+		int storeKeys = (int) Math.min(Integer.MAX_VALUE, maxStoreKeys);
+		int cacheKeys = (int) Math.min(Integer.MAX_VALUE, maxCacheKeys);
 		chkDatastore = new CHKStore();
-		new RAMFreenetStore(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		createRAMStore(chkDatastore, storeKeys, slab);
 		chkDatacache = new CHKStore();
-		new RAMFreenetStore(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		createRAMStore(chkDatacache, cacheKeys, slab);
 		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		createRAMStore(pubKeyDatastore, storeKeys, slab);
 		pubKeyDatacache = new PubkeyStore();
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		createRAMStore(pubKeyDatacache, cacheKeys, slab);
 		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		createRAMStore(sskDatastore, storeKeys, slab);
 		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		createRAMStore(sskDatacache, cacheKeys, slab);
 		envMutableConfig = null;
 		this.storeEnvironment = null;
 	}
 
+	private <T extends StorableBlock> void createRAMStore(StoreCallback<T> callback, int maxKeys, boolean slab) {
+		if(slab)
+			new SlabRAMFreenetStore<T>(callback, maxKeys);
+		else
+			new RAMFreenetStore<T>(callback, maxKeys);
+	}
+
 	private boolean isBDBStoreExist(final String suffix) {
 		for(String type : new String[] { "chk", "pubkey", "ssk" }) {
 			for(String ver : new String[] { "store", "cache" }) {
@@ -3218,6 +3333,7 @@ public class Node implements TimeSkewDetectorCallback {
 		// Process any data in the extra peer data directory
 		peers.readExtraPeerData();
 		
+		startupPhase("Starting the node");
 		Logger.normal(this, "Started node");
 		
 		hasStarted = true;
@@ -3610,106 +3726,136 @@ public class Node implements TimeSkewDetectorCallback {
 	}
 	
 	public SSKBlock fetch(NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
-		if(canReadClientCache) {
-			try {
-				SSKBlock block = sskClientcache.fetch(key, dontPromote || !canWriteClientCache, canReadClientCache, forULPR);
-				if(block != null) return block;
-			} catch (IOException e) {
-				Logger.error(this, "Could not read from client cache: "+e, e);
-			}
+		byte[] routingKey = key.getRoutingKey();
+		MultiStoreFetch<SSKBlock> probes = new MultiStoreFetch<SSKBlock>();
+		if(canReadClientCache && sskClientcache.probablyInStore(routingKey))
+			probes.add(new SSKProbe("client cache", clientCacheOnDisk(), sskClientcache, null, key, dontPromote || !canWriteClientCache, canReadClientCache, forULPR));
+		if((forULPR || useSlashdotCache || canReadClientCache) && sskSlashdotcache.probablyInStore(routingKey))
+			probes.add(new SSKProbe("slashdot/ULPR cache", false, sskSlashdotcache, null, key, dontPromote, canReadClientCache, forULPR));
+		SSKStore oldStore = oldSSK;
+		SSKProbe store = null;
+		if(oldStore != null || sskDatastore.probablyInStore(routingKey)) {
+			store = new SSKProbe("datastore", datastoreOnDisk(), sskDatastore, oldStore, key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
+			probes.add(store);
+		}
+		oldStore = oldSSKCache;
+		SSKProbe cache = null;
+		if(oldStore != null || sskDatacache.probablyInStore(routingKey)) {
+			cache = new SSKProbe("datacache", datastoreOnDisk(), sskDatacache, oldStore, key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
+			probes.add(cache);
+		}
+		long start = System.currentTimeMillis();
+		SSKBlock block = probes.fetch(parallelStoreFetch ? storeIOExecutor : null, canReadClientCache ? StoreIOExecutor.CLIENT_READ : StoreIOExecutor.READ);
+		nodeStats.requestTimings.reportSince(RequestTimings.SSK_REQUEST, RequestTimings.STORE, start);
+		reportStoreFetch(key, probes.getHit(), store, cache);
+		return block;
+	}
+
+	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
+		byte[] routingKey = key.getRoutingKey();
+		MultiStoreFetch<CHKBlock> probes = new MultiStoreFetch<CHKBlock>();
+		if(canReadClientCache && chkClientcache.probablyInStore(routingKey))
+			probes.add(new CHKProbe("client cache", clientCacheOnDisk(), chkClientcache, null, key, dontPromote || !canWriteClientCache));
+		if((forULPR || useSlashdotCache || canReadClientCache) && chkSlashdotcache.probablyInStore(routingKey))
+			probes.add(new CHKProbe("slashdot/ULPR cache", false, chkSlashdotcache, null, key, dontPromote));
+		CHKStore oldStore = oldCHK;
+		CHKProbe store = null;
+		if(oldStore != null || chkDatastore.probablyInStore(routingKey)) {
+			store = new CHKProbe("datastore", datastoreOnDisk(), chkDatastore, oldStore, key, dontPromote || !canWriteDatastore);
+			probes.add(store);
+		}
+		oldStore = oldCHKCache;
+		CHKProbe cache = null;
+		if(oldStore != null || chkDatacache.probablyInStore(routingKey)) {
+			cache = new CHKProbe("datacache", datastoreOnDisk(), chkDatacache, oldStore, key, dontPromote || !canWriteDatastore);
+			probes.add(cache);
+		}
+		long start = System.currentTimeMillis();
+		CHKBlock block = probes.fetch(parallelStoreFetch ? storeIOExecutor : null, canReadClientCache ? StoreIOExecutor.CLIENT_READ : StoreIOExecutor.READ);
+		nodeStats.requestTimings.reportSince(RequestTimings.CHK_REQUEST, RequestTimings.STORE, start);
+		reportStoreFetch(key, probes.getHit(), store, cache);
+		return block;
+	}
+
+	/** Update the location statistics after looking in the stores. Hits in the
+	 * client cache and the slashdot cache are not counted, as before. */
+	private void reportStoreFetch(Key key, MultiStoreFetch.Probe<?> hit, MultiStoreFetch.Probe<?> store, MultiStoreFetch.Probe<?> cache) {
+		if(hit != null && hit != store && hit != cache) return;
+		if(logMINOR) dumpStoreHits();
+		double loc=key.toNormalizedDouble();
+		double dist=Location.distance(lm.getLocation(), loc);
+		nodeStats.avgRequestLocation.report(loc);
+		if(hit == null) return;
+		if(hit == store) {
+			nodeStats.avgStoreSuccess.report(loc);
+			if (dist > nodeStats.furthestStoreSuccess)
+				nodeStats.furthestStoreSuccess=dist;
+		} else {
+			nodeStats.avgCacheSuccess.report(loc);
+			if (dist > nodeStats.furthestCacheSuccess)
+				nodeStats.furthestCacheSuccess=dist;
 		}
-		if(forULPR || useSlashdotCache || canReadClientCache) {
-			try {
-				SSKBlock block = sskSlashdotcache.fetch(key, dontPromote, canReadClientCache, forULPR);
-				if(block != null) return block;
-			} catch (IOException e) {
-				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
-			}
+	}
+
+	private boolean datastoreOnDisk() {
+		return !storeType.startsWith("ram");
+	}
+
+	private boolean clientCacheOnDisk() {
+		return clientCacheType.equals("salt-hash");
+	}
+
+	/** Read from a CHK store, and from the old format store if the block isn't there. */
+	private static class CHKProbe extends MultiStoreFetch.Probe<CHKBlock> {
+
+		private final CHKStore store;
+		private final CHKStore oldStore;
+		private final NodeCHK key;
+		private final boolean dontPromote;
+
+		CHKProbe(String name, boolean onDisk, CHKStore store, CHKStore oldStore, NodeCHK key, boolean dontPromote) {
+			super(name, onDisk);
+			this.store = store;
+			this.oldStore = oldStore;
+			this.key = key;
+			this.dontPromote = dontPromote;
 		}
-		if(logMINOR) dumpStoreHits();
-		try {
-			double loc=key.toNormalizedDouble();
-			double dist=Location.distance(lm.getLocation(), loc);
-			nodeStats.avgRequestLocation.report(loc);
-			SSKBlock block = sskDatastore.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
-			if(block == null) {
-				SSKStore store = oldSSK;
-				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
-			}
-			if(block != null) {
-				nodeStats.avgStoreSuccess.report(loc);
-				if (dist > nodeStats.furthestStoreSuccess)
-					nodeStats.furthestStoreSuccess=dist;
-				return block;
-			}
-			block=sskDatacache.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
-			if(block == null) {
-				SSKStore store = oldSSKCache;
-				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore, canReadClientCache, forULPR);
-			}
-			if (block != null) {
-				nodeStats.avgCacheSuccess.report(loc);
-				if (dist > nodeStats.furthestCacheSuccess)
-					nodeStats.furthestCacheSuccess=dist;
-			}
+
+		@Override
+		protected CHKBlock fetch() throws IOException {
+			CHKBlock block = store.fetch(key, dontPromote);
+			if(block == null && oldStore != null)
+				block = oldStore.fetch(key, dontPromote);
 			return block;
-		} catch (IOException e) {
-			Logger.error(this, "Cannot fetch data: "+e, e);
-			return null;
 		}
 	}
 
-	public CHKBlock fetch(NodeCHK key, boolean dontPromote, boolean canReadClientCache, boolean canWriteClientCache, boolean canWriteDatastore, boolean forULPR) {
-		if(canReadClientCache) {
-			try {
-				CHKBlock block = chkClientcache.fetch(key, dontPromote || !canWriteClientCache);
-				if(block != null) return block;
-			} catch (IOException e) {
-				Logger.error(this, "Could not read from client cache: "+e, e);
-			}
-		}
-		if(forULPR || useSlashdotCache || canReadClientCache) {
-			try {
-				CHKBlock block = chkSlashdotcache.fetch(key, dontPromote);
-				if(block != null) return block;
-			} catch (IOException e) {
-				Logger.error(this, "Could not read from slashdot/ULPR cache: "+e, e);
-			}
+	/** Read from an SSK store, and from the old format store if the block isn't there. */
+	private static class SSKProbe extends MultiStoreFetch.Probe<SSKBlock> {
+
+		private final SSKStore store;
+		private final SSKStore oldStore;
+		private final NodeSSK key;
+		private final boolean dontPromote;
+		private final boolean canReadClientCache;
+		private final boolean forULPR;
+
+		SSKProbe(String name, boolean onDisk, SSKStore store, SSKStore oldStore, NodeSSK key, boolean dontPromote, boolean canReadClientCache, boolean forULPR) {
+			super(name, onDisk);
+			this.store = store;
+			this.oldStore = oldStore;
+			this.key = key;
+			this.dontPromote = dontPromote;
+			this.canReadClientCache = canReadClientCache;
+			this.forULPR = forULPR;
 		}
-		if(logMINOR) dumpStoreHits();
-		try {
-			double loc=key.toNormalizedDouble();
-			double dist=Location.distance(lm.getLocation(), loc);
-			nodeStats.avgRequestLocation.report(loc);
-			CHKBlock block = chkDatastore.fetch(key, dontPromote || !canWriteDatastore);
-			if(block == null) {
-				CHKStore store = oldCHK;
-				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore);
-			}
-			if (block != null) {
-				nodeStats.avgStoreSuccess.report(loc);
-				if (dist > nodeStats.furthestStoreSuccess)
-					nodeStats.furthestStoreSuccess=dist;
-				return block;
-			}
-			block=chkDatacache.fetch(key, dontPromote || !canWriteDatastore);
-			if(block == null) {
-				CHKStore store = oldCHKCache;
-				if(store != null)
-					block = store.fetch(key, dontPromote || !canWriteDatastore);
-			}
-			if (block != null) {
-				nodeStats.avgCacheSuccess.report(loc);
-				if (dist > nodeStats.furthestCacheSuccess)
-					nodeStats.furthestCacheSuccess=dist;
-			}
+
+		@Override
+		protected SSKBlock fetch() throws IOException {
+			SSKBlock block = store.fetch(key, dontPromote, canReadClientCache, forULPR);
+			if(block == null && oldStore != null)
+				block = oldStore.fetch(key, dontPromote, canReadClientCache, forULPR);
 			return block;
-		} catch (IOException e) {
-			Logger.error(this, "Cannot fetch data: "+e, e);
-			return null;
 		}
 	}
 	
@@ -3780,7 +3926,10 @@ public class Node implements TimeSkewDetectorCallback {
 					chkDatastore.put(block, canWriteDatastore);
 					nodeStats.avgStoreLocation.report(loc);
 				}
-				chkDatacache.put(block, canWriteDatastore);
+				if(deep || canWriteClientCache || !datastoreOnDisk())
+					chkDatacache.put(block, canWriteDatastore);
+				else
+					queueCacheWrite(block, canWriteDatastore);
 				nodeStats.avgCacheLocation.report(loc);
 			}
 			if(canWriteDatastore || forULPR || useSlashdotCache)
@@ -3798,6 +3947,26 @@ public class Node implements TimeSkewDetectorCallback {
 			clientCore.requestStarters.chkFetchScheduler.tripPendingKey(block);
 	}
 	
+	/**
+	 * Write a block to the datacache on storeIOExecutor, behind any reads,
+	 * for a request from another node. If the queue is full, write it now.
+	 */
+	private void queueCacheWrite(final CHKBlock block, final boolean canWriteDatastore) {
+		Runnable write = new Runnable() {
+
+			public void run() {
+				try {
+					chkDatacache.put(block, canWriteDatastore);
+				} catch (IOException e) {
+					Logger.error(this, "Cannot store data: "+e, e);
+				}
+			}
+
+		};
+		if(!storeIOExecutor.execute(write, StoreIOExecutor.CACHE_WRITE))
+			write.run();
+	}
+	
 	/** Store the block if this is a sink. Call for inserts. */
 	public void storeInsert(SSKBlock block, boolean overwrite, boolean canWriteClientCache, boolean canWriteDatastore) throws KeyCollisionException {
 		store(block, block.getKey().toNormalizedDouble(), true, canWriteClientCache, canWriteDatastore);
@@ -4420,7 +4589,7 @@ public class Node implements TimeSkewDetectorCallback {
 	
 	public boolean addPeerConnection(PeerNode pn) {
 		boolean retval = peers.addPeer(pn);
-		peers.writePeers();
+		peers.writePeers(pn);
 		return retval;
 	}
 	
@@ -5156,6 +5325,21 @@ public class Node implements TimeSkewDetectorCallback {
 		div.addChild("p", "Client cache size: CHK "+this.chkClientcache.keyCount()+" pubkey "+this.pubKeyClientcache.keyCount()+" SSK "+this.sskClientcache.keyCount());
 	}
 
+	public void drawStoreIOBox(HTMLNode storeSizeInfobox) {
+		HTMLNode div = storeSizeInfobox.addChild("div");
+		div.addChild("p", "Datastore I/O: "+storeIOExecutor.threads()+" threads (max "+storeIOExecutor.getMaxThreads()+"), "+storeIOExecutor.queued()+" queued; queue length "+nodeStats.storeIOQueueDepth);
+		String[] names = new String[] { "Local reads", "Remote reads", "Cache writes" };
+		for(int i=0;i<StoreIOExecutor.PRIORITIES;i++)
+			div.addChild("p", names[i]+" (ms): "+nodeStats.storeIOLatency[i]);
+	}
+
+	public void drawHandshakeBox(HTMLNode infobox) {
+		HTMLNode div = infobox.addChild("div");
+		div.addChild("p", "Handshakes: "+handshakeExecutor.threads()+" threads (max "+handshakeExecutor.getMaxThreads()+"), "+handshakeExecutor.queued()+" queued, "+handshakeExecutor.completedLastMinute()+" processed in the last minute");
+		div.addChild("p", "Handshakes processed: "+handshakeExecutor.countCompleted()+", dropped: "+handshakeExecutor.countDroppedQueueFull()+" queue full, "+handshakeExecutor.countDroppedOverBudget()+" over CPU budget");
+		div.addChild("p", "Handshake queue time (ms): "+handshakeExecutor.getQueueTime());
+	}
+
 	public void drawSlashdotCacheBox(HTMLNode storeSizeInfobox) {
 		HTMLNode div = storeSizeInfobox.addChild("div");
 		div.addChild("p", "Slashdot/ULPR cache max size: "+maxSlashdotCacheKeys+" keys");
@@ -5212,7 +5396,7 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void activatePasswordedClientCache(MasterKeys keys) {
 		synchronized(this) {
-			if(clientCacheType.equals("ram")) {
+			if(clientCacheType.startsWith("ram")) {
 				System.err.println("RAM client cache cannot be passworded!");
 				return;
 			}
@@ -725,7 +725,7 @@ public class NodeClientCore implements Persistable, DBJobRunner, OOMHook, Execut
 
 	public void start(Config config) throws NodeInitException {
 		backgroundBlockEncoder.setContext(clientContext);
-		node.executor.execute(backgroundBlockEncoder, "Background block encoder");
+		backgroundBlockEncoder.start(node.executor);
 		try {
 			clientContext.jobRunner.queue(new DBJob() {
 				
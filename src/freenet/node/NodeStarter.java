@@ -380,7 +380,7 @@ public class NodeStarter implements WrapperListener {
 		configFS.put("node.enableARKs", false);
 		configFS.put("node.load.threadLimit", threadLimit);
 		if(ramStore)
-			configFS.putSingle("node.storeType", "ram");
+			configFS.putSingle("node.storeType", "ram-slab");
 		configFS.put("node.storeSize", storeSize);
 		configFS.put("node.disableHangCheckers", true);
 		configFS.put("node.enableSwapping", enableSwapping);
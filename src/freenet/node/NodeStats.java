@@ -3,6 +3,7 @@ package freenet.node;
 import java.io.File;
 import java.text.DecimalFormat;
 import java.text.NumberFormat;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import freenet.config.InvalidConfigValueException;
 import freenet.config.NodeNeedRestartException;
@@ -12,9 +13,11 @@ import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.l10n.L10n;
 import freenet.node.SecurityLevels.NETWORK_THREAT_LEVEL;
+import freenet.store.StoreIOExecutor;
 import freenet.support.HTMLNode;
 import freenet.support.Logger;
 import freenet.support.LogThresholdCallback;
+import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
 import freenet.support.StringCounter;
 import freenet.support.TimeUtil;
@@ -24,6 +27,7 @@ import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
 import freenet.support.io.NativeThread;
 import freenet.support.math.DecayingKeyspaceAverage;
+import freenet.support.math.Histogram;
 import freenet.support.math.RunningAverage;
 import freenet.support.math.TimeDecayingRunningAverage;
 import freenet.support.math.BootstrappingDecayingRunningAverage;
@@ -187,6 +191,14 @@ public class NodeStats implements Persistable {
 	
 	protected final DecayingKeyspaceAverage avgRequestLocation;
 	
+	/** Number of datastore jobs already queued each time one is queued */
+	public final Histogram storeIOQueueDepth;
+	/** Datastore job latency in milliseconds, from queueing to finishing, by
+	 * StoreIOExecutor priority */
+	public final Histogram[] storeIOLatency;
+	/** Time spent in each phase of requests and inserts */
+	public final RequestTimings requestTimings;
+	
 	// ThreadCounting stuffs
 	public final ThreadGroup rootThreadGroup;
 	private int[] activeThreadsByPriorities = new int[NativeThread.JAVA_PRIORITY_RANGE];
@@ -250,6 +262,22 @@ public class NodeStats implements Persistable {
 		},false);
 		threadLimit = statsConfig.getInt("threadLimit");
 		
+		statsConfig.register("useVirtualThreads", false, sortOrder++, true, false, "NodeStat.useVirtualThreads", "NodeStat.useVirtualThreadsLong",
+				new BooleanCallback() {
+					@Override
+					public Boolean get() {
+						return (node.executor instanceof PooledExecutor) && ((PooledExecutor) node.executor).usingVirtualThreads();
+					}
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException {
+						if(!(node.executor instanceof PooledExecutor)) return;
+						if(!((PooledExecutor) node.executor).setUseVirtualThreads(val))
+							throw new InvalidConfigValueException(l10n("virtualThreadsUnavailable"));
+					}
+		});
+		if(node.executor instanceof PooledExecutor)
+			((PooledExecutor) node.executor).setUseVirtualThreads(statsConfig.getBoolean("useVirtualThreads"));
+		
 		// Yes it could be in seconds insteed of multiples of 0.12, but we don't want people to play with it :)
 		statsConfig.register("aggressiveGC", aggressiveGCModificator, sortOrder++, true, false, "NodeStat.aggressiveGC", "NodeStat.aggressiveGCLong",
 				new IntCallback() {
@@ -418,6 +446,25 @@ public class NodeStats implements Persistable {
 		this.avgCacheSuccess    = new DecayingKeyspaceAverage(nodeLoc, 10000, throttleFS == null ? null : throttleFS.subset("AverageCacheSuccessLocation"));
 		this.avgStoreSuccess    = new DecayingKeyspaceAverage(nodeLoc, 10000, throttleFS == null ? null : throttleFS.subset("AverageStoreSuccessLocation"));
 		this.avgRequestLocation = new DecayingKeyspaceAverage(nodeLoc, 10000, throttleFS == null ? null : throttleFS.subset("AverageRequestLocation"));
+		
+		statsConfig.register("requestTimings", false, sortOrder++, true, false, "NodeStat.requestTimings", "NodeStat.requestTimingsLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return requestTimings.isEnabled();
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException {
+				requestTimings.setEnabled(val);
+			}
+		});
+		requestTimings = new RequestTimings(statsConfig.getBoolean("requestTimings"));
+		
+		storeIOQueueDepth = new Histogram(10);
+		storeIOLatency = new Histogram[StoreIOExecutor.PRIORITIES];
+		for(int i=0;i<storeIOLatency.length;i++)
+			storeIOLatency[i] = new Histogram(16);
 	}
 	
 	protected String l10n(String key) {
@@ -432,6 +479,7 @@ public class NodeStats implements Persistable {
 		}, "Starting NodePinger");
 		persister.start();
 		node.getTicker().queueTimedJob(throttledPacketSendAverageIdleUpdater, CHECK_THROTTLE_TIME);
+		node.getTicker().queueTimedJob(loadSnapshotUpdater, LOAD_SNAPSHOT_INTERVAL);
 	}
 	
 	/** Every 60 seconds, check whether we need to adjust the bandwidth delay time because of idleness.
@@ -449,7 +497,7 @@ public class NodeStats implements Persistable {
 	 * in 60 seconds yet, because it hasn't had enough data in transit to need to increase its speed. */
 	private static final double MAX_PEER_QUEUE_TIME = 1 * 60 * 1000.0;
 	
-	private long lastAcceptedRequest = -1;
+	private volatile long lastAcceptedRequest = -1;
 	
 	final int estimatedSizeOfOneThrottledPacket;
 	
@@ -486,85 +534,98 @@ public class NodeStats implements Persistable {
 	static final long DEFAULT_TRANSITION_PERIOD = 240*1000;
 	static final double MIN_OVERHEAD = 0.01;
 	
+	/** How often to take a new LoadSnapshot */
+	static final int LOAD_SNAPSHOT_INTERVAL = 1000;
+	/** Take a new LoadSnapshot after accepting this many requests, because
+	 * each of them will start more threads. */
+	static final int LOAD_SNAPSHOT_ACCEPTED = 16;
+	
+	private volatile LoadSnapshot load;
+	/** Requests accepted since the last LoadSnapshot */
+	private final AtomicInteger acceptedSinceSnapshot = new AtomicInteger();
+	
+	final Runnable loadSnapshotUpdater = new Runnable() {
+		public void run() {
+			try {
+				updateLoadSnapshot();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			} finally {
+				node.getTicker().queueTimedJob(this, LOAD_SNAPSHOT_INTERVAL);
+			}
+		}
+	};
+	
+	/** Take a new snapshot of the load, e.g. because something significant
+	 * has changed, such as the bandwidth limits. */
+	void updateLoadSnapshot() {
+		acceptedSinceSnapshot.set(0);
+		load = new LoadSnapshot(this, node, System.currentTimeMillis(), logMINOR);
+	}
+	
+	/** @return The latest snapshot of the load, taking a new one if the
+	 * ticker has fallen behind. */
+	private LoadSnapshot getLoadSnapshot(long now) {
+		LoadSnapshot snapshot = load;
+		if(snapshot == null || now - snapshot.time > 2 * LOAD_SNAPSHOT_INTERVAL) {
+			updateLoadSnapshot();
+			snapshot = load;
+		}
+		return snapshot;
+	}
+	
 	/* return reject reason as string if should reject, otherwise return null */
 	public String shouldRejectRequest(boolean canAcceptAnyway, boolean isInsert, boolean isSSK, boolean isLocal, boolean isOfferReply, PeerNode source) {
 		if(logMINOR) dumpByteCostAverages();
 		
-		int threadCount = getActiveThreadCount();
+		long now = System.currentTimeMillis();
+		LoadSnapshot load = getLoadSnapshot(now);
+		
+		int threadCount = load.threadCount;
 		if(threadLimit < threadCount) {
 			pInstantRejectIncoming.report(1.0);
 			rejected(">threadLimit", isLocal);
 			return ">threadLimit ("+threadCount+'/'+threadLimit+')';
 		}
 		
-		double bwlimitDelayTime = throttledPacketSendAverage.currentValue();
+		double bwlimitDelayTime = load.bwlimitDelayTime;
+		double pingTime = load.pingTime;
+		long lastAcceptedRequest = this.lastAcceptedRequest;
 		
-		long[] total = node.collector.getTotalIO();
-		long totalSent = total[0];
-		long totalOverhead = getSentOverhead();
-		long uptime = node.getUptime();
-		double sentOverheadPerSecond = (totalOverhead*1000.0) / (uptime);
-		/** The fraction of output bytes which are used for requests */
-		double overheadFraction = ((double)(totalSent - totalOverhead)) / totalSent;
-		long timeFirstAnyConnections = peers.timeFirstAnyConnections;
-		long now = System.currentTimeMillis();
-		if(logMINOR) Logger.minor(this, "Output rate: "+(totalSent*1000.0)/uptime+" overhead rate "+sentOverheadPerSecond+" non-overhead fraction "+overheadFraction);
-		if(timeFirstAnyConnections > 0) {
-			long time = now - timeFirstAnyConnections;
-			if(time < DEFAULT_ONLY_PERIOD) {
-				overheadFraction = DEFAULT_OVERHEAD;
-				if(logMINOR) Logger.minor(this, "Adjusted overhead fraction: "+overheadFraction);
-			} else if(time < DEFAULT_ONLY_PERIOD + DEFAULT_TRANSITION_PERIOD) {
-				time -= DEFAULT_ONLY_PERIOD;
-				overheadFraction = (time * overheadFraction + 
-					(DEFAULT_TRANSITION_PERIOD - time) * DEFAULT_OVERHEAD) / DEFAULT_TRANSITION_PERIOD;
-				if(logMINOR) Logger.minor(this, "Adjusted overhead fraction: "+overheadFraction);
+		// Round trip time
+		if(pingTime > maxPingTime) {
+			if((now - lastAcceptedRequest > MAX_INTERREQUEST_TIME) && canAcceptAnyway) {
+				if(logMINOR) Logger.minor(this, "Accepting request anyway (take one every 10 secs to keep bwlimitDelayTime updated)");
+			} else {
+				pInstantRejectIncoming.report(1.0);
+				rejected(">MAX_PING_TIME", isLocal);
+				return ">MAX_PING_TIME ("+TimeUtil.formatTime((long)pingTime, 2, true)+ ')';
+			}
+		} else if(pingTime > subMaxPingTime) {
+			double x = ((pingTime - subMaxPingTime)) / (maxPingTime - subMaxPingTime);
+			if(node.fastWeakRandom.nextDouble() < x) {
+				pInstantRejectIncoming.report(1.0);
+				rejected(">SUB_MAX_PING_TIME", isLocal);
+				return ">SUB_MAX_PING_TIME ("+TimeUtil.formatTime((long)pingTime, 2, true)+ ')';
 			}
-		} else if(overheadFraction < MIN_OVERHEAD) {
-			Logger.error(this, "Overhead fraction is "+overheadFraction+" - assuming this is self-inflicted and using default");
-			overheadFraction = DEFAULT_OVERHEAD;
 		}
 		
-		// If no recent reports, no packets have been sent; correct the average downwards.
-		double pingTime;
-		pingTime = nodePinger.averagePingTime();
-		synchronized(this) {
-			// Round trip time
-			if(pingTime > maxPingTime) {
-				if((now - lastAcceptedRequest > MAX_INTERREQUEST_TIME) && canAcceptAnyway) {
-					if(logMINOR) Logger.minor(this, "Accepting request anyway (take one every 10 secs to keep bwlimitDelayTime updated)");
-				} else {
-					pInstantRejectIncoming.report(1.0);
-					rejected(">MAX_PING_TIME", isLocal);
-					return ">MAX_PING_TIME ("+TimeUtil.formatTime((long)pingTime, 2, true)+ ')';
-				}
-			} else if(pingTime > subMaxPingTime) {
-				double x = ((pingTime - subMaxPingTime)) / (maxPingTime - subMaxPingTime);
-				if(hardRandom.nextDouble() < x) {
-					pInstantRejectIncoming.report(1.0);
-					rejected(">SUB_MAX_PING_TIME", isLocal);
-					return ">SUB_MAX_PING_TIME ("+TimeUtil.formatTime((long)pingTime, 2, true)+ ')';
-				}
+		// Bandwidth limited packets
+		if(bwlimitDelayTime > MAX_THROTTLE_DELAY) {
+			if((now - lastAcceptedRequest > MAX_INTERREQUEST_TIME) && canAcceptAnyway) {
+				if(logMINOR) Logger.minor(this, "Accepting request anyway (take one every 10 secs to keep bwlimitDelayTime updated)");
+			} else {
+				pInstantRejectIncoming.report(1.0);
+				rejected(">MAX_THROTTLE_DELAY", isLocal);
+				return ">MAX_THROTTLE_DELAY ("+TimeUtil.formatTime((long)bwlimitDelayTime, 2, true)+ ')';
 			}
-		
-			// Bandwidth limited packets
-			if(bwlimitDelayTime > MAX_THROTTLE_DELAY) {
-				if((now - lastAcceptedRequest > MAX_INTERREQUEST_TIME) && canAcceptAnyway) {
-					if(logMINOR) Logger.minor(this, "Accepting request anyway (take one every 10 secs to keep bwlimitDelayTime updated)");
-				} else {
-					pInstantRejectIncoming.report(1.0);
-					rejected(">MAX_THROTTLE_DELAY", isLocal);
-					return ">MAX_THROTTLE_DELAY ("+TimeUtil.formatTime((long)bwlimitDelayTime, 2, true)+ ')';
-				}
-			} else if(bwlimitDelayTime > SUB_MAX_THROTTLE_DELAY) {
-				double x = ((bwlimitDelayTime - SUB_MAX_THROTTLE_DELAY)) / (MAX_THROTTLE_DELAY - SUB_MAX_THROTTLE_DELAY);
-				if(hardRandom.nextDouble() < x) {
-					pInstantRejectIncoming.report(1.0);
-					rejected(">SUB_MAX_THROTTLE_DELAY", isLocal);
-					return ">SUB_MAX_THROTTLE_DELAY ("+TimeUtil.formatTime((long)bwlimitDelayTime, 2, true)+ ')';
-				}
+		} else if(bwlimitDelayTime > SUB_MAX_THROTTLE_DELAY) {
+			double x = ((bwlimitDelayTime - SUB_MAX_THROTTLE_DELAY)) / (MAX_THROTTLE_DELAY - SUB_MAX_THROTTLE_DELAY);
+			if(node.fastWeakRandom.nextDouble() < x) {
+				pInstantRejectIncoming.report(1.0);
+				rejected(">SUB_MAX_THROTTLE_DELAY", isLocal);
+				return ">SUB_MAX_THROTTLE_DELAY ("+TimeUtil.formatTime((long)bwlimitDelayTime, 2, true)+ ')';
 			}
-			
 		}
 		
 		// Successful cluster timeout protection.
@@ -611,40 +672,28 @@ public class NodeStats implements Persistable {
 		double bandwidthLiabilityOutput;
 		if(ignoreLocalVsRemoteBandwidthLiability) {
 			bandwidthLiabilityOutput = 
-				successfulChkFetchBytesSentAverage.currentValue() * (numRemoteCHKRequests + numLocalCHKRequests - 1) +
-				successfulSskFetchBytesSentAverage.currentValue() * (numRemoteSSKRequests + numLocalSSKRequests - 1) +
-				successfulChkInsertBytesSentAverage.currentValue() * (numRemoteCHKInserts + numLocalCHKInserts - 1) +
-				successfulSskInsertBytesSentAverage.currentValue() * (numRemoteSSKInserts + numLocalSSKInserts - 1);
+				load.successfulChkFetchBytesSent * (numRemoteCHKRequests + numLocalCHKRequests - 1) +
+				load.successfulSskFetchBytesSent * (numRemoteSSKRequests + numLocalSSKRequests - 1) +
+				load.successfulChkInsertBytesSent * (numRemoteCHKInserts + numLocalCHKInserts - 1) +
+				load.successfulSskInsertBytesSent * (numRemoteSSKInserts + numLocalSSKInserts - 1);
 		} else {
 		bandwidthLiabilityOutput =
-			successfulChkFetchBytesSentAverage.currentValue() * numRemoteCHKRequests +
+			load.successfulChkFetchBytesSent * numRemoteCHKRequests +
 			// Local requests don't relay data, so use the local average
-			localChkFetchBytesSentAverage.currentValue() * numLocalCHKRequests +
-			successfulSskFetchBytesSentAverage.currentValue() * numRemoteSSKRequests +
+			load.localChkFetchBytesSent * numLocalCHKRequests +
+			load.successfulSskFetchBytesSent * numRemoteSSKRequests +
 			// Local requests don't relay data, so use the local average
-			localSskFetchBytesSentAverage.currentValue() * numLocalSSKRequests +
+			load.localSskFetchBytesSent * numLocalSSKRequests +
 			// Inserts are the same for remote as local for sent bytes
-			successfulChkInsertBytesSentAverage.currentValue() * numRemoteCHKInserts +
-			successfulChkInsertBytesSentAverage.currentValue() * numLocalCHKInserts +
+			load.successfulChkInsertBytesSent * numRemoteCHKInserts +
+			load.successfulChkInsertBytesSent * numLocalCHKInserts +
 			// Inserts are the same for remote as local for sent bytes
-			successfulSskInsertBytesSentAverage.currentValue() * numRemoteSSKInserts +
-			successfulSskInsertBytesSentAverage.currentValue() * numLocalSSKInserts +
-			successfulChkOfferReplyBytesSentAverage.currentValue() * numCHKOfferReplies +
-			successfulSskOfferReplyBytesSentAverage.currentValue() * numSSKOfferReplies;
-		}
-		double outputAvailablePerSecond = node.getOutputBandwidthLimit() - sentOverheadPerSecond;
-		// If there's been an auto-update, we may have used a vast amount of bandwidth for it.
-		// Also, if things have broken, our overhead might be above our bandwidth limit,
-		// especially on a slow node.
-		
-		// So impose a minimum of 20% of the bandwidth limit.
-		// This will ensure we don't get stuck in any situation where all our bandwidth is overhead,
-		// and we don't accept any requests because of that, so it remains that way...
-		if(logMINOR) Logger.minor(this, "Overhead per second: "+sentOverheadPerSecond+" bwlimit: "+node.getOutputBandwidthLimit()+" => output available per second: "+outputAvailablePerSecond+" but minimum of "+node.getOutputBandwidthLimit() / 5.0);
-		outputAvailablePerSecond = Math.max(outputAvailablePerSecond, node.getOutputBandwidthLimit() / 5.0);
-		
-		double bandwidthAvailableOutput = outputAvailablePerSecond * 90;
-		// 90 seconds at full power; we have to leave some time for the search as well
+			load.successfulSskInsertBytesSent * numRemoteSSKInserts +
+			load.successfulSskInsertBytesSent * numLocalSSKInserts +
+			load.successfulChkOfferReplyBytesSent * numCHKOfferReplies +
+			load.successfulSskOfferReplyBytesSent * numSSKOfferReplies;
+		}
+		double bandwidthAvailableOutput = load.bandwidthAvailableOutput;
 		if(logMINOR) Logger.minor(this, "90 second limit: "+bandwidthAvailableOutput+" expected output liability: "+bandwidthLiabilityOutput);
 		
 		if(bandwidthLiabilityOutput > bandwidthAvailableOutput) {
@@ -656,30 +705,26 @@ public class NodeStats implements Persistable {
 		double bandwidthLiabilityInput;
 		if(ignoreLocalVsRemoteBandwidthLiability) {
 			bandwidthLiabilityInput =
-				successfulChkFetchBytesReceivedAverage.currentValue() * (numRemoteCHKRequests + numLocalCHKRequests - 1) +
-				successfulSskFetchBytesReceivedAverage.currentValue() * (numRemoteSSKRequests + numLocalSSKRequests - 1) +
-				successfulChkInsertBytesReceivedAverage.currentValue() * (numRemoteCHKInserts + numLocalCHKInserts - 1) +
-				successfulSskInsertBytesReceivedAverage.currentValue() * (numRemoteSSKInserts + numLocalSSKInserts - 1);
+				load.successfulChkFetchBytesReceived * (numRemoteCHKRequests + numLocalCHKRequests - 1) +
+				load.successfulSskFetchBytesReceived * (numRemoteSSKRequests + numLocalSSKRequests - 1) +
+				load.successfulChkInsertBytesReceived * (numRemoteCHKInserts + numLocalCHKInserts - 1) +
+				load.successfulSskInsertBytesReceived * (numRemoteSSKInserts + numLocalSSKInserts - 1);
 		} else {
 		bandwidthLiabilityInput =
 			// For receiving data, local requests are the same as remote ones
-			successfulChkFetchBytesReceivedAverage.currentValue() * numRemoteCHKRequests +
-			successfulChkFetchBytesReceivedAverage.currentValue() * numLocalCHKRequests +
-			successfulSskFetchBytesReceivedAverage.currentValue() * numRemoteSSKRequests +
-			successfulSskFetchBytesReceivedAverage.currentValue() * numLocalSSKRequests +
+			load.successfulChkFetchBytesReceived * numRemoteCHKRequests +
+			load.successfulChkFetchBytesReceived * numLocalCHKRequests +
+			load.successfulSskFetchBytesReceived * numRemoteSSKRequests +
+			load.successfulSskFetchBytesReceived * numLocalSSKRequests +
 			// Local inserts don't receive the data to relay, so use the local variant
-			successfulChkInsertBytesReceivedAverage.currentValue() * numRemoteCHKInserts +
-			localChkInsertBytesReceivedAverage.currentValue() * numLocalCHKInserts +
-			successfulSskInsertBytesReceivedAverage.currentValue() * numRemoteSSKInserts +
-			localSskInsertBytesReceivedAverage.currentValue() * numLocalSSKInserts +
-			successfulChkOfferReplyBytesReceivedAverage.currentValue() * numCHKOfferReplies +
-			successfulSskOfferReplyBytesReceivedAverage.currentValue() * numSSKOfferReplies;
-		}
-		double bandwidthAvailableInput =
-			node.getInputBandwidthLimit() * 90L; // 90 seconds at full power; avoid integer overflow
-		if(bandwidthAvailableInput < 0){
-			Logger.error(this, "Negative available bandwidth: "+bandwidthAvailableInput+" node.ibwlimit="+node.getInputBandwidthLimit()+" node.obwlimit="+node.getOutputBandwidthLimit()+" node.inputLimitDefault="+node.inputLimitDefault);
-		}
+			load.successfulChkInsertBytesReceived * numRemoteCHKInserts +
+			load.localChkInsertBytesReceived * numLocalCHKInserts +
+			load.successfulSskInsertBytesReceived * numRemoteSSKInserts +
+			load.localSskInsertBytesReceived * numLocalSSKInserts +
+			load.successfulChkOfferReplyBytesReceived * numCHKOfferReplies +
+			load.successfulSskOfferReplyBytesReceived * numSSKOfferReplies;
+		}
+		double bandwidthAvailableInput = load.bandwidthAvailableInput;
 		if(bandwidthLiabilityInput > bandwidthAvailableInput) {
 			pInstantRejectIncoming.report(1.0);
 			rejected("Input bandwidth liability", isLocal);
@@ -819,8 +864,8 @@ public class NodeStats implements Persistable {
 //		}
 		
 		// Do we have the bandwidth?
-		double expected = this.getThrottle(isLocal, isInsert, isSSK, true).currentValue();
-		int expectedSent = (int)Math.max(expected / overheadFraction, 0);
+		double expected = load.expectedBytes(isLocal, isInsert, isSSK, true);
+		int expectedSent = (int)Math.max(expected / load.overheadFraction, 0);
 		if(logMINOR)
 			Logger.minor(this, "Expected sent bytes: "+expected+" -> "+expectedSent);
 		if(!requestOutputThrottle.instantGrab(expectedSent)) {
@@ -828,7 +873,7 @@ public class NodeStats implements Persistable {
 			rejected("Insufficient output bandwidth", isLocal);
 			return "Insufficient output bandwidth";
 		}
-		expected = this.getThrottle(isLocal, isInsert, isSSK, false).currentValue();
+		expected = load.expectedBytes(isLocal, isInsert, isSSK, false);
 		int expectedReceived = (int)Math.max(expected, 0);
 		if(logMINOR)
 			Logger.minor(this, "Expected received bytes: "+expectedReceived);
@@ -850,10 +895,11 @@ public class NodeStats implements Persistable {
 			}
 		}
 		
-		synchronized(this) {
-			if(logMINOR) Logger.minor(this, "Accepting request? (isSSK="+isSSK+")");
-			lastAcceptedRequest = now;
-		}
+		if(logMINOR) Logger.minor(this, "Accepting request? (isSSK="+isSSK+")");
+		this.lastAcceptedRequest = now;
+		// Each request we accept starts more threads.
+		if(acceptedSinceSnapshot.incrementAndGet() >= LOAD_SNAPSHOT_ACCEPTED)
+			updateLoadSnapshot();
 		
 		pInstantRejectIncoming.report(0.0);
 
@@ -861,12 +907,35 @@ public class NodeStats implements Persistable {
 		return null;
 	}
 	
+	/** Each reason passed to rejected(), and the field name we export its
+	 * count as. */
+	private static final String[][] REJECT_REASON_IDS = {
+		{ ">threadLimit", "threadLimit" },
+		{ ">MAX_PING_TIME", "maxPingTime" },
+		{ ">SUB_MAX_PING_TIME", "subMaxPingTime" },
+		{ ">MAX_THROTTLE_DELAY", "maxThrottleDelay" },
+		{ ">SUB_MAX_THROTTLE_DELAY", "subMaxThrottleDelay" },
+		{ "Output bandwidth liability", "outputBandwidthLiability" },
+		{ "Input bandwidth liability", "inputBandwidthLiability" },
+		{ "Transfer speed (output)", "transferSpeedOutput" },
+		{ "Transfer speed (input)", "transferSpeedInput" },
+		{ "Insufficient output bandwidth", "insufficientOutputBandwidth" },
+		{ "Insufficient input bandwidth", "insufficientInputBandwidth" },
+		{ ">MAX_PEER_QUEUE_BYTES", "maxPeerQueueBytes" },
+		{ ">MAX_PEER_QUEUE_TIME", "maxPeerQueueTime" },
+	};
+	
+	private static void exportRejectReasons(SimpleFieldSet fs, String prefix, StringCounter reasons) {
+		for(String[] reason : REJECT_REASON_IDS)
+			fs.put(prefix + SimpleFieldSet.MULTI_LEVEL_CHAR + reason[1], reasons.get(reason[0]));
+	}
+	
 	private void rejected(String reason, boolean isLocal) {
 		if(!isLocal) preemptiveRejectReasons.inc(reason);
 		else this.localPreemptiveRejectReasons.inc(reason);
 	}
 
-	private RunningAverage getThrottle(boolean isLocal, boolean isInsert, boolean isSSK, boolean isSent) {
+	RunningAverage getThrottle(boolean isLocal, boolean isInsert, boolean isSSK, boolean isSent) {
 		if(isLocal) {
 			if(isInsert) {
 				if(isSSK) {
@@ -1065,7 +1134,11 @@ public class NodeStats implements Persistable {
 	}
 
 	public int getActiveThreadCount() {
-		return rootThreadGroup.activeCount() - node.executor.getWaitingThreadsCount();
+		int count = rootThreadGroup.activeCount() - node.executor.getWaitingThreadsCount();
+		// Virtual threads aren't in any thread group.
+		if(node.executor instanceof PooledExecutor)
+			count += ((PooledExecutor) node.executor).getVirtualThreadsCount();
+		return count;
 	}
 	
 	public int[] getActiveThreadsByPriority() {
@@ -1270,6 +1343,13 @@ public class NodeStats implements Persistable {
 		fs.put("overallAccesses", overallAccesses);
 		fs.put("avgStoreAccessRate", avgStoreAccessRate);
 
+		fs.put("handshakesCompleted", node.handshakeExecutor.countCompleted());
+		fs.put("handshakesCompletedLastMinute", node.handshakeExecutor.completedLastMinute());
+		fs.put("handshakesDroppedQueueFull", node.handshakeExecutor.countDroppedQueueFull());
+		fs.put("handshakesDroppedOverBudget", node.handshakeExecutor.countDroppedOverBudget());
+		fs.put("handshakesQueued", node.handshakeExecutor.queued());
+		fs.put("handshakeQueueTimeMedian", node.handshakeExecutor.getQueueTime().getPercentile(0.5));
+
 		Runtime rt = Runtime.getRuntime();
 		float freeMemory = rt.freeMemory();
 		float totalMemory = rt.totalMemory();
@@ -1295,6 +1375,9 @@ public class NodeStats implements Persistable {
 		fs.put("blockTransferPSuccess", blockTransferPSuccess.currentValue());
 		fs.put("blockTransferFailTurtled", blockTransferFailTurtled.currentValue());
 		fs.put("blockTransferFailTimeout", blockTransferFailTimeout.currentValue());
+		
+		exportRejectReasons(fs, "preemptiveRejectReasons", preemptiveRejectReasons);
+		exportRejectReasons(fs, "localPreemptiveRejectReasons", localPreemptiveRejectReasons);
 
 		return fs;
 	}
@@ -1304,10 +1387,13 @@ public class NodeStats implements Persistable {
 		if(node.inputLimitDefault) {
 			setInputLimit(obwLimit * 4);
 		}
+		// The next request will take a new snapshot with the new limit.
+		load = null;
 	}
 
 	public void setInputLimit(int ibwLimit) {
 		requestInputThrottle.changeNanosAndBucketSize((int)((1000L*1000L*1000L) / (ibwLimit)), Math.max(ibwLimit*60, 32768*20));
+		load = null;
 	}
 
 	public boolean isTestnetEnabled() {
@@ -3,21 +3,13 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
-import java.io.BufferedReader;
-import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
 
@@ -36,8 +28,6 @@ import freenet.support.ByteArrayWrapper;
 import freenet.support.Logger;
 import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
-import freenet.support.io.Closer;
-import freenet.support.io.FileUtil;
 
 /**
  * @author amphibian
@@ -129,8 +119,8 @@ public class PeerManager {
 	}
 
 	/**
-	 * Attempt to read a file full of noderefs. Try the file as named first, then the .bak if it is empty or
-	 * otherwise doesn't work.
+	 * Attempt to read a file full of noderefs, and its journal of changes. Try the file as named first,
+	 * then the .bak if it is empty or otherwise doesn't work.
 	 * @param filename The filename to read from. If this doesn't work, we try the .bak file.
 	 * @param crypto The cryptographic identity which these nodes are connected to.
 	 * @param opennet The opennet manager for the nodes. Only needed (for constructing the nodes) if isOpennet.
@@ -139,97 +129,62 @@ public class PeerManager {
 	 * manager as "old peers" i.e. inactive nodes which may try to reconnect.
 	 */
 	void tryReadPeers(String filename, NodeCrypto crypto, OpennetManager opennet, boolean isOpennet, boolean oldOpennetPeers) {
+		PeersJournal journal = new PeersJournal(new File(filename));
+		List<SimpleFieldSet> refs;
+		synchronized(writePeerFileSync) {
+			refs = journal.load();
+		}
 		synchronized(writePeersSync) {
-			if(!oldOpennetPeers)
-				if(isOpennet)
-					openFilename = filename;
-				else
-					darkFilename = filename;
+			if(oldOpennetPeers)
+				oldOpennetJournal = journal;
+			else if(isOpennet) {
+				openFilename = filename;
+				openJournal = journal;
+			} else {
+				darkFilename = filename;
+				darkJournal = journal;
+			}
 		}
 		OutgoingPacketMangler mangler = crypto.packetMangler;
 		File peersFile = new File(filename);
-		File backupFile = new File(filename + ".bak");
-		// Try to read the node list from disk
-		if(peersFile.exists())
-			if(readPeers(peersFile, mangler, crypto, opennet, oldOpennetPeers)) {
-				String msg;
-				if(oldOpennetPeers)
-					msg = "Read " + opennet.countOldOpennetPeers() + " old-opennet-peers from " + peersFile;
-				else if(isOpennet)
-					msg = "Read " + getOpennetPeers().length + " opennet peers from " + peersFile;
-				else
-					msg = "Read " + getDarknetPeers().length + " darknet peers from " + peersFile;
-				Logger.normal(this, msg);
-				System.out.println(msg);
-				return;
-			}
-		// Try the backup
-		if(backupFile.exists())
-			if(readPeers(backupFile, mangler, crypto, opennet, oldOpennetPeers)) {
-				String msg;
-				if(oldOpennetPeers)
-					msg = "Read " + opennet.countOldOpennetPeers() + " old-opennet-peers from " + peersFile;
-				else if(isOpennet)
-					msg = "Read " + getOpennetPeers().length + " opennet peers from " + peersFile;
-				else
-					msg = "Read " + getDarknetPeers().length + " darknet peers from " + peersFile;
-				Logger.normal(this, msg);
-				System.out.println(msg);
-			} else {
-				Logger.error(this, "No (readable) peers file with peers in it found");
-				System.err.println("No (readable) peers file with peers in it found");
-			}
+		if(readPeers(refs, mangler, crypto, opennet, oldOpennetPeers)) {
+			String msg;
+			if(oldOpennetPeers)
+				msg = "Read " + opennet.countOldOpennetPeers() + " old-opennet-peers from " + peersFile;
+			else if(isOpennet)
+				msg = "Read " + getOpennetPeers().length + " opennet peers from " + peersFile;
+			else
+				msg = "Read " + getDarknetPeers().length + " darknet peers from " + peersFile;
+			Logger.normal(this, msg);
+			System.out.println(msg);
+		} else if(peersFile.exists() || new File(filename + ".bak").exists()) {
+			Logger.error(this, "No (readable) peers file with peers in it found");
+			System.err.println("No (readable) peers file with peers in it found");
+		}
 	}
 
-	private boolean readPeers(File peersFile, OutgoingPacketMangler mangler, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers) {
+	private boolean readPeers(List<SimpleFieldSet> refs, OutgoingPacketMangler mangler, NodeCrypto crypto, OpennetManager opennet, boolean oldOpennetPeers) {
 		boolean gotSome = false;
-		FileInputStream fis;
-		try {
-			fis = new FileInputStream(peersFile);
-		} catch(FileNotFoundException e4) {
-			Logger.normal(this, "Peers file not found: " + peersFile);
-			return false;
-		}
-		InputStreamReader ris;
-		try {
-			ris = new InputStreamReader(fis, "UTF-8");
-		} catch(UnsupportedEncodingException e4) {
-			throw new Error("Impossible: JVM doesn't support UTF-8: " + e4, e4);
-		}
-		BufferedReader br = new BufferedReader(ris);
-		try { // FIXME: no better way?
-			while(true) {
-				// Read a single NodePeer
-				SimpleFieldSet fs;
-				fs = new SimpleFieldSet(br, false, true);
-				PeerNode pn;
-				try {
-					pn = PeerNode.create(fs, node, crypto, opennet, this, true, mangler);
-				} catch(FSParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					continue;
-				} catch(PeerParseException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					continue;
-				} catch(ReferenceSignatureVerificationException e2) {
-					Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
-					continue;
-				}
-				if(oldOpennetPeers)
-					opennet.addOldOpennetNode(pn);
-				else
-					addPeer(pn, true, false);
-				gotSome = true;
+		for(SimpleFieldSet fs : refs) {
+			// Read a single NodePeer
+			PeerNode pn;
+			try {
+				pn = PeerNode.create(fs, node, crypto, opennet, this, true, mangler);
+			} catch(FSParseException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				continue;
+			} catch(PeerParseException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				continue;
+			} catch(ReferenceSignatureVerificationException e2) {
+				Logger.error(this, "Could not parse peer: " + e2 + '\n' + fs.toString(), e2);
+				continue;
 			}
-		} catch(EOFException e) {
-			// End of file, fine
-		} catch(IOException e1) {
-			Logger.error(this, "Could not read peers file: " + e1, e1);
-		}
-		try {
-			br.close();
-		} catch(IOException e3) {
-			Logger.error(this, "Ignoring " + e3 + " caught reading " + peersFile, e3);
+			if(oldOpennetPeers)
+				opennet.addOldOpennetNode(pn);
+			else
+				addPeer(pn, true, false);
+			gotSome = true;
 		}
 		return gotSome;
 	}
@@ -516,24 +471,24 @@ public class PeerManager {
 							done = true;
 						}
 						if(removePeer(pn))
-							writePeers();
+							writePeers(pn);
 					}
 				}, ctrDisconn);
 			} catch(NotConnectedException e) {
 				if(pn.isDisconnecting() && removePeer(pn))
-					writePeers();
+					writePeers(pn);
 				return;
 			}
 			node.getTicker().queueTimedJob(new Runnable() {
 
 				public void run() {
 					if(pn.isDisconnecting() && removePeer(pn))
-						writePeers();
+						writePeers(pn);
 				}
 			}, Node.MAX_PEER_INACTIVITY);
 		} else
 			if(removePeer(pn))
-				writePeers();
+				writePeers(pn);
 	}
 	final ByteCounter ctrDisconn = new ByteCounter() {
 
@@ -1083,118 +1038,109 @@ public class PeerManager {
 	}
 	private final Object writePeersSync = new Object();
 	private final Object writePeerFileSync = new Object();
-
+	/** Journals for the peers files. Protected by writePeersSync. */
+	private PeersJournal darkJournal;
+	private PeersJournal openJournal;
+	private PeersJournal oldOpennetJournal;
+	/** Peers which have changed since we last wrote the peers files.
+	 * Protected by writePeersSync. */
+	private final HashSet<PeerNode> changedPeers = new HashSet<PeerNode>();
+	/** If true, any peer may have changed. Protected by writePeersSync. */
+	private boolean allPeersChanged = true;
+
+	/** Write the peers files soon. Any peer may have changed. */
 	void writePeers() {
+		synchronized(writePeersSync) {
+			allPeersChanged = true;
+		}
 		shouldWritePeers = true;
 	}
 	
-	protected String getDarknetPeersString() {
-		StringBuilder sb = new StringBuilder();
-		PeerNode[] peers;
-		synchronized(this) {
-			peers = myPeers;
-		}
-		for(PeerNode pn : peers) {
-			if(pn instanceof DarknetPeerNode)
-				sb.append(pn.exportDiskFieldSet());
+	/** Write the peers files soon, because one peer has changed. */
+	void writePeers(PeerNode pn) {
+		synchronized(writePeersSync) {
+			changedPeers.add(pn);
 		}
-		
-		return sb.toString();
+		shouldWritePeers = true;
 	}
 	
-	protected String getOpennetPeersString() {
+	protected String getDarknetPeersString() {
 		StringBuilder sb = new StringBuilder();
 		PeerNode[] peers;
 		synchronized(this) {
 			peers = myPeers;
 		}
 		for(PeerNode pn : peers) {
-			if(pn instanceof OpennetPeerNode)
+			if(pn instanceof DarknetPeerNode)
 				sb.append(pn.exportDiskFieldSet());
 		}
 		
 		return sb.toString();
 	}
 	
-	protected String getOldOpennetPeersString(OpennetManager om) {
-		StringBuilder sb = new StringBuilder();
-		for(PeerNode pn : om.getOldPeers()) {
-			if(pn instanceof OpennetPeerNode)
-				sb.append(pn.exportDiskFieldSet());
+	/**
+	 * Export the peers of one kind which may have changed.
+	 * @param changed Filled in with the fieldset of each peer which may have changed, by identity.
+	 * @param present Filled in with the identities of all the peers.
+	 */
+	private void exportChanged(PeerNode[] peers, Class<? extends PeerNode> type, boolean all, Map<String, String> changed, Set<String> present) {
+		for(PeerNode pn : peers) {
+			if(!type.isInstance(pn)) continue;
+			String identity = pn.getIdentityString();
+			present.add(identity);
+			if(all || changedPeers.contains(pn))
+				changed.put(identity, pn.exportDiskFieldSet().toString());
 		}
-		
-		return sb.toString();
 	}
 
+	/**
+	 * Write the peers which have changed to the journals. Each journal writes a new
+	 * snapshot of its peers file when it has grown big enough.
+	 */
 	private void writePeersInner() {
-		String darknet = null;
-		String opennet = null;
-		String oldOpennetPeers = null;
-		String oldOpennetPeersFilename = null;
+		HashMap<String, String> darkChanged = new HashMap<String, String>();
+		HashSet<String> darkPresent = new HashSet<String>();
+		HashMap<String, String> openChanged = new HashMap<String, String>();
+		HashSet<String> openPresent = new HashSet<String>();
+		HashMap<String, String> oldChanged = new HashMap<String, String>();
+		HashSet<String> oldPresent = new HashSet<String>();
+		PeersJournal dark;
+		PeersJournal open = null;
+		PeersJournal old = null;
 		
 		synchronized(writePeersSync) {
-			if(darkFilename != null)
-				darknet = getDarknetPeersString();
+			PeerNode[] peers;
+			synchronized(this) {
+				peers = myPeers;
+			}
+			boolean all = allPeersChanged;
+			allPeersChanged = false;
+			dark = darkJournal;
+			if(dark != null)
+				exportChanged(peers, DarknetPeerNode.class, all, darkChanged, darkPresent);
 			OpennetManager om = node.getOpennet();
 			if(om != null) {
-				if(openFilename != null)
-					opennet = getOpennetPeersString();
-				oldOpennetPeersFilename = om.getOldPeersFilename();
-				oldOpennetPeers = getOldOpennetPeersString(om);
+				open = openJournal;
+				if(open != null)
+					exportChanged(peers, OpennetPeerNode.class, all, openChanged, openPresent);
+				old = oldOpennetJournal;
+				if(old == null) {
+					// Not read yet, so start from nothing.
+					old = oldOpennetJournal = new PeersJournal(new File(om.getOldPeersFilename()));
+				}
+				// Old opennet peers don't tell us when they change, but there aren't many.
+				exportChanged(om.getOldPeers(), OpennetPeerNode.class, true, oldChanged, oldPresent);
 			}
+			changedPeers.clear();
 		}
 		
 		synchronized(writePeerFileSync) {
-			if(darknet != null)
-				writePeersInner(darkFilename, darknet);
-			if(oldOpennetPeers != null) {
-				if(opennet != null)
-					writePeersInner(openFilename, opennet);
-				writePeersInner(oldOpennetPeersFilename, oldOpennetPeers);
-			}
-		}
-	}
-
-	/**
-	 * Write the peers file to disk
-	 */
-	private void writePeersInner(String filename, String sb) {
-		synchronized(writePeerFileSync) {
-			FileOutputStream fos = null;
-			String f = filename + ".bak";
-			try {
-				fos = new FileOutputStream(f);
-			} catch(FileNotFoundException e2) {
-				Logger.error(this, "Cannot write peers to disk: Cannot create " + f + " - " + e2, e2);
-				Closer.close(fos);
-				return;
-			}
-			OutputStreamWriter w = null;
-			try {
-				w = new OutputStreamWriter(fos, "UTF-8");
-			} catch(UnsupportedEncodingException e2) {
-				Closer.close(w);
-				throw new Error("Impossible: JVM doesn't support UTF-8: " + e2, e2);
-			}
-			try {
-				w.write(sb);
-				w.flush();
-				w.close();
-				w = null;
-
-				File fnam = new File(filename);
-				FileUtil.renameTo(new File(f), fnam);
-			} catch(IOException e) {
-				try {
-					fos.close();
-				} catch(IOException e1) {
-					Logger.error(this, "Cannot close peers file: " + e, e);
-				}
-				Logger.error(this, "Cannot write file: " + e, e);
-				return; // don't overwrite old file!
-			} finally {
-				Closer.close(w);
-				Closer.close(fos);
+			if(dark != null)
+				dark.write(darkChanged, darkPresent);
+			if(old != null) {
+				if(open != null)
+					open.write(openChanged, openPresent);
+				old.write(oldChanged, oldPresent);
 			}
 		}
 	}
@@ -1610,6 +1610,89 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 		}
 	}
 	
+	/**
+	* Enqueue a message to be sent to this node, and carry on when it has been
+	* transmitted, as after sendSync(), but without a thread waiting for it.
+	* @param whenSent Run on the executor when the message has been sent, or
+	* after a minute if it hasn't, which like sendSync() counts as an overload.
+	* @param ifDisconnected Run on the executor instead if we are disconnected
+	* before it is sent.
+	* @throws NotConnectedException If we are not connected now, in which case
+	* neither job will be run.
+	*/
+	public void sendThen(Message req, ByteCounter ctr, PrioRunnable whenSent, PrioRunnable ifDisconnected) throws NotConnectedException {
+		final AsyncSendCallback cb = new AsyncSendCallback(req, whenSent, ifDisconnected);
+		sendAsync(req, cb, ctr);
+		node.getTicker().queueTimedJob(new Runnable() {
+
+			public void run() {
+				cb.timedOut();
+			}
+			
+		}, 60 * 1000);
+	}
+
+	private class AsyncSendCallback implements AsyncMessageCallback {
+
+		// Cleared when done, because the timeout job keeps us reachable for
+		// a minute, and the jobs often reference a whole request.
+		private Message req;
+		private PrioRunnable whenSent;
+		private PrioRunnable ifDisconnected;
+		private boolean done;
+
+		AsyncSendCallback(Message req, PrioRunnable whenSent, PrioRunnable ifDisconnected) {
+			this.req = req;
+			this.whenSent = whenSent;
+			this.ifDisconnected = ifDisconnected;
+		}
+
+		private void finish(boolean disconnected) {
+			Message req;
+			PrioRunnable job;
+			synchronized(this) {
+				if(done) return;
+				done = true;
+				req = this.req;
+				job = disconnected ? ifDisconnected : whenSent;
+				this.req = null;
+				whenSent = null;
+				ifDisconnected = null;
+			}
+			if(disconnected)
+				node.executor.execute(job, "Disconnected sending " + req.getSpec().getName() + " to " + shortToString());
+			else
+				node.executor.execute(job, "Sent " + req.getSpec().getName() + " to " + shortToString());
+		}
+
+		void timedOut() {
+			Message req;
+			synchronized(this) {
+				if(done) return;
+				req = this.req;
+			}
+			Logger.error(this, "Waited too long for a send for " + req + " to " + PeerNode.this, new Exception("error"));
+			localRejectedOverload("SendSyncTimeout");
+			finish(false);
+		}
+
+		public void acknowledged() {
+			finish(false);
+		}
+
+		public void disconnected() {
+			finish(true);
+		}
+
+		public void fatalError() {
+			finish(false);
+		}
+
+		public void sent() {
+			finish(false);
+		}
+	}
+	
 	public void updateLocation(double newLoc, double[] newLocs) {
 		if(newLoc < 0.0 || newLoc > 1.0) {
 			Logger.error(this, "Invalid location update for " + this+ " ("+newLoc+')', new Exception("error"));
@@ -1632,7 +1715,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 			currentPeersLocation = newLocs;
 			locSetTime = System.currentTimeMillis();
 		}
-		node.peers.writePeers();
+		node.peers.writePeers(this);
 		setPeerNodeStatus(System.currentTimeMillis());
 	}
 
@@ -2392,7 +2475,7 @@ public abstract class PeerNode implements PeerContext, USKRetrieverCallback {
 			Logger.minor(this, "Parsing: \n" + fs);
 		boolean changedAnything = innerProcessNewNoderef(fs, forARK, forDiffNodeRef);
 		if(changedAnything)
-			node.peers.writePeers();
+			node.peers.writePeers(this);
 	}
 
 	/**
@@ -0,0 +1,347 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import freenet.crypt.SHA256;
+import freenet.support.HexUtil;
+import freenet.support.Logger;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.Closer;
+import freenet.support.io.FileUtil;
+
+/**
+ * Keeps a peers file up to date by appending the peers which have changed
+ * to a journal, rather than rewriting every peer each time one changes. The
+ * peers file is a snapshot in the usual format, and the journal is the same
+ * filename plus ".journal". The journal starts with Journal=Start,
+ * Snapshot=(hash of the snapshot), End, and each record after that is either
+ * Journal=Update, Identity=..., End followed by the whole of the peer's
+ * fieldset, or Journal=Remove, Identity=..., End. When the journal is bigger
+ * than the snapshot, we write a new snapshot and delete the journal.
+ *
+ * A journal is only replayed over the snapshot it started from, so it
+ * doesn't matter if we crash between writing a new snapshot and deleting the
+ * journal. A record which was only partly written is ignored, along with
+ * anything after it.
+ *
+ * LOCKING: Not thread safe, the caller must synchronize.
+ */
+class PeersJournal {
+
+	private static volatile boolean logMINOR;
+
+	/** Don't bother writing a new snapshot for less than this */
+	static final int MIN_COMPACT_SIZE = 64*1024;
+
+	private static final String START = "Start";
+	private static final String UPDATE = "Update";
+	private static final String REMOVE = "Remove";
+
+	private final File snapshot;
+	private final File backup;
+	private final File journal;
+	/** What is on disk for each peer, by identity, in the order they were added */
+	private final LinkedHashMap<String, String> written;
+	/** Size of the snapshot in bytes */
+	private long snapshotSize;
+	/** Hash of the snapshot, which the journal must start with */
+	private String snapshotHash;
+	/** Size of the journal in bytes */
+	private long journalSize;
+	/** If true, write a new snapshot next time, because the journal may
+	 * not match what we have written. */
+	private boolean mustCompact;
+
+	PeersJournal(File snapshot) {
+		this.snapshot = snapshot;
+		backup = new File(snapshot.getPath() + ".bak");
+		journal = new File(snapshot.getPath() + ".journal");
+		written = new LinkedHashMap<String, String>();
+		// Nothing loaded yet, so anything on disk is out of date.
+		mustCompact = true;
+		logMINOR = Logger.shouldLog(Logger.MINOR, this);
+	}
+
+	/**
+	 * Read the snapshot, or the backup if the snapshot has no peers in it, and
+	 * replay the journal.
+	 * @return The peers, in the order they were added.
+	 */
+	List<SimpleFieldSet> load() {
+		LinkedHashMap<String, SimpleFieldSet> peers = new LinkedHashMap<String, SimpleFieldSet>();
+		written.clear();
+		boolean gotSnapshot = readSnapshot(snapshot, peers);
+		if(!gotSnapshot) {
+			peers.clear();
+			written.clear();
+			gotSnapshot = readSnapshot(backup, peers);
+			if(!gotSnapshot)
+				setSnapshot("");
+		}
+		boolean complete = replayJournal(peers);
+		journalSize = journal.length();
+		// If the journal ends with a partial record, we can't append to it.
+		// Always keep a snapshot, for older versions which don't read the journal.
+		mustCompact = !(complete && gotSnapshot);
+		return new ArrayList<SimpleFieldSet>(peers.values());
+	}
+
+	private void setSnapshot(String content) {
+		byte[] data = toUTF8(content);
+		snapshotSize = data.length;
+		snapshotHash = HexUtil.bytesToHex(SHA256.digest(data));
+	}
+
+	private static byte[] toUTF8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+		}
+	}
+
+	/** @return True if we read any peers. */
+	private boolean readSnapshot(File file, Map<String, SimpleFieldSet> peers) {
+		String content;
+		try {
+			content = FileUtil.readUTF(file);
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (IOException e) {
+			Logger.error(this, "Could not read peers file "+file+": "+e, e);
+			return false;
+		}
+		setSnapshot(content);
+		BufferedReader br = new BufferedReader(new StringReader(content));
+		boolean gotSome = false;
+		try {
+			while(true) {
+				SimpleFieldSet fs = new SimpleFieldSet(br, false, true);
+				String identity = identity(fs);
+				peers.put(identity, fs);
+				written.put(identity, fs.toString());
+				gotSome = true;
+			}
+		} catch (EOFException e) {
+			// End of file, fine
+		} catch (IOException e) {
+			Logger.error(this, "Could not read peers file "+file+": "+e, e);
+		}
+		return gotSome;
+	}
+
+	/** @return False if the journal ends with a partial record. */
+	private boolean replayJournal(Map<String, SimpleFieldSet> peers) {
+		BufferedReader br = open(journal);
+		if(br == null) return true;
+		int records = 0;
+		try {
+			SimpleFieldSet start = readRecord(br);
+			if(!START.equals(start.get("Journal"))) {
+				Logger.error(this, "Bad start of "+journal+": "+start);
+				return false;
+			}
+			if(!snapshotHash.equals(start.get("Snapshot"))) {
+				// We crashed after writing a new snapshot, so it is already in the snapshot.
+				Logger.normal(this, "Ignoring "+journal+" which is older than "+snapshot);
+				return false;
+			}
+			while(true) {
+				SimpleFieldSet header = readRecord(br);
+				String op = header.get("Journal");
+				String identity = header.get("Identity");
+				if(identity == null || !(UPDATE.equals(op) || REMOVE.equals(op))) {
+					Logger.error(this, "Bad record in "+journal+": "+header);
+					return false;
+				}
+				if(UPDATE.equals(op)) {
+					SimpleFieldSet fs;
+					try {
+						fs = readRecord(br);
+					} catch (EOFException e) {
+						throw new IOException("Truncated record");
+					}
+					peers.put(identity, fs);
+					written.put(identity, fs.toString());
+				} else {
+					peers.remove(identity);
+					written.remove(identity);
+				}
+				records++;
+			}
+		} catch (EOFException e) {
+			// End of file, fine
+			if(logMINOR) Logger.minor(this, "Replayed "+records+" records from "+journal);
+			return true;
+		} catch (IOException e) {
+			// Probably we crashed while writing it.
+			Logger.normal(this, "Ignoring partial record after "+records+" records in "+journal+": "+e);
+			return false;
+		} finally {
+			Closer.close(br);
+		}
+	}
+
+	/** Read a fieldset from the journal, checking that it was completely written. */
+	private static SimpleFieldSet readRecord(BufferedReader br) throws IOException {
+		SimpleFieldSet fs = new SimpleFieldSet(br, false, true);
+		// Any line without an = ends a fieldset, including part of a line.
+		if(!"End".equals(fs.getEndMarker()))
+			throw new IOException("Truncated record");
+		return fs;
+	}
+
+	private BufferedReader open(File file) {
+		FileInputStream fis;
+		try {
+			fis = new FileInputStream(file);
+		} catch (FileNotFoundException e) {
+			return null;
+		}
+		try {
+			return new BufferedReader(new InputStreamReader(fis, "UTF-8"));
+		} catch (UnsupportedEncodingException e) {
+			throw new Error("Impossible: JVM doesn't support UTF-8: " + e, e);
+		}
+	}
+
+	static String identity(SimpleFieldSet fs) {
+		String identity = fs.get("identity");
+		// Shouldn't happen, but we mustn't lose it.
+		if(identity == null) identity = fs.toString();
+		return identity;
+	}
+
+	/**
+	 * Write the peers which have changed, and remove those which are gone.
+	 * @param changed The current fieldset for each peer which may have
+	 * changed, as written by SimpleFieldSet.toString(), by identity.
+	 * @param present The identities of all the peers, changed or not.
+	 */
+	void write(Map<String, String> changed, Set<String> present) {
+		StringBuilder sb = new StringBuilder();
+		int records = 0;
+		for(Iterator<String> it = written.keySet().iterator(); it.hasNext();) {
+			String identity = it.next();
+			if(present.contains(identity)) continue;
+			it.remove();
+			appendHeader(sb, REMOVE, identity);
+			records++;
+		}
+		for(Map.Entry<String, String> entry : changed.entrySet()) {
+			String identity = entry.getKey();
+			String fs = entry.getValue();
+			if(fs.equals(written.get(identity))) continue;
+			written.put(identity, fs);
+			appendHeader(sb, UPDATE, identity);
+			sb.append(fs);
+			records++;
+		}
+		if(mustCompact || journalSize + toUTF8(sb.toString()).length > Math.max(MIN_COMPACT_SIZE, snapshotSize)) {
+			compact();
+			return;
+		}
+		if(records == 0) return;
+		if(logMINOR) Logger.minor(this, "Appending "+records+" records to "+journal);
+		if(journalSize == 0) {
+			StringBuilder start = new StringBuilder();
+			start.append("Journal=").append(START).append('\n');
+			start.append("Snapshot=").append(snapshotHash).append('\n');
+			start.append("End\n");
+			sb.insert(0, start);
+		}
+		String data = sb.toString();
+		if(!writeFile(journal, data, true)) {
+			// The journal may end with a partial record now.
+			mustCompact = true;
+			return;
+		}
+		journalSize += toUTF8(data).length;
+	}
+
+	private static void appendHeader(StringBuilder sb, String op, String identity) {
+		sb.append("Journal=").append(op).append('\n');
+		sb.append("Identity=").append(identity).append('\n');
+		sb.append("End\n");
+	}
+
+	/** Write a new snapshot and delete the journal. */
+	private void compact() {
+		StringBuilder sb = new StringBuilder();
+		for(String fs : written.values())
+			sb.append(fs);
+		String content = sb.toString();
+		if(!writeFile(backup, content, false)) {
+			// Try again next time.
+			mustCompact = true;
+			return;
+		}
+		// Don't overwrite the old file if we couldn't write the new one!
+		if(!FileUtil.renameTo(backup, snapshot)) {
+			// The old snapshot and the journal written against it are
+			// still there, so leave them be and try again next time.
+			Logger.error(this, "Unable to rename "+backup+" to "+snapshot);
+			mustCompact = true;
+			return;
+		}
+		setSnapshot(content);
+		// If we crash here, the old journal will be ignored because it doesn't
+		// match the new snapshot.
+		if(journal.exists() && !journal.delete()) {
+			Logger.error(this, "Unable to delete "+journal);
+			mustCompact = true;
+			return;
+		}
+		if(logMINOR) Logger.minor(this, "Wrote "+written.size()+" peers to "+snapshot+" and deleted "+journal);
+		journalSize = 0;
+		mustCompact = false;
+	}
+
+	private boolean writeFile(File file, String data, boolean append) {
+		FileOutputStream fos = null;
+		OutputStreamWriter w = null;
+		try {
+			fos = new FileOutputStream(file, append);
+			w = new OutputStreamWriter(fos, "UTF-8");
+			w.write(data);
+			w.close();
+			w = null;
+			return true;
+		} catch (IOException e) {
+			Logger.error(this, "Cannot write peers to "+file+": "+e, e);
+			return false;
+		} finally {
+			Closer.close(w);
+			Closer.close(fos);
+		}
+	}
+
+	/** Number of peers on disk */
+	int size() {
+		return written.size();
+	}
+
+	File getJournalFile() {
+		return journal;
+	}
+
+}
@@ -61,6 +61,8 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 	private long responseDeadline;
 	private BlockTransmitter bt;
 	private final RequestTag tag;
+	/** When we got the request, for RequestTimings */
+	private final long receivedTime;
 
 	@Override
 	public String toString() {
@@ -80,10 +82,12 @@ public class RequestHandler implements PrioRunnable, ByteCounter, RequestSender.
 		if(key instanceof NodeSSK)
 			needsPubKey = m.getBoolean(DMT.NEED_PUB_KEY);
 		receivedBytes(m.receivedByteCount());
+		receivedTime = System.currentTimeMillis();
 	}
 
 	public void run() {
 		freenet.support.Logger.OSThread.logPID(this);
+		node.nodeStats.requestTimings.reportSince(RequestTimings.requestType(key), RequestTimings.QUEUE, receivedTime);
 		try {
 			realRun();
 		//The last thing that realRun() does is register as a request-sender listener, so any exception here is the end.
@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.List;
+
 import com.db4o.ObjectContainer;
 
 import freenet.client.FECQueue;
@@ -59,6 +61,15 @@ public interface RequestScheduler {
 
 	public ChosenBlock grabRequest();
 
+	/**
+	 * Choose several requests to run in one pass.
+	 * @param blocks The requests chosen are added to this, in the order they
+	 * should be started.
+	 * @param max The maximum number of requests to choose.
+	 * @return The number of requests chosen.
+	 */
+	public int grabRequests(List<ChosenBlock> blocks, int max);
+
 	public void removeRunningRequest(SendableRequest request);
 
 	/**
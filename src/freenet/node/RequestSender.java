@@ -8,6 +8,7 @@ import java.util.HashSet;
 
 import freenet.crypt.CryptFormatException;
 import freenet.crypt.DSAPublicKey;
+import freenet.io.comm.AsyncMessageFilterCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
@@ -15,6 +16,7 @@ import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
 import freenet.io.comm.NullAsyncMessageFilterCallback;
+import freenet.io.comm.PeerContext;
 import freenet.io.comm.PeerParseException;
 import freenet.io.comm.ReferenceSignatureVerificationException;
 import freenet.io.comm.RetrievalException;
@@ -188,7 +190,6 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
     }
     
     public void run() {
-        short origHTL = htl;
         try {
         	realRun();
         } catch (Throwable t) {
@@ -196,7 +197,6 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
             finish(INTERNAL_ERROR, null, false);
         } finally {
         	if(logMINOR) Logger.minor(this, "Leaving RequestSender.run() for "+uid);
-            node.removeRequestSender(key, origHTL, this);
         }
     }
 
@@ -423,10 +423,33 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
         	return;
         }
         
-		int routeAttempts=0;
-		int rejectOverloads=0;
-        HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
-        PeerNode next = null;
+        nodesRoutedTo = new HashSet<PeerNode>();
+        routeRequest();
+	}
+	
+	/*
+	 * Routing is a state machine rather than a loop on a thread, so that a
+	 * request waiting for a reply from downstream doesn't tie up a thread:
+	 * routeRequest() sends the request to the next peer, then
+	 * handleAcceptedReply() and handleReply() are run on the executor when a
+	 * message arrives, the filter times out or the peer disconnects. Each step
+	 * either finishes the request, waits for another message, or routes to
+	 * another peer. Only the offers above and CHK data transfers run on a
+	 * thread from start to finish.
+	 */
+	
+	/** Peers we have routed to. Only used by the current step. */
+	private HashSet<PeerNode> nodesRoutedTo;
+	/** The peer we are routing to. Only used by the current step. */
+	private PeerNode next;
+	private int routeAttempts;
+	private int rejectOverloads;
+	private long timeSentRequest;
+	private int gotMessages;
+	private String lastMessage;
+	
+	/** Route to the next peer, or finish if we can't. */
+	private void routeRequest() {
         while(true) {
             /*
              * If we haven't routed to any node yet, decrement according to the source.
@@ -476,7 +499,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
             // Why? Because by the time the sent() callback gets called, it may already have been acked, under heavy load.
             // So take it from when we first started to try to send the request.
             // See comments below when handling FNPRecentlyFailed for why we need this.
-            long timeSentRequest = System.currentTimeMillis();
+            timeSentRequest = System.currentTimeMillis();
 			
             try {
             	//This is the first contact to this node, it is more likely to timeout
@@ -489,448 +512,563 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 				 *   leave many hanging-requests/unclaimedFIFO items,
 				 *   potentially make overloaded peers MORE overloaded (we make a request and promptly forget about them).
 				 * 
-				 * Don't use sendAsync().
+				 * Don't use sendAsync(). sendThen() waits for the send like sendSync(), without a thread.
 				 */
-            	next.sendSync(req, this);
+            	next.sendThen(req, this, new Step() {
+					@Override
+					void step() {
+			            synchronized(RequestSender.this) {
+			            	hasForwarded = true;
+			            }
+			            waitForAccepted();
+					}
+            	}, new Step() {
+					@Override
+					void step() {
+		            	Logger.minor(this, "Not connected");
+		            	routeRequest();
+					}
+            	});
+            	return;
             } catch (NotConnectedException e) {
             	Logger.minor(this, "Not connected");
             	continue;
             }
-            
-            synchronized(this) {
-            	hasForwarded = true;
-            }
-            
-            Message msg = null;
-            
-            while(true) {
-            	
-                /**
-                 * What are we waiting for?
-                 * FNPAccepted - continue
-                 * FNPRejectedLoop - go to another node
-                 * FNPRejectedOverload - propagate back to source, go to another node if local
-                 */
-                
-                MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
-                MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        }
+	}
+	
+	/**
+	 * What are we waiting for?
+	 * FNPAccepted - continue
+	 * FNPRejectedLoop - go to another node
+	 * FNPRejectedOverload - propagate back to source, go to another node if local
+	 */
+	private void waitForAccepted() {
+        MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPAccepted);
+        MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
 
-                // mfRejectedOverload must be the last thing in the or
-                // So its or pointer remains null
-                // Otherwise we need to recreate it below
-                MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
-                
-                try {
-                    msg = node.usm.waitFor(mf, this);
-                    if(logMINOR) Logger.minor(this, "first part got "+msg);
-                } catch (DisconnectedException e) {
-                    Logger.normal(this, "Disconnected from "+next+" while waiting for Accepted on "+uid);
-                    break;
-                }
-                
-            	if(msg == null) {
-            		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
-            		// Timeout waiting for Accepted
-            		next.localRejectedOverload("AcceptedTimeout");
-            		forwardRejectedOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Try next node
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedLoop) {
-            		if(logMINOR) Logger.minor(this, "Rejected loop");
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		// Find another node to route to
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-            		if(logMINOR) Logger.minor(this, "Rejected: overload");
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						if(logMINOR) Logger.minor(this, "Is local");
-						next.localRejectedOverload("ForwardRejectedOverload");
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
-					continue;
-            	}
-            	
-            	if(msg.getSpec() != DMT.FNPAccepted) {
-            		Logger.error(this, "Unrecognized message: "+msg);
-            		continue;
-            	}
-            	
-            	break;
-            }
-            
-            if((msg == null) || (msg.getSpec() != DMT.FNPAccepted)) {
-            	// Try another node
-            	continue;
-            }
+        // mfRejectedOverload must be the last thing in the or
+        // So its or pointer remains null
+        // Otherwise we need to recreate it below
+        MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
+        
+        waitFor(mf, true);
+	}
+	
+	/** @param msg The reply to our request, or null if we timed out waiting for it. */
+	private void handleAcceptedReply(Message msg) {
+        if(logMINOR) Logger.minor(this, "first part got "+msg);
+        
+    	if(msg == null) {
+    		if(logMINOR) Logger.minor(this, "Timeout waiting for Accepted");
+    		// Timeout waiting for Accepted
+    		next.localRejectedOverload("AcceptedTimeout");
+    		forwardRejectedOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Try next node
+    		routeRequest();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedLoop) {
+    		if(logMINOR) Logger.minor(this, "Rejected loop");
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		// Find another node to route to
+    		routeRequest();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+    		if(logMINOR) Logger.minor(this, "Rejected: overload");
+			// Non-fatal - probably still have time left
+			forwardRejectedOverload();
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				if(logMINOR) Logger.minor(this, "Is local");
+				next.localRejectedOverload("ForwardRejectedOverload");
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				routeRequest();
+				return;
+			}
+			//Could be a previous rejection, the timeout to incur another ACCEPTED_TIMEOUT is minimal...
+			waitForAccepted();
+			return;
+    	}
+    	
+    	if(msg.getSpec() != DMT.FNPAccepted) {
+    		Logger.error(this, "Unrecognized message: "+msg);
+    		waitForAccepted();
+    		return;
+    	}
+    	
+        if(logMINOR) Logger.minor(this, "Got Accepted");
+        node.nodeStats.requestTimings.reportSince(RequestTimings.requestType(key), RequestTimings.ACCEPTED, timeSentRequest);
+        
+        // Otherwise, must be Accepted
+        
+        // So wait...
+        gotMessages=0;
+        lastMessage=null;
+        waitForReply();
+	}
+	
+	private void waitForReply() {
+        MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
+        MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        
+        MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
+    	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
+    	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
+    	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
+        MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
+        if(key instanceof NodeCHK) {
+        	mf = mfRealDFCHK.or(mf);
+        } else {
+        	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
+        }
+        
+        waitFor(mf, false);
+	}
+	
+	/** @param msg The reply after Accepted, or null if we timed out waiting for it. */
+	private void handleReply(Message msg) {
+    	if(logMINOR) Logger.minor(this, "second part got "+msg);
+        
+    	if(msg == null) {
+			Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
+    		// Fatal timeout
+    		next.localRejectedOverload("FatalTimeout");
+    		forwardRejectedOverload();
+    		finish(TIMED_OUT, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return;
+    	}
+		
+		//For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
+		gotMessages++;
+		lastMessage=msg.getSpec().getName();
+    	
+    	if(msg.getSpec() == DMT.FNPDataNotFound) {
+    		next.successNotOverload();
+    		finish(DATA_NOT_FOUND, next, false);
+    		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
+    		next.successNotOverload();
+    		/*
+    		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
+    		 * passed to the handler.
+    		 * 
+    		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
+    		 * It is somewhat less important that it is not too much smaller than it should be.
+    		 * 
+    		 * Why? Because:
+    		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
+    		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
+    		 * and adds a failure table entry. Other requests then go through that node via other paths.
+    		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
+    		 * failure table entries, more requests will be pointlessly routed through that chain.
+    		 * 
+    		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
+    		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
+    		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
+    		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
+    		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
+    		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
+    		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
+    		 * reinforces A's blocks!
+    		 * 
+    		 * 3) This can still happen even if we check where the request is coming from. A loop could 
+    		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
+    		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
+    		 * is still active. A requests from B which requests from C ... and it goes round again.
+    		 * 
+    		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
+    		 * not increase the expiry time.
+    		 */
+    		
+    		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
+    		// the same millisecond as the failure table block was added.
+    		int timeLeft = msg.getInt(DMT.TIME_LEFT);
+    		int origTimeLeft = timeLeft;
+    		
+    		if(timeLeft <= 0) {
+    			Logger.error(this, "Impossible: timeLeft="+timeLeft);
+    			origTimeLeft = 0;
+    			timeLeft=1000; // arbitrary default...
+    		}
+    		
+    		// This is in theory relative to when the request was received by the node. Lets make it relative
+    		// to a known event before that: the time when we sent the request.
+    		
+    		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
+    		timeLeft -= timeSinceSent;
+    		
+    		// Subtract 1% for good measure / to compensate for dodgy clocks
+    		timeLeft -= origTimeLeft / 100;
+    		
+    		//Store the timeleft so that the requestHandler can get at it.
+    		recentlyFailedTimeLeft = timeLeft;
+    		
+   			// Kill the request, regardless of whether there is timeout left.
+    		// If there is, we will avoid sending requests for the specified period.
+    		// FIXME we need to create the FT entry.
+   			finish(RECENTLY_FAILED, next, false);
+   			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRouteNotFound) {
+    		// Backtrack within available hops
+    		short newHtl = msg.getShort(DMT.HTL);
+    		if(newHtl < htl) htl = newHtl;
+    		next.successNotOverload();
+    		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    		routeRequest();
+    		return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Non-fatal - probably still have time left
+			forwardRejectedOverload();
+			rejectOverloads++;
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
+				//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				next.localRejectedOverload("ForwardRejectedOverload2");
+				// Node in trouble suddenly??
+				Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
+				// Give up on this one, try another
+				routeRequest();
+				return;
+			}
+			//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
+			waitForReply();
+			return;
+    	}
 
-            if(logMINOR) Logger.minor(this, "Got Accepted");
-            
-            // Otherwise, must be Accepted
-            
-            // So wait...
-            int gotMessages=0;
-            String lastMessage=null;
-            while(true) {
-            	
-                MessageFilter mfDNF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPDataNotFound);
-                MessageFilter mfRF = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRecentlyFailed);
-                MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
-                MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
-                
-                MessageFilter mfPubKey = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKPubKey);
-            	MessageFilter mfRealDFCHK = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPCHKDataFound);
-            	MessageFilter mfAltDFSSKHeaders = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundHeaders);
-            	MessageFilter mfAltDFSSKData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
-                MessageFilter mf = mfDNF.or(mfRF.or(mfRouteNotFound.or(mfRejectedOverload)));
-                if(key instanceof NodeCHK) {
-                	mf = mfRealDFCHK.or(mf);
-                } else {
-                	mf = mfPubKey.or(mfAltDFSSKHeaders.or(mfAltDFSSKData.or(mf)));
-                }
-                
-            	try {
-            		msg = node.usm.waitFor(mf, this);
-            	} catch (DisconnectedException e) {
-            		Logger.normal(this, "Disconnected from "+next+" while waiting for data on "+uid);
-            		break;
-            	}
-            	
-            	if(logMINOR) Logger.minor(this, "second part got "+msg);
-                
-            	if(msg == null) {
-					Logger.normal(this, "request fatal-timeout (null) after accept ("+gotMessages+" messages; last="+lastMessage+")");
-            		// Fatal timeout
-            		next.localRejectedOverload("FatalTimeout");
-            		forwardRejectedOverload();
-            		finish(TIMED_OUT, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-				
-				//For debugging purposes, remember the number of responses AFTER the insert, and the last message type we received.
-				gotMessages++;
-				lastMessage=msg.getSpec().getName();
-            	
-            	if(msg.getSpec() == DMT.FNPDataNotFound) {
-            		next.successNotOverload();
-            		finish(DATA_NOT_FOUND, next, false);
-            		node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRecentlyFailed) {
-            		next.successNotOverload();
-            		/*
-            		 * Must set a correct recentlyFailedTimeLeft before calling this finish(), because it will be
-            		 * passed to the handler.
-            		 * 
-            		 * It is *VITAL* that the TIME_LEFT we pass on is not larger than it should be.
-            		 * It is somewhat less important that it is not too much smaller than it should be.
-            		 * 
-            		 * Why? Because:
-            		 * 1) We have to use FNPRecentlyFailed to create failure table entries. Because otherwise,
-            		 * the failure table is of little value: A request is routed through a node, which gets a DNF,
-            		 * and adds a failure table entry. Other requests then go through that node via other paths.
-            		 * They are rejected with FNPRecentlyFailed - not with DataNotFound. If this does not create
-            		 * failure table entries, more requests will be pointlessly routed through that chain.
-            		 * 
-            		 * 2) If we use a fixed timeout on receiving FNPRecentlyFailed, they can be self-seeding. 
-            		 * What this means is A sends a request to B, which DNFs. This creates a failure table entry 
-            		 * which lasts for 10 minutes. 5 minutes later, A sends another request to B, which is killed
-            		 * with FNPRecentlyFailed because of the failure table entry. B's failure table lasts for 
-            		 * another 5 minutes, but A's lasts for the full 10 minutes i.e. until 5 minutes after B's. 
-            		 * After B's failure table entry has expired, but before A's expires, B sends a request to A. 
-            		 * A replies with FNPRecentlyFailed. Repeat ad infinitum: A reinforces B's blocks, and B 
-            		 * reinforces A's blocks!
-            		 * 
-            		 * 3) This can still happen even if we check where the request is coming from. A loop could 
-            		 * very easily form: A - B - C - A. A requests from B, DNFs (assume the request comes in from 
-            		 * outside, there are more nodes. C requests from A, sets up a block. B's block expires, C's 
-            		 * is still active. A requests from B which requests from C ... and it goes round again.
-            		 * 
-            		 * 4) It is exactly the same if we specify a timeout, unless the timeout can be guaranteed to 
-            		 * not increase the expiry time.
-            		 */
-            		
-            		// First take the original TIME_LEFT. This will start at 10 minutes if we get rejected in
-            		// the same millisecond as the failure table block was added.
-            		int timeLeft = msg.getInt(DMT.TIME_LEFT);
-            		int origTimeLeft = timeLeft;
-            		
-            		if(timeLeft <= 0) {
-            			Logger.error(this, "Impossible: timeLeft="+timeLeft);
-            			origTimeLeft = 0;
-            			timeLeft=1000; // arbitrary default...
-            		}
-            		
-            		// This is in theory relative to when the request was received by the node. Lets make it relative
-            		// to a known event before that: the time when we sent the request.
-            		
-            		long timeSinceSent = Math.max(0, (System.currentTimeMillis() - timeSentRequest));
-            		timeLeft -= timeSinceSent;
-            		
-            		// Subtract 1% for good measure / to compensate for dodgy clocks
-            		timeLeft -= origTimeLeft / 100;
-            		
-            		//Store the timeleft so that the requestHandler can get at it.
-            		recentlyFailedTimeLeft = timeLeft;
-            		
-           			// Kill the request, regardless of whether there is timeout left.
-            		// If there is, we will avoid sending requests for the specified period.
-            		// FIXME we need to create the FT entry.
-           			finish(RECENTLY_FAILED, next, false);
-           			node.failureTable.onFinalFailure(key, next, htl, origHTL, timeLeft, source);
-            		return;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRouteNotFound) {
-            		// Backtrack within available hops
-            		short newHtl = msg.getShort(DMT.HTL);
-            		if(newHtl < htl) htl = newHtl;
-            		next.successNotOverload();
-            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            		break;
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Non-fatal - probably still have time left
-					forwardRejectedOverload();
-					rejectOverloads++;
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						//NB: IS_LOCAL means it's terminal. not(IS_LOCAL) implies that the rejection message was forwarded from a downstream node.
-						//"Local" from our peers perspective, this has nothing to do with local requests (source==null)
-	            		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-						next.localRejectedOverload("ForwardRejectedOverload2");
-						// Node in trouble suddenly??
-						Logger.normal(this, "Local RejectedOverload after Accepted, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					}
-					//so long as the node does not send a (IS_LOCAL) message. Interestingly messages can often timeout having only received this message.
-					continue;
-            	}
+    	if(msg.getSpec() == DMT.FNPCHKDataFound) {
+    		if(!(key instanceof NodeCHK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+    			routeRequest();
+    			return;
+    		}
+    		
+        	// Found data
+        	
+        	// First get headers
+        	
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+        	
+        	// FIXME: Validate headers
+        	
+        	receiveData();
+        	return;
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKPubKey) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequest();
+    			return;
+    		}
+			byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
+			try {
+				if(pubKey == null)
+					pubKey = DSAPublicKey.create(pubkeyAsBytes);
+				((NodeSSK)key).setPubKey(pubKey);
+			} catch (SSKVerifyException e) {
+				pubKey = null;
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				routeRequest(); // try next node
+				return;
+			} catch (CryptFormatException e) {
+				Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+				routeRequest(); // try next node
+				return;
+			}
+			if(sskData != null && headers != null) {
+				finishSSK(next);
+				return;
+			}
+			waitForReply();
+			return;
+    	}
+    	            	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got data on "+uid);
+    		
+        	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
+        	
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequest();
+    			return;
+    		}
+    		
+        	if(pubKey != null && headers != null) {
+        		finishSSK(next);
+        		return;
+        	}
+        	waitForReply();
+        	return;
 
-            	if(msg.getSpec() == DMT.FNPCHKDataFound) {
-            		if(!(key instanceof NodeCHK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-            			break;
-            		}
-            		
-                	// Found data
-                	
-                	// First get headers
-                	
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-                	
-                	// FIXME: Validate headers
-                	
-                	node.addTransferringSender((NodeCHK)key, this);
-                	
-                	try {
-                		
-                		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
-                		
-                		synchronized(this) {
-                			notifyAll();
-                		}
-                		fireCHKTransferBegins();
-						
-                		long tStart = System.currentTimeMillis();
-                		BlockReceiver br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
-                		
-                		try {
-                			if(logMINOR) Logger.minor(this, "Receiving data");
-                			final PeerNode from = next;
-                			synchronized(this) {
-                				transferringFrom = next;
-                			}
-                			node.getTicker().queueTimedJob(new Runnable() {
+    	}
+    	
+    	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
+    		
+    		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
+    		
+    		if(!(key instanceof NodeSSK)) {
+    			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
+        		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
+    			routeRequest();
+    			return;
+    		}
+    		
+        	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
+    		
+        	if(pubKey != null && sskData != null) {
+        		finishSSK(next);
+        		return;
+        	}
+        	waitForReply();
+        	return;
 
-								public void run() {
-									synchronized(RequestSender.this) {
-										if(transferringFrom != from) return;
-									}
-									makeTurtle();
-								}
-                				
-                			}, 60*1000);
-                			byte[] data;
-                			try {
-                				data = br.receive();
-                			} finally {
-                				synchronized(this) {
-                					transferringFrom = null;
-                				}
-                			}
-                			
-                			long tEnd = System.currentTimeMillis();
-                			this.transferTime = tEnd - tStart;
-                			boolean turtle;
-                			boolean turtleBackedOff;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                				turtleBackedOff = sentBackoffTurtle;
-                				sentBackoffTurtle = true;
-                			}
-                			if(!turtle)
-                				next.transferSuccess();
-                			else {
-                				Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
-                				if(!turtleBackedOff)
-                					next.transferFailed("TurtledTransfer");
-                				node.nodeStats.turtleSucceeded();
-                			}
-                        	next.successNotOverload();
-                        	if(turtle) {
-                        		next.unregisterTurtleTransfer(this);
-                        		node.unregisterTurtleTransfer(this);
-                        	}
-                        	node.nodeStats.successfulBlockReceive();
-                			if(logMINOR) Logger.minor(this, "Received data");
-                			// Received data
-                			try {
-                				verifyAndCommit(data);
-                			} catch (KeyVerifyException e1) {
-                				Logger.normal(this, "Got data but verify failed: "+e1, e1);
-                				finish(VERIFY_FAILURE, next, false);
-                				node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-                				return;
-                			}
-                			finish(SUCCESS, next, false);
-                			return;
-                		} catch (RetrievalException e) {
-                			boolean turtle;
-                			synchronized(this) {
-                				turtle = turtleMode;
-                			}
-            				if(turtle) {
-            					if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
-            						Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
-            						node.nodeStats.turtleFailed();
-            					} else {
-            						if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
-            					}
-                           		next.unregisterTurtleTransfer(this);
-                           		node.unregisterTurtleTransfer(this);
-            				}
-							if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
-								Logger.normal(this, "Transfer failed (disconnect): "+e, e);
-							else
-								// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
-								Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
-							next.localRejectedOverload("TransferFailedRequest"+e.getReason());
-                			finish(TRANSFER_FAILED, next, false);
-                			node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-            				int reason = e.getReason();
-                			boolean timeout = (!br.senderAborted()) &&
-    							(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
-    							|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
-               				if(timeout) {
-               					// Looks like a timeout. Backoff, even if it's a turtle.
-               					if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
-               					next.transferFailed(e.getErrString());
-               				} else {
-               					// Quick failure (in that we didn't have to timeout). Don't backoff.
-               					// Treat as a DNF.
-               					// If it was turtled, and then failed, still treat it as a DNF.
-           						node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
-               				}
-                   			node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
-                			return;
-                		}
-                	} finally {
-                		node.removeTransferringSender((NodeCHK)key, this);
-                	}
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKPubKey) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got pubkey on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-    				byte[] pubkeyAsBytes = ((ShortBuffer)msg.getObject(DMT.PUBKEY_AS_BYTES)).getData();
-    				try {
-    					if(pubKey == null)
-    						pubKey = DSAPublicKey.create(pubkeyAsBytes);
-    					((NodeSSK)key).setPubKey(pubKey);
-    				} catch (SSKVerifyException e) {
-    					pubKey = null;
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e.getMessage()+ ')', e);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
-    				} catch (CryptFormatException e) {
-    					Logger.error(this, "Invalid pubkey from "+source+" on "+uid+" ("+e+ ')');
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-    					break; // try next node
-    				}
-    				if(sskData != null && headers != null) {
-    					finishSSK(next);
-    					return;
+    	}
+    	
+   		Logger.error(this, "Unexpected message: "+msg);
+   		waitForReply();
+	}
+	
+	/** Receive the data for a CHK from next. Blocks until the transfer has finished. */
+	private void receiveData() {
+    	node.addTransferringSender((NodeCHK)key, this);
+    	
+    	try {
+    		
+    		prb = new PartiallyReceivedBlock(Node.PACKETS_IN_BLOCK, Node.PACKET_SIZE);
+    		
+    		synchronized(this) {
+    			notifyAll();
+    		}
+    		fireCHKTransferBegins();
+			
+    		long tStart = System.currentTimeMillis();
+    		BlockReceiver br = new BlockReceiver(node.usm, next, uid, prb, this, node.getTicker(), true);
+    		
+    		try {
+    			if(logMINOR) Logger.minor(this, "Receiving data");
+    			final PeerNode from = next;
+    			synchronized(this) {
+    				transferringFrom = next;
+    			}
+    			node.getTicker().queueTimedJob(new Runnable() {
+
+					public void run() {
+						synchronized(RequestSender.this) {
+							if(transferringFrom != from) return;
+						}
+						makeTurtle();
+					}
+    				
+    			}, 60*1000);
+    			byte[] data;
+    			try {
+    				data = br.receive();
+    			} finally {
+    				synchronized(this) {
+    					transferringFrom = null;
     				}
-    				continue;
+    			}
+    			
+    			long tEnd = System.currentTimeMillis();
+    			this.transferTime = tEnd - tStart;
+    			node.nodeStats.requestTimings.report(RequestTimings.CHK_REQUEST, RequestTimings.TRANSFER, transferTime);
+    			boolean turtle;
+    			boolean turtleBackedOff;
+    			synchronized(this) {
+    				turtle = turtleMode;
+    				turtleBackedOff = sentBackoffTurtle;
+    				sentBackoffTurtle = true;
+    			}
+    			if(!turtle)
+    				next.transferSuccess();
+    			else {
+    				Logger.normal(this, "TURTLE SUCCEEDED: "+key+" for "+this+" in "+TimeUtil.formatTime(transferTime, 2, true));
+    				if(!turtleBackedOff)
+    					next.transferFailed("TurtledTransfer");
+    				node.nodeStats.turtleSucceeded();
+    			}
+            	next.successNotOverload();
+            	if(turtle) {
+            		next.unregisterTurtleTransfer(this);
+            		node.unregisterTurtleTransfer(this);
             	}
-            	            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundData) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got data on "+uid);
-            		
-                	sskData = ((ShortBuffer)msg.getObject(DMT.DATA)).getData();
-                	
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	if(pubKey != null && headers != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+            	node.nodeStats.successfulBlockReceive();
+    			if(logMINOR) Logger.minor(this, "Received data");
+    			// Received data
+    			try {
+    				verifyAndCommit(data);
+    			} catch (KeyVerifyException e1) {
+    				Logger.normal(this, "Got data but verify failed: "+e1, e1);
+    				finish(VERIFY_FAILURE, next, false);
+    				node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+    				return;
+    			}
+    			finish(SUCCESS, next, false);
+    			return;
+    		} catch (RetrievalException e) {
+    			boolean turtle;
+    			synchronized(this) {
+    				turtle = turtleMode;
+    			}
+				if(turtle) {
+					if(e.getReason() != RetrievalException.GONE_TO_TURTLE_MODE) {
+						Logger.normal(this, "TURTLE FAILED: "+key+" for "+this+" : "+e);
+						node.nodeStats.turtleFailed();
+					} else {
+						if(logMINOR) Logger.minor(this, "Upstream turtled for "+this+" from "+next);
+					}
+               		next.unregisterTurtleTransfer(this);
+               		node.unregisterTurtleTransfer(this);
+				}
+				if (e.getReason()==RetrievalException.SENDER_DISCONNECTED)
+					Logger.normal(this, "Transfer failed (disconnect): "+e, e);
+				else
+					// A certain number of these are normal, it's better to track them through statistics than call attention to them in the logs.
+					Logger.normal(this, "Transfer failed ("+e.getReason()+"/"+RetrievalException.getErrString(e.getReason())+"): "+e+" from "+next, e);
+				next.localRejectedOverload("TransferFailedRequest"+e.getReason());
+    			finish(TRANSFER_FAILED, next, false);
+    			node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+				int reason = e.getReason();
+    			boolean timeout = (!br.senderAborted()) &&
+					(reason == RetrievalException.SENDER_DIED || reason == RetrievalException.RECEIVER_DIED || reason == RetrievalException.TIMED_OUT
+					|| reason == RetrievalException.UNABLE_TO_SEND_BLOCK_WITHIN_TIMEOUT);
+   				if(timeout) {
+   					// Looks like a timeout. Backoff, even if it's a turtle.
+   					if(logMINOR) Logger.minor(this, "Timeout transferring data : "+e, e);
+   					next.transferFailed(e.getErrString());
+   				} else {
+   					// Quick failure (in that we didn't have to timeout). Don't backoff.
+   					// Treat as a DNF.
+   					// If it was turtled, and then failed, still treat it as a DNF.
+					node.failureTable.onFinalFailure(key, next, htl, origHTL, FailureTable.REJECT_TIME, source);
+   				}
+       			node.nodeStats.failedBlockReceive(true, timeout, reason == RetrievalException.GONE_TO_TURTLE_MODE);
+    			return;
+    		}
+    	} finally {
+    		node.removeTransferringSender((NodeCHK)key, this);
+    	}
+	}
+	
+	/** One step of the request, run on the executor. */
+	private abstract class Step implements PrioRunnable {
+		
+		public void run() {
+			try {
+				step();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" on "+RequestSender.this, t);
+				finish(INTERNAL_ERROR, null, false);
+			}
+		}
+		
+		abstract void step();
+		
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+		
+	}
+	
+	/**
+	 * Wait for a message from next without a thread.
+	 * @param accepted If true, pass it to handleAcceptedReply(), otherwise to
+	 * handleReply().
+	 */
+	private void waitFor(MessageFilter mf, final boolean accepted) {
+		final PeerNode waitingFor = next;
+		AsyncMessageFilterCallback cb = new AsyncMessageFilterCallback() {
+			
+			private boolean done;
+			
+			private synchronized boolean setDone() {
+				if(done) return false;
+				done = true;
+				return true;
+			}
+			
+			private void handle(final Message m) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						if(accepted)
+							handleAcceptedReply(m);
+						else
+							handleReply(m);
+					}
+				}, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
 
-            	}
-            	
-            	if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
-            		
-            		if(logMINOR) Logger.minor(this, "Got headers on "+uid);
-            		
-            		if(!(key instanceof NodeSSK)) {
-            			Logger.error(this, "Got "+msg+" but expected a different key type from "+next);
-                		node.failureTable.onFailed(key, next, htl, (int) (System.currentTimeMillis() - timeSentRequest));
-            			break;
-            		}
-            		
-                	headers = ((ShortBuffer)msg.getObject(DMT.BLOCK_HEADERS)).getData();
-            		
-                	if(pubKey != null && sskData != null) {
-                		finishSSK(next);
-                		return;
-                	}
-                	continue;
+			public void onMatched(Message m) {
+				handle(m);
+			}
 
-            	}
-            	
-           		Logger.error(this, "Unexpected message: "+msg);
-            	
-            }
-        }
+			public boolean shouldTimeout() {
+				return false;
+			}
+
+			public void onTimeout() {
+				handle(null);
+			}
+
+			public void onDisconnect(PeerContext ctx) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						disconnected(waitingFor, accepted);
+					}
+				}, "RequestSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
+
+			public void onRestarted(PeerContext ctx) {
+				onDisconnect(ctx);
+			}
+			
+		};
+		try {
+			node.usm.addAsyncFilter(mf, cb);
+		} catch (DisconnectedException e) {
+			disconnected(waitingFor, accepted);
+		}
+	}
+	
+	private void disconnected(PeerNode pn, boolean accepted) {
+		if(accepted)
+			Logger.normal(this, "Disconnected from "+pn+" while waiting for Accepted on "+uid);
+		else
+			Logger.normal(this, "Disconnected from "+pn+" while waiting for data on "+uid);
+		routeRequest();
 	}
     
 	protected void makeTurtle() {
@@ -946,9 +1084,11 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
      * @param next The node we received the data from.
      */
 	private void finishSSK(PeerNode next) {
+		long start = System.currentTimeMillis();
     	try {
 			block = new SSKBlock(sskData, headers, (NodeSSK)key, false);
 			node.storeShallow(block, canWriteClientCache, canWriteDatastore, false);
+			node.nodeStats.requestTimings.reportSince(RequestTimings.SSK_REQUEST, RequestTimings.VERIFY, start);
 			if(node.random.nextInt(RANDOM_REINSERT_INTERVAL) == 0)
 				node.queueRandomReinsert(block);
 			finish(SUCCESS, next, false);
@@ -994,6 +1134,15 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 	}
 
 	private void verifyAndCommit(byte[] data) throws KeyVerifyException {
+		long start = System.currentTimeMillis();
+		try {
+			verifyAndCommitInner(data);
+		} finally {
+			node.nodeStats.requestTimings.reportSince(RequestTimings.requestType(key), RequestTimings.VERIFY, start);
+		}
+	}
+
+	private void verifyAndCommitInner(byte[] data) throws KeyVerifyException {
     	if(key instanceof NodeCHK) {
     		CHKBlock block = new CHKBlock(data, headers, (NodeCHK)key);
     		// Cache only in the cache, not the store. The reason for this is that
@@ -1094,6 +1243,7 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 	
     private void finish(int code, PeerNode next, boolean fromOfferedKey) {
     	if(logMINOR) Logger.minor(this, "finish("+code+ ')');
+    	node.nodeStats.requestTimings.reportSince(RequestTimings.requestType(key), RequestTimings.TOTAL, startTime);
         
     	boolean turtle;
     	
@@ -1151,7 +1301,8 @@ public final class RequestSender implements PrioRunnable, ByteCounter {
 			opennetFinished = true;
 			notifyAll();
 		}
-        
+		
+        node.removeRequestSender(key, origHTL, this);
     }
 
     /** Wait for the opennet completion message and discard it */
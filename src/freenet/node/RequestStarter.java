@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.node;
 
+import java.util.LinkedList;
+
 import com.db4o.ObjectContainer;
 
 import freenet.client.async.ChosenBlock;
@@ -59,6 +61,13 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	 * buckets and the thread limit. FIXME make configurable. */
 	private static final boolean LOCAL_REQUESTS_COMPETE_FAIRLY = true;
 	
+	/** The most requests we choose in one pass of the scheduler. */
+	static final int MAX_BATCH = 8;
+	/** Only choose as many requests as the throttle will let us start in this
+	 * many milliseconds, so we don't hold on to chosen requests for long when
+	 * something more important may come along. */
+	static final long BATCH_WINDOW = 250;
+	
 	public static boolean isValidPriorityClass(int prio) {
 		return !((prio < MAXIMUM_PRIORITY_CLASS) || (prio > MINIMUM_PRIORITY_CLASS));
 	}
@@ -72,6 +81,8 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 	final NodeClientCore core;
 	final NodeStats stats;
 	private long sentRequestTime;
+	/** Requests chosen but not started yet. Only used by the RequestStarter thread. */
+	private final LinkedList<ChosenBlock> batch;
 	private final boolean isInsert;
 	private final boolean isSSK;
 	
@@ -87,6 +98,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		this.averageInputBytesPerRequest = averageInputBytesPerRequest;
 		this.isInsert = isInsert;
 		this.isSSK = isSSK;
+		batch = new LinkedList<ChosenBlock>();
 	}
 
 	void setScheduler(RequestScheduler sched) {
@@ -127,7 +139,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				continue;
 			}
 			if(req == null) {
-				req = sched.grabRequest();
+				req = nextRequest();
 			}
 			if(req != null) {
 				if(logMINOR) Logger.minor(this, "Running "+req+" priority "+req.getPriority());
@@ -167,7 +179,7 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 				// Always take the lock on RequestStarter first. AFAICS we don't synchronize on RequestStarter anywhere else.
 				// Nested locks here prevent extra latency when there is a race, and therefore allow us to sleep indefinitely
 				synchronized(this) {
-					req = sched.grabRequest();
+					req = nextRequest();
 					if(req == null) {
 						try {
 							wait(100*1000); // as close to indefinite as I'm comfortable with! Toad
@@ -188,6 +200,20 @@ public class RequestStarter implements Runnable, RandomGrabArrayItemExclusionLis
 		}
 	}
 
+	/**
+	 * Get the next request to start. Choose a batch of them at a time, as many
+	 * as the throttle will let us start in BATCH_WINDOW, so we don't go back to
+	 * the scheduler for every block when we are starting requests quickly.
+	 */
+	private ChosenBlock nextRequest() {
+		if(batch.isEmpty()) {
+			long delay = throttle.getDelay();
+			int max = delay <= 0 ? MAX_BATCH : (int) Math.max(1, Math.min(MAX_BATCH, BATCH_WINDOW / delay));
+			sched.grabRequests(batch, max);
+		}
+		return batch.poll();
+	}
+
 	private boolean startRequest(ChosenBlock req, boolean logMINOR) {
 		if((!req.isPersistent()) && req.isCancelled()) {
 			req.onDumped();
@@ -0,0 +1,149 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import freenet.keys.Key;
+import freenet.keys.NodeSSK;
+import freenet.support.HTMLNode;
+import freenet.support.SimpleFieldSet;
+import freenet.support.math.Histogram;
+
+/**
+ * Where the time goes in requests and inserts: how long each one waits for
+ * a thread, looks in the datastore, waits for Accepted from each peer,
+ * transfers the data and verifies it, and how long it takes altogether.
+ * Times are in milliseconds, kept in a Histogram for each kind of request
+ * and phase. Reporting takes no locks, and does nothing but check a flag
+ * if disabled.
+ */
+public class RequestTimings {
+
+	public static final int CHK_REQUEST = 0;
+	public static final int SSK_REQUEST = 1;
+	public static final int CHK_INSERT = 2;
+	public static final int SSK_INSERT = 3;
+	static final int TYPES = 4;
+	static final String[] TYPE_NAMES = new String[] { "CHKRequest", "SSKRequest", "CHKInsert", "SSKInsert" };
+
+	/** From receiving the request to its handler starting to run */
+	public static final int QUEUE = 0;
+	/** Looking in the datastore and caches */
+	public static final int STORE = 1;
+	/** From sending the request to a peer to getting Accepted back, for each peer */
+	public static final int ACCEPTED = 2;
+	/** Receiving the data, or sending it for an insert */
+	public static final int TRANSFER = 3;
+	/** Verifying the data and storing it */
+	public static final int VERIFY = 4;
+	/** From starting to route the request to finishing, whatever the outcome */
+	public static final int TOTAL = 5;
+	static final int PHASES = 6;
+	static final String[] PHASE_NAMES = new String[] { "Queue", "Store", "Accepted", "Transfer", "Verify", "Total" };
+
+	/** Up to 2^18ms, a bit over four minutes */
+	private static final int BUCKETS = 20;
+
+	private final Histogram[][] histograms;
+	private volatile boolean enabled;
+
+	RequestTimings(boolean enabled) {
+		this.enabled = enabled;
+		histograms = new Histogram[TYPES][PHASES];
+		for(int i=0;i<TYPES;i++)
+			for(int j=0;j<PHASES;j++)
+				histograms[i][j] = new Histogram(BUCKETS);
+	}
+
+	public static int requestType(Key key) {
+		return key instanceof NodeSSK ? SSK_REQUEST : CHK_REQUEST;
+	}
+
+	public static int insertType(Key key) {
+		return key instanceof NodeSSK ? SSK_INSERT : CHK_INSERT;
+	}
+
+	/**
+	 * Record how long a phase took.
+	 * @param type CHK_REQUEST, SSK_REQUEST, CHK_INSERT or SSK_INSERT.
+	 * @param phase One of the phase constants.
+	 * @param time The time taken in milliseconds.
+	 */
+	public void report(int type, int phase, long time) {
+		if(!enabled) return;
+		histograms[type][phase].report(time);
+	}
+
+	/** Record the time from start until now. */
+	public void reportSince(int type, int phase, long start) {
+		if(!enabled) return;
+		histograms[type][phase].report(System.currentTimeMillis() - start);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public Histogram getHistogram(int type, int phase) {
+		return histograms[type][phase];
+	}
+
+	/** A table of count, mean, median, 99th percentile and maximum for each
+	 * kind of request and phase we have any reports for. */
+	public void fillTimingsBox(HTMLNode content) {
+		if(!enabled) {
+			content.addChild("p", "Disabled. Enable the requestTimings option to collect timings.");
+			return;
+		}
+		HTMLNode table = content.addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", "");
+		row.addChild("th", "Phase");
+		row.addChild("th", "Count");
+		row.addChild("th", "Mean");
+		row.addChild("th", "Median");
+		row.addChild("th", "99%");
+		row.addChild("th", "Max");
+		for(int i=0;i<TYPES;i++) {
+			for(int j=0;j<PHASES;j++) {
+				Histogram h = histograms[i][j];
+				long count = h.countReports();
+				if(count == 0) continue;
+				row = table.addChild("tr");
+				row.addChild("td", TYPE_NAMES[i]);
+				row.addChild("td", PHASE_NAMES[j]);
+				row.addChild("td", Long.toString(count));
+				row.addChild("td", Long.toString(Math.round(h.getMean())));
+				row.addChild("td", Long.toString(h.getPercentile(0.5)));
+				row.addChild("td", Long.toString(h.getPercentile(0.99)));
+				row.addChild("td", Long.toString(h.getMax()));
+			}
+		}
+	}
+
+	/** The same as fillTimingsBox(), plus the bucket counts, for FCP. */
+	public SimpleFieldSet exportFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.put("Enabled", enabled);
+		for(int i=0;i<TYPES;i++) {
+			for(int j=0;j<PHASES;j++) {
+				Histogram h = histograms[i][j];
+				String prefix = TYPE_NAMES[i] + '.' + PHASE_NAMES[j] + '.';
+				fs.put(prefix + "Count", h.countReports());
+				fs.put(prefix + "Mean", h.getMean());
+				fs.put(prefix + "Median", h.getPercentile(0.5));
+				fs.put(prefix + "P99", h.getPercentile(0.99));
+				fs.put(prefix + "Max", h.getMax());
+				// Bucket n holds times from 2^(n-1) to 2^n-1 milliseconds.
+				for(long c : h.getCounts())
+					fs.putAppend(prefix + "Buckets", Long.toString(c));
+			}
+		}
+		return fs;
+	}
+
+}
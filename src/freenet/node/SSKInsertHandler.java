@@ -76,6 +76,7 @@ public class SSKInsertHandler implements PrioRunnable, ByteCounter {
     
     public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
+	    node.nodeStats.requestTimings.reportSince(RequestTimings.SSK_INSERT, RequestTimings.QUEUE, startTime);
         try {
         	realRun();
 		} catch (OutOfMemoryError e) {
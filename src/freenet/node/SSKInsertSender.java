@@ -8,12 +8,14 @@ import java.util.HashSet;
 
 import freenet.crypt.DSAPublicKey;
 import freenet.crypt.SHA256;
+import freenet.io.comm.AsyncMessageFilterCallback;
 import freenet.io.comm.ByteCounter;
 import freenet.io.comm.DMT;
 import freenet.io.comm.DisconnectedException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageFilter;
 import freenet.io.comm.NotConnectedException;
+import freenet.io.comm.PeerContext;
 import freenet.io.comm.PeerRestartedException;
 import freenet.io.xfer.WaitedTooLongException;
 import freenet.keys.NodeSSK;
@@ -107,30 +109,46 @@ public class SSKInsertSender implements PrioRunnable, AnyInsertSender, ByteCount
     
 	public void run() {
 	    freenet.support.Logger.OSThread.logPID(this);
-        short origHTL = htl;
+        origHTL = htl;
         node.addInsertSender(myKey, htl, this);
-        try {
-        	realRun();
-		} catch (OutOfMemoryError e) {
-			OOMHandler.handleOOM(e);
-            if(status == NOT_FINISHED)
-            	finish(INTERNAL_ERROR, null);
-        } catch (Throwable t) {
-            Logger.error(this, "Caught "+t, t);
-            if(status == NOT_FINISHED)
-            	finish(INTERNAL_ERROR, null);
-        } finally {
-        	if(logMINOR) Logger.minor(this, "Finishing "+this);
-            if(status == NOT_FINISHED)
-            	finish(INTERNAL_ERROR, null);
-        	node.removeInsertSender(myKey, origHTL, this);
-        }
+        nodesRoutedTo = new HashSet<PeerNode>();
+        new Step() {
+        	@Override
+        	void step() {
+        		routeInsert();
+        	}
+        }.run();
 	}
+	
+	/*
+	 * Routing is a state machine rather than a loop on a thread, so that an
+	 * insert waiting for a reply from downstream doesn't tie up a thread:
+	 * routeInsert() sends the insert to the next peer, then the handle*()
+	 * methods are run on the executor when a message arrives, the filter
+	 * times out or the peer disconnects. Each step either finishes, waits for
+	 * another message, or routes to another peer.
+	 */
+	
+	/** Waiting for FNPSSKAccepted */
+	private static final int WAIT_ACCEPTED = 0;
+	/** Waiting for FNPSSKPubKeyAccepted */
+	private static final int WAIT_PUBKEY_ACCEPTED = 1;
+	/** Waiting for the reply to the insert */
+	private static final int WAIT_REPLY = 2;
+	/** Waiting for the data after a collision */
+	private static final int WAIT_COLLISION_DATA = 3;
+	
+    /** HTL when we started, for removeInsertSender() */
+	private short origHTL;
+    /** Peers we have routed to. Only used by the current step. */
+	private HashSet<PeerNode> nodesRoutedTo;
+    /** The peer we are routing to. Only used by the current step. */
+	private PeerNode next;
+	private long timeSentRequest;
+	private boolean removedFromNode;
 
-    private void realRun() {
-        HashSet<PeerNode> nodesRoutedTo = new HashSet<PeerNode>();
-        
-        PeerNode next = null;
+    /** Route to the next peer, or finish if we can't. */
+    private void routeInsert() {
         while(true) {
             /*
              * If we haven't routed to any node yet, decrement according to the source.
@@ -164,288 +182,424 @@ public class SSKInsertSender implements PrioRunnable, AnyInsertSender, ByteCount
             
             // Wait for ack or reject... will come before even a locally generated DataReply
             
-            MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPSSKAccepted);
-            MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
-            MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
-            // mfRejectedOverload must be the last thing in the or
-            // So its or pointer remains null
-            // Otherwise we need to recreate it below
-            mfRejectedOverload.clearOr();
-            MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
-
             // Send to next node
             
             try {
 				next.sendAsync(request, null, this);
+				timeSentRequest = System.currentTimeMillis();
 			} catch (NotConnectedException e1) {
 				if(logMINOR) Logger.minor(this, "Not connected to "+next);
 				continue;
 			}
             sentRequest = true;
             
-            Message msg = null;
-            
-            /*
-             * Because messages may be re-ordered, it is
-             * entirely possible that we get a non-local RejectedOverload,
-             * followed by an Accepted. So we must loop here.
-             */
-            
-            while (true) {
-            	
-				try {
-					msg = node.usm.waitFor(mf, this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + next
-							+ " while waiting for Accepted");
-					break;
-				}
-				
-				if (msg == null) {
-					// Terminal overload
-					// Try to propagate back to source
-					if(logMINOR) Logger.minor(this, "Timeout");
-					next.localRejectedOverload("Timeout");
-					forwardRejectedOverload();
-					break;
-				}
-				
-				if (msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Non-fatal - probably still have time left
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						next.localRejectedOverload("ForwardRejectedOverload3");
-						if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					} else {
-						forwardRejectedOverload();
-					}
-					continue;
-				}
-				
-				if (msg.getSpec() == DMT.FNPRejectedLoop) {
-					next.successNotOverload();
-					// Loop - we don't want to send the data to this one
-					break;
-				}
-				
-				if (msg.getSpec() != DMT.FNPSSKAccepted) {
-					Logger.error(this,
-							"Unexpected message waiting for SSKAccepted: "
-									+ msg);
-					break;
-				}
-				// Otherwise is an FNPSSKAccepted
-				break;
-            }
-            
-            if((msg == null) || (msg.getSpec() != DMT.FNPSSKAccepted)) continue;
-            
-            if(logMINOR) Logger.minor(this, "Got Accepted on "+this);
-            
-            // Send the headers and data
-            
-            Message headersMsg = DMT.createFNPSSKInsertRequestHeaders(uid, headers);
-            Message dataMsg = DMT.createFNPSSKInsertRequestData(uid, data);
-            
-            try {
-				next.sendAsync(headersMsg, null, this);
-				next.sendThrottledMessage(dataMsg, data.length, this, SSKInsertHandler.DATA_INSERT_TIMEOUT, false, null);
-			} catch (NotConnectedException e1) {
-				if(logMINOR) Logger.minor(this, "Not connected to "+next);
-				continue;
-			} catch (WaitedTooLongException e) {
-				Logger.error(this, "Waited too long to send "+dataMsg+" to "+next+" on "+this);
-				continue;
-			} catch (SyncSendWaitedTooLongException e) {
-				// Impossible
-			} catch (PeerRestartedException e) {
-				if(logMINOR) Logger.minor(this, "Peer restarted: "+next);
-				continue;
+            waitForAccepted();
+            return;
+        }
+    }
+    
+    private void waitForAccepted() {
+        MessageFilter mfAccepted = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPSSKAccepted);
+        MessageFilter mfRejectedLoop = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedLoop);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        // mfRejectedOverload must be the last thing in the or
+        // So its or pointer remains null
+        // Otherwise we need to recreate it below
+        MessageFilter mf = mfAccepted.or(mfRejectedLoop.or(mfRejectedOverload));
+        
+        waitFor(mf, WAIT_ACCEPTED);
+    }
+    
+    /**
+     * Because messages may be re-ordered, it is
+     * entirely possible that we get a non-local RejectedOverload,
+     * followed by an Accepted. So we wait again after one.
+     * @param msg The reply to our insert, or null if we timed out waiting for it.
+     */
+    private void handleAcceptedReply(Message msg) {
+		if (msg == null) {
+			// Terminal overload
+			// Try to propagate back to source
+			if(logMINOR) Logger.minor(this, "Timeout");
+			next.localRejectedOverload("Timeout");
+			forwardRejectedOverload();
+			routeInsert();
+			return;
+		}
+		
+		if (msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Non-fatal - probably still have time left
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				next.localRejectedOverload("ForwardRejectedOverload3");
+				if(logMINOR) Logger.minor(this, "Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				routeInsert();
+				return;
+			} else {
+				forwardRejectedOverload();
 			}
-            
-            // Do we need to send them the pubkey?
-            
-            if(msg.getBoolean(DMT.NEED_PUB_KEY)) {
-            	Message pkMsg = DMT.createFNPSSKPubKey(uid, pubKey);
-            	try {
-            		next.sendAsync(pkMsg, null, this);
-            	} catch (NotConnectedException e) {
-            		if(logMINOR) Logger.minor(this, "Node disconnected while sending pubkey: "+next);
-            		continue;
-            	}
-            	
-            	// Wait for the SSKPubKeyAccepted
-            	
-            	MessageFilter mf1 = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPSSKPubKeyAccepted);
-            	
-            	Message newAck;
-				try {
-					newAck = node.usm.waitFor(mf1, this);
-				} catch (DisconnectedException e) {
-					if(logMINOR) Logger.minor(this, "Disconnected from "+next);
-					continue;
-				}
-            	
-            	if(newAck == null) {
-					// Try to propagate back to source
-            		if(logMINOR) Logger.minor(this, "Timeout");
-					next.localRejectedOverload("Timeout2");
-					forwardRejectedOverload();
-					// Try another peer
-					continue;
-            	}
-            }
-            
-            // We have sent them the pubkey, and the data.
-            // Wait for the response.
-            
-            /** What are we waiting for now??:
-             * - FNPRouteNotFound - couldn't exhaust HTL, but send us the 
-             *   data anyway please
-             * - FNPInsertReply - used up all HTL, yay
-             * - FNPRejectOverload - propagating an overload error :(
-             * - FNPDataFound - target already has the data, and the data is
-             *   an SVK/SSK/KSK, therefore could be different to what we are
-             *   inserting.
-             * - FNPDataInsertRejected - the insert was invalid
-             */
-            
-            MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPInsertReply);
-            mfRejectedOverload.setTimeout(SEARCH_TIMEOUT);
-            mfRejectedOverload.clearOr();
-            MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
-            MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPDataInsertRejected);
-            
-            mf = mfRouteNotFound.or(mfInsertReply.or(mfRejectedOverload.or(mfDataInsertRejected)));
-            
-            while (true) {
-				try {
-					msg = node.usm.waitFor(mf, this);
-				} catch (DisconnectedException e) {
-					Logger.normal(this, "Disconnected from " + next
-							+ " while waiting for InsertReply on " + this);
-					break;
-				}
+			waitForAccepted();
+			return;
+		}
+		
+		if (msg.getSpec() == DMT.FNPRejectedLoop) {
+			next.successNotOverload();
+			// Loop - we don't want to send the data to this one
+			routeInsert();
+			return;
+		}
+		
+		if (msg.getSpec() != DMT.FNPSSKAccepted) {
+			Logger.error(this,
+					"Unexpected message waiting for SSKAccepted: "
+							+ msg);
+			routeInsert();
+			return;
+		}
+		// Otherwise is an FNPSSKAccepted
+        
+        if(logMINOR) Logger.minor(this, "Got Accepted on "+this);
+        node.nodeStats.requestTimings.reportSince(RequestTimings.SSK_INSERT, RequestTimings.ACCEPTED, timeSentRequest);
+        
+        // Send the headers and data
+        
+        Message headersMsg = DMT.createFNPSSKInsertRequestHeaders(uid, headers);
+        Message dataMsg = DMT.createFNPSSKInsertRequestData(uid, data);
+        
+        try {
+			next.sendAsync(headersMsg, null, this);
+			next.sendThrottledMessage(dataMsg, data.length, this, SSKInsertHandler.DATA_INSERT_TIMEOUT, false, null);
+		} catch (NotConnectedException e1) {
+			if(logMINOR) Logger.minor(this, "Not connected to "+next);
+			routeInsert();
+			return;
+		} catch (WaitedTooLongException e) {
+			Logger.error(this, "Waited too long to send "+dataMsg+" to "+next+" on "+this);
+			routeInsert();
+			return;
+		} catch (SyncSendWaitedTooLongException e) {
+			// Impossible
+		} catch (PeerRestartedException e) {
+			if(logMINOR) Logger.minor(this, "Peer restarted: "+next);
+			routeInsert();
+			return;
+		}
+        
+        // Do we need to send them the pubkey?
+        
+        if(msg.getBoolean(DMT.NEED_PUB_KEY)) {
+        	Message pkMsg = DMT.createFNPSSKPubKey(uid, pubKey);
+        	try {
+        		next.sendAsync(pkMsg, null, this);
+        	} catch (NotConnectedException e) {
+        		if(logMINOR) Logger.minor(this, "Node disconnected while sending pubkey: "+next);
+        		routeInsert();
+        		return;
+        	}
+        	
+        	// Wait for the SSKPubKeyAccepted
+        	
+        	MessageFilter mf1 = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(ACCEPTED_TIMEOUT).setType(DMT.FNPSSKPubKeyAccepted);
+        	
+        	waitFor(mf1, WAIT_PUBKEY_ACCEPTED);
+        	return;
+        }
+        
+        waitForReply();
+    }
+    
+    /** @param newAck FNPSSKPubKeyAccepted, or null if we timed out waiting for it. */
+    private void handlePubKeyAccepted(Message newAck) {
+    	if(newAck == null) {
+			// Try to propagate back to source
+    		if(logMINOR) Logger.minor(this, "Timeout");
+			next.localRejectedOverload("Timeout2");
+			forwardRejectedOverload();
+			// Try another peer
+			routeInsert();
+			return;
+    	}
+    	
+    	waitForReply();
+    }
+    
+    /** We have sent them the pubkey, and the data.
+     * Wait for the response.
+     * 
+     * What are we waiting for now??:
+     * - FNPRouteNotFound - couldn't exhaust HTL, but send us the 
+     *   data anyway please
+     * - FNPInsertReply - used up all HTL, yay
+     * - FNPRejectOverload - propagating an overload error :(
+     * - FNPDataFound - target already has the data, and the data is
+     *   an SVK/SSK/KSK, therefore could be different to what we are
+     *   inserting.
+     * - FNPDataInsertRejected - the insert was invalid
+     */
+    private void waitForReply() {
+        MessageFilter mfInsertReply = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPInsertReply);
+        MessageFilter mfRejectedOverload = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRejectedOverload);
+        MessageFilter mfRouteNotFound = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPRouteNotFound);
+        MessageFilter mfDataInsertRejected = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(SEARCH_TIMEOUT).setType(DMT.FNPDataInsertRejected);
+        
+        MessageFilter mf = mfRouteNotFound.or(mfInsertReply.or(mfRejectedOverload.or(mfDataInsertRejected)));
+        
+        waitFor(mf, WAIT_REPLY);
+    }
+    
+    /** @param msg The reply after sending the data, or null if we timed out waiting for it. */
+    private void handleReply(Message msg) {
+		if (msg == null) {
+			// Timeout :(
+			// Fairly serious problem
+			Logger.error(this, "Timeout (" + msg + ") after Accepted in insert; to ("+next+")");
+			// Terminal overload
+			// Try to propagate back to source
+			next.localRejectedOverload("AfterInsertAcceptedTimeout");
+			finish(TIMED_OUT, next);
+			return;
+		}
+		
+		if (msg.getSpec() == DMT.FNPRejectedOverload) {
+			// Probably non-fatal, if so, we have time left, can try next one
+			if (msg.getBoolean(DMT.IS_LOCAL)) {
+				next.localRejectedOverload("ForwardRejectedOverload4");
+				if(logMINOR) Logger.minor(this,
+						"Local RejectedOverload, moving on to next peer");
+				// Give up on this one, try another
+				routeInsert();
+				return;
+			} else {
+				forwardRejectedOverload();
+			}
+			waitForReply(); // Wait for any further response
+			return;
+		}
+
+		if (msg.getSpec() == DMT.FNPRouteNotFound) {
+			if(logMINOR) Logger.minor(this, "Rejected: RNF");
+			short newHtl = msg.getShort(DMT.HTL);
+			if (htl > newHtl)
+				htl = newHtl;
+			// Finished as far as this node is concerned
+			next.successNotOverload();
+			routeInsert();
+			return;
+		}
 
-				if (msg == null) {
-					// Timeout :(
-					// Fairly serious problem
-					Logger.error(this, "Timeout (" + msg + ") after Accepted in insert; to ("+next+")");
-					// Terminal overload
-					// Try to propagate back to source
-					next.localRejectedOverload("AfterInsertAcceptedTimeout");
-					finish(TIMED_OUT, next);
-					return;
+		if (msg.getSpec() == DMT.FNPDataInsertRejected) {
+			next.successNotOverload();
+			short reason = msg.getShort(DMT.DATA_INSERT_REJECTED_REASON);
+			if(logMINOR) Logger.minor(this, "DataInsertRejected: " + reason);
+			if (reason == DMT.DATA_INSERT_REJECTED_VERIFY_FAILED) {
+				if (fromStore) {
+					// That's odd...
+					Logger.error(this,"Verify failed on next node "
+							+ next + " for DataInsert but we were sending from the store!");
 				}
+			}
+			Logger.error(this, "SSK insert rejected! Reason="
+					+ DMT.getDataInsertRejectedReason(reason));
+			routeInsert(); // What else can we do?
+			return;
+		}
+		
+		if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
+			/**
+			 * Data was already on node, and was NOT equal to what we sent. COLLISION!
+			 * 
+			 * We can either accept the old data or the new data.
+			 * OLD DATA:
+			 * - KSK-based stuff is usable. Well, somewhat; a node could spoof KSKs on
+			 * receiving an insert, (if it knows them in advance), but it cannot just 
+			 * start inserts to overwrite old SSKs.
+			 * - You cannot "update" an SSK.
+			 * NEW DATA:
+			 * - KSK-based stuff not usable. (Some people think this is a good idea!).
+			 * - Illusion of updatability. (VERY BAD IMHO, because it's not really
+			 * updatable... FIXME implement TUKs; would determine latest version based
+			 * on version number, and propagate on request with a certain probability or
+			 * according to time. However there are good arguments to do updating at a
+			 * higher level (e.g. key bottleneck argument), and TUKs should probably be 
+			 * distinct from SSKs.
+			 * 
+			 * For now, accept the "old" i.e. preexisting data.
+			 */
+			Logger.normal(this, "Got collision on "+myKey+" ("+uid+") sending to "+next.getPeer());
+			
+			headers = ((ShortBuffer) msg.getObject(DMT.BLOCK_HEADERS)).getData();
+			// Wait for the data
+			MessageFilter mfData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(RequestSender.FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
+			waitFor(mfData, WAIT_COLLISION_DATA);
+			return;
+		}
+		
+		if (msg.getSpec() != DMT.FNPInsertReply) {
+			Logger.error(this, "Unknown reply: " + msg);
+			finish(INTERNAL_ERROR, next);
+			return;
+		}
 				
-				if (msg.getSpec() == DMT.FNPRejectedOverload) {
-					// Probably non-fatal, if so, we have time left, can try next one
-					if (msg.getBoolean(DMT.IS_LOCAL)) {
-						next.localRejectedOverload("ForwardRejectedOverload4");
-						if(logMINOR) Logger.minor(this,
-								"Local RejectedOverload, moving on to next peer");
-						// Give up on this one, try another
-						break;
-					} else {
-						forwardRejectedOverload();
+		// Our task is complete
+		next.successNotOverload();
+		finish(SUCCESS, next);
+    }
+    
+    /** @param dataMessage The data which collided with ours, or null if we timed out waiting for it. */
+    private void handleCollisionData(Message dataMessage) {
+		if(dataMessage == null) {
+			Logger.error(this, "Got headers but not data for datareply for insert from "+this);
+			routeInsert();
+			return;
+		}
+		// collided, overwrite data with remote data
+		try {
+			data = ((ShortBuffer) dataMessage.getObject(DMT.DATA)).getData();
+			block = new SSKBlock(data, block.getRawHeaders(), block.getKey(), false);
+			
+			synchronized(this) {
+				hasRecentlyCollided = true;
+				hasCollided = true;
+				notifyAll();
+			}
+		} catch (SSKVerifyException e) {
+			Logger.error(this, "Invalid SSK from remote on collusion: " + this + ":" +block);
+			finish(INTERNAL_ERROR, next);
+			return;
+		}
+		waitForReply(); // The node will now propagate the new data. There is no need to move to the next node yet.
+    }
+    
+	/** One step of the insert, run on the executor. */
+	private abstract class Step implements PrioRunnable {
+		
+		public void run() {
+			try {
+				step();
+			} catch (OutOfMemoryError e) {
+				OOMHandler.handleOOM(e);
+				failed();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" on "+SSKInsertSender.this, t);
+				failed();
+			}
+		}
+		
+		private void failed() {
+            if(status == NOT_FINISHED)
+            	finish(INTERNAL_ERROR, null);
+            else
+            	removeFromNode();
+		}
+		
+		abstract void step();
+		
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+		
+	}
+	
+	/**
+	 * Wait for a message from next without a thread.
+	 * @param phase WAIT_ACCEPTED, WAIT_PUBKEY_ACCEPTED, WAIT_REPLY or
+	 * WAIT_COLLISION_DATA.
+	 */
+	private void waitFor(MessageFilter mf, final int phase) {
+		final PeerNode waitingFor = next;
+		AsyncMessageFilterCallback cb = new AsyncMessageFilterCallback() {
+			
+			private boolean done;
+			
+			private synchronized boolean setDone() {
+				if(done) return false;
+				done = true;
+				return true;
+			}
+			
+			private void handle(final Message m) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						switch(phase) {
+						case WAIT_ACCEPTED:
+							handleAcceptedReply(m);
+							break;
+						case WAIT_PUBKEY_ACCEPTED:
+							handlePubKeyAccepted(m);
+							break;
+						case WAIT_REPLY:
+							handleReply(m);
+							break;
+						default:
+							handleCollisionData(m);
+						}
 					}
-					continue; // Wait for any further response
-				}
+				}, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
 
-				if (msg.getSpec() == DMT.FNPRouteNotFound) {
-					if(logMINOR) Logger.minor(this, "Rejected: RNF");
-					short newHtl = msg.getShort(DMT.HTL);
-					if (htl > newHtl)
-						htl = newHtl;
-					// Finished as far as this node is concerned
-					next.successNotOverload();
-					break;
-				}
+			public void onMatched(Message m) {
+				handle(m);
+			}
 
-				if (msg.getSpec() == DMT.FNPDataInsertRejected) {
-					next.successNotOverload();
-					short reason = msg.getShort(DMT.DATA_INSERT_REJECTED_REASON);
-					if(logMINOR) Logger.minor(this, "DataInsertRejected: " + reason);
-					if (reason == DMT.DATA_INSERT_REJECTED_VERIFY_FAILED) {
-						if (fromStore) {
-							// That's odd...
-							Logger.error(this,"Verify failed on next node "
-									+ next + " for DataInsert but we were sending from the store!");
-						}
-					}
-					Logger.error(this, "SSK insert rejected! Reason="
-							+ DMT.getDataInsertRejectedReason(reason));
-					break; // What else can we do?
-				}
-				
-				if(msg.getSpec() == DMT.FNPSSKDataFoundHeaders) {
-					/**
-					 * Data was already on node, and was NOT equal to what we sent. COLLISION!
-					 * 
-					 * We can either accept the old data or the new data.
-					 * OLD DATA:
-					 * - KSK-based stuff is usable. Well, somewhat; a node could spoof KSKs on
-					 * receiving an insert, (if it knows them in advance), but it cannot just 
-					 * start inserts to overwrite old SSKs.
-					 * - You cannot "update" an SSK.
-					 * NEW DATA:
-					 * - KSK-based stuff not usable. (Some people think this is a good idea!).
-					 * - Illusion of updatability. (VERY BAD IMHO, because it's not really
-					 * updatable... FIXME implement TUKs; would determine latest version based
-					 * on version number, and propagate on request with a certain probability or
-					 * according to time. However there are good arguments to do updating at a
-					 * higher level (e.g. key bottleneck argument), and TUKs should probably be 
-					 * distinct from SSKs.
-					 * 
-					 * For now, accept the "old" i.e. preexisting data.
-					 */
-					Logger.normal(this, "Got collision on "+myKey+" ("+uid+") sending to "+next.getPeer());
-					
-        			headers = ((ShortBuffer) msg.getObject(DMT.BLOCK_HEADERS)).getData();
-        			// Wait for the data
-        			MessageFilter mfData = MessageFilter.create().setSource(next).setField(DMT.UID, uid).setTimeout(RequestSender.FETCH_TIMEOUT).setType(DMT.FNPSSKDataFoundData);
-        			Message dataMessage;
-        			try {
-						dataMessage = node.usm.waitFor(mfData, this);
-					} catch (DisconnectedException e) {
-						if(logMINOR)
-							Logger.minor(this, "Disconnected: "+next+" getting datareply for "+this);
-						break;
-					}
-					if(dataMessage == null) {
-    					Logger.error(this, "Got headers but not data for datareply for insert from "+this);
-    					break;
-					}
-					// collided, overwrite data with remote data
-					try {
-						data = ((ShortBuffer) dataMessage.getObject(DMT.DATA)).getData();
-						block = new SSKBlock(data, block.getRawHeaders(), block.getKey(), false);
-						
-						synchronized(this) {
-							hasRecentlyCollided = true;
-							hasCollided = true;
-							notifyAll();
-						}
-					} catch (SSKVerifyException e) {
-    					Logger.error(this, "Invalid SSK from remote on collusion: " + this + ":" +block);
-						finish(INTERNAL_ERROR, next);
+			public boolean shouldTimeout() {
+				return false;
+			}
+
+			public void onTimeout() {
+				handle(null);
+			}
+
+			public void onDisconnect(PeerContext ctx) {
+				if(!setDone()) return;
+				node.executor.execute(new Step() {
+					@Override
+					void step() {
+						disconnected(waitingFor, phase);
 					}
-					continue; // The node will now propagate the new data. There is no need to move to the next node yet.
-        		}
-				
-				if (msg.getSpec() != DMT.FNPInsertReply) {
-					Logger.error(this, "Unknown reply: " + msg);
-					finish(INTERNAL_ERROR, next);
-				}
-						
-				// Our task is complete
-				next.successNotOverload();
-				finish(SUCCESS, next);
-				return;
-            }
-        }
-    }
+				}, "SSKInsertSender for UID "+uid+" on "+node.getDarknetPortNumber());
+			}
+
+			public void onRestarted(PeerContext ctx) {
+				onDisconnect(ctx);
+			}
+			
+		};
+		try {
+			node.usm.addAsyncFilter(mf, cb);
+		} catch (DisconnectedException e) {
+			disconnected(waitingFor, phase);
+		}
+	}
+	
+	private void disconnected(PeerNode pn, int phase) {
+		switch(phase) {
+		case WAIT_ACCEPTED:
+			Logger.normal(this, "Disconnected from " + pn
+					+ " while waiting for Accepted");
+			break;
+		case WAIT_PUBKEY_ACCEPTED:
+			if(logMINOR) Logger.minor(this, "Disconnected from "+pn);
+			break;
+		case WAIT_REPLY:
+			Logger.normal(this, "Disconnected from " + pn
+					+ " while waiting for InsertReply on " + this);
+			break;
+		default:
+			if(logMINOR)
+				Logger.minor(this, "Disconnected: "+pn+" getting datareply for "+this);
+		}
+		routeInsert();
+	}
+	
+	private void removeFromNode() {
+		synchronized(this) {
+			if(removedFromNode) return;
+			removedFromNode = true;
+		}
+		node.removeInsertSender(myKey, origHTL, this);
+	}
 
 	private boolean hasForwardedRejectedOverload;
     
@@ -467,6 +621,7 @@ public class SSKInsertSender implements PrioRunnable, AnyInsertSender, ByteCount
     	synchronized(this) {
     		if(status != NOT_FINISHED)
     			throw new IllegalStateException("finish() called with "+code+" when was already "+status);
+    		node.nodeStats.requestTimings.reportSince(RequestTimings.SSK_INSERT, RequestTimings.TOTAL, startTime);
     		
     		if((code == ROUTE_NOT_FOUND) && !sentRequest)
     			code = ROUTE_REALLY_NOT_FOUND;
@@ -481,6 +636,7 @@ public class SSKInsertSender implements PrioRunnable, AnyInsertSender, ByteCount
         
         if(logMINOR) Logger.minor(this, "Set status code: "+getStatusString());
         // Nothing to wait for, no downstream transfers, just exit.
+        removeFromNode();
     }
 
     public synchronized int getStatus() {
@@ -67,6 +67,8 @@ public abstract class FCPMessage {
 			return new GetPluginInfo(fs);
 		if(name.equals(GetRequestStatusMessage.NAME))
 			return new GetRequestStatusMessage(fs);
+		if(name.equals(GetRequestTimings.NAME))
+			return new GetRequestTimings(fs);
 		if(name.equals(ListPeerMessage.NAME))
 			return new ListPeerMessage(fs);
 		if(name.equals(ListPeersMessage.NAME))
@@ -0,0 +1,50 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Ask for the node's request timings, see freenet.node.RequestTimings.
+ */
+public class GetRequestTimings extends FCPMessage {
+
+	static final String NAME = "GetRequestTimings";
+	final String identifier;
+	
+	public GetRequestTimings(SimpleFieldSet fs) {
+		identifier = fs.get("Identifier");
+	}
+	
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+	
+	@Override
+	public String getName() {
+		return NAME;
+	}
+	
+	@Override
+	public void run(FCPConnectionHandler handler, Node node)
+			throws MessageInvalidException {
+		if(!handler.hasFullAccess()) {
+			throw new MessageInvalidException(ProtocolErrorMessage.ACCESS_DENIED, "GetRequestTimings requires full access", identifier, false);
+		}
+		handler.outputHandler.queue(new RequestTimingsMessage(node.nodeStats.requestTimings, identifier));
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+	
+}
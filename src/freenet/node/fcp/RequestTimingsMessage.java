@@ -0,0 +1,52 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node.fcp;
+
+import com.db4o.ObjectContainer;
+
+import freenet.node.Node;
+import freenet.node.RequestTimings;
+import freenet.support.SimpleFieldSet;
+
+/**
+ * Reply to GetRequestTimings. For each kind of request and phase, e.g.
+ * CHKRequest.Accepted, gives the Count, Mean, Median, P99 and Max time in
+ * milliseconds, and the counts in each power of two sized bucket.
+ */
+public class RequestTimingsMessage extends FCPMessage {
+
+	static final String NAME = "RequestTimings";
+	
+	final RequestTimings timings;
+	final String identifier;
+	
+	public RequestTimingsMessage(RequestTimings timings, String identifier) {
+		this.timings = timings;
+		this.identifier = identifier;
+	}
+	
+	@Override
+	public SimpleFieldSet getFieldSet() {
+		SimpleFieldSet fs = timings.exportFieldSet();
+		if(identifier != null)
+			fs.putSingle("Identifier", identifier);
+		return fs;
+	}
+
+	@Override
+	public String getName() {
+		return NAME;
+	}
+
+	@Override
+	public void run(FCPConnectionHandler handler, Node node) throws MessageInvalidException {
+		throw new MessageInvalidException(ProtocolErrorMessage.INVALID_MESSAGE, NAME + " goes from server to client not the other way around", identifier, false);
+	}
+
+	@Override
+	public void removeFrom(ObjectContainer container) {
+		container.delete(this);
+	}
+
+}
@@ -0,0 +1,154 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import freenet.support.Logger;
+
+/**
+ * Looks for a block in several stores at once, and returns the first one
+ * found. Stores in memory are checked first, on the caller's thread. If two
+ * or more of the rest are on disk, all but the first are read on a
+ * StoreIOExecutor while the caller reads the first, so a block in the
+ * datacache doesn't have to wait for a miss on the datastore's disk. Once we
+ * have a block, reads which haven't started yet are skipped.
+ */
+public class MultiStoreFetch<T extends StorableBlock> {
+
+	/** A read from one store, or from one store and its old format store. */
+	public static abstract class Probe<T extends StorableBlock> implements Runnable {
+
+		final String name;
+		final boolean onDisk;
+		private MultiStoreFetch<T> parent;
+
+		/**
+		 * @param name For logging.
+		 * @param onDisk True if the read may block on disk I/O, so is worth
+		 * doing in parallel with other reads.
+		 */
+		protected Probe(String name, boolean onDisk) {
+			this.name = name;
+			this.onDisk = onDisk;
+		}
+
+		/** @return The block, or null if it is not in this store. */
+		protected abstract T fetch() throws IOException;
+
+		public final void run() {
+			if(!parent.starting()) return;
+			T block = null;
+			try {
+				block = fetch();
+			} catch (IOException e) {
+				Logger.error(this, "Could not read from "+name+": "+e, e);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t+" reading from "+name, t);
+			}
+			parent.finished(this, block);
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+":"+name;
+		}
+	}
+
+	private final ArrayList<Probe<T>> probes;
+	/** Probes queued or running, which we may have to wait for */
+	private int pending;
+	private T found;
+	private Probe<T> hit;
+	/** Set when the caller has stopped waiting */
+	private boolean done;
+
+	public MultiStoreFetch() {
+		probes = new ArrayList<Probe<T>>(5);
+	}
+
+	/** Add a store to look in. Earlier stores are preferred if reads are not
+	 * in parallel. */
+	public void add(Probe<T> probe) {
+		probe.parent = this;
+		probes.add(probe);
+	}
+
+	/**
+	 * Look for the block.
+	 * @param executor Where to read from disk stores in parallel. If null,
+	 * the stores are read one at a time on this thread.
+	 * @param priority StoreIOExecutor.CLIENT_READ or StoreIOExecutor.READ.
+	 * @return The first block found, or null.
+	 */
+	public T fetch(StoreIOExecutor executor, int priority) {
+		ArrayList<Probe<T>> disk = new ArrayList<Probe<T>>(probes.size());
+		synchronized(this) {
+			pending = probes.size();
+		}
+		for(Probe<T> probe : probes) {
+			if(probe.onDisk && executor != null)
+				disk.add(probe);
+			else {
+				probe.run();
+				if(gotBlock()) return finish();
+			}
+		}
+		if(disk.isEmpty()) return finish();
+		ArrayList<Probe<T>> local = new ArrayList<Probe<T>>(disk.size());
+		local.add(disk.get(0));
+		for(int i=1;i<disk.size();i++) {
+			Probe<T> probe = disk.get(i);
+			if(!executor.execute(probe, priority)) local.add(probe);
+		}
+		for(Probe<T> probe : local) {
+			probe.run();
+			if(gotBlock()) return finish();
+		}
+		synchronized(this) {
+			while(found == null && pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		return finish();
+	}
+
+	/** The store the block was found in, or null. Valid after fetch(). */
+	public synchronized Probe<T> getHit() {
+		return hit;
+	}
+
+	private synchronized boolean gotBlock() {
+		return found != null;
+	}
+
+	private synchronized T finish() {
+		done = true;
+		return found;
+	}
+
+	/** @return False if the probe should not run because we have finished. */
+	private synchronized boolean starting() {
+		if(done || found != null) {
+			pending--;
+			return false;
+		}
+		return true;
+	}
+
+	private synchronized void finished(Probe<T> probe, T block) {
+		pending--;
+		if(block != null && found == null && !done) {
+			found = block;
+			hit = probe;
+		}
+		notifyAll();
+	}
+
+}
@@ -0,0 +1,471 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.sleepycat.je.DatabaseException;
+
+import freenet.keys.KeyVerifyException;
+import freenet.support.Fields;
+import freenet.support.Logger;
+
+/**
+ * In-memory store which keeps its blocks off the Java heap.
+ *
+ * All the slots are preallocated in direct ByteBuffers ("slabs"), each slot
+ * holding the routing key, the full key (if the callback stores full keys), the
+ * headers and the data of one block. Slots are found through an open-addressed
+ * (linear probing) index on the routing key hash, and replaced by the CLOCK
+ * algorithm, an approximation of LRU which only needs a referenced flag per slot.
+ * So apart from a few small arrays, the store creates no garbage and puts no
+ * pressure on the garbage collector however large it is.
+ *
+ * Fetches only take the read lock, so can run concurrently; blocks are
+ * verified outside the lock. Writes take the write lock.
+ *
+ * Like RAMFreenetStore, the contents are lost on shutdown.
+ */
+public class SlabRAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(SlabRAMFreenetStore.class);
+	}
+
+	/** Maximum size of a single direct buffer. */
+	private static final int MAX_SLAB_SIZE = 64 * 1024 * 1024;
+
+	private static final byte FLAG_USED = 1;
+	private static final byte FLAG_OLD_BLOCK = 2;
+
+	private final StoreCallback<T> callback;
+	private final boolean storeFullKeys;
+	private final boolean collisionPossible;
+	private final int routingKeyLength;
+	private final int fullKeyLength;
+	private final int headerLength;
+	private final int dataLength;
+	/** Offsets within a slot. */
+	private final int fullKeyOffset;
+	private final int headerOffset;
+	private final int dataOffset;
+	private final int slotSize;
+	private final int slotsPerSlab;
+
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+	// All of the below are protected by lock.
+	private int maxKeys;
+	private int keyCount;
+	private ByteBuffer[] slabs;
+	/** Hash of the routing key in each slot. */
+	private int[] slotHashes;
+	private byte[] slotFlags;
+	/** CLOCK referenced bit. Set by fetch() under the read lock; a lost
+	 * update only costs the block its second chance. */
+	private byte[] referenced;
+	/** Stack of free slot numbers. */
+	private int[] freeSlots;
+	private int freeSlotsCount;
+	/** The CLOCK hand. */
+	private int hand;
+	/** Open addressed index: slot number + 1, or 0 if empty. */
+	private int[] index;
+	private int indexMask;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
+
+	public SlabRAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this.callback = callback;
+		this.storeFullKeys = callback.storeFullKeys();
+		this.collisionPossible = callback.collisionPossible();
+		this.routingKeyLength = callback.routingKeyLength();
+		this.fullKeyLength = storeFullKeys ? callback.fullKeyLength() : 0;
+		this.headerLength = callback.headerLength();
+		this.dataLength = callback.dataLength();
+		this.fullKeyOffset = routingKeyLength;
+		this.headerOffset = fullKeyOffset + fullKeyLength;
+		this.dataOffset = headerOffset + headerLength;
+		this.slotSize = dataOffset + dataLength;
+		this.slotsPerSlab = Math.max(1, MAX_SLAB_SIZE / slotSize);
+		allocate(maxKeys);
+		callback.setStore(this);
+	}
+
+	/** Allocate empty slabs and index for the given number of slots. Caller must hold the write lock, or be the constructor. */
+	private void allocate(int slots) {
+		if(slots < 0) slots = 0;
+		maxKeys = slots;
+		keyCount = 0;
+		hand = 0;
+		int slabCount = (slots + slotsPerSlab - 1) / slotsPerSlab;
+		slabs = new ByteBuffer[slabCount];
+		for(int i=0;i<slabCount;i++) {
+			int count = Math.min(slotsPerSlab, slots - i * slotsPerSlab);
+			slabs[i] = ByteBuffer.allocateDirect(count * slotSize);
+		}
+		slotHashes = new int[slots];
+		slotFlags = new byte[slots];
+		referenced = new byte[slots];
+		freeSlots = new int[slots];
+		// Pop the low slots first.
+		for(int i=0;i<slots;i++)
+			freeSlots[i] = slots - i - 1;
+		freeSlotsCount = slots;
+		// Load factor at most 0.5.
+		int indexSize = 2;
+		while(indexSize < slots * 2) indexSize <<= 1;
+		index = new int[indexSize];
+		indexMask = indexSize - 1;
+	}
+
+	private static int hash(byte[] routingKey) {
+		int h = Fields.hashCode(routingKey);
+		h ^= (h >>> 20) ^ (h >>> 12);
+		return h ^ (h >>> 7) ^ (h >>> 4);
+	}
+
+	/** @return A view of the slab containing the slot, positioned at its start. Safe for concurrent readers. */
+	private ByteBuffer slotBuffer(int slot) {
+		ByteBuffer buf = slabs[slot / slotsPerSlab].duplicate();
+		buf.position((slot % slotsPerSlab) * slotSize);
+		return buf;
+	}
+
+	private boolean routingKeyMatches(int slot, byte[] routingKey) {
+		ByteBuffer slab = slabs[slot / slotsPerSlab];
+		int offset = (slot % slotsPerSlab) * slotSize;
+		// Absolute get() doesn't touch the position, so is safe without a duplicate().
+		for(int i=0;i<routingKeyLength;i++)
+			if(slab.get(offset + i) != routingKey[i]) return false;
+		return true;
+	}
+
+	private byte[] read(int slot, int offset, int length) {
+		ByteBuffer buf = slotBuffer(slot);
+		buf.position(buf.position() + offset);
+		byte[] ret = new byte[length];
+		buf.get(ret);
+		return ret;
+	}
+
+	/** @return The index position of the routing key, or -1. Caller must hold a lock. */
+	private int findIndexPosition(byte[] routingKey, int hash) {
+		if(maxKeys == 0) return -1;
+		int i = hash & indexMask;
+		while(true) {
+			int s = index[i];
+			if(s == 0) return -1;
+			s--;
+			if(slotHashes[s] == hash && routingKeyMatches(s, routingKey))
+				return i;
+			i = (i + 1) & indexMask;
+		}
+	}
+
+	/** Remove an index entry, shifting later entries in the probe sequence back. Caller must hold the write lock. */
+	private void removeIndexPosition(int pos) {
+		int i = pos;
+		index[i] = 0;
+		int j = i;
+		while(true) {
+			j = (j + 1) & indexMask;
+			int s = index[j];
+			if(s == 0) return;
+			int home = slotHashes[s-1] & indexMask;
+			// Leave it if its home position is cyclically within (i, j].
+			if(i <= j ? (i < home && home <= j) : (i < home || home <= j))
+				continue;
+			index[i] = s;
+			index[j] = 0;
+			i = j;
+		}
+	}
+
+	private void insertIndex(int slot, int hash) {
+		int i = hash & indexMask;
+		while(index[i] != 0)
+			i = (i + 1) & indexMask;
+		index[i] = slot + 1;
+	}
+
+	/** Free a slot and remove it from the index. Caller must hold the write lock. */
+	private void freeSlot(int slot, int indexPosition) {
+		removeIndexPosition(indexPosition);
+		slotFlags[slot] = 0;
+		referenced[slot] = 0;
+		freeSlots[freeSlotsCount++] = slot;
+		keyCount--;
+	}
+
+	/** Get a free slot, evicting with the CLOCK algorithm if necessary. Caller must hold the write lock. */
+	private int allocateSlot() {
+		if(freeSlotsCount == 0)
+			evictOne();
+		return freeSlots[--freeSlotsCount];
+	}
+
+	/** Evict one block chosen by the CLOCK algorithm. There must be at least one. Caller must hold the write lock. */
+	private void evictOne() {
+		while(true) {
+			int slot = hand;
+			hand = (hand + 1) % maxKeys;
+			if((slotFlags[slot] & FLAG_USED) == 0) continue;
+			if(referenced[slot] != 0) {
+				referenced[slot] = 0;
+				continue;
+			}
+			byte[] routingKey = read(slot, 0, routingKeyLength);
+			int pos = findIndexPosition(routingKey, slotHashes[slot]);
+			if(pos == -1) {
+				// Impossible.
+				Logger.error(this, "Slot "+slot+" in use but not in the index");
+				slotFlags[slot] = 0;
+				referenced[slot] = 0;
+				freeSlots[freeSlotsCount++] = slot;
+				keyCount--;
+			} else {
+				freeSlot(slot, pos);
+			}
+			return;
+		}
+	}
+
+	public T fetch(byte[] routingKey, byte[] fullKey,
+			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache) throws IOException {
+		int hash = hash(routingKey);
+		byte[] storedFullKey = null;
+		byte[] header;
+		byte[] data;
+		lock.readLock().lock();
+		try {
+			int pos = findIndexPosition(routingKey, hash);
+			if(pos == -1) {
+				misses.incrementAndGet();
+				return null;
+			}
+			int slot = index[pos] - 1;
+			if(storeFullKeys)
+				storedFullKey = read(slot, fullKeyOffset, fullKeyLength);
+			header = read(slot, headerOffset, headerLength);
+			data = read(slot, dataOffset, dataLength);
+			if(!dontPromote)
+				referenced[slot] = 1;
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			T ret = callback.construct(data, header, routingKey, storedFullKey, canReadClientCache, canReadSlashdotCache, null);
+			hits.incrementAndGet();
+			return ret;
+		} catch (KeyVerifyException e) {
+			if(logMINOR) Logger.minor(this, "Removing block which failed to verify: "+e, e);
+			remove(routingKey, hash, header, data);
+			misses.incrementAndGet();
+			return null;
+		}
+	}
+
+	/** Remove a block, unless it has been replaced since we read it. */
+	private void remove(byte[] routingKey, int hash, byte[] header, byte[] data) {
+		lock.writeLock().lock();
+		try {
+			int pos = findIndexPosition(routingKey, hash);
+			if(pos == -1) return;
+			int slot = index[pos] - 1;
+			if(!(Arrays.equals(header, read(slot, headerOffset, headerLength)) &&
+					Arrays.equals(data, read(slot, dataOffset, dataLength))))
+				return;
+			freeSlot(slot, pos);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+		byte[] routingKey = block.getRoutingKey();
+		byte[] fullKey = storeFullKeys ? block.getFullKey() : null;
+		int hash = hash(routingKey);
+		writes.incrementAndGet();
+		lock.writeLock().lock();
+		try {
+			if(maxKeys == 0) return;
+			int pos = findIndexPosition(routingKey, hash);
+			int slot;
+			if(pos != -1) {
+				if(!collisionPossible) return;
+				slot = index[pos] - 1;
+				boolean equals = Arrays.equals(read(slot, dataOffset, dataLength), data) &&
+					Arrays.equals(read(slot, headerOffset, headerLength), header) &&
+					(storeFullKeys ? Arrays.equals(read(slot, fullKeyOffset, fullKeyLength), fullKey) : true);
+				if(equals) return;
+				if(!overwrite) throw new KeyCollisionException();
+			} else {
+				slot = allocateSlot();
+				slotHashes[slot] = hash;
+				insertIndex(slot, hash);
+				keyCount++;
+			}
+			ByteBuffer buf = slotBuffer(slot);
+			buf.put(routingKey, 0, routingKeyLength);
+			if(storeFullKeys)
+				buf.put(fullKey, 0, fullKeyLength);
+			buf.put(header, 0, headerLength);
+			buf.put(data, 0, dataLength);
+			slotFlags[slot] = (byte) (FLAG_USED | (isOldBlock ? FLAG_OLD_BLOCK : 0));
+			// Start unreferenced: the block survives until the hand comes round,
+			// and only gets a second chance if it has been fetched meanwhile.
+			referenced[slot] = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+			throws DatabaseException, IOException {
+		int newMaxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
+		lock.writeLock().lock();
+		try {
+			if(newMaxKeys == maxKeys) return;
+			// The slabs are fixed size, so we always have to copy to a new set.
+			// Evict first so that what is left fits.
+			while(keyCount > newMaxKeys)
+				evictOne();
+			ByteBuffer[] oldSlabs = slabs;
+			byte[] oldFlags = slotFlags;
+			byte[] oldReferenced = referenced;
+			int oldSlotsPerSlab = slotsPerSlab;
+			allocate(newMaxKeys);
+			byte[] slotData = new byte[slotSize];
+			byte[] routingKey = new byte[routingKeyLength];
+			for(int oldSlot=0;oldSlot<oldFlags.length;oldSlot++) {
+				if((oldFlags[oldSlot] & FLAG_USED) == 0) continue;
+				ByteBuffer src = oldSlabs[oldSlot / oldSlotsPerSlab].duplicate();
+				src.position((oldSlot % oldSlotsPerSlab) * slotSize);
+				src.get(slotData);
+				int slot = freeSlots[--freeSlotsCount];
+				slotBuffer(slot).put(slotData);
+				System.arraycopy(slotData, 0, routingKey, 0, routingKeyLength);
+				int hash = hash(routingKey);
+				slotHashes[slot] = hash;
+				slotFlags[slot] = oldFlags[oldSlot];
+				referenced[slot] = oldReferenced[oldSlot];
+				insertIndex(slot, hash);
+				keyCount++;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public long getMaxKeys() {
+		lock.readLock().lock();
+		try {
+			return maxKeys;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long hits() {
+		return hits.get();
+	}
+
+	public long misses() {
+		return misses.get();
+	}
+
+	public long writes() {
+		return writes.get();
+	}
+
+	public long keyCount() {
+		lock.readLock().lock();
+		try {
+			return keyCount;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public long getBloomFalsePositive() {
+		return -1;
+	}
+
+	public boolean probablyInStore(byte[] routingKey) {
+		int hash = hash(routingKey);
+		lock.readLock().lock();
+		try {
+			return findIndexPosition(routingKey, hash) != -1;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			Arrays.fill(index, 0);
+			Arrays.fill(slotFlags, (byte)0);
+			Arrays.fill(referenced, (byte)0);
+			for(int i=0;i<maxKeys;i++)
+				freeSlots[i] = maxKeys - i - 1;
+			freeSlotsCount = maxKeys;
+			keyCount = 0;
+			hand = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
+		int slots;
+		lock.readLock().lock();
+		try {
+			slots = maxKeys;
+		} finally {
+			lock.readLock().unlock();
+		}
+		for(int slot=0;slot<slots;slot++) {
+			byte[] routingKey;
+			byte[] fullKey = null;
+			byte[] header;
+			byte[] data;
+			boolean oldBlock;
+			lock.readLock().lock();
+			try {
+				// Resized under us?
+				if(slot >= maxKeys) break;
+				if((slotFlags[slot] & FLAG_USED) == 0) continue;
+				routingKey = read(slot, 0, routingKeyLength);
+				if(storeFullKeys)
+					fullKey = read(slot, fullKeyOffset, fullKeyLength);
+				header = read(slot, headerOffset, headerLength);
+				data = read(slot, dataOffset, dataLength);
+				oldBlock = (slotFlags[slot] & FLAG_OLD_BLOCK) != 0;
+			} finally {
+				lock.readLock().unlock();
+			}
+			T ret;
+			try {
+				ret = callback.construct(data, header, routingKey, fullKey, canReadClientCache, false, null);
+			} catch (KeyVerifyException e) {
+				Logger.error(this, "Caught while migrating: "+e, e);
+				continue;
+			}
+			try {
+				target.getStore().put(ret, data, header, false, oldBlock);
+			} catch (KeyCollisionException e) {
+				// Ignore
+			}
+		}
+	}
+}
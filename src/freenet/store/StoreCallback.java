@@ -84,6 +84,11 @@ public abstract class StoreCallback<T extends StorableBlock> {
 		return store.getBloomFalsePositive();
 	}
 
+	/** @return False only if the key is definitely not in the store. */
+	public boolean probablyInStore(byte[] routingKey) {
+		return store.probablyInStore(routingKey);
+	}
+
 	/** Generate a routing key from a full key */
 	public abstract byte[] routingKeyFromFullKey(byte[] keyBuf);
 }
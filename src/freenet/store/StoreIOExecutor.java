@@ -0,0 +1,186 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store;
+
+import java.util.LinkedList;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+import freenet.support.math.Histogram;
+
+/**
+ * Runs datastore reads and writes for one disk on a small, fixed number of
+ * threads, borrowed from the node's executor when there is work to do, so
+ * that a slow disk ties up a few threads rather than every request handler.
+ * Jobs are queued by priority: reads for local clients first, then reads for
+ * remote requests, then writes to the cache. Each queue is bounded: when it is
+ * full, execute() refuses the job and the caller should run it itself, so a
+ * burst of requests can't build up an unbounded backlog of disk I/O.
+ */
+public class StoreIOExecutor {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback(){
+			@Override
+			public void shouldUpdate(){
+				logMINOR = Logger.shouldLog(Logger.MINOR, this);
+			}
+		});
+	}
+
+	/** A read for a request from a local client */
+	public static final int CLIENT_READ = 0;
+	/** A read for a request from another node */
+	public static final int READ = 1;
+	/** A write to a cache which could be skipped without losing anything */
+	public static final int CACHE_WRITE = 2;
+	public static final int PRIORITIES = 3;
+
+	/** Threads exit after this long without work */
+	private static final int IDLE_TIMEOUT = 60*1000;
+
+	private static class Job {
+		final Runnable job;
+		final int priority;
+		final long queued;
+		Job(Runnable job, int priority, long queued) {
+			this.job = job;
+			this.priority = priority;
+			this.queued = queued;
+		}
+	}
+
+	private final Executor realExecutor;
+	private final String name;
+	private int maxThreads;
+	private final int maxQueued;
+	private final LinkedList<Job>[] jobs;
+	private int totalQueued;
+	private int threads;
+	private int idleThreads;
+	/** Number of jobs queued when another is added, or null */
+	private final Histogram queueDepth;
+	/** Time from queueing a job to finishing it in milliseconds, by priority, or null */
+	private final Histogram[] latency;
+
+	/**
+	 * @param realExecutor Where to get threads from.
+	 * @param name Name for the threads.
+	 * @param maxThreads The maximum number of jobs running at once.
+	 * @param maxQueued The maximum number of jobs waiting for a thread, at
+	 * each priority.
+	 * @param queueDepth If not null, report the number of jobs already queued
+	 * each time a job is queued.
+	 * @param latency If not null, report the time taken by each job, from
+	 * queueing it to finishing it, to the histogram for its priority.
+	 */
+	@SuppressWarnings("unchecked")
+	public StoreIOExecutor(Executor realExecutor, String name, int maxThreads, int maxQueued, Histogram queueDepth, Histogram[] latency) {
+		this.realExecutor = realExecutor;
+		this.name = name;
+		this.maxThreads = maxThreads;
+		this.maxQueued = maxQueued;
+		this.queueDepth = queueDepth;
+		this.latency = latency;
+		jobs = new LinkedList[PRIORITIES];
+		for(int i=0;i<PRIORITIES;i++)
+			jobs[i] = new LinkedList<Job>();
+	}
+
+	/**
+	 * Queue a job.
+	 * @param priority CLIENT_READ, READ or CACHE_WRITE.
+	 * @return False if the queue for that priority is full, or we have no
+	 * threads, in which case the job has not been queued and the caller should
+	 * run it.
+	 */
+	public boolean execute(Runnable job, int priority) {
+		synchronized(this) {
+			if(maxThreads <= 0) return false;
+			if(jobs[priority].size() >= maxQueued) {
+				if(logMINOR) Logger.minor(this, "Queue full on "+name+", caller will run "+job);
+				return false;
+			}
+			if(queueDepth != null) queueDepth.report(totalQueued);
+			jobs[priority].add(new Job(job, priority, System.currentTimeMillis()));
+			totalQueued++;
+			if(idleThreads > 0) notify();
+			// Start another thread if the idle ones can't take everything queued.
+			if(totalQueued <= idleThreads || threads >= maxThreads) return true;
+			threads++;
+		}
+		realExecutor.execute(runner, name);
+		return true;
+	}
+
+	private final Runnable runner = new PrioRunnable() {
+
+		public void run() {
+			while(true) {
+				Job job;
+				synchronized(StoreIOExecutor.this) {
+					if(totalQueued == 0) {
+						idleThreads++;
+						try {
+							StoreIOExecutor.this.wait(IDLE_TIMEOUT);
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+						idleThreads--;
+					}
+					// The last thread always finishes what is queued.
+					if(totalQueued == 0 || (threads > maxThreads && threads > 1)) {
+						threads--;
+						return;
+					}
+					job = null;
+					for(int i=0;i<PRIORITIES;i++) {
+						if(!jobs[i].isEmpty()) {
+							job = jobs[i].removeFirst();
+							break;
+						}
+					}
+					totalQueued--;
+				}
+				try {
+					job.job.run();
+				} catch (Throwable t) {
+					Logger.error(this, "Caught "+t+" running "+job.job+" on "+name, t);
+				}
+				if(latency != null)
+					latency[job.priority].report(System.currentTimeMillis() - job.queued);
+			}
+		}
+
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY;
+		}
+
+	};
+
+	/** Change the number of threads. Threads over the limit exit after their
+	 * current job. If zero, everything runs on the caller's thread. */
+	public synchronized void setMaxThreads(int maxThreads) {
+		this.maxThreads = maxThreads;
+		notifyAll();
+	}
+
+	public synchronized int getMaxThreads() {
+		return maxThreads;
+	}
+
+	public synchronized int queued() {
+		return totalQueued;
+	}
+
+	public synchronized int threads() {
+		return threads;
+	}
+
+}
@@ -94,6 +94,22 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	private long storeSize;
 	private int generation;
 	private int flags;
+	/**
+	 * How far a resize or Bloom filter rebuild has got: one more than the offset of the next
+	 * batch, or 0 if none is in progress or it can't be resumed. Only valid after a clean
+	 * shutdown.
+	 */
+	private long migrationCheckpoint;
+	/** The forked Bloom filter for a resize or rebuild, kept on disk so we can resume it */
+	private final File bloomForkFile;
+	/** Resize at full speed as soon as the cleaner starts */
+	private volatile boolean resizeNow;
+	/** Entries processed per second by all resizes together, or 0 for no limit */
+	private static volatile int migrationRate = 1280;
+	private static final Object migrationLock = new Object();
+	/** When the last batch of resize work reserved by any store has used up its share
+	 * of migrationRate, by System.nanoTime(). Protected by migrationLock. */
+	private static long migrationReservedUntil = System.nanoTime();
 	
 	private boolean preallocate = true;
 
@@ -140,8 +156,15 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 		bloomFile = new File(this.baseDir, name + ".bloom");
 		bloomFilter = BloomFilter.createFilter(bloomFile, bloomFilterSize, bloomFilterK, bloomCounting);
+		boolean bloomNeedRebuild = bloomFilter.needRebuild();
 
 		System.err.println("Bloomfilter (" + bloomFilter + ") for " + name + " is loaded.");
+
+		bloomForkFile = new File(this.baseDir, name + ".bloom.fork");
+		if (migrationCheckpoint != 0 && (bloomNeedRebuild || newStore || maxKeys != storeSize || !resumeBloomFork())) {
+			System.err.println("Can't resume resize/rebuild of datastore (" + name + "), starting again.");
+			migrationCheckpoint = 0;
+		}
 		
 		if ((flags & FLAG_DIRTY) != 0)
 			System.err.println("Datastore(" + name + ") is dirty.");
@@ -150,6 +173,7 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		writeConfigFile();
 
 		if (maxKeys != storeSize) {
+			bloomFilter.discard();
 			if (prevStoreSize != 0) {
 				storeSize = Math.max(prevStoreSize, storeSize);
 				prevStoreSize = 0;
@@ -163,17 +187,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		cleanerThread = new Cleaner();
 		cleanerStatusUserAlert = new CleanerStatusUserAlert(cleanerThread);
 
-		// finish all resizing before continue
-		if (resizeOnStart && prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
-			System.out.println("Resizing datastore (" + name + ")");
-			try {
-				cleanerThread.resizeStore(prevStoreSize, false);
-			} finally {
-				cleanerGlobalLock.unlock();
-			}
-			writeConfigFile();
-		} 
-		if (bloomFilter.needRebuild() && !newStore) {
+		// Don't block startup: the cleaner does the resize, at full speed, as soon as it starts.
+		if (resizeOnStart && prevStoreSize != 0)
+			resizeNow = true;
+		if (bloomNeedRebuild && !newStore) {
 			// Bloom filter resized?
 			flags |= FLAG_REBUILD_BLOOM;
 			checkBloom = false;
@@ -193,6 +210,59 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 		System.err.println(" checkBloom=" + checkBloom + ", flags=" + flags+" bloom size = "+bloomFilterSize+" keys = "+maxKeys);
 	}
+
+	/**
+	 * Reopen the forked Bloom filter of the resize or rebuild we were doing when we shut down,
+	 * so that keys stored before the cleaner carries on with it are not missed.
+	 * 
+	 * @return <code>false</code> if we can't, so will have to start again.
+	 */
+	private boolean resumeBloomFork() {
+		if (!bloomForkFile.exists())
+			return false;
+		int k;
+		if (prevStoreSize != 0)
+			k = BloomFilter.optimialK(bloomFilterSize, storeSize);
+		else if ((flags & FLAG_REBUILD_BLOOM) != 0)
+			k = bloomFilterK;
+		else
+			return false;
+		try {
+			if (bloomFilter.fork(k, bloomForkFile, true))
+				return true;
+		} catch (IOException e) {
+			Logger.error(this, "Can't open " + bloomForkFile + " : " + e, e);
+		}
+		bloomFilter.discard();
+		return false;
+	}
+
+	/**
+	 * Set the number of entries per second a resize may process, across all stores, or 0 for
+	 * no limit.
+	 */
+	public static void setMigrationRate(int entriesPerSecond) {
+		migrationRate = entriesPerSecond;
+	}
+
+	/**
+	 * Reserve time for a batch of resize work, after any time already reserved by other
+	 * stores, so that all the resizes together stay within migrationRate.
+	 * @param batchTime How long the batch took, in milliseconds.
+	 * @return How long to wait before starting the next batch, in milliseconds.
+	 */
+	private static long reserveMigrationTime(long batchTime, int entries, int rate) {
+		synchronized(migrationLock) {
+			long now = System.nanoTime();
+			long start = Math.max(now - Math.max(batchTime, 0) * 1000 * 1000, migrationReservedUntil);
+			migrationReservedUntil = start + entries * 1000L * 1000 * 1000 / rate;
+			return (migrationReservedUntil - now) / (1000 * 1000);
+		}
+	}
+
+	public static int getMigrationRate() {
+		return migrationRate;
+	}
 	
 	private void start(Ticker ticker) {
 		if(ticker == null) {
@@ -378,6 +448,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				}
 
 				// no free blocks, overwrite the first one
+				if (offset[0] >= storeFileOffsetReady)
+					return; // not preallocated yet, would be overwritten
 				if (logDEBUG)
 					Logger.debug(this, "collision, write to i=0, offset=" + offset[0]);
 				bloomFilter.addKey(cipherManager.getDigestedKey(routingKey));
@@ -609,6 +681,13 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	}
 
 	private volatile long storeFileOffsetReady = -1;
+	/**
+	 * Where the cleaner should start filling in the store files, if we didn't preallocate them
+	 * on startup, or -1. Meta data and header/data file offsets in bytes. Saved in the config
+	 * file, so that if we shut down before the cleaner has finished, we carry on next time.
+	 */
+	private long preallocateMetaFrom = -1;
+	private long preallocateHdFrom = -1;
 
 	/**
 	 * Open all store files
@@ -778,57 +857,31 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			final long newMetaLen = Entry.METADATA_LENGTH * storeMaxEntries;
 			final long newHdLen = (headerBlockLength + dataBlockLength + hdPadding) * storeMaxEntries;
 
-			if (preallocate) {
+			long fillMetaFrom = oldMetaLen;
+			long fillHdFrom = currentHdLen;
+			if (preallocateHdFrom >= 0) {
+				// We didn't finish filling the files last time.
+				fillMetaFrom = Math.min(fillMetaFrom, preallocateMetaFrom);
+				fillHdFrom = Math.min(fillHdFrom, preallocateHdFrom);
+			}
+			if (preallocate && starting && fillHdFrom < newHdLen) {
 				/*
-				 * Fill the store file with random data. This won't be compressed, unlike filling it with zeros.
-				 * So the disk space usage of the node will not change (apart from temp files).
-				 * 
-				 * Note that MersenneTwister is *not* cryptographically secure, in fact from 2.4KB of output you
-				 * can predict the rest of the stream! This is okay because an attacker knows which blocks are
-				 * occupied anyway; it is essential to label them to get good data retention on resizing etc.
-				 * 
-				 * On my test system (phenom 2.2GHz), this does approx 80MB/sec. If I reseed every 2kB from an
-				 * AES CTR, which is pointless as I just explained, it does 40MB/sec.
+				 * Don't hold up startup. Set the file sizes now, so reads don't hit EOF, and let
+				 * the cleaner fill them in. Until it does, we only write to the part we had
+				 * before.
 				 */
-				byte[] b = new byte[4096];
-				ByteBuffer bf = ByteBuffer.wrap(b); 
-
-				// start from next 4KB boundary => align to x86 page size
-				if (oldMetaLen % 4096 != 0)
-					oldMetaLen += 4096 - (oldMetaLen % 4096);
-				if (currentHdLen % 4096 != 0)
-					currentHdLen += 4096 - (currentHdLen % 4096);
+				storeFileOffsetReady = fillHdFrom / (headerBlockLength + dataBlockLength + hdPadding);
+				preallocateMetaFrom = fillMetaFrom;
+				preallocateHdFrom = fillHdFrom;
+				metaRAF.setLength(newMetaLen);
+				hdRAF.setLength(newHdLen);
+				return;
+			}
+			preallocateMetaFrom = -1;
+			preallocateHdFrom = -1;
 
-				storeFileOffsetReady = -1;
-				
-				// this may write excess the size, the setLength() would fix it
-				while (oldMetaLen < newMetaLen) {
-					// never write random byte to meta data!
-					// this would screw up the isFree() function
-					bf.rewind();
-					metaFC.write(bf, oldMetaLen);
-					oldMetaLen += 4096;
-				}
-				byte[] seed = new byte[64];
-				random.nextBytes(seed);
-				Random mt = new MersenneTwister(seed);
-				int x = 0;
-				while (currentHdLen < newHdLen) {
-					mt.nextBytes(b);
-					bf.rewind();
-					hdFC.write(bf, currentHdLen);
-					currentHdLen += 4096;
-					if(currentHdLen % (1024*1024*1024L) == 0) {
-						random.nextBytes(seed);
-						mt = new MersenneTwister(seed);
-						if (starting) {
-							WrapperManager.signalStarting(5*60*1000);
-							if ( x++ % 32 == 0 )
-								System.err.println("Preallocating space for " + name + ": " + currentHdLen + "/" + newHdLen);
-						}
-					}
-					storeFileOffsetReady = currentHdLen / (headerBlockLength + dataBlockLength + hdPadding);
-				}
+			if (preallocate) {
+				fillStoreFiles(oldMetaLen, currentHdLen, newMetaLen, newHdLen, false);
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
@@ -839,6 +892,105 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		}
 	}
 
+	/**
+	 * Finish the preallocation we skipped on startup. Called by the cleaner before it does
+	 * anything else.
+	 */
+	private void finishPreallocation() {
+		if (preallocateHdFrom < 0)
+			return;
+		long start = System.currentTimeMillis();
+		try {
+			long newMetaLen = metaRAF.length();
+			long newHdLen = hdRAF.length();
+			System.err.println("Preallocating space for " + name + " in the background");
+			if (!fillStoreFiles(preallocateMetaFrom, preallocateHdFrom, newMetaLen, newHdLen, true)) {
+				// fillStoreFiles() has recorded how far it got, we write it to the config file on shutdown.
+				Logger.normal(this, "Stopped preallocating " + name + " for shutdown at " + preallocateHdFrom + "/" + newHdLen + ", will continue on next startup");
+				return;
+			}
+			storeFileOffsetReady = 1 + Math.max(storeSize, prevStoreSize);
+		} catch (IOException e) {
+			Logger.error(this, "error preallocating store file", e);
+			storeFileOffsetReady = 1 + Math.max(storeSize, prevStoreSize);
+		}
+		preallocateMetaFrom = -1;
+		preallocateHdFrom = -1;
+		writeConfigFile();
+		Logger.normal(this, "Preallocated " + name + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Write to the store files between the given offsets, so the space is allocated.
+	 * 
+	 * @param background
+	 *            If true, we are running alongside requests: stop on shutdown, and let puts use
+	 *            each part of the file as soon as it is written.
+	 * @return <code>false</code> if we stopped for shutdown, in which case preallocateMetaFrom
+	 *         and preallocateHdFrom are where to start next time.
+	 */
+	private boolean fillStoreFiles(long oldMetaLen, long currentHdLen, long newMetaLen, long newHdLen, boolean background) throws IOException {
+		/*
+		 * Fill the store file with random data. This won't be compressed, unlike filling it with zeros.
+		 * So the disk space usage of the node will not change (apart from temp files).
+		 * 
+		 * Note that MersenneTwister is *not* cryptographically secure, in fact from 2.4KB of output you
+		 * can predict the rest of the stream! This is okay because an attacker knows which blocks are
+		 * occupied anyway; it is essential to label them to get good data retention on resizing etc.
+		 * 
+		 * On my test system (phenom 2.2GHz), this does approx 80MB/sec. If I reseed every 2kB from an
+		 * AES CTR, which is pointless as I just explained, it does 40MB/sec.
+		 */
+		byte[] b = new byte[4096];
+		ByteBuffer bf = ByteBuffer.wrap(b); 
+
+		// start from next 4KB boundary => align to x86 page size
+		if (oldMetaLen % 4096 != 0)
+			oldMetaLen += 4096 - (oldMetaLen % 4096);
+		if (currentHdLen % 4096 != 0)
+			currentHdLen += 4096 - (currentHdLen % 4096);
+
+		// In the background, storeFileOffsetReady is already below the part we are writing.
+		if (!background)
+			storeFileOffsetReady = -1;
+		
+		// this may write excess the size, the setLength() would fix it
+		while (oldMetaLen < newMetaLen) {
+			if (background && shutdown) {
+				preallocateMetaFrom = oldMetaLen;
+				return false;
+			}
+			// never write random byte to meta data!
+			// this would screw up the isFree() function
+			bf.rewind();
+			metaFC.write(bf, oldMetaLen);
+			oldMetaLen += 4096;
+		}
+		byte[] seed = new byte[64];
+		random.nextBytes(seed);
+		Random mt = new MersenneTwister(seed);
+		int x = 0;
+		while (currentHdLen < newHdLen) {
+			if (background && shutdown) {
+				preallocateMetaFrom = newMetaLen;
+				preallocateHdFrom = currentHdLen;
+				return false;
+			}
+			mt.nextBytes(b);
+			bf.rewind();
+			hdFC.write(bf, currentHdLen);
+			currentHdLen += 4096;
+			if(currentHdLen % (1024*1024*1024L) == 0) {
+				random.nextBytes(seed);
+				mt = new MersenneTwister(seed);
+				if ( x++ % 32 == 0 )
+					System.err.println("Preallocating space for " + name + ": " + currentHdLen + "/" + newHdLen);
+			}
+			storeFileOffsetReady = currentHdLen / (headerBlockLength + dataBlockLength + hdPadding);
+		}
+		return true;
+	}
+
 	// ------------- Configuration
 	/**
 	 * Configuration File
@@ -853,11 +1005,15 @@ public class SaltedHashFreenetStore implements FreenetStore {
 	 *  +----+---------------+-------+-------+
 	 *  |0020| Est Key Count |  Gen  | Flags |
 	 *  +----+-------+-------+-------+-------+
-	 *  |0030|   K   |                       |
-	 *  +----+-------+-----------------------+
+	 *  |0030|   K   |       |  Checkpoint   |
+	 *  +----+-------+-------+---------------+
+	 *  |0040| Fill Meta From| Fill HD From  |
+	 *  +----+---------------+---------------+
 	 *  
 	 *  Gen = Generation
 	 *    K = K for bloom filter
+	 *  Checkpoint = migrationCheckpoint
+	 *  Fill Meta/HD From = preallocateMetaFrom, preallocateHdFrom
 	 * </pre>
 	 */
 	private final File configFile;
@@ -939,6 +1095,23 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						flags |= FLAG_REBUILD_BLOOM;
 					}
 
+					try {
+						raf.readInt();
+						migrationCheckpoint = raf.readLong();
+					} catch (IOException e) {
+						migrationCheckpoint = 0;
+					}
+					try {
+						preallocateMetaFrom = raf.readLong();
+						preallocateHdFrom = raf.readLong();
+					} catch (IOException e) {
+						preallocateMetaFrom = -1;
+						preallocateHdFrom = -1;
+					}
+					// After a crash, the forked Bloom filter may not match the checkpoint.
+					if ((flags & FLAG_DIRTY) != 0)
+						migrationCheckpoint = 0;
+
 					return false;
 				} finally {
 					Closer.close(raf);
@@ -979,7 +1152,9 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			raf.writeInt(flags);
 			raf.writeInt(bloomFilterK);
 			raf.writeInt(0);
-			raf.writeLong(0);
+			raf.writeLong(migrationCheckpoint);
+			raf.writeLong(preallocateMetaFrom);
+			raf.writeLong(preallocateHdFrom);
 
 			raf.getFD().sync();
 			raf.close();
@@ -1004,14 +1179,17 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 	private interface BatchProcessor {
 		// initialize
-		void init();
+		// resume is true if carrying on from migrationCheckpoint, with the forked bloom filter
+		// already reopened
+		void init(boolean resume);
 
 		// call this after reading RESIZE_MEMORY_ENTRIES entries
 		// return false to abort
 		boolean batch(long entriesLeft);
 
 		// call this on abort (e.g. node shutdown)
-		void abort();
+		// resumable is true if we can carry on from migrationCheckpoint after restarting
+		void abort(boolean resumable);
 
 		void finish();
 		
@@ -1038,10 +1216,21 @@ public class SaltedHashFreenetStore implements FreenetStore {
 		@Override
 		public void run() {
 			super.run();
-			
+
+			// Startup didn't wait for these.
+			bloomFilter.load();
+			cleanerLock.lock();
 			try {
-				Thread.sleep((int)(CLEANER_PERIOD / 2 + CLEANER_PERIOD * Math.random()));
-			} catch (InterruptedException e){}
+				finishPreallocation();
+			} finally {
+				cleanerLock.unlock();
+			}
+			
+			if (!resizeNow) {
+				try {
+					Thread.sleep((int)(CLEANER_PERIOD / 2 + CLEANER_PERIOD * Math.random()));
+				} catch (InterruptedException e){}
+			}
 			
 			if (shutdown)
 				return;
@@ -1063,7 +1252,10 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					if (_prevStoreSize != 0 && cleanerGlobalLock.tryLock()) {
 						try {
 							isResizing = true;
-							resizeStore(_prevStoreSize, true);
+							if (resizeNow)
+								System.out.println("Resizing datastore (" + name + ")");
+							resizeStore(_prevStoreSize, !resizeNow);
+							resizeNow = false;
 						} finally {
 							isResizing = false;
 							cleanerGlobalLock.unlock();
@@ -1118,18 +1310,20 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				List<Entry> oldEntryList = new LinkedList<Entry>();
 				int optimialK;
 
-				public void init() {
+				public void init(boolean resume) {
 					if (storeSize > _prevStoreSize)
 						setStoreFileSize(storeSize, false);
 
 					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						bloomFilter.fork(optimialK);
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resume) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							forkBloom(optimialK);
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 30 * 1000 + 1000);
@@ -1193,8 +1387,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					return _prevStoreSize == prevStoreSize;
 				}
 
-				public void abort() {
-					bloomFilter.discard();
+				public void abort(boolean resumable) {
+					abortMigration(resumable);
 				}
 
 				public void finish() {
@@ -1203,6 +1397,8 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						if (_prevStoreSize != prevStoreSize)
 							return;
 						bloomFilter.merge();
+						bloomForkFile.delete();
+						migrationCheckpoint = 0;
 						prevStoreSize = 0;
 
 						flags &= ~FLAG_REBUILD_BLOOM;
@@ -1230,16 +1426,18 @@ public class SaltedHashFreenetStore implements FreenetStore {
 			BatchProcessor rebuildBloomProcessor = new BatchProcessor() {
 				int optimialK;
 
-				public void init() {
+				public void init(boolean resume) {
 					optimialK = BloomFilter.optimialK(bloomFilterSize, storeSize);
 
-					configLock.writeLock().lock();
-					try {
-						generation++;
-						bloomFilter.fork(bloomFilterK);
-						keyCount.set(0);
-					} finally {
-						configLock.writeLock().unlock();
+					if (!resume) {
+						configLock.writeLock().lock();
+						try {
+							generation++;
+							forkBloom(bloomFilterK);
+							keyCount.set(0);
+						} finally {
+							configLock.writeLock().unlock();
+						}
 					}
 
 					WrapperManager.signalStarting(RESIZE_MEMORY_ENTRIES * 5 * 1000 + 1000);
@@ -1266,14 +1464,16 @@ public class SaltedHashFreenetStore implements FreenetStore {
 					return prevStoreSize == 0;
 				}
 
-				public void abort() {
-					bloomFilter.discard();
+				public void abort(boolean resumable) {
+					abortMigration(resumable);
 				}
 
 				public void finish() {
 					bloomFilter.merge();
 					configLock.writeLock().lock();
 					try {
+						bloomForkFile.delete();
+						migrationCheckpoint = 0;
 						flags &= ~FLAG_REBUILD_BLOOM;
 						checkBloom = true;
 						bloomFilterK = optimialK;
@@ -1290,10 +1490,39 @@ public class SaltedHashFreenetStore implements FreenetStore {
 
 		private volatile long entriesLeft;
 		private volatile long entriesTotal;
-		
+
+		/**
+		 * Fork the bloom filter to bloomForkFile for a new resize or rebuild. Caller must hold
+		 * the config write lock.
+		 */
+		private void forkBloom(int k) {
+			migrationCheckpoint = 0;
+			try {
+				bloomFilter.fork(k, bloomForkFile, false);
+			} catch (IOException e) {
+				Logger.error(this, "Can't create " + bloomForkFile + ", resize/rebuild can't be resumed: " + e, e);
+				bloomFilter.fork(k);
+			}
+		}
+
+		/**
+		 * Stop a resize or rebuild. If it can be resumed, keep the checkpoint and the forked
+		 * bloom filter's file, otherwise throw them away.
+		 */
+		private void abortMigration(boolean resumable) {
+			bloomFilter.discard();
+			if (!resumable) {
+				configLock.writeLock().lock();
+				try {
+					migrationCheckpoint = 0;
+				} finally {
+					configLock.writeLock().unlock();
+				}
+				bloomForkFile.delete();
+			}
+		}
+
 		private void batchProcessEntries(BatchProcessor processor, long storeSize, boolean reverse, boolean sleep) {
-			entriesLeft = entriesTotal = storeSize;
-			
 			long startOffset, step;
 			if (!reverse) {
 				startOffset = 0;
@@ -1303,12 +1532,29 @@ public class SaltedHashFreenetStore implements FreenetStore {
 				step = -RESIZE_MEMORY_ENTRIES;
 			}
 
+			long checkpoint;
+			configLock.readLock().lock();
+			try {
+				checkpoint = migrationCheckpoint;
+			} finally {
+				configLock.readLock().unlock();
+			}
+			boolean resume = checkpoint > 0 && checkpoint - 1 < storeSize
+			        && (checkpoint - 1) % RESIZE_MEMORY_ENTRIES == 0;
+			if (resume) {
+				startOffset = checkpoint - 1;
+				System.err.println("Resuming " + name + " cleaner from " + startOffset);
+			}
+
+			entriesTotal = storeSize;
+			entriesLeft = reverse ? startOffset + RESIZE_MEMORY_ENTRIES : storeSize - startOffset;
+
 			int i = 0;
-			processor.init();
+			processor.init(resume);
 			try {
 				for (long curOffset = startOffset; curOffset >= 0 && curOffset < storeSize; curOffset += step) {
 					if (shutdown) {
-						processor.abort();
+						processor.abort(true);
 						return;
 					}
 					
@@ -1316,24 +1562,40 @@ public class SaltedHashFreenetStore implements FreenetStore {
 						System.err.println(name + " cleaner in progress: " + (entriesTotal - entriesLeft) + "/"
 						        + entriesTotal);
 						
-					batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor);
+					long batchStart = System.currentTimeMillis();
+					if (!batchProcessEntries(curOffset, RESIZE_MEMORY_ENTRIES, processor) || shutdown) {
+						// This batch may be half done; it will be done again after restarting.
+						processor.abort(true);
+						return;
+					}
 					entriesLeft = reverse ? curOffset : Math.max(storeSize - curOffset - RESIZE_MEMORY_ENTRIES, 0);
+					configLock.writeLock().lock();
+					try {
+						migrationCheckpoint = curOffset + step + 1;
+					} finally {
+						configLock.writeLock().unlock();
+					}
 					if (!processor.batch(entriesLeft)) {
-						processor.abort();
+						processor.abort(false);
 						return;
 					}
 
 					try {
-						if (sleep) 
-							Thread.sleep(100);
+						int rate = migrationRate;
+						if (sleep && rate > 0) {
+							long wait = reserveMigrationTime(System.currentTimeMillis() - batchStart, RESIZE_MEMORY_ENTRIES, rate);
+							if (wait > 0)
+								Thread.sleep(wait);
+						}
 					} catch (InterruptedException e) {
-						processor.abort();
+						processor.abort(true);
 						return;
 					}
 				}
 				processor.finish();
 			} catch (Exception e) {
-				processor.abort();
+				Logger.error(this, "Resize/rebuild of " + name + " failed: " + e, e);
+				processor.abort(false);
 			}
 		}
 
@@ -40,7 +40,7 @@ public class BinaryBloomFilter extends BloomFilter {
 
 		RandomAccessFile raf = new RandomAccessFile(file, "rw");
 		raf.setLength(length / 8);
-		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, length / 8).load();
+		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, length / 8);
 	}
 
 	public BinaryBloomFilter(ByteBuffer slice, int length, int k) {
@@ -83,4 +83,18 @@ public class BinaryBloomFilter extends BloomFilter {
 			lock.writeLock().unlock();
 		}
 	}
+
+	@Override
+	public boolean fork(int k, File file, boolean resume) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!resume)
+				file.delete();
+			BinaryBloomFilter fork = new BinaryBloomFilter(file, length, k);
+			forkedFilter = fork;
+			return resume && !fork.needRebuild;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 }
@@ -121,6 +121,17 @@ public abstract class BloomFilter {
 	 */
 	public abstract void fork(int k);
 
+	/**
+	 * Like {@link #fork(int)}, but keep the copy in the given file, so that it
+	 * survives a restart.
+	 * 
+	 * @param resume
+	 *            If true and the file already holds a copy of the right size, carry on
+	 *            from it. Otherwise start with an empty copy.
+	 * @return <code>true</code> if we are carrying on from an existing copy.
+	 */
+	public abstract boolean fork(int k, File file, boolean resume) throws IOException;
+
 	public void merge() {
 		lock.writeLock().lock();
 		try {
@@ -196,11 +207,25 @@ public abstract class BloomFilter {
 			((MappedByteBuffer) filter).force();
 		}
 	}
+
+	/**
+	 * Read a filter backed by a file into memory. File backed filters are mapped but not read
+	 * when they are created, so a large filter doesn't hold up startup; until this is called,
+	 * checks may have to wait for the disk.
+	 */
+	public void load() {
+		ByteBuffer f = filter;
+		if (f instanceof MappedByteBuffer) {
+			((MappedByteBuffer) f).load();
+		}
+	}
 	
 	public void close() {
 		if (filter != null) {
 			force();
 		}
+		if (forkedFilter != null)
+			forkedFilter.close();
 		filter = null;
 		forkedFilter = null;
 	}
@@ -0,0 +1,371 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent approximate-LRU variant of {@link LRUHashtable}, for caches which
+ * are shared between many threads.
+ *
+ * Keys are striped across a fixed number of segments, each of which is an
+ * exact LRU list protected by its own lock, so threads working on different
+ * keys rarely contend. The size bound is split between the segments and
+ * enforced by each segment on its own, so pushes never touch shared state;
+ * the table as a whole therefore evicts in approximately LRU order. Every
+ * entry is stamped with the time it was pushed, and popKey() / popValue()
+ * take the tail of whichever segment has the oldest tail stamp.
+ *
+ * Optionally the table also enforces a maximum total weight (as computed by a
+ * {@link Weigher}), evicting the oldest entries across all segments, and
+ * notifies an {@link EvictionListener} of all evictions. Callbacks are made
+ * without holding any lock.
+ *
+ * As with {@link LRUHashtable}, get() does not promote the key; call push()
+ * again to do that.
+ */
+public class ConcurrentLRUHashtable<K, V> {
+
+	/** Called whenever an entry is dropped to keep the table within its bounds. */
+	public interface EvictionListener<K, V> {
+		void onEviction(K key, V value);
+	}
+
+	/** Computes the weight of an entry. Must be constant for a given key/value pair. */
+	public interface Weigher<K, V> {
+		long weigh(K key, V value);
+	}
+
+	private static final int MAX_SEGMENTS = 16;
+	/** Don't split the size bound into segments smaller than this, it makes
+	 * the eviction order too far from LRU. */
+	private static final int MIN_SEGMENT_SIZE = 16;
+
+	private final Segment<K, V>[] segments;
+	private final int segmentMask;
+	/** Total weight. Only maintained if there is a weigher. */
+	private final AtomicLong weight = new AtomicLong();
+	private final long maxWeight;
+	private final Weigher<K, V> weigher;
+	private final EvictionListener<K, V> listener;
+
+	/** Unbounded table: entries are only removed explicitly. */
+	public ConcurrentLRUHashtable() {
+		this(Integer.MAX_VALUE, Long.MAX_VALUE, null, null);
+	}
+
+	/**
+	 * @param maxSize The maximum number of entries. Integer.MAX_VALUE for no limit.
+	 * @param listener Notified of entries evicted to stay within maxSize. May be null.
+	 */
+	public ConcurrentLRUHashtable(int maxSize, EvictionListener<K, V> listener) {
+		this(maxSize, Long.MAX_VALUE, null, listener);
+	}
+
+	/**
+	 * @param maxSize The maximum number of entries. Integer.MAX_VALUE for no limit.
+	 * @param maxWeight The maximum total weight of all entries. Long.MAX_VALUE for no limit.
+	 * @param weigher Computes the weight of each entry. If null, maxWeight is ignored.
+	 * @param listener Notified of entries evicted to stay within the bounds. May be null.
+	 */
+	@SuppressWarnings("unchecked")
+	public ConcurrentLRUHashtable(int maxSize, long maxWeight, Weigher<K, V> weigher, EvictionListener<K, V> listener) {
+		if(maxSize <= 0) throw new IllegalArgumentException("maxSize must be positive: "+maxSize);
+		if(maxWeight <= 0) throw new IllegalArgumentException("maxWeight must be positive: "+maxWeight);
+		int count = 1;
+		while(count < MAX_SEGMENTS && (maxSize == Integer.MAX_VALUE || maxSize / (count * 2) >= MIN_SEGMENT_SIZE))
+			count <<= 1;
+		segments = new Segment[count];
+		for(int i=0;i<count;i++) {
+			// Share out the remainder so the segment limits add up to exactly maxSize.
+			int segmentSize = maxSize == Integer.MAX_VALUE ? Integer.MAX_VALUE :
+				maxSize / count + (i < maxSize % count ? 1 : 0);
+			segments[i] = new Segment<K, V>(segmentSize);
+		}
+		segmentMask = count - 1;
+		this.maxWeight = weigher == null ? Long.MAX_VALUE : maxWeight;
+		this.weigher = weigher;
+		this.listener = listener;
+	}
+
+	private Segment<K, V> segmentFor(Object key) {
+		int h = key.hashCode();
+		// Spread the bits, as ByteArrayWrapper etc have poor low bits.
+		h ^= (h >>> 20) ^ (h >>> 12);
+		h ^= (h >>> 7) ^ (h >>> 4);
+		return segments[h & segmentMask];
+	}
+
+	/**
+	 * push()ing an object that is already in the table moves that object to
+	 * the most recently used position and replaces its value, but doesn't add
+	 * a duplicate entry. May evict other entries to stay within the bounds.
+	 */
+	public final void push(K key, V value) {
+		if(key == null || value == null) throw new NullPointerException();
+		long w = weigher == null ? 0 : weigher.weigh(key, value);
+		Segment<K, V> seg = segmentFor(key);
+		QItem<K, V> evicted = null;
+		synchronized(seg) {
+			QItem<K, V> item = seg.hash.get(key);
+			if(item == null) {
+				item = new QItem<K, V>(key, value, w);
+				seg.hash.put(key, item);
+				seg.size++;
+			} else {
+				seg.list.remove(item);
+				item.value = value;
+				w -= item.weight;
+				item.weight += w;
+			}
+			if(w != 0) weight.addAndGet(w);
+			item.stamp = seg.nextStamp();
+			seg.list.unshift(item);
+			if(seg.size > seg.maxSize) {
+				// Only ever over by one, since we check on every push.
+				evicted = seg.list.pop();
+				seg.hash.remove(evicted.obj);
+				seg.size--;
+				if(evicted.weight != 0) weight.addAndGet(-evicted.weight);
+			}
+			seg.updateOldest();
+		}
+		if(evicted != null && listener != null)
+			listener.onEviction(evicted.obj, evicted.value);
+		while(weight.get() > maxWeight) {
+			evicted = removeOldest();
+			if(evicted == null) return;
+			if(listener != null)
+				listener.onEviction(evicted.obj, evicted.value);
+		}
+	}
+
+	/** Remove and return the entry with the oldest stamp, or null if empty. */
+	private QItem<K, V> removeOldest() {
+		while(true) {
+			Segment<K, V> oldest = null;
+			long oldestStamp = Long.MAX_VALUE;
+			for(Segment<K, V> seg : segments) {
+				long stamp = seg.oldestStamp;
+				if(stamp < oldestStamp) {
+					oldestStamp = stamp;
+					oldest = seg;
+				}
+			}
+			if(oldest == null) return null;
+			synchronized(oldest) {
+				// May have been emptied since we looked, in which case rescan.
+				if(oldest.list.isEmpty()) continue;
+				QItem<K, V> item = oldest.list.pop();
+				oldest.hash.remove(item.obj);
+				oldest.updateOldest();
+				oldest.size--;
+				if(item.weight != 0) weight.addAndGet(-item.weight);
+				return item;
+			}
+		}
+	}
+
+	/**
+	 * @return Least recently pushed key, after removing it, or null if empty.
+	 */
+	public final K popKey() {
+		QItem<K, V> item = removeOldest();
+		return item == null ? null : item.obj;
+	}
+
+	/**
+	 * @return Least recently pushed value, after removing it, or null if empty.
+	 */
+	public final V popValue() {
+		QItem<K, V> item = removeOldest();
+		return item == null ? null : item.value;
+	}
+
+	public final boolean removeKey(K key) {
+		return remove(key) != null;
+	}
+
+	/**
+	 * Remove a key.
+	 * @return The value it was mapped to, or null if it wasn't in the table.
+	 */
+	public final V remove(K key) {
+		Segment<K, V> seg = segmentFor(key);
+		synchronized(seg) {
+			QItem<K, V> item = seg.hash.remove(key);
+			if(item == null) return null;
+			seg.list.remove(item);
+			seg.updateOldest();
+			seg.size--;
+			if(item.weight != 0) weight.addAndGet(-item.weight);
+			return item.value;
+		}
+	}
+
+	public final boolean containsKey(K key) {
+		Segment<K, V> seg = segmentFor(key);
+		synchronized(seg) {
+			return seg.hash.containsKey(key);
+		}
+	}
+
+	/**
+	 * Note that this does not automatically promote the key. You have
+	 * to do that by hand with push(key, value).
+	 */
+	public final V get(K key) {
+		Segment<K, V> seg = segmentFor(key);
+		synchronized(seg) {
+			QItem<K, V> q = seg.hash.get(key);
+			if(q == null) return null;
+			return q.value;
+		}
+	}
+
+	public final int size() {
+		int total = 0;
+		for(Segment<K, V> seg : segments)
+			total += seg.size;
+		return total;
+	}
+
+	/** @return The total weight of all entries, or 0 if there is no weigher. */
+	public final long weight() {
+		return weight.get();
+	}
+
+	public boolean isEmpty() {
+		for(Segment<K, V> seg : segments)
+			if(seg.size != 0) return false;
+		return true;
+	}
+
+	public void clear() {
+		for(Segment<K, V> seg : segments) {
+			synchronized(seg) {
+				for(QItem<K, V> item : seg.hash.values()) {
+					if(item.weight != 0) weight.addAndGet(-item.weight);
+				}
+				seg.size = 0;
+				seg.hash.clear();
+				seg.list.clear();
+				seg.updateOldest();
+			}
+		}
+	}
+
+	/**
+	 * Snapshot of the keys, least recently pushed first. Not atomic with
+	 * respect to concurrent updates.
+	 */
+	public Enumeration<K> keys() {
+		final Iterator<QItem<K, V>> it = snapshot().iterator();
+		return new Enumeration<K>() {
+			public boolean hasMoreElements() {
+				return it.hasNext();
+			}
+			public K nextElement() {
+				return it.next().obj;
+			}
+		};
+	}
+
+	/**
+	 * Snapshot of the values, least recently pushed first. Not atomic with
+	 * respect to concurrent updates.
+	 */
+	public Enumeration<V> values() {
+		final Iterator<QItem<K, V>> it = snapshot().iterator();
+		return new Enumeration<V>() {
+			public boolean hasMoreElements() {
+				return it.hasNext();
+			}
+			public V nextElement() {
+				return it.next().value;
+			}
+		};
+	}
+
+	/** Merge the segments' LRU lists into a single list in stamp order. */
+	private ArrayList<QItem<K, V>> snapshot() {
+		ArrayList<QItem<K, V>> items = new ArrayList<QItem<K, V>>(size());
+		for(Segment<K, V> seg : segments) {
+			synchronized(seg) {
+				Enumeration<QItem<K, V>> e = seg.list.reverseElements();
+				while(e.hasMoreElements()) {
+					QItem<K, V> item = e.nextElement();
+					// Copy, since the item may be modified after we drop the lock.
+					QItem<K, V> copy = new QItem<K, V>(item.obj, item.value, item.weight);
+					copy.stamp = item.stamp;
+					items.add(copy);
+				}
+			}
+		}
+		Collections.sort(items, STAMP_COMPARATOR);
+		return items;
+	}
+
+	private static final Comparator<QItem<?, ?>> STAMP_COMPARATOR = new Comparator<QItem<?, ?>>() {
+		public int compare(QItem<?, ?> a, QItem<?, ?> b) {
+			if(a.stamp < b.stamp) return -1;
+			if(a.stamp > b.stamp) return 1;
+			return 0;
+		}
+	};
+
+	private static final class Segment<K, V> {
+		final HashMap<K, QItem<K, V>> hash = new HashMap<K, QItem<K, V>>();
+		final DoublyLinkedListImpl<QItem<K, V>> list = new DoublyLinkedListImpl<QItem<K, V>>();
+		final int maxSize;
+		/** Number of entries. Written under the lock, read without it by size(). */
+		volatile int size;
+		/** Stamp of the tail entry, or Long.MAX_VALUE if empty. Read without the lock by removeOldest(). */
+		volatile long oldestStamp = Long.MAX_VALUE;
+		private long lastStamp;
+
+		Segment(int maxSize) {
+			this.maxSize = maxSize;
+		}
+
+		/** Call with the segment lock held. Strictly increasing within the segment,
+		 * and comparable (give or take clock skew between threads) across segments. */
+		long nextStamp() {
+			long stamp = System.nanoTime();
+			if(stamp <= lastStamp) stamp = lastStamp + 1;
+			lastStamp = stamp;
+			return stamp;
+		}
+
+		/** Call with the segment lock held. */
+		void updateOldest() {
+			QItem<K, V> tail = list.tail();
+			oldestStamp = tail == null ? Long.MAX_VALUE : tail.stamp;
+		}
+	}
+
+	private static final class QItem<K, V> extends DoublyLinkedListImpl.Item<QItem<K, V>> {
+		final K obj;
+		V value;
+		long weight;
+		long stamp;
+
+		QItem(K key, V val, long weight) {
+			this.obj = key;
+			this.value = val;
+			this.weight = weight;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString()+": "+obj+ ' ' +value;
+		}
+	}
+}
@@ -48,7 +48,7 @@ public class CountingBloomFilter extends BloomFilter {
 
 		RandomAccessFile raf = new RandomAccessFile(file, "rw");
 		raf.setLength(fileLength);
-		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, fileLength).load();
+		filter = raf.getChannel().map(MapMode.READ_WRITE, 0, fileLength);
 	}
 
 	public CountingBloomFilter(int length, int k, byte[] buffer) {
@@ -109,4 +109,18 @@ public class CountingBloomFilter extends BloomFilter {
 			lock.writeLock().unlock();
 		}
 	}
+
+	@Override
+	public boolean fork(int k, File file, boolean resume) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!resume)
+				file.delete();
+			CountingBloomFilter fork = new CountingBloomFilter(file, length, k);
+			forkedFilter = fork;
+			return resume && !fork.needRebuild;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
 }
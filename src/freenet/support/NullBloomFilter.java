@@ -3,6 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.io.File;
+
 /**
  * @author sdiz
  */
@@ -47,6 +49,11 @@ public class NullBloomFilter extends BloomFilter {
 		return;
 	}
 
+	@Override
+	public boolean fork(int k, File file, boolean resume) {
+		return false;
+	}
+
 	@Override
 	public void discard() {
 		return;
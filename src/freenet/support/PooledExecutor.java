@@ -3,7 +3,10 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.support;
 
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.node.PrioRunnable;
@@ -13,6 +16,14 @@ import freenet.support.io.NativeThread;
 /**
  * Pooled Executor implementation. Create a thread when we need one, let them die
  * after 5 minutes of inactivity.
+ * 
+ * Optionally, jobs can run on virtual threads instead, if the JVM has them
+ * (Java 21 and later). These are cheap enough to start one per job and to
+ * block on I/O, so we don't pool them. They have no priority, so jobs at
+ * MAX_PRIORITY still get a pooled thread; the rest all share the JVM's
+ * scheduler. They aren't in any thread group, so getVirtualThreadsCount()
+ * tells NodeStats how many there are, and they still count towards the
+ * thread limit.
  * @author toad
  */
 public class PooledExecutor implements Executor {
@@ -30,6 +41,32 @@ public class PooledExecutor implements Executor {
 	private static boolean logMINOR;
 	// Ticker thread that runs at maximum priority.
 	private Ticker ticker;
+	/** Jobs running on virtual threads, by priority */
+	private final AtomicInteger[] virtualThreads = new AtomicInteger[runningThreads.length];
+	private volatile boolean useVirtualThreads;
+	
+	/** Creates virtual threads, or null if the JVM doesn't have them. */
+	private static final ThreadFactory virtualThreadFactory = makeVirtualThreadFactory();
+	
+	/** Jobs at this priority or above always run on pooled threads. */
+	static final int MIN_PLATFORM_PRIORITY = NativeThread.MAX_PRIORITY;
+	
+	/** Thread.ofVirtual().factory(), by reflection since we must build on
+	 * older JVMs. */
+	private static ThreadFactory makeVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		} catch (Throwable t) {
+			// Older JVM.
+			return null;
+		}
+	}
+	
+	public static boolean virtualThreadsAvailable() {
+		return virtualThreadFactory != null;
+	}
 
 	public synchronized void setTicker(Ticker ticker) {
 		this.ticker = ticker;
@@ -40,6 +77,7 @@ public class PooledExecutor implements Executor {
 			runningThreads[i] = new ArrayList<MyThread>();
 			waitingThreads[i] = new ArrayList<MyThread>();
 			threadCounter[i] = new AtomicLong();
+			virtualThreads[i] = new AtomicInteger();
 		}
 		waitingThreadsCount = 0;
 	}
@@ -49,6 +87,24 @@ public class PooledExecutor implements Executor {
 	public void start() {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 	}
+	
+	/**
+	 * Run jobs on virtual threads, if the JVM supports them.
+	 * @return False if we wanted virtual threads but the JVM doesn't have them.
+	 */
+	public boolean setUseVirtualThreads(boolean val) {
+		if(val && virtualThreadFactory == null) {
+			Logger.normal(this, "Virtual threads are not available on this JVM, using pooled threads");
+			useVirtualThreads = false;
+			return false;
+		}
+		useVirtualThreads = val;
+		return true;
+	}
+	
+	public boolean usingVirtualThreads() {
+		return useVirtualThreads;
+	}
 
 	public void execute(Runnable job, String jobName) {
 		execute(job, jobName, false);
@@ -64,6 +120,11 @@ public class PooledExecutor implements Executor {
 		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
 			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
 
+		if(useVirtualThreads && prio < MIN_PLATFORM_PRIORITY) {
+			executeVirtual(runnable, jobName, prio);
+			return;
+		}
+
 		Job job = new Job(runnable, jobName);
 		while(true) {
 			MyThread t = null;
@@ -129,10 +190,35 @@ public class PooledExecutor implements Executor {
 		}
 	}
 
+	private void executeVirtual(final Runnable runnable, final String jobName, int prio) {
+		final AtomicInteger counter = virtualThreads[prio - 1];
+		Thread t = virtualThreadFactory.newThread(new Runnable() {
+
+			public void run() {
+				try {
+					runnable.run();
+				} catch (OutOfMemoryError e) {
+					OOMHandler.handleOOM(e);
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + jobName, t);
+				} finally {
+					counter.decrementAndGet();
+				}
+			}
+
+		});
+		t.setName(jobName + "(virtual)");
+		counter.incrementAndGet();
+		synchronized(this) {
+			jobCount++;
+		}
+		t.start();
+	}
+
 	public synchronized int[] runningThreads() {
 		int[] result = new int[runningThreads.length];
 		for(int i = 0; i < result.length; i++)
-			result[i] = runningThreads[i].size() - waitingThreads[i].size();
+			result[i] = runningThreads[i].size() - waitingThreads[i].size() + virtualThreads[i].get();
 		return result;
 	}
 
@@ -147,6 +233,14 @@ public class PooledExecutor implements Executor {
 		return waitingThreadsCount;
 	}
 	
+	/** @return The number of jobs running on virtual threads. */
+	public int getVirtualThreadsCount() {
+		int total = 0;
+		for(AtomicInteger counter : virtualThreads)
+			total += counter.get();
+		return total;
+	}
+	
 	private static class Job {
 		private Runnable runnable;
 		private String name;
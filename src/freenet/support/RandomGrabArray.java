@@ -37,6 +37,16 @@ public class RandomGrabArray implements RemoveRandom {
 	private final boolean persistent;
 	private final int hashCode;
 	private final RemoveRandomParent parent;
+	/** Transient arrays only: items [0, candidates) may be returned, items
+	 * [candidates, index) were excluded recently, so we don't pick them again
+	 * until recheckTime. Otherwise when most of the items are excluded, we
+	 * would spend most of our time picking excluded items, and often give up
+	 * before finding one which isn't. */
+	private transient int candidates;
+	private transient long recheckTime;
+	/** How long to skip items which were excluded, after which we look at
+	 * them again. Excluded items are usually fetching or cooling down. */
+	static final long RECHECK_EXCLUDED = 1000;
 
 	public RandomGrabArray(boolean persistent, ObjectContainer container, RemoveRandomParent parent) {
 		this.blocks = new Block[] { new Block() };
@@ -80,7 +90,8 @@ public class RandomGrabArray implements RemoveRandom {
 					container.store(blocks[0]);
 					container.store(this);
 					container.deactivate(blocks[0], 1);
-				}
+				} else
+					addCandidate(index-1);
 				return;
 			}
 			int targetBlock = index / BLOCK_SIZE;
@@ -128,7 +139,8 @@ public class RandomGrabArray implements RemoveRandom {
 				container.store(target);
 				for(int i=oldBlockLen;i<blocks.length;i++)
 					container.deactivate(blocks[i], 1);
-			}
+			} else
+				addCandidate(index-1);
 			if(logMINOR) Logger.minor(this, "Added: "+req+" to "+this+" size now "+index);
 		}
 	}
@@ -210,6 +222,7 @@ public class RandomGrabArray implements RemoveRandom {
 							changedMe = true;
 							index = target;
 						}
+						candidates = index;
 						// We reach this point if 1) the random number we picked last round is invalid because an item became cancelled or excluded
 						// or 2) we are on the first round anyway.
 						if(chosenItem != null) {
@@ -254,6 +267,8 @@ public class RandomGrabArray implements RemoveRandom {
 						}
 					}
 				}
+				if(!persistent)
+					return removeRandomTransient(excluding, container, context);
 				int i = context.fastWeakRandom.nextInt(index);
 				int blockNo = i / BLOCK_SIZE;
 				if(persistent && blockNo != lastActiveBlock) {
@@ -306,30 +321,7 @@ public class RandomGrabArray implements RemoveRandom {
 					oret = blocks[blockNo].reqs[i % BLOCK_SIZE];
 					// Check for nulls, but don't check for cancelled, since we'd have to activate.
 				} while (index > i && oret == null);
-				// Shrink array
-				if(blocks.length == 1 && index < blocks[0].reqs.length / 4) {
-					changedMe = true;
-					// Shrink array
-					int newSize = Math.max(index * 2, MIN_SIZE);
-					RandomGrabArrayItem[] r = new RandomGrabArrayItem[newSize];
-					System.arraycopy(blocks[0].reqs, 0, r, 0, r.length);
-					blocks[0].reqs = r;
-					if(persistent)
-						container.store(this);
-				} else if(blocks.length > 1 &&
-						(((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1) < 
-						blocks.length) {
-					if(logMINOR)
-						Logger.minor(this, "Shrinking blocks on "+this);
-					Block[] newBlocks = new Block[((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1];
-					System.arraycopy(blocks, 0, newBlocks, 0, newBlocks.length);
-					if(persistent) {
-						container.store(this);
-						for(int x=newBlocks.length;x<blocks.length;x++)
-							container.delete(blocks[x]);
-					}
-					blocks = newBlocks;
-				}
+				shrink(container);
 				if(ret != null) break;
 			}
 		}
@@ -340,6 +332,113 @@ public class RandomGrabArray implements RemoveRandom {
 		return ret;
 	}
 	
+	/**
+	 * Remove a random item from a transient array which is too big for the
+	 * simple case. We only pick from the candidates, and move an item out of
+	 * the candidates when it is excluded, so each excluded item costs us one
+	 * pick per RECHECK_EXCLUDED, rather than one on every call. Hence we
+	 * can keep going until we find an item which isn't excluded.
+	 */
+	private RandomGrabArrayItem removeRandomTransient(RandomGrabArrayItemExclusionList excluding, ObjectContainer container, ClientContext context) {
+		long now = System.currentTimeMillis();
+		if(now >= recheckTime || candidates > index) {
+			candidates = index;
+			recheckTime = now + RECHECK_EXCLUDED;
+		}
+		int excluded = 0;
+		boolean removed = false;
+		try {
+			while(candidates > 0) {
+				int i = context.fastWeakRandom.nextInt(candidates);
+				RandomGrabArrayItem ret = item(i);
+				if(ret == null) {
+					Logger.error(this, "reqs["+i+"] = null");
+					removeTransient(i);
+					removed = true;
+					continue;
+				}
+				if(ret.isEmpty(container)) {
+					if(logMINOR) Logger.minor(this, "Not returning because cancelled: "+ret);
+					ret.setParentGrabArray(null, container);
+					removeTransient(i);
+					removed = true;
+					continue;
+				}
+				if(excluding.exclude(ret, container, context)) {
+					excluded++;
+					swap(i, --candidates);
+					continue;
+				}
+				if(logMINOR) Logger.minor(this, "Returning (cannot remove): "+ret+" of "+index+" after "+excluded+" excluded, "+candidates+" candidates");
+				return ret;
+			}
+			if(logMINOR) Logger.minor(this, "Remove random returning null because all "+index+" items are excluded");
+			return null;
+		} finally {
+			if(removed) shrink(container);
+		}
+	}
+
+	private RandomGrabArrayItem item(int i) {
+		return blocks[i / BLOCK_SIZE].reqs[i % BLOCK_SIZE];
+	}
+
+	private void setItem(int i, RandomGrabArrayItem item) {
+		blocks[i / BLOCK_SIZE].reqs[i % BLOCK_SIZE] = item;
+	}
+
+	private void swap(int a, int b) {
+		if(a == b) return;
+		RandomGrabArrayItem item = item(a);
+		setItem(a, item(b));
+		setItem(b, item);
+	}
+
+	/** Transient arrays only. A newly added item at i is a candidate, even if
+	 * we have recently excluded all the others. */
+	private void addCandidate(int i) {
+		if(candidates > i) candidates = i;
+		swap(i, candidates++);
+	}
+
+	/** Transient arrays only. Remove the item at i, keeping the candidates
+	 * before the excluded items. */
+	private void removeTransient(int i) {
+		if(i < candidates) {
+			candidates--;
+			setItem(i, item(candidates));
+			i = candidates;
+		}
+		index--;
+		setItem(i, item(index));
+		setItem(index, null);
+	}
+
+	/** Shrink the array if it is mostly empty. */
+	private void shrink(ObjectContainer container) {
+		if(blocks.length == 1 && index < blocks[0].reqs.length / 4) {
+			int newSize = Math.max(index * 2, MIN_SIZE);
+			RandomGrabArrayItem[] r = new RandomGrabArrayItem[newSize];
+			System.arraycopy(blocks[0].reqs, 0, r, 0, r.length);
+			blocks[0].reqs = r;
+			if(persistent)
+				container.store(this);
+		} else if(blocks.length > 1 &&
+				(((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1) < 
+				blocks.length) {
+			if(logMINOR)
+				Logger.minor(this, "Shrinking blocks on "+this);
+			Block[] newBlocks = new Block[((index + (BLOCK_SIZE/2)) / BLOCK_SIZE) + 1];
+			System.arraycopy(blocks, 0, newBlocks, 0, newBlocks.length);
+			if(persistent) {
+				container.store(this);
+				for(int x=newBlocks.length;x<blocks.length;x++)
+					container.delete(blocks[x]);
+			}
+			blocks = newBlocks;
+		}
+	}
+
 	/**
 	 * blockNo is assumed to be already active. The last block is assumed not 
 	 * to be.
@@ -374,7 +473,16 @@ public class RandomGrabArray implements RemoveRandom {
 		boolean matched = false;
 		boolean empty = false;
 		synchronized(this) {
-			if(blocks.length == 1) {
+			if(!persistent) {
+				for(int i=0;i<index;i++) {
+					if(item(i) == it) {
+						removeTransient(i);
+						matched = true;
+						break;
+					}
+				}
+				if(index == 0) empty = true;
+			} else if(blocks.length == 1) {
 				Block block = blocks[0];
 				if(persistent)
 					container.activate(block, 1);
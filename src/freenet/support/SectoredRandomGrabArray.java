@@ -44,6 +44,11 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 	private Object[] grabClients;
 	private final boolean persistent;
 	private final RemoveRandomParent parent;
+	/** Transient arrays only: sub-arrays [0, candidates) may return something,
+	 * the rest returned nothing because all their items were excluded, so we
+	 * don't try them again until recheckTime. See RandomGrabArray. */
+	private transient int candidates;
+	private transient long recheckTime;
 	
 	public SectoredRandomGrabArray(boolean persistent, ObjectContainer container, RemoveRandomParent parent) {
 		this.persistent = persistent;
@@ -71,6 +76,8 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 			rga = (RandomGrabArrayWithClient) grabArrays[clientIndex];
 			if(persistent)
 				container.activate(rga, 1);
+			else if(clientIndex >= candidates && candidates < grabArrays.length)
+				swap(clientIndex, candidates++);
 		}
 		if(logMINOR)
 			Logger.minor(this, "Adding "+item+" to RGA "+rga+" for "+client);
@@ -92,6 +99,22 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 		System.arraycopy(grabClients, 0, newClients, 0, len);
 		newClients[len] = client;
 		grabClients = newClients;
+		
+		if(!persistent) {
+			// The new client may have something we can send.
+			if(candidates > len) candidates = len;
+			swap(len, candidates++);
+		}
+	}
+	
+	private void swap(int a, int b) {
+		if(a == b) return;
+		RemoveRandomWithObject rga = grabArrays[a];
+		grabArrays[a] = grabArrays[b];
+		grabArrays[b] = rga;
+		Object client = grabClients[a];
+		grabClients[a] = grabClients[b];
+		grabClients[b] = client;
 	}
 
 	private synchronized int haveClient(Object client) {
@@ -219,6 +242,8 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 					return item;
 				}
 			}
+			if(!persistent)
+				return removeRandomTransient(excluding, container, context);
 			int x = context.fastWeakRandom.nextInt(grabArrays.length);
 			RemoveRandomWithObject rga = grabArrays[x];
 			if(persistent)
@@ -263,6 +288,40 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 		}
 	}
 
+	/**
+	 * Pick a random sub-array from the candidates, and move it out of the
+	 * candidates if everything on it is excluded. So we can keep looking
+	 * until we find something, without trying the same excluded clients over
+	 * and over again.
+	 */
+	private RandomGrabArrayItem removeRandomTransient(RandomGrabArrayItemExclusionList excluding, ObjectContainer container, ClientContext context) {
+		long now = System.currentTimeMillis();
+		if(now >= recheckTime || candidates > grabArrays.length) {
+			candidates = grabArrays.length;
+			recheckTime = now + RandomGrabArray.RECHECK_EXCLUDED;
+		}
+		while(candidates > 0) {
+			int x = context.fastWeakRandom.nextInt(candidates);
+			RemoveRandomWithObject rga = grabArrays[x];
+			RandomGrabArrayItem item = rga.removeRandom(excluding, container, context);
+			if(logMINOR)
+				Logger.minor(this, "RGA has picked "+x+"/"+candidates+"/"+grabArrays.length+": "+item+" rga.isEmpty="+rga.isEmpty());
+			if(rga.isEmpty()) {
+				if(logMINOR)
+					Logger.minor(this, "Removing grab array "+x+" : "+rga+" (is empty)");
+				removeElement(x);
+			} else if(item == null) {
+				swap(x, --candidates);
+			}
+			// As above, a cancelled item doesn't mean the whole client is cancelled.
+			if(item == null || item.isEmpty(container)) continue;
+			return item;
+		}
+		if(logMINOR)
+			Logger.minor(this, "All "+grabArrays.length+" sub-arrays are excluded on "+this);
+		return null;
+	}
+
 	private synchronized void removeElement(int x) {
 		final int grabArraysLength = grabArrays.length;
 		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
@@ -279,6 +338,8 @@ public class SectoredRandomGrabArray implements RemoveRandom, RemoveRandomParent
 		if(x < grabArraysLength-1)
 			System.arraycopy(grabClients, x+1, newClients, x, grabArraysLength - (x+1));
 		grabClients = newClients;
+		// Everything after x moves down one.
+		if(x < candidates) candidates--;
 	}
 
 	public synchronized boolean isEmpty() {
@@ -37,7 +37,7 @@ public class StringCounter {
 			item.counter++;
 	}
 	
-	public int get(String string) {
+	public synchronized int get(String string) {
 		Item item = map.get(string);
 		if(item == null) return 0;
 		return item.counter;
@@ -0,0 +1,104 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of fixed-size byte[] chunks for {@link ChunkedRAMBucket}s. Freed
+ * chunks are kept for reuse, so that the many short-lived RAM buckets created
+ * by TempBucketFactory don't each allocate and then drop their own arrays.
+ * The idle chunks and the chunks in use together are kept within a limit, so
+ * the pool never holds more memory than the buckets were allowed to use.
+ */
+public class ChunkPool {
+
+	public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+	private final int chunkSize;
+	private final ConcurrentLinkedQueue<byte[]> idle;
+	/** Approximate, but never less than the real number of idle chunks. */
+	private final AtomicInteger idleCount;
+	private final AtomicInteger inUse;
+	private final AtomicLong allocated;
+	private final AtomicLong reused;
+	private volatile int maxChunks;
+
+	/**
+	 * @param chunkSize The size of each chunk in bytes.
+	 * @param maxBytes How much memory the chunks in use and the freed chunks
+	 * waiting to be reused may occupy together. Chunks freed beyond this are
+	 * dropped.
+	 */
+	public ChunkPool(int chunkSize, long maxBytes) {
+		if(chunkSize <= 0) throw new IllegalArgumentException();
+		this.chunkSize = chunkSize;
+		idle = new ConcurrentLinkedQueue<byte[]>();
+		idleCount = new AtomicInteger();
+		inUse = new AtomicInteger();
+		allocated = new AtomicLong();
+		reused = new AtomicLong();
+		setMaxBytes(maxBytes);
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/** Set how much memory the chunks in use and the idle chunks may use
+	 * together. Excess idle chunks are dropped. */
+	public void setMaxBytes(long maxBytes) {
+		maxChunks = (int) Math.min(Integer.MAX_VALUE, Math.max(0, maxBytes / chunkSize));
+		while(idleCount.get() > 0 && idleCount.get() + inUse.get() > maxChunks) {
+			if(idle.poll() == null) break;
+			idleCount.decrementAndGet();
+		}
+	}
+
+	/** Get a chunk. Its contents are undefined. */
+	public byte[] allocate() {
+		inUse.incrementAndGet();
+		byte[] chunk = idle.poll();
+		if(chunk != null) {
+			idleCount.decrementAndGet();
+			reused.incrementAndGet();
+			return chunk;
+		}
+		allocated.incrementAndGet();
+		return new byte[chunkSize];
+	}
+
+	/** Return a chunk to the pool. The caller must not use it afterwards. */
+	public void free(byte[] chunk) {
+		if(chunk.length != chunkSize) throw new IllegalArgumentException();
+		int used = inUse.decrementAndGet();
+		if(idleCount.incrementAndGet() + used > maxChunks) {
+			idleCount.decrementAndGet();
+			return;
+		}
+		idle.offer(chunk);
+	}
+
+	/** @return The number of chunks handed out and not yet freed. */
+	public int getChunksInUse() {
+		return inUse.get();
+	}
+
+	/** @return The number of freed chunks kept for reuse. */
+	public int getIdleChunks() {
+		return idleCount.get();
+	}
+
+	/** @return The number of chunks which had to be newly allocated. */
+	public long getChunksAllocated() {
+		return allocated.get();
+	}
+
+	/** @return The number of chunks which were served from the pool. */
+	public long getChunksReused() {
+		return reused.get();
+	}
+}
@@ -0,0 +1,217 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+
+import com.db4o.ObjectContainer;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A bucket that stores data in memory, in fixed-size chunks taken from a
+ * {@link ChunkPool}. Unlike ArrayBucket, growing it never copies what has
+ * already been written, closing the OutputStream doesn't copy the data
+ * either, and free() gives the chunks back for reuse.
+ *
+ * Opening an OutputStream truncates the bucket. InputStreams see data as it
+ * is written, and fail once the bucket has been freed, since the chunks may
+ * then belong to somebody else.
+ */
+public class ChunkedRAMBucket implements Bucket {
+
+	private final ChunkPool pool;
+	private final int chunkSize;
+	private final ArrayList<byte[]> chunks;
+	private long size;
+	private boolean readOnly;
+	private boolean freed;
+
+	public ChunkedRAMBucket(ChunkPool pool) {
+		this.pool = pool;
+		this.chunkSize = pool.getChunkSize();
+		this.chunks = new ArrayList<byte[]>();
+	}
+
+	public synchronized OutputStream getOutputStream() throws IOException {
+		if(readOnly) throw new IOException("Read only");
+		if(freed) throw new IOException("Already freed");
+		releaseChunks();
+		return new ChunkedOutputStream();
+	}
+
+	public synchronized InputStream getInputStream() throws IOException {
+		if(freed) throw new IOException("Already freed");
+		return new ChunkedInputStream();
+	}
+
+	/**
+	 * Write the first length bytes of the bucket to a stream, straight from
+	 * the chunks.
+	 */
+	public synchronized void writeTo(OutputStream os, long length) throws IOException {
+		if(freed) throw new IOException("Already freed");
+		if(length > size) throw new IllegalArgumentException("Only "+size+" bytes, asked to write "+length);
+		for(int i=0;length > 0;i++) {
+			int len = (int) Math.min(chunkSize, length);
+			os.write(chunks.get(i), 0, len);
+			length -= len;
+		}
+	}
+
+	private class ChunkedOutputStream extends OutputStream {
+		private boolean closed;
+
+		@Override
+		public void write(int b) throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				int offset = (int) (size % chunkSize);
+				if(offset == 0) chunks.add(pool.allocate());
+				chunks.get(chunks.size()-1)[offset] = (byte) b;
+				size++;
+			}
+		}
+
+		@Override
+		public void write(byte[] buf, int off, int len) throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				while(len > 0) {
+					int offset = (int) (size % chunkSize);
+					if(offset == 0) chunks.add(pool.allocate());
+					int toCopy = Math.min(len, chunkSize - offset);
+					System.arraycopy(buf, off, chunks.get(chunks.size()-1), offset, toCopy);
+					off += toCopy;
+					len -= toCopy;
+					size += toCopy;
+				}
+			}
+		}
+
+		private void checkOpen() throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(freed) throw new IOException("Already freed");
+			if(readOnly) throw new IOException("Read only");
+		}
+
+		@Override
+		public void close() {
+			synchronized(ChunkedRAMBucket.this) {
+				closed = true;
+			}
+		}
+	}
+
+	private class ChunkedInputStream extends InputStream {
+		private long position;
+		private boolean closed;
+
+		@Override
+		public int read() throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				if(position >= size) return -1;
+				int b = chunks.get((int) (position / chunkSize))[(int) (position % chunkSize)] & 0xFF;
+				position++;
+				return b;
+			}
+		}
+
+		@Override
+		public int read(byte[] buf, int off, int len) throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				if(len == 0) return 0;
+				if(position >= size) return -1;
+				int read = 0;
+				while(len > 0 && position < size) {
+					int offset = (int) (position % chunkSize);
+					int toCopy = (int) Math.min(Math.min(len, chunkSize - offset), size - position);
+					System.arraycopy(chunks.get((int) (position / chunkSize)), offset, buf, off, toCopy);
+					off += toCopy;
+					len -= toCopy;
+					read += toCopy;
+					position += toCopy;
+				}
+				return read;
+			}
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				if(n <= 0) return 0;
+				long skipped = Math.min(n, size - position);
+				position += skipped;
+				return skipped;
+			}
+		}
+
+		@Override
+		public int available() throws IOException {
+			synchronized(ChunkedRAMBucket.this) {
+				checkOpen();
+				return (int) Math.min(Integer.MAX_VALUE, size - position);
+			}
+		}
+
+		private void checkOpen() throws IOException {
+			if(closed) throw new IOException("Already closed");
+			if(freed) throw new IOException("Bucket freed");
+		}
+
+		@Override
+		public void close() {
+			synchronized(ChunkedRAMBucket.this) {
+				closed = true;
+			}
+		}
+	}
+
+	private void releaseChunks() {
+		for(byte[] chunk : chunks)
+			pool.free(chunk);
+		chunks.clear();
+		size = 0;
+	}
+
+	public synchronized long size() {
+		return size;
+	}
+
+	public String getName() {
+		return "ChunkedRAMBucket";
+	}
+
+	public synchronized boolean isReadOnly() {
+		return readOnly;
+	}
+
+	public synchronized void setReadOnly() {
+		readOnly = true;
+	}
+
+	public synchronized void free() {
+		if(freed) return;
+		freed = true;
+		releaseChunks();
+	}
+
+	public Bucket createShadow() throws IOException {
+		return null;
+	}
+
+	public void storeTo(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -104,7 +104,23 @@ public class MultiReaderBucket {
 				}
 				return is.read(data);
 			}
-			
+
+			@Override
+			public final long skip(long n) throws IOException {
+				synchronized(MultiReaderBucket.this) {
+					if(freed || closed) throw new IOException("Already closed");
+				}
+				return is.skip(n);
+			}
+
+			@Override
+			public final int available() throws IOException {
+				synchronized(MultiReaderBucket.this) {
+					if(freed || closed) throw new IOException("Already closed");
+				}
+				return is.available();
+			}
+
 			@Override
 			public final void close() throws IOException {
 				is.close();
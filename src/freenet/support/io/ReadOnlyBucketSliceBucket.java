@@ -0,0 +1,139 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.db4o.ObjectContainer;
+
+import freenet.support.api.Bucket;
+
+/**
+ * A read-only window onto part of another bucket. Reading starts by skipping
+ * to the start of the slice, which is cheap for RAM and unencrypted file
+ * buckets. Freeing the slice frees the underlying bucket, so callers will
+ * usually give it a reader from a {@link MultiReaderBucket}.
+ */
+public class ReadOnlyBucketSliceBucket implements Bucket {
+
+	private final Bucket bucket;
+	private final long startAt;
+	private final long length;
+
+	public ReadOnlyBucketSliceBucket(Bucket bucket, long startAt, long length) {
+		if(startAt < 0 || length < 0) throw new IllegalArgumentException();
+		this.bucket = bucket;
+		this.startAt = startAt;
+		this.length = length;
+	}
+
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("Bucket is read-only");
+	}
+
+	public InputStream getInputStream() throws IOException {
+		return new SliceInputStream(bucket.getInputStream());
+	}
+
+	public String getName() {
+		return "ROBS:" + bucket.getName() + ':' + startAt + ':' + length;
+	}
+
+	public long size() {
+		return length;
+	}
+
+	public boolean isReadOnly() {
+		return true;
+	}
+
+	public void setReadOnly() {
+		// Do nothing
+	}
+
+	private class SliceInputStream extends InputStream {
+
+		private final InputStream is;
+		private long ptr; // relative to startAt
+
+		SliceInputStream(InputStream is) throws IOException {
+			this.is = is;
+			try {
+				long toSkip = startAt;
+				while(toSkip > 0) {
+					long skipped = is.skip(toSkip);
+					if(skipped <= 0) {
+						// Some streams refuse to skip, read through instead.
+						if(is.read() == -1)
+							throw new IOException("Bucket truncated? Slice starts at " + startAt + " for " + length + " bytes but only " + (startAt - toSkip) + " bytes");
+						skipped = 1;
+					}
+					toSkip -= skipped;
+				}
+			} catch (IOException e) {
+				Closer.close(is);
+				throw e;
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			if(ptr >= length)
+				return -1;
+			int x = is.read();
+			if(x != -1)
+				ptr++;
+			return x;
+		}
+
+		@Override
+		public int read(byte[] buf, int offset, int len) throws IOException {
+			if(ptr >= length)
+				return -1;
+			len = (int) Math.min(len, length - ptr);
+			int x = is.read(buf, offset, len);
+			if(x > 0)
+				ptr += x;
+			return x;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			if(n <= 0) return 0;
+			long skipped = is.skip(Math.min(n, length - ptr));
+			if(skipped > 0)
+				ptr += skipped;
+			return skipped;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return (int) Math.min(is.available(), length - ptr);
+		}
+
+		@Override
+		public void close() throws IOException {
+			is.close();
+		}
+	}
+
+	public void free() {
+		bucket.free();
+	}
+
+	public void storeTo(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	public void removeFrom(ObjectContainer container) {
+		throw new UnsupportedOperationException();
+	}
+
+	public Bucket createShadow() throws IOException {
+		return null;
+	}
+
+}
@@ -28,11 +28,11 @@ import freenet.support.api.BucketFactory;
  * Temporary Bucket Factory
  * 
  * Buckets created by this factory can be either:
- *	- ArrayBuckets
+ *	- ChunkedRAMBuckets, whose chunks come from a shared, recycled ChunkPool
  * OR
  *	- FileBuckets
  * 
- * ArrayBuckets are used if and only if:
+ * ChunkedRAMBuckets are used if and only if:
  *	1) there is enough room remaining on the pool (@see maxRamUsed and @see bytesInUse)
  *	2) the initial size is smaller than (@maxRAMBucketSize)
  * 
@@ -58,6 +58,9 @@ public class TempBucketFactory implements BucketFactory {
 	private long maxRAMBucketSize;
 	/** How much memory do we dedicate to the RAMBucketPool? (in bytes) */
 	private long maxRamUsed;
+	/** Chunks for the RAM buckets. Keeps freed chunks for reuse, as long as
+	 * they and the chunks in use fit in maxRamUsed. */
+	private final ChunkPool chunkPool;
 	
 	/** How old is a long-lived RAMBucket? */
 	private final int RAMBUCKET_MAX_AGE = 5*60*1000; // 5mins
@@ -128,40 +131,43 @@ public class TempBucketFactory implements BucketFactory {
 					// Nothing to migrate! We don't want to switch back to ram, do we?					
 					return;
 				toMigrate = currentBucket;
+				ChunkedRAMBucket ramBucket = (ChunkedRAMBucket) toMigrate;
 				Bucket tempFB = _makeFileBucket();
+				// Write the chunks straight to the file, no intermediate copy.
 				if(os != null) {
 					os.flush();
 					Closer.close(os);
 					// DO NOT INCREMENT THE osIndex HERE!
 					os = tempFB.getOutputStream();
 					if(currentSize > 0)
-						BucketTools.copyTo(toMigrate, os, currentSize);
+						ramBucket.writeTo(os, currentSize);
 				} else {
 					if(currentSize > 0) {
 						OutputStream temp = tempFB.getOutputStream();
-						BucketTools.copyTo(toMigrate, temp, currentSize);
+						ramBucket.writeTo(temp, currentSize);
 						temp.close();
 					}
 				}
 				if(toMigrate.isReadOnly())
 					tempFB.setReadOnly();
 				
-				closeInputStreams(false);
-				
 				currentBucket = tempFB;
 				// We need streams to be reset to point to the new bucket
+				// before the RAM bucket's chunks are given back to the pool
+				closeInputStreams(false);
 			}
 			if(logMINOR)
 				Logger.minor(this, "We have migrated "+toMigrate.hashCode());
 			
+			// Might have changed already so we can't rely on currentSize!
+			long migratedSize = toMigrate.size();
 			// We can free it on-thread as it's a rambucket
 			toMigrate.free();
-			// Might have changed already so we can't rely on currentSize!
-			_hasFreed(toMigrate.size());
+			_hasFreed(migratedSize);
 		}
 		
 		public synchronized final boolean isRAMBucket() {
-			return (currentBucket instanceof ArrayBucket);
+			return (currentBucket instanceof ChunkedRAMBucket);
 		}
 
 		public synchronized OutputStream getOutputStream() throws IOException {
@@ -406,6 +412,7 @@ public class TempBucketFactory implements BucketFactory {
 	public TempBucketFactory(Executor executor, FilenameGenerator filenameGenerator, long maxBucketSizeKeptInRam, long maxRamUsed, RandomSource strongPRNG, Random weakPRNG, boolean reallyEncrypt) {
 		this.filenameGenerator = filenameGenerator;
 		this.maxRamUsed = maxRamUsed;
+		this.chunkPool = new ChunkPool(ChunkPool.DEFAULT_CHUNK_SIZE, maxRamUsed);
 		this.maxRAMBucketSize = maxBucketSizeKeptInRam;
 		this.strongPRNG = strongPRNG;
 		this.weakPRNG = weakPRNG;
@@ -437,6 +444,7 @@ public class TempBucketFactory implements BucketFactory {
 	public synchronized void setMaxRamUsed(long size) {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 		maxRamUsed = size;
+		chunkPool.setMaxBytes(size);
 	}
 	
 	public synchronized long getMaxRamUsed() {
@@ -444,6 +452,11 @@ public class TempBucketFactory implements BucketFactory {
 		return maxRamUsed;
 	}
 	
+	/** The pool the RAM buckets' chunks come from, for statistics. */
+	public ChunkPool getChunkPool() {
+		return chunkPool;
+	}
+	
 	public synchronized void setMaxRAMBucketSize(long size) {
 		logMINOR = Logger.shouldLog(Logger.MINOR, this);
 		maxRAMBucketSize = size;
@@ -489,7 +502,7 @@ public class TempBucketFactory implements BucketFactory {
 		}
 		
 		// Do we want a RAMBucket or a FileBucket?
-		realBucket = (useRAMBucket ? new ArrayBucket() : _makeFileBucket());
+		realBucket = (useRAMBucket ? new ChunkedRAMBucket(chunkPool) : _makeFileBucket());
 		
 		TempBucket toReturn = new TempBucket(now, realBucket);
 		if(useRAMBucket) { // No need to consider them for migration if they can't be migrated
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts non-negative values in buckets whose sizes double: bucket 0 holds
+ * 0, bucket 1 holds 1, bucket 2 holds 2-3, bucket 3 holds 4-7 and so on, with
+ * everything too big for the last bucket counted in the last bucket. Good
+ * enough for latencies and queue lengths, where we care about the order of
+ * magnitude, and cheap enough to report to on every operation: report() takes
+ * no locks, so the statistics read back may be very slightly inconsistent
+ * with each other while reports are coming in.
+ */
+public class Histogram {
+
+	private final AtomicLongArray counts;
+	private final AtomicLong total;
+	private final AtomicLong sum;
+	private final AtomicLong max;
+
+	/**
+	 * @param buckets The number of buckets. The last bucket holds values of
+	 * 2^(buckets-2) and over.
+	 */
+	public Histogram(int buckets) {
+		if(buckets < 2) throw new IllegalArgumentException();
+		counts = new AtomicLongArray(buckets);
+		total = new AtomicLong();
+		sum = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	public void report(long value) {
+		if(value < 0) value = 0;
+		counts.incrementAndGet(bucket(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		while(true) {
+			long oldMax = max.get();
+			if(value <= oldMax || max.compareAndSet(oldMax, value)) break;
+		}
+	}
+
+	private int bucket(long value) {
+		int bucket = 64 - Long.numberOfLeadingZeros(value);
+		return Math.min(bucket, counts.length() - 1);
+	}
+
+	/** The smallest value which goes in the given bucket. */
+	public static long bucketStart(int bucket) {
+		return bucket == 0 ? 0 : 1L << (bucket - 1);
+	}
+
+	public long[] getCounts() {
+		long[] ret = new long[counts.length()];
+		for(int i=0;i<ret.length;i++)
+			ret[i] = counts.get(i);
+		return ret;
+	}
+
+	public long countReports() {
+		return total.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long t = total.get();
+		if(t == 0) return 0.0;
+		return ((double) sum.get()) / t;
+	}
+
+	/**
+	 * Estimate a percentile.
+	 * @param fraction Between 0.0 and 1.0, e.g. 0.99 for the 99th percentile.
+	 * @return The upper end of the bucket containing the percentile, or the
+	 * largest value seen if that is smaller; 0 if there are no reports.
+	 */
+	public long getPercentile(double fraction) {
+		long[] c = getCounts();
+		long t = 0;
+		for(long x : c) t += x;
+		if(t == 0) return 0;
+		long m = max.get();
+		long target = (long) Math.ceil(fraction * t);
+		if(target < 1) target = 1;
+		long seen = 0;
+		for(int i=0;i<c.length;i++) {
+			seen += c[i];
+			if(seen >= target) {
+				if(i == c.length - 1) return m;
+				return Math.min(m, bucketStart(i + 1) - 1);
+			}
+		}
+		return m;
+	}
+
+	@Override
+	public String toString() {
+		return "reports="+countReports()+" mean="+getMean()+" median="+getPercentile(0.5)+" p99="+getPercentile(0.99)+" max="+getMax();
+	}
+
+}
@@ -0,0 +1,155 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/**
+ * Test case for single pass extraction in {@link freenet.client.ArchiveManager}.
+ */
+public class ArchiveManagerTest extends TestCase {
+
+	private static final int FILES = 50;
+	private static final long MAX_FILE_SIZE = 4096;
+
+	private static class Callback implements ArchiveExtractCallback {
+		Bucket data;
+		boolean notInArchive;
+
+		public void gotBucket(Bucket data, ObjectContainer container, ClientContext context) {
+			assertNull(this.data);
+			this.data = data;
+		}
+
+		public void notInArchive(ObjectContainer container, ClientContext context) {
+			notInArchive = true;
+		}
+
+		public void onFailed(ArchiveRestartException e, ObjectContainer container, ClientContext context) {
+			fail(e.toString());
+		}
+
+		public void onFailed(ArchiveFailureException e, ObjectContainer container, ClientContext context) {
+			fail(e.toString());
+		}
+
+		public void removeFrom(ObjectContainer container) {
+			// Ignore
+		}
+	}
+
+	private static byte[] content(int i) {
+		StringBuilder sb = new StringBuilder();
+		for(int j=0;j<=i;j++)
+			sb.append("File ").append(i).append(" line ").append(j).append('\n');
+		return sb.toString().getBytes();
+	}
+
+	private static Bucket createZip() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		for(int i=0;i<FILES;i++) {
+			zos.putNextEntry(new ZipEntry("dir/file"+i+".html"));
+			zos.write(content(i));
+			zos.closeEntry();
+		}
+		zos.putNextEntry(new ZipEntry("big.bin"));
+		zos.write(new byte[(int) MAX_FILE_SIZE + 1]);
+		zos.closeEntry();
+		zos.close();
+		return new ArrayBucket(baos.toByteArray());
+	}
+
+	private ArchiveManager createManager(long maxCachedData) {
+		return new ArchiveManager(10, maxCachedData, MAX_FILE_SIZE, 1000, new ArrayBucketFactory());
+	}
+
+	private Callback extract(ArchiveManager manager, FreenetURI key, Bucket zip, String element) throws Exception {
+		ArchiveStoreContext ctx = manager.makeContext(key, ARCHIVE_TYPE.ZIP, null, false);
+		Callback cb = new Callback();
+		manager.extractToCache(key, ARCHIVE_TYPE.ZIP, null, zip, new ArchiveContext(1024 * 1024, 1), ctx, element, cb, null, null);
+		return cb;
+	}
+
+	public void testExtract() throws Exception {
+		ArchiveManager manager = createManager(1024 * 1024);
+		FreenetURI key = new FreenetURI("KSK@archive-test");
+		Callback cb = extract(manager, key, createZip(), "dir/file7.html");
+		assertFalse(cb.notInArchive);
+		assertTrue(Arrays.equals(content(7), BucketTools.toByteArray(cb.data)));
+
+		// Everything else is served from the stored copy.
+		for(int i=FILES-1;i>=0;i--) {
+			Bucket b = manager.getCached(key, "dir/file"+i+".html");
+			assertNotNull(b);
+			assertEquals(content(i).length, b.size());
+			assertTrue(Arrays.equals(content(i), BucketTools.toByteArray(b)));
+			b.free();
+		}
+		assertNull(manager.getCached(key, "missing.html"));
+		// Too big, so the caller fetches the archive again for it.
+		assertNull(manager.getCached(key, "big.bin"));
+
+		// No .metadata in the archive so we made one up.
+		Bucket metaBucket = manager.getCached(key, ArchiveManager.METADATA_NAME);
+		assertNotNull(metaBucket);
+		DataInputStream dis = new DataInputStream(metaBucket.getInputStream());
+		Metadata m = new Metadata(dis, metaBucket.size());
+		dis.close();
+		assertTrue(m.getDocument("dir").isSimpleManifest());
+	}
+
+	public void testNotInArchive() throws Exception {
+		ArchiveManager manager = createManager(1024 * 1024);
+		Callback cb = extract(manager, new FreenetURI("KSK@archive-test"), createZip(), "nothere.html");
+		assertTrue(cb.notInArchive);
+		assertNull(cb.data);
+	}
+
+	/**
+	 * A reader keeps its element readable after the archive has been
+	 * dropped from the cache.
+	 */
+	public void testDroppedWhileReading() throws Exception {
+		ArchiveManager manager = createManager(1024 * 1024);
+		FreenetURI key = new FreenetURI("KSK@archive-test");
+		Bucket zip = createZip();
+		extract(manager, key, zip, null);
+		Bucket b = manager.getCached(key, "dir/file3.html");
+		// Extracting again drops the old copy.
+		extract(manager, key, zip, null);
+		assertTrue(Arrays.equals(content(3), BucketTools.toByteArray(b)));
+		b.free();
+	}
+
+	/** Copies over maxCachedData are dropped, oldest first. */
+	public void testLimit() throws Exception {
+		ArchiveManager manager = createManager(40 * 1024);
+		Bucket zip = createZip();
+		FreenetURI first = new FreenetURI("KSK@archive-1");
+		FreenetURI second = new FreenetURI("KSK@archive-2");
+		extract(manager, first, zip, null);
+		assertNotNull(manager.getCached(first, "dir/file1.html"));
+		extract(manager, second, zip, null);
+		assertNull(manager.getCached(first, "dir/file1.html"));
+		assertNotNull(manager.getCached(second, "dir/file1.html"));
+	}
+}
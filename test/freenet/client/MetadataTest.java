@@ -0,0 +1,94 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.DataInputStream;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * Test case for lazy parsing and streamed writing of manifests in
+ * {@link freenet.client.Metadata}.
+ */
+public class MetadataTest extends TestCase {
+
+	private static final int FILES = 1000;
+
+	private Metadata createManifest() throws Exception {
+		Metadata.SimpleManifestComposer composer = new Metadata.SimpleManifestComposer();
+		for(int i=0;i<FILES;i++)
+			composer.addItem("file"+i+".html", redirect(i));
+		Metadata.SimpleManifestComposer sub = new Metadata.SimpleManifestComposer();
+		sub.addItem("image.png", redirect(FILES));
+		composer.addItem("images", sub.getMetadata());
+		composer.addItem("", redirect(0));
+		return composer.getMetadata();
+	}
+
+	private Metadata redirect(int i) throws Exception {
+		return new Metadata(Metadata.SIMPLE_REDIRECT, null, null, new FreenetURI("KSK@test-"+i), null);
+	}
+
+	private Metadata roundTrip(Metadata m) throws Exception {
+		return Metadata.construct(m.writeToByteArray());
+	}
+
+	public void testGetDocument() throws Exception {
+		Metadata m = roundTrip(createManifest());
+		assertTrue(m.isSimpleManifest());
+		assertEquals(FILES + 2, m.countDocuments());
+		Metadata doc = m.getDocument("file123.html");
+		assertEquals("KSK@test-123", doc.getSingleTarget().toString());
+		assertSame(doc, m.getDocument("file123.html"));
+		assertNull(m.getDocument("missing.html"));
+		assertEquals("KSK@test-0", m.getDefaultDocument().getSingleTarget().toString());
+		Metadata images = m.getDocument("images");
+		assertTrue(images.isSimpleManifest());
+		assertEquals("KSK@test-"+FILES, images.getDocument("image.png").getSingleTarget().toString());
+	}
+
+	public void testGrabDocument() throws Exception {
+		Metadata m = roundTrip(createManifest());
+		assertNotNull(m.grabDocument("file5.html"));
+		assertNull(m.grabDocument("file5.html"));
+		assertNull(m.getDocument("file5.html"));
+		assertEquals(FILES + 1, m.countDocuments());
+	}
+
+	public void testGetDocuments() throws Exception {
+		Metadata m = roundTrip(createManifest());
+		m.getDocument("file7.html");
+		HashMap<String, Metadata> docs = m.getDocuments();
+		assertEquals(FILES + 1, docs.size());
+		assertEquals("KSK@test-999", docs.get("file999.html").getSingleTarget().toString());
+	}
+
+	/**
+	 * Writing a partly parsed manifest must give the same manifest back,
+	 * both through a byte array and streamed into a bucket.
+	 */
+	public void testRewrite() throws Exception {
+		Metadata m = roundTrip(createManifest());
+		m.getDocument("file1.html");
+		m.getDocument("images");
+		Metadata copy = roundTrip(m);
+		assertEquals(FILES + 2, copy.countDocuments());
+		for(int i=0;i<FILES;i++)
+			assertEquals("KSK@test-"+i, copy.getDocument("file"+i+".html").getSingleTarget().toString());
+
+		Bucket bucket = m.toBucket(new ArrayBucketFactory());
+		assertTrue(bucket.isReadOnly());
+		byte[] data = m.writeToByteArray();
+		assertEquals(data.length, bucket.size());
+		DataInputStream dis = new DataInputStream(bucket.getInputStream());
+		Metadata fromBucket = new Metadata(dis, bucket.size());
+		dis.close();
+		assertEquals(FILES + 2, fromBucket.countDocuments());
+		assertEquals("KSK@test-"+FILES, fromBucket.getDocument("images").getDocument("image.png").getSingleTarget().toString());
+	}
+}
@@ -0,0 +1,147 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.keys.CHKBlock;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.PooledExecutor;
+import freenet.support.io.ArrayBucket;
+
+/**
+ * Test case for {@link freenet.client.async.BackgroundBlockEncoder} batches.
+ */
+public class BackgroundBlockEncoderTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private BackgroundBlockEncoder createEncoder(int threads) {
+		BackgroundBlockEncoder encoder = new BackgroundBlockEncoder(threads);
+		PooledExecutor executor = new PooledExecutor();
+		executor.start();
+		encoder.start(executor);
+		return encoder;
+	}
+
+	/**
+	 * Blocks which take random times to encode must still be delivered in
+	 * order, on the calling thread, with failures in their place.
+	 */
+	public void testOrderedCompletion() {
+		BackgroundBlockEncoder encoder = createEncoder(4);
+		final Thread caller = Thread.currentThread();
+		final Random random = new Random(1234);
+		final int[] next = new int[1];
+		final boolean[] wrongThread = new boolean[1];
+		encoder.encodeInOrder(50, new BackgroundBlockEncoder.BatchEncoder<Integer>() {
+
+			public Integer encode(int i) throws Exception {
+				int sleep;
+				synchronized(random) {
+					sleep = random.nextInt(5);
+				}
+				Thread.sleep(sleep);
+				if(i % 10 == 9) throw new IOException("Failed "+i);
+				return i * 2;
+			}
+
+			public void onEncoded(int i, Integer result) {
+				if(Thread.currentThread() != caller) wrongThread[0] = true;
+				assertEquals(next[0]++, i);
+				assertEquals(i * 2, result.intValue());
+			}
+
+			public void onFailure(int i, Throwable t) {
+				if(Thread.currentThread() != caller) wrongThread[0] = true;
+				assertEquals(next[0]++, i);
+				assertEquals(9, i % 10);
+				assertTrue(t instanceof IOException);
+			}
+
+		});
+		assertEquals(50, next[0]);
+		assertFalse(wrongThread[0]);
+	}
+
+	/**
+	 * Batches started from every worker at once must not deadlock.
+	 */
+	public void testNestedBatches() throws InterruptedException {
+		final BackgroundBlockEncoder encoder = createEncoder(2);
+		final int[] total = new int[1];
+		final BackgroundBlockEncoder.BatchEncoder<Integer> inner = new BackgroundBlockEncoder.BatchEncoder<Integer>() {
+
+			public Integer encode(int i) {
+				return i;
+			}
+
+			public void onEncoded(int i, Integer result) {
+				synchronized(total) {
+					total[0] += result;
+				}
+			}
+
+			public void onFailure(int i, Throwable t) {
+				fail(t.toString());
+			}
+
+		};
+		encoder.encodeInOrder(8, new BackgroundBlockEncoder.BatchEncoder<Integer>() {
+
+			public Integer encode(int i) {
+				encoder.encodeInOrder(10, inner);
+				return i;
+			}
+
+			public void onEncoded(int i, Integer result) {
+				// Ignore
+			}
+
+			public void onFailure(int i, Throwable t) {
+				fail(t.toString());
+			}
+
+		});
+		assertEquals(8 * 45, total[0]);
+	}
+
+	/**
+	 * CHK blocks encoded per second, network excluded, through a pool of 1 up
+	 * to 8 workers.
+	 */
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		final int blocks = 2048;
+		final byte[][] data = new byte[blocks][CHKBlock.DATA_LENGTH];
+		Random random = new Random(5678);
+		for(byte[] buf : data)
+			random.nextBytes(buf);
+		for(int threads = 1; threads <= 8; threads *= 2) {
+			BackgroundBlockEncoder encoder = createEncoder(threads);
+			final ClientCHK[] keys = new ClientCHK[blocks];
+			long start = System.currentTimeMillis();
+			encoder.encodeInOrder(blocks, new BackgroundBlockEncoder.BatchEncoder<ClientCHK>() {
+
+				public ClientCHK encode(int i) throws Exception {
+					return ClientCHKBlock.encode(new ArrayBucket(data[i]), false, true, (short)-1, CHKBlock.DATA_LENGTH).getClientKey();
+				}
+
+				public void onEncoded(int i, ClientCHK key) {
+					keys[i] = key;
+				}
+
+				public void onFailure(int i, Throwable t) {
+					fail(t.toString());
+				}
+
+			});
+			long time = Math.max(1, System.currentTimeMillis() - start);
+			System.out.println(threads+" workers: "+(blocks * 1000L / time)+" blocks/sec");
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+
+/**
+ * Test case for {@link freenet.client.async.RequestCooldownQueue}.
+ */
+public class RequestCooldownQueueTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static final long COOLDOWN = 1000;
+
+	private static Key[] makeKeys(int count) {
+		Random random = new DummyRandomSource();
+		Key[] keys = new Key[count];
+		for(int i=0;i<count;i++) {
+			byte[] routingKey = new byte[32];
+			random.nextBytes(routingKey);
+			keys[i] = new NodeCHK(routingKey, (byte) 2);
+		}
+		return keys;
+	}
+
+	public void testDrainInOrder() {
+		RequestCooldownQueue queue = new RequestCooldownQueue(COOLDOWN);
+		Key[] keys = makeKeys(10);
+		long last = 0;
+		for(Key key : keys)
+			last = queue.add(key, null, null);
+		long first = last - COOLDOWN;
+		// Nothing due yet, and we don't care about the wakeup time.
+		assertNull(queue.removeKeyBefore(first - 1, 0, null, 100));
+		Object ret = queue.removeKeyBefore(first - 1, 2 * COOLDOWN, null, 100);
+		assertTrue(ret instanceof Long);
+		assertTrue((Long) ret >= first);
+		Key[] drained = (Key[]) queue.removeKeyBefore(last, 0, null, 3);
+		assertEquals(3, drained.length);
+		for(int i=0;i<3;i++)
+			assertSame(keys[i], drained[i]);
+		drained = (Key[]) queue.removeKeyBefore(last, 0, null, 100);
+		assertEquals(7, drained.length);
+		for(int i=0;i<7;i++)
+			assertSame(keys[i+3], drained[i]);
+		assertNull(queue.removeKeyBefore(Long.MAX_VALUE / 2, 0, null, 100));
+		assertEquals(0, queue.size());
+	}
+
+	public void testRemoveKey() {
+		RequestCooldownQueue queue = new RequestCooldownQueue(COOLDOWN);
+		Key[] keys = makeKeys(5);
+		long[] times = new long[keys.length];
+		for(int i=0;i<keys.length;i++)
+			times[i] = queue.add(keys[i], null, null);
+		// The same key twice.
+		long again = queue.add(keys[2], null, null);
+		assertFalse(queue.removeKey(keys[2], null, 0, null));
+		assertFalse(queue.removeKey(makeKeys(1)[0], null, times[2], null));
+		assertTrue(queue.removeKey(keys[0], null, times[0], null));
+		assertTrue(queue.removeKey(keys[2], null, again, null));
+		assertTrue(queue.removeKey(keys[2], null, times[2], null));
+		assertFalse(queue.removeKey(keys[2], null, times[2], null));
+		assertTrue(queue.removeKey(keys[4], null, times[4], null));
+		assertEquals(2, queue.size());
+		Key[] drained = (Key[]) queue.removeKeyBefore(again, 0, null, 100);
+		assertEquals(2, drained.length);
+		assertSame(keys[1], drained[0]);
+		assertSame(keys[3], drained[1]);
+		assertEquals(0, queue.size());
+	}
+
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		final int count = 1000 * 1000;
+		Key[] keys = makeKeys(count);
+		long[] times = new long[count];
+		RequestCooldownQueue queue = new RequestCooldownQueue(COOLDOWN);
+		long start = System.currentTimeMillis();
+		for(int i=0;i<count;i++)
+			times[i] = queue.add(keys[i], null, null);
+		long end = System.currentTimeMillis();
+		System.out.println("Add: " + (end - start) * 1000000 / count + "ns per key");
+		start = System.currentTimeMillis();
+		for(int i=0;i<count;i+=2)
+			assertTrue(queue.removeKey(keys[i], null, times[i], null));
+		end = System.currentTimeMillis();
+		System.out.println("Remove from the middle: " + (end - start) * 1000000 / (count / 2) + "ns per key");
+		start = System.currentTimeMillis();
+		int drained = 0;
+		while(true) {
+			Object ret = queue.removeKeyBefore(times[count-1], 0, null, 20);
+			if(ret == null) break;
+			drained += ((Key[]) ret).length;
+		}
+		end = System.currentTimeMillis();
+		assertEquals(count / 2, drained);
+		System.out.println("Drain: " + (end - start) * 1000000 / drained + "ns per key");
+	}
+
+}
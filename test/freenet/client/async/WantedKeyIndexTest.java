@@ -0,0 +1,230 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.Key;
+import freenet.keys.KeyBlock;
+import freenet.keys.NodeCHK;
+import freenet.node.SendableGet;
+
+/**
+ * Test case for {@link freenet.client.async.WantedKeyIndex}, and for finding
+ * the KeyListener's which want a block in ClientRequestSchedulerBase.
+ */
+public class WantedKeyIndexTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	/** Wants a fixed set of keys, and counts how often it is asked. */
+	private static class TestListener implements KeyListener {
+		private final HashSet<Key> keys;
+		private final boolean indexed;
+		int asked;
+		int found;
+
+		TestListener(Key[] keys, boolean indexed) {
+			this.keys = new HashSet<Key>();
+			for(Key key : keys)
+				this.keys.add(key);
+			this.indexed = indexed;
+		}
+
+		public int[] getWantedKeyFingerprints(KeySalter salter) {
+			if(!indexed) return null;
+			int[] ret = new int[keys.size()];
+			int i = 0;
+			for(Key key : keys)
+				ret[i++] = WantedKeyIndex.fingerprint(salter.saltKey(key));
+			return ret;
+		}
+
+		public boolean probablyWantKey(Key key, byte[] saltedKey) {
+			asked++;
+			return keys.contains(key);
+		}
+
+		public short definitelyWantKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return keys.contains(key) ? (short) 1 : -1;
+		}
+
+		public SendableGet[] getRequestsForKey(Key key, byte[] saltedKey, ObjectContainer container, ClientContext context) {
+			return null;
+		}
+
+		public boolean handleBlock(Key key, byte[] saltedKey, KeyBlock found, ObjectContainer container, ClientContext context) {
+			if(!keys.remove(key)) return false;
+			this.found++;
+			return true;
+		}
+
+		public boolean persistent() {
+			return false;
+		}
+
+		public short getPriorityClass(ObjectContainer container) {
+			return 1;
+		}
+
+		public boolean dontCache() {
+			return false;
+		}
+
+		public long countKeys() {
+			return keys.size();
+		}
+
+		public HasKeyListener getHasKeyListener() {
+			return null;
+		}
+
+		public void onRemove() {
+			// Ignore
+		}
+
+		public boolean isEmpty() {
+			return keys.isEmpty();
+		}
+
+		public boolean isSSK() {
+			return false;
+		}
+	}
+
+	private static Key[] makeKeys(Random random, int count) {
+		Key[] keys = new Key[count];
+		for(int i=0;i<count;i++) {
+			byte[] routingKey = new byte[32];
+			random.nextBytes(routingKey);
+			keys[i] = new NodeCHK(routingKey, (byte) 2);
+		}
+		return keys;
+	}
+
+	private static ClientRequestSchedulerBase makeScheduler() {
+		return new ClientRequestSchedulerNonPersistent(null, false, false, new DummyRandomSource());
+	}
+
+	public void testIndex() {
+		WantedKeyIndex index = new WantedKeyIndex();
+		TestListener[] listeners = new TestListener[1000];
+		for(int i=0;i<listeners.length;i++) {
+			listeners[i] = new TestListener(new Key[0], true);
+			assertTrue(index.add(listeners[i], new int[] { i, i + 1, 1000000 + i }));
+		}
+		assertFalse(index.add(listeners[0], new int[] { 0 }));
+		assertEquals(1000, index.size());
+		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
+		index.get(10, matches);
+		assertEquals(2, matches.size());
+		assertTrue(matches.contains(listeners[9]));
+		assertTrue(matches.contains(listeners[10]));
+		matches.clear();
+		index.get(-1, matches);
+		assertTrue(matches.isEmpty());
+		// Remove most of them, forcing a rebuild.
+		for(int i=0;i<900;i++)
+			assertTrue(index.remove(listeners[i]));
+		assertFalse(index.remove(listeners[0]));
+		assertFalse(index.contains(listeners[0]));
+		assertEquals(100, index.size());
+		index.get(10, matches);
+		assertTrue(matches.isEmpty());
+		index.get(1000950, matches);
+		assertEquals(1, matches.size());
+		assertSame(listeners[950], matches.get(0));
+		matches.clear();
+		index.get(950, matches);
+		assertEquals(2, matches.size());
+		for(int i=900;i<1000;i++)
+			assertTrue(index.remove(listeners[i]));
+		assertEquals(0, index.size());
+		assertTrue(index.add(listeners[0], new int[] { 5 }));
+		index.get(5, matches = new ArrayList<KeyListener>());
+		assertEquals(1, matches.size());
+	}
+
+	/** Each listener is only asked about the keys it may want, except those
+	 * which can't list their keys, which are asked about everything. */
+	public void testTripPendingKey() {
+		Random random = new Random(1234);
+		ClientRequestSchedulerBase sched = makeScheduler();
+		TestListener[] listeners = new TestListener[200];
+		Key[][] keys = new Key[listeners.length][];
+		for(int i=0;i<listeners.length;i++) {
+			keys[i] = makeKeys(random, 10);
+			listeners[i] = new TestListener(keys[i], i != listeners.length - 1);
+			sched.addPendingKeys(listeners[i]);
+		}
+		assertFalse(sched.tripPendingKey(makeKeys(random, 1)[0], null, null, null));
+		for(int i=0;i<listeners.length;i++) {
+			for(Key key : keys[i])
+				assertTrue(sched.tripPendingKey(key, null, null, null));
+			assertEquals(10, listeners[i].found);
+			// Finished, so removed.
+			assertFalse(sched.anyProbablyWantKey(keys[i][0], null));
+		}
+		// The unindexed one is asked about every key until it has them all.
+		int last = listeners.length - 1;
+		assertEquals(1 + last * 11 + 10, listeners[last].asked);
+		for(int i=0;i<last;i++)
+			assertTrue(listeners[i].asked < 20);
+		assertEquals(0, sched.countWaitingKeys(null));
+	}
+
+	public void testRemovePendingKeys() {
+		Random random = new Random(1234);
+		ClientRequestSchedulerBase sched = makeScheduler();
+		Key[] keys = makeKeys(random, 2);
+		TestListener indexed = new TestListener(new Key[] { keys[0] }, true);
+		TestListener unindexed = new TestListener(new Key[] { keys[1] }, false);
+		sched.addPendingKeys(indexed);
+		sched.addPendingKeys(unindexed);
+		assertTrue(sched.anyProbablyWantKey(keys[0], null));
+		assertTrue(sched.anyProbablyWantKey(keys[1], null));
+		assertTrue(sched.removePendingKeys(indexed));
+		assertTrue(sched.removePendingKeys(unindexed));
+		assertFalse(sched.anyProbablyWantKey(keys[0], null));
+		assertFalse(sched.anyProbablyWantKey(keys[1], null));
+		assertFalse(sched.removePendingKeys(indexed));
+	}
+
+	/** Blocks arriving for 10,000 splitfile-sized listeners. */
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		Random random = new Random(1234);
+		ClientRequestSchedulerBase sched = makeScheduler();
+		int count = 10000;
+		Key[][] keys = new Key[count][];
+		for(int i=0;i<count;i++) {
+			keys[i] = makeKeys(random, 100);
+			sched.addPendingKeys(new TestListener(keys[i], true));
+		}
+		Key[] unwanted = makeKeys(random, 100000);
+		long start = System.currentTimeMillis();
+		for(Key key : unwanted)
+			sched.anyProbablyWantKey(key, null);
+		long end = System.currentTimeMillis();
+		System.out.println("Unwanted blocks: " + (end - start) * 1000000 / unwanted.length + "ns per block");
+		start = System.currentTimeMillis();
+		int trips = 0;
+		for(int i=0;i<count;i++) {
+			for(int j=0;j<10;j++) {
+				assertTrue(sched.tripPendingKey(keys[i][j], null, null, null));
+				trips++;
+			}
+		}
+		end = System.currentTimeMillis();
+		System.out.println("Wanted blocks: " + (end - start) * 1000000 / trips + "ns per block");
+	}
+
+}
@@ -3,12 +3,17 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.clients.http.filter;
 
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
 import java.net.URI;
+import java.util.Random;
 
 import junit.framework.TestCase;
+import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
 import freenet.support.io.ArrayBucket;
 import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
 
 /**
  * A simple meta-test to track regressions of the content-filter
@@ -16,6 +21,9 @@ import freenet.support.io.ArrayBucketFactory;
  * @author Florent Daigni&egrave;re &lt;nextgens@freenetproject.org&gt;
  */
 public class ContentFilterTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+	
 	private static final String BASE_URI_PROTOCOL = "http";
 	private static final String BASE_URI_CONTENT = "localhost:8888";
 	private static final String BASE_URI = BASE_URI_PROTOCOL+"://"+BASE_URI_CONTENT+'/';
@@ -94,6 +102,117 @@ public class ContentFilterTest extends TestCase {
 		assertEquals(WHITELIST_STATIC_CONTENT, HTMLFilter(WHITELIST_STATIC_CONTENT));
 	}
 		
+	/**
+	 * Filtering to a stream must give exactly what filtering to a bucket
+	 * gives, whatever the charset.
+	 */
+	public void testStreamingFilter() throws Exception {
+		Random random = new Random(1234);
+		String[] charsets = new String[] { "UTF-8", "ISO-8859-1", "UTF-16" };
+		for(String charset : charsets) {
+			String page = createPage(random, 200, charset);
+			Bucket data = new ArrayBucket(page.getBytes(charset));
+			URI baseURI = new URI(BASE_URI);
+			ContentFilter.StreamingFilter filter = ContentFilter.getStreamingFilter(data, "text/html");
+			assertNotNull(filter);
+			assertEquals("text/html; charset="+charset, filter.type);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			filter.filter(data, baos, baseURI, null);
+			ContentFilter.FilterOutput fo = ContentFilter.filter(data, bf, "text/html", baseURI, null);
+			assertEquals(fo.type, filter.type);
+			assertEquals(new String(BucketTools.toByteArray(fo.data), charset), new String(baos.toByteArray(), charset));
+			assertTrue(baos.size() > page.length() / 2);
+		}
+		// Only HTML can be streamed at present.
+		assertNull(ContentFilter.getStreamingFilter(new ArrayBucket(new byte[10]), "image/png"));
+	}
+	
+	/** A charset declared after the part we look at is ignored. */
+	public void testCharsetScanLength() throws Exception {
+		StringBuilder sb = new StringBuilder("<html><head><title>Test</title>");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"></head><body>");
+		String early = sb.toString() + "</body></html>";
+		assertEquals("text/html; charset=UTF-8", ContentFilter.getStreamingFilter(new ArrayBucket(early.getBytes("UTF-8")), "text/html").type);
+		sb = new StringBuilder("<html><head><title>Test</title></head><body>");
+		while(sb.length() < ContentFilter.CHARSET_SCAN_LENGTH)
+			sb.append("<p>Padding padding padding.</p>\n");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=UTF-8\"></body></html>");
+		String late = sb.toString();
+		assertEquals("text/html; charset=iso-8859-1", ContentFilter.getStreamingFilter(new ArrayBucket(late.getBytes("UTF-8")), "text/html").type);
+	}
+	
+	private static String createPage(Random random, int paragraphs, String charset) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("<html><head><title>Test page</title>");
+		sb.append("<meta http-equiv=\"Content-Type\" content=\"text/html; charset=").append(charset).append("\">");
+		sb.append("<style type=\"text/css\">p { color: black; }</style></head><body>\n");
+		for(int i=0;i<paragraphs;i++) {
+			sb.append("<h2 class=\"heading\">Section ").append(i).append("</h2>\n<p>");
+			for(int j=0;j<20;j++) {
+				sb.append("word").append(random.nextInt(1000)).append(' ');
+				if(random.nextInt(10) == 0)
+					sb.append("<a href=\"/KSK@page-").append(random.nextInt(100)).append(".html\">link</a> ");
+				if(random.nextInt(20) == 0)
+					sb.append("<img src=\"/CHK@image-").append(random.nextInt(100)).append(".png\" alt=\"image\"> ");
+				if(random.nextInt(30) == 0)
+					sb.append("<!-- comment ").append(j).append(" --> ");
+			}
+			sb.append("\u00e9</p>\n");
+		}
+		sb.append("</body></html>\n");
+		return sb.toString();
+	}
+	
+	/** Records when the first byte arrives. */
+	private static class FirstByteOutputStream extends OutputStream {
+		long firstByteTime;
+		long bytes;
+		
+		@Override
+		public void write(int b) {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] buf, int offset, int length) {
+			if(bytes == 0 && length > 0) firstByteTime = System.nanoTime();
+			bytes += length;
+		}
+	}
+	
+	/**
+	 * Time to first byte and throughput, filtering a corpus of generated
+	 * pages of 10KB to 2MB, to a stream and to a bucket.
+	 */
+	public void testBenchmark() throws Exception {
+		if(!BENCHMARK) return;
+		Random random = new Random(5678);
+		URI baseURI = new URI(BASE_URI);
+		int[] sizes = new int[] { 10, 100, 1000, 10000 };
+		for(int paragraphs : sizes) {
+			Bucket data = new ArrayBucket(createPage(random, paragraphs, "UTF-8").getBytes("UTF-8"));
+			int runs = Math.max(3, 2000 / paragraphs);
+			long streamFirst = 0, streamTotal = 0, bucketTotal = 0;
+			for(int i=0;i<runs + 1;i++) {
+				long start = System.nanoTime();
+				ContentFilter.StreamingFilter filter = ContentFilter.getStreamingFilter(data, "text/html");
+				FirstByteOutputStream os = new FirstByteOutputStream();
+				filter.filter(data, os, baseURI, null);
+				long end = System.nanoTime();
+				long bucketStart = System.nanoTime();
+				ContentFilter.FilterOutput fo = ContentFilter.filter(data, bf, "text/html", baseURI, null);
+				long bucketEnd = System.nanoTime();
+				fo.data.free();
+				if(i == 0) continue; // Warm up
+				streamFirst += os.firstByteTime - start;
+				streamTotal += end - start;
+				bucketTotal += bucketEnd - bucketStart;
+			}
+			System.out.println((data.size() / 1024)+"KB: first byte after "+(streamFirst / runs / 1000)+"us streamed, "+(bucketTotal / runs / 1000)+"us via bucket; "+
+					(data.size() * runs * 1000L / Math.max(1, streamTotal))+" MB/s streamed");
+		}
+	}
+	
 	private String HTMLFilter(String data) throws Exception {
 		String typeName = "text/html";
 		URI baseURI = new URI(BASE_URI);
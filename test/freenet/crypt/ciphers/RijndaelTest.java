@@ -14,6 +14,9 @@ import freenet.support.HexUtil;
  * @author sdiz
  */
 public class RijndaelTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
 	private final byte[] PLAINTXT128_1 = HexUtil.hexToBytes("0123456789abcdef1123456789abcdef");
 	private final byte[] KEY128_1 = HexUtil.hexToBytes("deadbeefcafebabe0123456789abcdef");
 	private final byte[] CIPHER128_1 = HexUtil.hexToBytes("8c5b8c04805c0e07dd62b381730d5d10");
@@ -1083,4 +1086,116 @@ public class RijndaelTest extends TestCase {
 			}
 		}
 	}
+
+	/**
+	 * 128-bit blocks may be delegated to the JCE; check it agrees with the
+	 * pure-Java implementation for every key size.
+	 */
+	public void testJCEMatchesPureJava() throws Exception {
+		final int[] SIZE = new int[] { 128, 192, 256 };
+
+		for (int k = 0; k < SIZE.length; k++) {
+			Rijndael aes = new Rijndael(SIZE[k], 128);
+			byte[] key = new byte[SIZE[k] / 8];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			Object sessionKey = Rijndael_Algorithm.makeKey(key, 16);
+
+			for (int i = 0; i < 256; i++) {
+				byte[] plain = new byte[16];
+				rand.nextBytes(plain);
+				byte[] cipher = new byte[16];
+				aes.encipher(plain, cipher);
+				byte[] expected = new byte[16];
+				Rijndael_Algorithm.blockEncrypt(plain, expected, 0, sessionKey, 16);
+				assertTrue("KEYSIZE=" + SIZE[k] + " JCE=" + aes.usesJCE(), Arrays.equals(expected, cipher));
+				byte[] plain2 = new byte[16];
+				aes.decipher(cipher, plain2);
+				assertTrue(Arrays.equals(plain, plain2));
+			}
+		}
+	}
+
+	/**
+	 * A single instance shared between threads must give the same results as
+	 * when used from one thread.
+	 */
+	public void testConcurrent() throws Exception {
+		final int[] SIZE = new int[] { 128, 256 };
+
+		for (int k = 0; k < SIZE.length; k++) {
+			final int size = SIZE[k];
+			final Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			final byte[][] plain = new byte[1024][size / 8];
+			final byte[][] expected = new byte[plain.length][size / 8];
+			for (int i = 0; i < plain.length; i++) {
+				rand.nextBytes(plain[i]);
+				aes.encipher(plain[i], expected[i]);
+			}
+			final boolean[] failed = new boolean[1];
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; i++) {
+				threads[i] = new Thread() {
+					@Override
+					public void run() {
+						byte[] cipher = new byte[size / 8];
+						byte[] plain2 = new byte[size / 8];
+						for (int round = 0; round < 20; round++)
+							for (int j = 0; j < plain.length; j++) {
+								aes.encipher(plain[j], cipher);
+								aes.decipher(cipher, plain2);
+								if (!Arrays.equals(cipher, expected[j]) || !Arrays.equals(plain2, plain[j]))
+									failed[0] = true;
+							}
+					}
+				};
+				threads[i].start();
+			}
+			for (Thread t : threads)
+				t.join();
+			assertFalse("BLOCKSIZE=" + size, failed[0]);
+		}
+	}
+
+	/**
+	 * Blocks per second through one shared instance for both block sizes, at
+	 * 1 to 16 threads.
+	 */
+	public void testBenchmark() throws Exception {
+		if (!BENCHMARK) return;
+		final int[] SIZE = new int[] { 128, 256 };
+		final int blocksPerThread = 1000000;
+
+		for (int k = 0; k < SIZE.length; k++) {
+			final int size = SIZE[k];
+			final Rijndael aes = new Rijndael(256, size);
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			aes.initialize(key);
+			for (int threadCount = 1; threadCount <= 16; threadCount *= 2) {
+				Thread[] threads = new Thread[threadCount];
+				for (int i = 0; i < threads.length; i++) {
+					threads[i] = new Thread() {
+						@Override
+						public void run() {
+							byte[] block = new byte[size / 8];
+							for (int j = 0; j < blocksPerThread; j++)
+								aes.encipher(block, block);
+						}
+					};
+				}
+				long start = System.currentTimeMillis();
+				for (Thread t : threads)
+					t.start();
+				for (Thread t : threads)
+					t.join();
+				long time = Math.max(1, System.currentTimeMillis() - start);
+				System.out.println("Rijndael(256," + size + ") JCE=" + aes.usesJCE() + " " + threadCount + " threads: "
+						+ ((long) blocksPerThread * threadCount * 1000 / time) + " blocks/sec");
+			}
+		}
+	}
 }
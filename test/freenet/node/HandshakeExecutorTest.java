@@ -0,0 +1,175 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+
+public class HandshakeExecutorTest extends TestCase {
+
+	/** Keeps the jobs it is given until we run them. */
+	private static class StubExecutor implements Executor {
+		final ArrayList<Runnable> jobs = new ArrayList<Runnable>();
+
+		public void execute(Runnable job, String jobName) {
+			jobs.add(job);
+		}
+
+		public void execute(Runnable job, String jobName, boolean fromTicker) {
+			jobs.add(job);
+		}
+
+		public int[] waitingThreads() {
+			return new int[0];
+		}
+
+		public int[] runningThreads() {
+			return new int[0];
+		}
+
+		public int getWaitingThreadsCount() {
+			return 0;
+		}
+
+		void runAll() {
+			while(!jobs.isEmpty())
+				jobs.remove(0).run();
+		}
+	}
+
+	/** Runs each job on a new thread. */
+	private static class ThreadExecutor extends StubExecutor {
+		@Override
+		public void execute(Runnable job, String jobName) {
+			new Thread(job, jobName).start();
+		}
+	}
+
+	private static class Handshake implements Runnable {
+		/** Milliseconds of CPU to burn */
+		final long busyTime;
+		boolean ran;
+
+		Handshake(long busyTime) {
+			this.busyTime = busyTime;
+		}
+
+		public void run() {
+			long end = System.currentTimeMillis() + busyTime;
+			while(System.currentTimeMillis() < end) {
+				// Busy wait.
+			}
+			ran = true;
+		}
+	}
+
+	public void testQueueFull() {
+		StubExecutor executor = new StubExecutor();
+		HandshakeExecutor handshakes = new HandshakeExecutor(executor, 2, 3, Long.MAX_VALUE);
+		Handshake[] jobs = new Handshake[5];
+		for(int i=0;i<jobs.length;i++) {
+			jobs[i] = new Handshake(0);
+			assertEquals(i < 3, handshakes.execute(jobs[i], null));
+		}
+		assertEquals(2, handshakes.countDroppedQueueFull());
+		assertEquals(3, handshakes.queued());
+		// Only maxThreads threads are asked for.
+		assertEquals(2, executor.jobs.size());
+		assertEquals(2, handshakes.threads());
+		executor.runAll();
+		assertEquals(3, handshakes.countCompleted());
+		assertEquals(0, handshakes.queued());
+		assertEquals(0, handshakes.threads());
+		for(int i=0;i<jobs.length;i++)
+			assertEquals(i < 3, jobs[i].ran);
+		// Room in the queue again.
+		assertTrue(handshakes.execute(new Handshake(0), null));
+		assertEquals(2, handshakes.countDroppedQueueFull());
+	}
+
+	public void testOverBudgetAndRollover() throws InterruptedException {
+		StubExecutor executor = new StubExecutor();
+		HandshakeExecutor handshakes = new HandshakeExecutor(executor, 1, 10, 1);
+		Handshake first = new Handshake(50);
+		assertTrue(handshakes.execute(first, null));
+		executor.runAll();
+		assertTrue(first.ran);
+		// The first handshake used up this second's budget.
+		assertFalse(handshakes.execute(new Handshake(0), null));
+		assertFalse(handshakes.execute(new Handshake(0), null));
+		assertEquals(2, handshakes.countDroppedOverBudget());
+		assertEquals(0, handshakes.countDroppedQueueFull());
+		assertEquals(0, handshakes.queued());
+		// A new second starts with a new budget.
+		Thread.sleep(1100);
+		Handshake next = new Handshake(0);
+		assertTrue(handshakes.execute(next, null));
+		executor.runAll();
+		assertTrue(next.ran);
+		assertEquals(2, handshakes.countCompleted());
+		assertEquals(2, handshakes.countDroppedOverBudget());
+	}
+
+	/** A handshake which doesn't finish until it is released. */
+	private static class PeerHandshake implements Runnable {
+		final CountDownLatch started;
+		final CountDownLatch release;
+		final CountDownLatch done;
+
+		PeerHandshake(CountDownLatch started, CountDownLatch release, CountDownLatch done) {
+			this.started = started;
+			this.release = release;
+			this.done = done;
+		}
+
+		public void run() {
+			started.countDown();
+			try {
+				release.await(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				// Ignore.
+			}
+			done.countDown();
+		}
+	}
+
+	public void testSamePeerNotConcurrent() throws InterruptedException {
+		HandshakeExecutor handshakes = new HandshakeExecutor(new ThreadExecutor(), 4, 10, Long.MAX_VALUE);
+		Object peer = new Object();
+		CountDownLatch started = new CountDownLatch(2);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(2);
+		// A JFK(4) and its resend for the same peer.
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), peer));
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), peer));
+		// The second must wait for the first.
+		assertFalse(started.await(500, TimeUnit.MILLISECONDS));
+		assertEquals(1, started.getCount());
+		assertEquals(1, handshakes.queued());
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, started.getCount());
+	}
+
+	public void testOtherPeersConcurrent() throws InterruptedException {
+		HandshakeExecutor handshakes = new HandshakeExecutor(new ThreadExecutor(), 4, 10, Long.MAX_VALUE);
+		Object peer = new Object();
+		CountDownLatch started = new CountDownLatch(3);
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch done = new CountDownLatch(4);
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), peer));
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), peer));
+		// Neither waits for the busy peer.
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), new Object()));
+		assertTrue(handshakes.execute(new PeerHandshake(started, release, done), null));
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+	}
+
+}
@@ -0,0 +1,243 @@
+package freenet.node;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import junit.framework.TestCase;
+import freenet.support.SimpleFieldSet;
+import freenet.support.io.FileUtil;
+
+public class PeersJournalTest extends TestCase {
+
+	private File tempDir;
+	private File peersFile;
+	/** Current peers by identity, and the version of each */
+	private HashMap<String, Integer> peers;
+
+	protected void setUp() {
+		tempDir = new File("tmp-peersjournaltest");
+		FileUtil.removeAll(tempDir);
+		tempDir.mkdir();
+		peersFile = new File(tempDir, "peers-test");
+		peers = new HashMap<String, Integer>();
+	}
+
+	protected void tearDown() {
+		FileUtil.removeAll(tempDir);
+	}
+
+	private static String peer(String identity, int version) {
+		SimpleFieldSet fs = new SimpleFieldSet(true);
+		fs.putSingle("identity", identity);
+		fs.put("test.version", version);
+		return fs.toString();
+	}
+
+	private void write(PeersJournal journal, String... changed) {
+		HashMap<String, String> refs = new HashMap<String, String>();
+		for(String identity : changed)
+			refs.put(identity, peer(identity, peers.get(identity)));
+		journal.write(refs, new HashSet<String>(peers.keySet()));
+	}
+
+	private HashMap<String, Integer> load() throws Exception {
+		PeersJournal journal = new PeersJournal(peersFile);
+		return toMap(journal.load());
+	}
+
+	private static HashMap<String, Integer> toMap(List<SimpleFieldSet> refs) throws Exception {
+		HashMap<String, Integer> loaded = new HashMap<String, Integer>();
+		for(SimpleFieldSet fs : refs)
+			loaded.put(fs.get("identity"), fs.getInt("test.version"));
+		return loaded;
+	}
+
+	/** Start with a snapshot of three peers and an empty journal. */
+	private PeersJournal start() {
+		PeersJournal journal = new PeersJournal(peersFile);
+		journal.load();
+		peers.put("a", 1);
+		peers.put("b", 1);
+		peers.put("c", 1);
+		write(journal, "a", "b", "c");
+		assertTrue(peersFile.exists());
+		assertFalse(journal.getJournalFile().exists());
+		return journal;
+	}
+
+	public void testAppend() throws Exception {
+		PeersJournal journal = start();
+		long snapshotLength = peersFile.length();
+		peers.put("a", 2);
+		write(journal, "a");
+		peers.remove("b");
+		peers.put("d", 1);
+		write(journal, "d");
+		// Unchanged peers are not written again.
+		write(journal, "c");
+		assertEquals(snapshotLength, peersFile.length());
+		assertTrue(journal.getJournalFile().exists());
+		assertEquals(peers, load());
+	}
+
+	public void testCompact() throws Exception {
+		PeersJournal journal = start();
+		for(int i=2;i<10000 && journal.getJournalFile().exists() || i==2;i++) {
+			peers.put("a", i);
+			write(journal, "a");
+		}
+		assertFalse(journal.getJournalFile().exists());
+		assertEquals(peers, load());
+	}
+
+	/** If we crash while appending a record, we get the peers as they were
+	 * before it, and can carry on appending. */
+	public void testTruncatedJournal() throws Exception {
+		PeersJournal journal = start();
+		peers.put("a", 2);
+		write(journal, "a");
+		HashMap<String, Integer> before = new HashMap<String, Integer>(peers);
+		File journalFile = journal.getJournalFile();
+		long goodLength = journalFile.length();
+		peers.put("b", 2);
+		peers.remove("c");
+		write(journal, "b");
+		HashMap<String, Integer> after = new HashMap<String, Integer>(peers);
+		long fullLength = journalFile.length();
+		byte[] full = readFully(journalFile);
+		for(long length = goodLength; length <= fullLength; length++) {
+			RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+			raf.setLength(0);
+			raf.write(full, 0, (int) length);
+			raf.close();
+			HashMap<String, Integer> loaded = load();
+			// Only the newline after the last End is missing.
+			if(length >= fullLength - 1)
+				assertEquals(after, loaded);
+			else {
+				// Maybe the remove record, but not a partial update.
+				assertEquals(before.get("a"), loaded.get("a"));
+				assertEquals(before.get("b"), loaded.get("b"));
+			}
+		}
+		// Replay a partial record, then carry on from there.
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		raf.setLength(fullLength - 2);
+		raf.close();
+		journal = new PeersJournal(peersFile);
+		peers = toMap(journal.load());
+		assertEquals(before.get("b"), peers.get("b"));
+		peers.put("d", 1);
+		write(journal, "d");
+		peers.put("a", 3);
+		write(journal, "a");
+		assertEquals(peers, load());
+	}
+
+	/** If we crash after writing a new snapshot but before deleting the
+	 * journal, the journal is ignored. */
+	public void testReplayAfterCompact() throws Exception {
+		PeersJournal journal = start();
+		peers.put("a", 2);
+		write(journal, "a");
+		peers.remove("b");
+		write(journal);
+		peers.put("b", 3);
+		write(journal, "b");
+		peers.put("c", 2);
+		write(journal, "c");
+		File journalFile = journal.getJournalFile();
+		byte[] old = readFully(journalFile);
+		// Force a new snapshot.
+		while(journalFile.exists()) {
+			peers.put("a", peers.get("a") + 1);
+			write(journal, "a");
+		}
+		HashMap<String, Integer> expected = new HashMap<String, Integer>(peers);
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		raf.write(old);
+		raf.close();
+		assertEquals(expected, load());
+	}
+
+	/** If we can't replace the snapshot, the old snapshot and journal are
+	 * kept, and we write a new snapshot once we can. */
+	public void testRenameFails() throws Exception {
+		PeersJournal journal = start();
+		peers.put("a", 2);
+		write(journal, "a");
+		File journalFile = journal.getJournalFile();
+		byte[] oldSnapshot = readFully(peersFile);
+		// Make the rename fail.
+		assertTrue(peersFile.delete());
+		assertTrue(peersFile.mkdir());
+		File blocker = new File(peersFile, "blocker");
+		assertTrue(blocker.createNewFile());
+		HashMap<String, Integer> expected;
+		for(int i=3;;i++) {
+			assertTrue(i < 10000);
+			expected = new HashMap<String, Integer>(peers);
+			long length = journalFile.length();
+			peers.put("a", i);
+			write(journal, "a");
+			// Tried to compact.
+			if(journalFile.length() == length) break;
+		}
+		assertTrue(journalFile.exists());
+		assertTrue(blocker.delete());
+		assertTrue(peersFile.delete());
+		FileOutputStream fos = new FileOutputStream(peersFile);
+		fos.write(oldSnapshot);
+		fos.close();
+		// The journal still applies to the old snapshot.
+		assertEquals(expected, load());
+		peers.put("b", 2);
+		write(journal, "b");
+		assertFalse(journalFile.exists());
+		assertEquals(peers, load());
+	}
+
+	/** The journal is compacted by size in bytes, not characters. */
+	public void testCompactNonASCII() throws Exception {
+		PeersJournal journal = new PeersJournal(peersFile);
+		journal.load();
+		String identity = "\u00e9\u00e8\u00ea\u00eb\u00e0\u00e2\u00e4\u00f4\u00f6\u00fb\u00fc\u00e7";
+		for(int i=0;i<4;i++)
+			identity += identity;
+		peers.put(identity, 1);
+		write(journal, identity);
+		File journalFile = journal.getJournalFile();
+		long maxLength = 0;
+		for(int i=2;i<1000;i++) {
+			peers.put(identity, i);
+			write(journal, identity);
+			maxLength = Math.max(maxLength, journalFile.length());
+		}
+		// Never bigger than the snapshot, or the minimum size.
+		assertTrue(maxLength <= Math.max(PeersJournal.MIN_COMPACT_SIZE, peersFile.length()));
+		assertEquals(peers, load());
+	}
+
+	public void testMissingFiles() throws Exception {
+		assertTrue(load().isEmpty());
+		PeersJournal journal = new PeersJournal(peersFile);
+		journal.load();
+		peers.put("a", 1);
+		write(journal, "a");
+		assertEquals(peers, load());
+	}
+
+	private static byte[] readFully(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		byte[] buf = new byte[(int) raf.length()];
+		raf.readFully(buf);
+		raf.close();
+		return buf;
+	}
+
+}
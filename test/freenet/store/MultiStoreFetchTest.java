@@ -0,0 +1,156 @@
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+import freenet.support.PooledExecutor;
+
+public class MultiStoreFetchTest extends TestCase {
+
+	private PooledExecutor exec = new PooledExecutor();
+	private StoreIOExecutor ioExec;
+
+	protected void setUp() throws java.lang.Exception {
+		exec.start();
+		ioExec = new StoreIOExecutor(exec, "Test store reads", 4, 16, null, null);
+	}
+
+	private static class Block implements StorableBlock {
+		final String from;
+		Block(String from) {
+			this.from = from;
+		}
+		public byte[] getRoutingKey() {
+			return null;
+		}
+		public byte[] getFullKey() {
+			return null;
+		}
+	}
+
+	/** A store which takes a while to answer, like a disk. */
+	private static class SlowProbe extends MultiStoreFetch.Probe<Block> {
+		private final long delay;
+		private final boolean has;
+		volatile boolean ran;
+		SlowProbe(String name, boolean onDisk, long delay, boolean has) {
+			super(name, onDisk);
+			this.delay = delay;
+			this.has = has;
+		}
+		@Override
+		protected Block fetch() throws IOException {
+			ran = true;
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				// Ignore
+			}
+			return has ? new Block(name) : null;
+		}
+	}
+
+	public void testMemoryHitSkipsDisk() {
+		MultiStoreFetch<Block> f = new MultiStoreFetch<Block>();
+		SlowProbe disk1 = new SlowProbe("disk1", true, 100, true);
+		SlowProbe disk2 = new SlowProbe("disk2", true, 100, true);
+		SlowProbe ram = new SlowProbe("ram", false, 0, true);
+		f.add(disk1);
+		f.add(disk2);
+		f.add(ram);
+		assertEquals("ram", f.fetch(ioExec, StoreIOExecutor.READ).from);
+		assertSame(ram, f.getHit());
+		assertFalse(disk1.ran);
+		assertFalse(disk2.ran);
+	}
+
+	public void testParallel() {
+		MultiStoreFetch<Block> f = new MultiStoreFetch<Block>();
+		SlowProbe store = new SlowProbe("store", true, 300, false);
+		SlowProbe cache = new SlowProbe("cache", true, 300, false);
+		SlowProbe client = new SlowProbe("client", true, 300, true);
+		f.add(store);
+		f.add(cache);
+		f.add(client);
+		long start = System.currentTimeMillis();
+		assertEquals("client", f.fetch(ioExec, StoreIOExecutor.READ).from);
+		assertSame(client, f.getHit());
+		// One at a time would take 900ms.
+		assertTrue(System.currentTimeMillis() - start < 800);
+	}
+
+	public void testMiss() {
+		MultiStoreFetch<Block> f = new MultiStoreFetch<Block>();
+		f.add(new SlowProbe("store", true, 10, false));
+		f.add(new SlowProbe("cache", true, 10, false));
+		f.add(new SlowProbe("ram", false, 0, false));
+		assertNull(f.fetch(ioExec, StoreIOExecutor.READ));
+		assertNull(f.getHit());
+	}
+
+	/** Without an executor, stores are read in order and we stop at the first hit. */
+	public void testSequential() {
+		MultiStoreFetch<Block> f = new MultiStoreFetch<Block>();
+		SlowProbe store = new SlowProbe("store", true, 0, false);
+		SlowProbe cache = new SlowProbe("cache", true, 0, true);
+		SlowProbe client = new SlowProbe("client", true, 0, true);
+		f.add(store);
+		f.add(cache);
+		f.add(client);
+		assertEquals("cache", f.fetch(null, StoreIOExecutor.READ).from);
+		assertTrue(store.ran);
+		assertFalse(client.ran);
+	}
+
+	/** If the queue is full the caller reads the store itself. */
+	public void testQueueFull() {
+		StoreIOExecutor tiny = new StoreIOExecutor(exec, "Test store reads", 1, 0, null, null);
+		MultiStoreFetch<Block> f = new MultiStoreFetch<Block>();
+		f.add(new SlowProbe("store", true, 0, false));
+		f.add(new SlowProbe("cache", true, 0, true));
+		assertEquals("cache", f.fetch(tiny, StoreIOExecutor.READ).from);
+		assertEquals(0, tiny.threads());
+	}
+
+	/** Local reads go ahead of queued cache writes. */
+	public void testPriority() throws InterruptedException {
+		StoreIOExecutor one = new StoreIOExecutor(exec, "Test store I/O", 1, 16, null, null);
+		final Object lock = new Object();
+		final StringBuffer order = new StringBuffer();
+		final boolean[] release = new boolean[1];
+		one.execute(new Runnable() {
+			public void run() {
+				synchronized(lock) {
+					while(!release[0]) {
+						try {
+							lock.wait();
+						} catch (InterruptedException e) {
+							// Ignore
+						}
+					}
+				}
+			}
+		}, StoreIOExecutor.READ);
+		one.execute(new Runnable() {
+			public void run() {
+				order.append("write ");
+			}
+		}, StoreIOExecutor.CACHE_WRITE);
+		one.execute(new Runnable() {
+			public void run() {
+				synchronized(lock) {
+					order.append("read ");
+					lock.notifyAll();
+				}
+			}
+		}, StoreIOExecutor.CLIENT_READ);
+		synchronized(lock) {
+			release[0] = true;
+			lock.notifyAll();
+		}
+		while(one.queued() > 0)
+			Thread.sleep(10);
+		Thread.sleep(50);
+		assertEquals("read write ", order.toString());
+	}
+}
@@ -0,0 +1,114 @@
+package freenet.store;
+
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import freenet.keys.CHKBlock;
+import freenet.keys.CHKDecodeException;
+import freenet.keys.CHKEncodeException;
+import freenet.keys.CHKVerifyException;
+import freenet.keys.ClientCHK;
+import freenet.keys.ClientCHKBlock;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+/** Test the off-heap SlabRAMFreenetStore */
+public class SlabRAMFreenetStoreTest extends TestCase {
+
+	public void testFetch() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new SlabRAMFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		store.put(block, false);
+
+		ClientCHK key = block.getClientKey();
+
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false);
+		String data = decodeBlock(verify, key);
+		assertEquals(test, data);
+		assertEquals(1, store.keyCount());
+		assertEquals(1, store.hits());
+	}
+
+	public void testEviction() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new SlabRAMFreenetStore<CHKBlock>(store, 5);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[20];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i);
+			store.put(blocks[i], false);
+			// Keep block 0 referenced so CLOCK gives it second chances.
+			assertNotNull(store.fetch(blocks[0].getClientKey().getNodeCHK(), false));
+		}
+		assertEquals(5, store.keyCount());
+
+		CHKBlock verify = store.fetch(blocks[0].getClientKey().getNodeCHK(), false);
+		assertEquals("test0", decodeBlock(verify, blocks[0].getClientKey()));
+		verify = store.fetch(blocks[19].getClientKey().getNodeCHK(), false);
+		assertEquals("test19", decodeBlock(verify, blocks[19].getClientKey()));
+		assertNull(store.fetch(blocks[1].getClientKey().getNodeCHK(), false));
+	}
+
+	public void testResize() throws Exception {
+		CHKStore store = new CHKStore();
+		SlabRAMFreenetStore<CHKBlock> slabStore = new SlabRAMFreenetStore<CHKBlock>(store, 10);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[10];
+		for(int i=0;i<blocks.length;i++) {
+			blocks[i] = encodeBlock("test"+i);
+			store.put(blocks[i], false);
+		}
+		slabStore.setMaxKeys(20, true);
+		assertEquals(10, store.keyCount());
+		for(int i=0;i<blocks.length;i++) {
+			CHKBlock verify = store.fetch(blocks[i].getClientKey().getNodeCHK(), false);
+			assertEquals("test"+i, decodeBlock(verify, blocks[i].getClientKey()));
+		}
+		slabStore.setMaxKeys(4, true);
+		assertEquals(4, store.keyCount());
+		int found = 0;
+		for(int i=0;i<blocks.length;i++) {
+			if(store.fetch(blocks[i].getClientKey().getNodeCHK(), false) != null)
+				found++;
+		}
+		assertEquals(4, found);
+	}
+
+	public void testMigrate() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		SlabRAMFreenetStore<CHKBlock> slabStore = new SlabRAMFreenetStore<CHKBlock>(store, 10);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test);
+		store.put(block, false);
+
+		CHKStore newStore = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(newStore, 10);
+		slabStore.migrateTo(newStore, false);
+		slabStore.clear();
+		assertEquals(0, store.keyCount());
+
+		ClientCHK key = block.getClientKey();
+		CHKBlock verify = newStore.fetch(key.getNodeCHK(), false);
+		assertEquals(test, decodeBlock(verify, key));
+	}
+
+	private String decodeBlock(CHKBlock verify, ClientCHK key) throws CHKVerifyException, CHKDecodeException, IOException {
+		ClientCHKBlock cb = new ClientCHKBlock(verify, key);
+		Bucket output = cb.decode(new ArrayBucketFactory(), 32768, false);
+		byte[] buf = BucketTools.toByteArray(output);
+		return new String(buf, "UTF-8");
+	}
+
+	private ClientCHKBlock encodeBlock(String test) throws CHKEncodeException, IOException {
+		byte[] data = test.getBytes("UTF-8");
+		SimpleReadOnlyArrayBucket bucket = new SimpleReadOnlyArrayBucket(data);
+		return ClientCHKBlock.encode(bucket, false, false, (short)-1, bucket.size());
+	}
+}
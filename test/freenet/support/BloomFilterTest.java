@@ -1,5 +1,7 @@
 package freenet.support;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -149,4 +151,45 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	private void _testForkResume(boolean counting) throws IOException {
+		int K = BloomFilter.optimialK(FILTER_SIZE, PASS_POS);
+		File file = File.createTempFile("bloomtest", ".bloom");
+		File forkFile = new File(file.getPath() + ".fork");
+		try {
+			file.delete();
+			BloomFilter filter = BloomFilter.createFilter(file, FILTER_SIZE, K, counting);
+			// A new file is empty, so the store must rebuild it.
+			assertTrue(filter.needRebuild());
+			assertFalse(filter.fork(K, forkFile, false));
+			byte[][] list = new byte[PASS_POS][];
+			for (int i = 0; i < PASS_POS; i++) {
+				list[i] = new byte[32];
+				rand.nextBytes(list[i]);
+				filter.addKey(list[i]);
+			}
+			filter.close();
+
+			// After a restart, the fork carries on with what it had, even if the main filter
+			// lost everything.
+			file.delete();
+			filter = BloomFilter.createFilter(file, FILTER_SIZE, K, counting);
+			assertTrue(filter.fork(K, forkFile, true));
+			filter.merge();
+			for (byte[] b : list)
+				assertTrue(filter.checkFilter(b));
+			filter.close();
+		} finally {
+			file.delete();
+			forkFile.delete();
+		}
+	}
+
+	public void testCountingFilterForkResume() throws IOException {
+		_testForkResume(true);
+	}
+
+	public void testBinaryFilterForkResume() throws IOException {
+		_testForkResume(false);
+	}
 }
@@ -0,0 +1,193 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.Enumeration;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.ConcurrentLRUHashtable} class.
+ */
+public class ConcurrentLRUHashtableTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private ConcurrentLRUHashtable<Integer, Integer> createFilled(int size) {
+		ConcurrentLRUHashtable<Integer, Integer> table = new ConcurrentLRUHashtable<Integer, Integer>();
+		for(int i=0;i<size;i++)
+			table.push(i, i);
+		return table;
+	}
+
+	/**
+	 * Pops everything and checks it comes out in push order.
+	 */
+	public void testPopOrder() {
+		ConcurrentLRUHashtable<Integer, Integer> table = createFilled(100);
+		for(int i=0;i<100;i++)
+			assertEquals(Integer.valueOf(i), table.popKey());
+		assertNull(table.popKey());
+		assertTrue(table.isEmpty());
+	}
+
+	/**
+	 * Pushing an existing key moves it to the most recently used position
+	 * without adding a duplicate.
+	 */
+	public void testPushPromotes() {
+		ConcurrentLRUHashtable<Integer, Integer> table = createFilled(10);
+		table.push(0, 42);
+		assertEquals(10, table.size());
+		assertEquals(Integer.valueOf(1), table.popKey());
+		Enumeration<Integer> keys = table.keys();
+		Integer last = null;
+		while(keys.hasMoreElements())
+			last = keys.nextElement();
+		assertEquals(Integer.valueOf(0), last);
+		assertEquals(Integer.valueOf(42), table.get(0));
+	}
+
+	public void testRemoveKey() {
+		ConcurrentLRUHashtable<Integer, Integer> table = createFilled(10);
+		assertTrue(table.removeKey(5));
+		assertFalse(table.removeKey(5));
+		assertFalse(table.containsKey(5));
+		assertEquals(9, table.size());
+		table.clear();
+		assertEquals(0, table.size());
+		assertNull(table.popValue());
+	}
+
+	/**
+	 * Checks the size bound evicts the least recently pushed entries and
+	 * notifies the listener.
+	 */
+	public void testSizeBound() {
+		final int[] evicted = new int[1];
+		ConcurrentLRUHashtable<Integer, Integer> table = new ConcurrentLRUHashtable<Integer, Integer>(10,
+				new ConcurrentLRUHashtable.EvictionListener<Integer, Integer>() {
+			public void onEviction(Integer key, Integer value) {
+				assertEquals(evicted[0], key.intValue());
+				evicted[0]++;
+			}
+		});
+		for(int i=0;i<25;i++)
+			table.push(i, i);
+		assertEquals(10, table.size());
+		assertEquals(15, evicted[0]);
+		assertEquals(Integer.valueOf(15), table.popKey());
+	}
+
+	public void testWeightBound() {
+		ConcurrentLRUHashtable<Integer, byte[]> table = new ConcurrentLRUHashtable<Integer, byte[]>(Integer.MAX_VALUE, 1000,
+				new ConcurrentLRUHashtable.Weigher<Integer, byte[]>() {
+			public long weigh(Integer key, byte[] value) {
+				return value.length;
+			}
+		}, null);
+		for(int i=0;i<20;i++)
+			table.push(i, new byte[100]);
+		assertEquals(10, table.size());
+		assertEquals(1000, table.weight());
+		table.push(19, new byte[500]);
+		assertEquals(6, table.size());
+		assertEquals(1000, table.weight());
+	}
+
+	/**
+	 * Hammers the table from several threads and checks the size stays
+	 * within the bound and consistent with the contents.
+	 */
+	public void testConcurrentAccess() throws InterruptedException {
+		final ConcurrentLRUHashtable<Integer, Integer> table = new ConcurrentLRUHashtable<Integer, Integer>(500, null);
+		Thread[] threads = new Thread[8];
+		for(int i=0;i<threads.length;i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int j=0;j<50000;j++) {
+						Integer key = r.nextInt(2000);
+						if(table.get(key) == null)
+							table.push(key, key);
+						else if(r.nextInt(10) == 0)
+							table.removeKey(key);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertTrue(table.size() <= 500);
+		int count = 0;
+		Enumeration<Integer> keys = table.keys();
+		while(keys.hasMoreElements()) {
+			keys.nextElement();
+			count++;
+		}
+		assertEquals(table.size(), count);
+	}
+
+	/**
+	 * Compares a synchronized LRUHashtable with ConcurrentLRUHashtable, used
+	 * as a bounded cache with get-then-push, at 1 to 16 threads.
+	 */
+	public void testBenchmark() throws InterruptedException {
+		if(!BENCHMARK) return;
+		final int cacheSize = 1000;
+		final int keySpace = 2000;
+		final int opsPerThread = 1000000;
+		for(int threads = 1; threads <= 16; threads *= 2) {
+			final LRUHashtable<Integer, Integer> locked = new LRUHashtable<Integer, Integer>();
+			long lockedTime = runBenchmark(threads, opsPerThread, new CacheOp() {
+				public void access(Integer key) {
+					synchronized(locked) {
+						Integer value = locked.get(key);
+						locked.push(key, value == null ? key : value);
+						while(locked.size() > cacheSize)
+							locked.popKey();
+					}
+				}
+			}, keySpace);
+			final ConcurrentLRUHashtable<Integer, Integer> concurrent =
+				new ConcurrentLRUHashtable<Integer, Integer>(cacheSize, null);
+			long concurrentTime = runBenchmark(threads, opsPerThread, new CacheOp() {
+				public void access(Integer key) {
+					Integer value = concurrent.get(key);
+					concurrent.push(key, value == null ? key : value);
+				}
+			}, keySpace);
+			System.out.println(threads+" threads: LRUHashtable "+lockedTime+"ms, ConcurrentLRUHashtable "+concurrentTime+"ms");
+		}
+	}
+
+	private interface CacheOp {
+		void access(Integer key);
+	}
+
+	private long runBenchmark(int threadCount, final int ops, final CacheOp op, final int keySpace) throws InterruptedException {
+		Thread[] threads = new Thread[threadCount];
+		for(int i=0;i<threads.length;i++) {
+			final int seed = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					Random r = new Random(seed);
+					for(int j=0;j<ops;j++)
+						op.access(r.nextInt(keySpace));
+				}
+			};
+		}
+		long start = System.currentTimeMillis();
+		for(Thread t : threads)
+			t.start();
+		for(Thread t : threads)
+			t.join();
+		return System.currentTimeMillis() - start;
+	}
+}
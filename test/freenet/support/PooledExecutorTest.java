@@ -0,0 +1,75 @@
+package freenet.support;
+
+import junit.framework.TestCase;
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+
+public class PooledExecutorTest extends TestCase {
+
+	private static class Blocker implements PrioRunnable {
+		private final int prio;
+		private boolean started;
+		private boolean release;
+		Blocker(int prio) {
+			this.prio = prio;
+		}
+		public synchronized void run() {
+			started = true;
+			notifyAll();
+			while(!release) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Ignore
+				}
+			}
+		}
+		synchronized void waitStarted() throws InterruptedException {
+			while(!started)
+				wait();
+		}
+		synchronized void release() {
+			release = true;
+			notifyAll();
+		}
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	private void checkRunning(boolean virtual) throws InterruptedException {
+		PooledExecutor exec = new PooledExecutor();
+		exec.start();
+		assertTrue(exec.setUseVirtualThreads(virtual));
+		Blocker[] blockers = new Blocker[10];
+		for(int i=0;i<blockers.length;i++) {
+			blockers[i] = new Blocker(NativeThread.NORM_PRIORITY);
+			exec.execute(blockers[i], "Blocker "+i);
+		}
+		for(Blocker b : blockers)
+			b.waitStarted();
+		assertEquals(blockers.length, exec.runningThreads()[NativeThread.NORM_PRIORITY - 1]);
+		assertEquals(virtual ? blockers.length : 0, exec.getVirtualThreadsCount());
+		for(Blocker b : blockers)
+			b.release();
+		for(int i=0;i<100 && exec.runningThreads()[NativeThread.NORM_PRIORITY - 1] > 0;i++)
+			Thread.sleep(10);
+		assertEquals(0, exec.runningThreads()[NativeThread.NORM_PRIORITY - 1]);
+	}
+
+	public void testPooledThreads() throws InterruptedException {
+		checkRunning(false);
+	}
+
+	public void testVirtualThreads() throws InterruptedException {
+		if(!PooledExecutor.virtualThreadsAvailable()) {
+			// Falls back to pooled threads.
+			PooledExecutor exec = new PooledExecutor();
+			assertFalse(exec.setUseVirtualThreads(true));
+			assertFalse(exec.usingVirtualThreads());
+			return;
+		}
+		checkRunning(true);
+	}
+
+}
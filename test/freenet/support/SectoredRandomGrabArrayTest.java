@@ -0,0 +1,162 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.HashSet;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.db4o.ObjectContainer;
+
+import freenet.client.async.ClientContext;
+import freenet.support.io.ArrayBucketFactory;
+
+/**
+ * Test case for {@link freenet.support.SectoredRandomGrabArray} and
+ * {@link freenet.support.RandomGrabArray}, for transient requests.
+ */
+public class SectoredRandomGrabArrayTest extends TestCase {
+	// Run with <code>ant -Dbenchmark=true</code> to do benchmark
+	private static final boolean BENCHMARK = Boolean.getBoolean("benchmark");
+
+	private static class Item implements RandomGrabArrayItem {
+		private RandomGrabArray parent;
+		boolean cancelled;
+
+		public boolean isEmpty(ObjectContainer container) {
+			return cancelled;
+		}
+
+		public boolean knowsParentGrabArray() {
+			return true;
+		}
+
+		public void setParentGrabArray(RandomGrabArray parent, ObjectContainer container) {
+			this.parent = parent;
+		}
+
+		public RandomGrabArray getParentGrabArray() {
+			return parent;
+		}
+
+		public boolean persistent() {
+			return false;
+		}
+	}
+
+	private static class Excluded implements RandomGrabArrayItemExclusionList {
+		final HashSet<RandomGrabArrayItem> items = new HashSet<RandomGrabArrayItem>();
+
+		public boolean exclude(RandomGrabArrayItem item, ObjectContainer container, ClientContext context) {
+			return items.contains(item);
+		}
+	}
+
+	private ClientContext context;
+
+	@Override
+	protected void setUp() {
+		context = new ClientContext(null, null, null, null, null, null, new ArrayBucketFactory(), null, null, null,
+				new Random(0), null, null, null, null);
+	}
+
+	/** Fill an array with clients * perClient items, excluding all but
+	 * one in every keepOneIn of them. */
+	private Item[] fill(SectoredRandomGrabArray array, int clients, int perClient, Excluded excluded, int keepOneIn) {
+		Item[] items = new Item[clients * perClient];
+		for(int i=0;i<items.length;i++) {
+			items[i] = new Item();
+			array.add(Integer.valueOf(i % clients), items[i], null);
+			if(i % keepOneIn != 0)
+				excluded.items.add(items[i]);
+		}
+		return items;
+	}
+
+	public void testOnlyEligibleReturned() {
+		SectoredRandomGrabArray array = new SectoredRandomGrabArray(false, null, null);
+		Excluded excluded = new Excluded();
+		Item[] items = fill(array, 10, 100, excluded, 20);
+		HashSet<RandomGrabArrayItem> returned = new HashSet<RandomGrabArrayItem>();
+		for(int i=0;i<10000;i++) {
+			RandomGrabArrayItem item = array.removeRandom(excluded, null, context);
+			assertNotNull(item);
+			assertFalse(excluded.items.contains(item));
+			returned.add(item);
+		}
+		// Nothing is removed, and we see all of them eventually.
+		assertEquals(items.length / 20, returned.size());
+		assertEquals(10, array.size());
+	}
+
+	public void testAllExcluded() {
+		SectoredRandomGrabArray array = new SectoredRandomGrabArray(false, null, null);
+		Excluded excluded = new Excluded();
+		Item[] items = fill(array, 5, 50, excluded, Integer.MAX_VALUE);
+		excluded.items.add(items[0]);
+		assertNull(array.removeRandom(excluded, null, context));
+		assertNull(array.removeRandom(excluded, null, context));
+		// A new item can be returned straight away.
+		Item item = new Item();
+		array.add(Integer.valueOf(3), item, null);
+		assertSame(item, array.removeRandom(excluded, null, context));
+	}
+
+	public void testCancelledRemoved() {
+		SectoredRandomGrabArray array = new SectoredRandomGrabArray(false, null, null);
+		Excluded excluded = new Excluded();
+		Item[] items = fill(array, 4, 50, excluded, 2);
+		// Cancel everything on client 0, and everything eligible on client 1.
+		for(int i=0;i<items.length;i++) {
+			if(i % 4 == 0 || (i % 4 == 1 && !excluded.items.contains(items[i])))
+				items[i].cancelled = true;
+		}
+		for(int i=0;i<1000;i++) {
+			RandomGrabArrayItem item = array.removeRandom(excluded, null, context);
+			assertNotNull(item);
+			assertFalse(((Item) item).cancelled);
+			assertFalse(excluded.items.contains(item));
+		}
+		assertEquals(3, array.size());
+		for(int i=0;i<items.length;i++) {
+			if(items[i].cancelled)
+				assertNull(items[i].getParentGrabArray());
+		}
+	}
+
+	public void testRemoveItem() {
+		SectoredRandomGrabArray array = new SectoredRandomGrabArray(false, null, null);
+		Excluded excluded = new Excluded();
+		Item[] items = fill(array, 1, 100, excluded, 10);
+		// Move the excluded items out of the candidates.
+		assertNotNull(array.removeRandom(excluded, null, context));
+		for(int i=0;i<items.length;i+=10) {
+			if(i != 50)
+				items[i].getParentGrabArray().remove(items[i], null);
+		}
+		for(int i=0;i<100;i++)
+			assertSame(items[50], array.removeRandom(excluded, null, context));
+		items[50].getParentGrabArray().remove(items[50], null);
+		assertNull(array.removeRandom(excluded, null, context));
+	}
+
+	public void testBenchmark() {
+		if(!BENCHMARK) return;
+		SectoredRandomGrabArray array = new SectoredRandomGrabArray(false, null, null);
+		Excluded excluded = new Excluded();
+		fill(array, 100, 1000, excluded, 20);
+		final int count = 1000 * 1000;
+		int nulls = 0;
+		long start = System.currentTimeMillis();
+		for(int i=0;i<count;i++) {
+			if(array.removeRandom(excluded, null, context) == null)
+				nulls++;
+		}
+		long end = System.currentTimeMillis();
+		System.out.println("Select with 95% excluded: " + (end - start) * 1000000 / count + "ns per request, " + nulls + " returned nothing");
+		assertEquals(0, nulls);
+	}
+
+}
@@ -0,0 +1,98 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import freenet.support.api.Bucket;
+
+public class ChunkedRAMBucketTest extends BucketTestBase {
+	// Small chunks so the tests cross chunk boundaries
+	private ChunkPool pool = new ChunkPool(7, 1024);
+
+	@Override
+	protected Bucket makeBucket(long size) throws IOException {
+		return new ChunkedRAMBucket(pool);
+	}
+
+	@Override
+	protected void freeBucket(Bucket bucket) throws IOException {
+		bucket.free();
+	}
+
+	public void testChunksRecycled() throws IOException {
+		Bucket bucket = makeBucket(100);
+		OutputStream os = bucket.getOutputStream();
+		os.write(new byte[100]);
+		os.close();
+		assertEquals(15, pool.getChunksInUse());
+		bucket.free();
+		assertEquals(0, pool.getChunksInUse());
+		assertEquals(15, pool.getIdleChunks());
+
+		bucket = makeBucket(100);
+		os = bucket.getOutputStream();
+		os.write(new byte[50]);
+		os.close();
+		assertEquals(8, pool.getChunksReused());
+		assertEquals(15, pool.getChunksAllocated());
+		bucket.free();
+		
+		pool.setMaxBytes(21);
+		assertEquals(3, pool.getIdleChunks());
+	}
+
+	public void testIdleAndInUseLimited() throws IOException {
+		pool.setMaxBytes(21);
+		Bucket held = makeBucket(14);
+		OutputStream os = held.getOutputStream();
+		os.write(new byte[14]);
+		os.close();
+		Bucket bucket = makeBucket(14);
+		os = bucket.getOutputStream();
+		os.write(new byte[14]);
+		os.close();
+		assertEquals(4, pool.getChunksInUse());
+		bucket.free();
+		// Only keep what fits alongside the chunks still in use.
+		assertEquals(1, pool.getIdleChunks());
+		held.free();
+		assertEquals(3, pool.getIdleChunks());
+	}
+
+	public void testFreedStreamFails() throws IOException {
+		Bucket bucket = makeBucket(20);
+		OutputStream os = bucket.getOutputStream();
+		os.write(DATA1);
+		os.close();
+		InputStream is = bucket.getInputStream();
+		bucket.free();
+		try {
+			is.read();
+			fail("Read from freed bucket");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	public void testWriteTo() throws IOException {
+		ChunkedRAMBucket bucket = new ChunkedRAMBucket(pool);
+		byte[] data = new byte[100];
+		for(int i=0;i<data.length;i++)
+			data[i] = (byte) i;
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		bucket.writeTo(baos, 50);
+		byte[] expected = new byte[50];
+		System.arraycopy(data, 0, expected, 0, 50);
+		assertTrue(Arrays.equals(expected, baos.toByteArray()));
+		bucket.free();
+	}
+}
@@ -0,0 +1,76 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.math;
+
+import junit.framework.TestCase;
+
+/**
+ * Test case for {@link freenet.support.math.Histogram} class.
+ */
+public class HistogramTest extends TestCase {
+
+	public void testBuckets() {
+		Histogram h = new Histogram(5);
+		h.report(0);
+		h.report(1);
+		h.report(2);
+		h.report(3);
+		h.report(7);
+		h.report(8);
+		h.report(1000);
+		long[] counts = h.getCounts();
+		assertEquals(1, counts[0]);
+		assertEquals(1, counts[1]);
+		assertEquals(2, counts[2]);
+		assertEquals(1, counts[3]);
+		// 8 and over all go in the last bucket.
+		assertEquals(2, counts[4]);
+		assertEquals(7, h.countReports());
+		assertEquals(1000, h.getMax());
+	}
+
+	public void testPercentile() {
+		Histogram h = new Histogram(16);
+		assertEquals(0, h.getPercentile(0.5));
+		for(int i=0;i<99;i++)
+			h.report(10);
+		h.report(5000);
+		// 10 is in the 8-15 bucket.
+		assertEquals(15, h.getPercentile(0.5));
+		assertEquals(15, h.getPercentile(0.99));
+		assertEquals(5000, h.getPercentile(1.0));
+		assertEquals((99*10+5000)/100.0, h.getMean(), 0.0001);
+	}
+
+	public void testNegative() {
+		Histogram h = new Histogram(4);
+		h.report(-5);
+		assertEquals(1, h.getCounts()[0]);
+	}
+
+	/** Reports from several threads at once are all counted. */
+	public void testConcurrent() throws InterruptedException {
+		final Histogram h = new Histogram(8);
+		Thread[] threads = new Thread[4];
+		for(int i=0;i<threads.length;i++) {
+			final int base = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<10000;j++)
+						h.report(base * 10 + (j % 10));
+				}
+			};
+			threads[i].start();
+		}
+		for(Thread t : threads)
+			t.join();
+		assertEquals(40000, h.countReports());
+		long sum = 0;
+		for(long c : h.getCounts())
+			sum += c;
+		assertEquals(40000, sum);
+		assertEquals(39, h.getMax());
+	}
+}